@@ -15,7 +15,14 @@
  * ========================================================================== */
 package org.usrz.libs.riak;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.usrz.libs.riak.response.JsonContentHandler;
+import org.usrz.libs.riak.response.MultipartSiblingsContentHandler;
+import org.usrz.libs.riak.response.NullContentHandler;
+import org.usrz.libs.riak.serializers.BytesSerializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -23,15 +30,23 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 public abstract class AbstractJsonClient extends AbstractRiakClient {
 
     protected final ObjectMapper mapper;
+    protected final SerializerRegistry serializers;
+
+    private final ConcurrentMap<Class<?>, Resolution<?>> resolvers = new ConcurrentHashMap<>();
 
     protected AbstractJsonClient(ObjectMapper mapper) {
         if (mapper == null) throw new NullPointerException("Null object mapper");
+        this.serializers = new SerializerRegistry(mapper);
         this.mapper = mapper;
     }
 
+    public SerializerRegistry getSerializerRegistry() {
+        return serializers;
+    }
+
     @Override
     public <T> FetchRequest<T> fetch(Key key, Class<T> type) {
-        final JsonContentHandler <T> handler = new JsonContentHandler<T>(mapper, type);
+        final JsonContentHandler <T> handler = new JsonContentHandler<T>(serializers, type);
         return this.fetch(key, handler);
     }
 
@@ -39,20 +54,59 @@ public abstract class AbstractJsonClient extends AbstractRiakClient {
 
     @Override
     public <T> StoreRequest<T> store(Bucket bucket, T object) {
-        final JsonContentHandler <T> handler = new JsonContentHandler<T>(mapper, getType(object));
+        if (BytesSerializer.isRaw(object)) return this.store(bucket, object, new NullContentHandler<T>());
+        final JsonContentHandler <T> handler = new JsonContentHandler<T>(serializers, getType(object));
         return this.store(bucket, object, handler);
     }
 
     @Override
     public <T> StoreRequest<T> store(Key key, T object) {
-        final JsonContentHandler <T> handler = new JsonContentHandler<T>(mapper, getType(object));
+        if (BytesSerializer.isRaw(object)) return this.store(key, object, new NullContentHandler<T>());
+        final JsonContentHandler <T> handler = new JsonContentHandler<T>(serializers, getType(object));
         return this.store(key, object, handler);
     }
 
     /* ====================================================================== */
 
+    /* Subclasses expose this through their own fluent setters */
+    protected final <T> void putSiblingResolver(Class<T> type, SiblingResolver<T> resolver, boolean writeBack, ResponseListener<T> listener) {
+        if (type == null) throw new NullPointerException("Null type");
+        if (resolver == null) resolvers.remove(type);
+        else resolvers.put(type, new Resolution<T>(type, resolver, writeBack, listener));
+    }
+
+    protected boolean hasSiblingResolver(Class<?> type) {
+        return resolvers.containsKey(type);
+    }
+
+    /* A new handler resolving siblings of what the given one reads, or null */
+    @SuppressWarnings("unchecked")
+    protected <T> MultipartSiblingsContentHandler<T> getSiblingResolver(ContentHandler<T> handler) {
+        if (!(handler instanceof JsonContentHandler)) return null;
+        final Resolution<T> resolution = (Resolution<T>) resolvers.get(((JsonContentHandler<T>) handler).getType());
+        if (resolution == null) return null;
+        return new MultipartSiblingsContentHandler<T>(serializers, resolution.type, resolution.resolver, resolution.writeBack, resolution.listener);
+    }
+
+    /* ====================================================================== */
+
     @SuppressWarnings("unchecked")
     private final <T> Class<T> getType(T object) {
         return (Class<T>) object.getClass();
     }
+
+    private static final class Resolution<T> {
+
+        private final ResponseListener<T> listener;
+        private final SiblingResolver<T> resolver;
+        private final boolean writeBack;
+        private final Class<T> type;
+
+        private Resolution(Class<T> type, SiblingResolver<T> resolver, boolean writeBack, ResponseListener<T> listener) {
+            this.writeBack = writeBack;
+            this.listener = listener;
+            this.resolver = resolver;
+            this.type = type;
+        }
+    }
 }
@@ -96,6 +96,12 @@ public abstract class AbstractPartialResponse<T> implements PartialResponse<T> {
     @Override
     public abstract Date getLastModified();
 
+    @Override
+    public abstract String getETag();
+
+    @Override
+    public abstract String getContentType();
+
     @Override
     public abstract Key getKey();
 
@@ -16,7 +16,10 @@
 package org.usrz.libs.riak;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -32,6 +35,19 @@ public abstract class AbstractRiakClient implements RiakClient {
 
     /* ====================================================================== */
 
+    protected abstract ExecutorService getExecutorService();
+
+    protected void feed(Runnable feeder) {
+        try {
+            getExecutorService().execute(feeder);
+        } catch (RejectedExecutionException exception) {
+            /* Never lose a feeder, or its batch would never complete */
+            feeder.run();
+        }
+    }
+
+    /* ====================================================================== */
+
     @Override
     public abstract IterableFuture<Bucket> getBuckets()
     throws IOException;
@@ -80,6 +96,35 @@ public abstract class AbstractRiakClient implements RiakClient {
 
     /* ====================================================================== */
 
+    protected abstract IterableFuture<IndexTerm> query(IndexQuery query, boolean returnTerms)
+    throws IOException;
+
+    @Override
+    public final IterableFuture<Key> getKeys(IndexQuery query)
+    throws IOException {
+        return new ConvertingIterableFuture<Key, IndexTerm>(this.query(query, false)) {
+            @Override
+            public Key next(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+                return future.next(timeout, unit).getKey();
+            }
+        };
+    }
+
+    @Override
+    public final IterableFuture<IndexTerm> getTerms(IndexQuery query)
+    throws IOException {
+        return this.query(query, true);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public abstract <R> IterableFuture<R> mapReduce(MapReduce job, Class<R> type)
+    throws IOException;
+
+    /* ====================================================================== */
+
     @Override
     public final <T> FetchRequest<T> fetch(String bucket, String key, Class<T> type) {
         return this.fetch(getBucket(bucket), key, type);
@@ -100,6 +145,27 @@ public abstract class AbstractRiakClient implements RiakClient {
         return this.fetch(new Key(bucket, key), handler);
     }
 
+    @Override
+    public <T> IterableFuture<Response<T>> fetchAll(Iterable<Key> keys, Class<T> type) {
+        return this.fetchAll(keys, type, 32, null);
+    }
+
+    @Override
+    public <T> IterableFuture<Response<T>> fetchAll(Iterable<Key> keys, Class<T> type, int window, ResponseListener<T> listener) {
+        return new BatchFetch<>(this, keys, type, window, listener).execute();
+    }
+
+    @Override
+    public <T> LinkWalk<T> walk(Key key, Class<T> type) {
+        if (key == null) throw new NullPointerException("Null key");
+        return this.walk(Collections.singleton(key), type);
+    }
+
+    @Override
+    public <T> LinkWalk<T> walk(Iterable<Key> keys, Class<T> type) {
+        return new LinkWalk<>(this, keys, type);
+    }
+
     /* ====================================================================== */
 
     @Override
@@ -132,6 +198,16 @@ public abstract class AbstractRiakClient implements RiakClient {
         return this.store(new Key(bucket, key), object, handler);
     }
 
+    @Override
+    public <T> BulkStore<T> bulkStore(String bucket, Iterable<T> objects) {
+        return this.bulkStore(getBucket(bucket), objects);
+    }
+
+    @Override
+    public <T> BulkStore<T> bulkStore(Bucket bucket, Iterable<T> objects) {
+        return new BulkStore<>(this, bucket, objects);
+    }
+
     /* ====================================================================== */
 
     @Override
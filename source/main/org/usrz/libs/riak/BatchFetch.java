@@ -0,0 +1,100 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.futures.IterableFuture;
+import org.usrz.libs.utils.futures.QueueingFuture;
+
+class BatchFetch<T> extends Feeder<Key> {
+
+    private static final Log log = new Log();
+
+    private final QueueingFuture<Response<T>> results = new QueueingFuture<>();
+    private final ResponseListener<T> listener;
+    private final AbstractRiakClient client;
+    private final Class<T> type;
+    private final int window;
+
+    BatchFetch(AbstractRiakClient client, Iterable<Key> keys, Class<T> type, int window, ResponseListener<T> listener) {
+        super(client, keys);
+        if (type == null) throw new NullPointerException("Null type");
+        if (window < 1) throw new IllegalArgumentException("Negative or zero window");
+        this.listener = listener;
+        this.client = client;
+        this.window = window;
+        this.type = type;
+    }
+
+    IterableFuture<Response<T>> execute() {
+        start(window);
+        return results;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected void submit(Key key) {
+        try {
+            client.fetch(key, type).execute().addListener(new KeyListener(key));
+        } catch (Throwable throwable) {
+            failed(key, throwable);
+        }
+    }
+
+    @Override
+    protected void finished(Throwable throwable) {
+        if (throwable == null) results.close();
+        else results.fail(throwable);
+    }
+
+    private void failed(Key key, Throwable throwable) {
+        try {
+            /* Failures never make it to the results, don't hide them */
+            if (listener == null) log.warn("Batch fetch for %s failed: %s", key.getLocation(), throwable);
+            else listener.responseFailed(new ResponseEvent<T>(client, new KeyFailedException(key, throwable)));
+        } finally {
+            completed();
+        }
+    }
+
+    /* ====================================================================== */
+
+    private final class KeyListener implements ResponseListener<T> {
+
+        private final Key key;
+
+        private KeyListener(Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public void responseHandled(ResponseEvent<T> event) {
+            try {
+                /* Nobody's consuming results anymore? Stop feeding */
+                if (!results.put(event.getResponse())) stop();
+                else if (listener != null) listener.responseHandled(event);
+            } finally {
+                completed();
+            }
+        }
+
+        @Override
+        public void responseFailed(ResponseEvent<T> event) {
+            failed(key, event.getThrowable());
+        }
+    }
+}
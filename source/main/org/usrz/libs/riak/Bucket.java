@@ -20,6 +20,7 @@ import static java.lang.Integer.toHexString;
 import java.io.IOException;
 
 import org.usrz.libs.riak.utils.RiakUtils;
+import org.usrz.libs.utils.futures.IterableFuture;
 
 public class Bucket implements RiakLocation {
 
@@ -60,6 +61,24 @@ public class Bucket implements RiakLocation {
 
     /* ====================================================================== */
 
+    public IndexQuery query(String index, String value) {
+        return new IndexQuery(this, new Index(index, IndexType.BINARY), value);
+    }
+
+    public IndexQuery query(String index, long value) {
+        return new IndexQuery(this, new Index(index, IndexType.INTEGER), value);
+    }
+
+    public IndexQuery query(String index, String start, String end) {
+        return new IndexQuery(this, new Index(index, IndexType.BINARY), start, end);
+    }
+
+    public IndexQuery query(String index, long start, long end) {
+        return new IndexQuery(this, new Index(index, IndexType.INTEGER), start, end);
+    }
+
+    /* ====================================================================== */
+
     public <T> FetchRequest<T> fetch(String key, Class<T> type) {
         return client.fetch(name, key, type);
     }
@@ -84,6 +103,10 @@ public class Bucket implements RiakLocation {
         return client.store(name, key, object, handler);
     }
 
+    public <T> BulkStore<T> bulkStore(Iterable<T> objects) {
+        return client.bulkStore(this, objects);
+    }
+
     public DeleteRequest delete(String key) {
         return client.delete(name, key);
     }
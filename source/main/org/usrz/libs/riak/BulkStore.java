@@ -0,0 +1,194 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.utils.futures.SettableFuture;
+
+public class BulkStore<T> extends Feeder<T> {
+
+    private static final Log log = new Log();
+
+    private final SettableFuture<BulkStore<T>> future = new SettableFuture<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong latency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private final AbstractRiakClient client;
+    private final Bucket bucket;
+
+    private ResponseListener<T> listener = null;
+    private boolean blindWrite = false;
+    private int concurrency = 64;
+    private double rate = 0;
+
+    private volatile long started = 0;
+    private volatile long finished = 0;
+
+    protected BulkStore(AbstractRiakClient client, Bucket bucket, Iterable<T> objects) {
+        super(client, objects);
+        if (bucket == null) throw new NullPointerException("Null bucket");
+        this.client = client;
+        this.bucket = bucket;
+    }
+
+    /* ====================================================================== */
+
+    public BulkStore<T> setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("Negative or zero concurrency");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public BulkStore<T> setRate(double operationsPerSecond) {
+        if (operationsPerSecond < 0) throw new IllegalArgumentException("Negative rate");
+        this.rate = operationsPerSecond;
+        return this;
+    }
+
+    public BulkStore<T> setBlindWrite(boolean blindWrite) {
+        this.blindWrite = blindWrite;
+        return this;
+    }
+
+    public BulkStore<T> setListener(ResponseListener<T> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    public Future<BulkStore<T>> execute() {
+        synchronized (this) {
+            if (started != 0) throw new IllegalStateException("Bulk store already started");
+            started = System.nanoTime();
+        }
+        start(concurrency, rate);
+        return future;
+    }
+
+    @Override
+    protected void submit(T object) {
+        submitted.incrementAndGet();
+        final ItemListener item = new ItemListener();
+        try {
+            /* Unless blind, reuse clocks we've seen rather than a HEAD per key */
+            client.store(bucket, object)
+                  .setVectorClockMode(blindWrite ? VectorClockMode.NONE : VectorClockMode.CACHED)
+                  .setReturnBody(false)
+                  .execute()
+                  .addListener(item);
+        } catch (Throwable throwable) {
+            item.failed(throwable);
+        }
+    }
+
+    @Override
+    protected void finished(Throwable throwable) {
+        finished = System.nanoTime();
+        if (throwable != null) {
+            future.fail(throwable);
+        } else {
+            log.debug("Bulk store completed: %d stored, %d failed", succeeded.get(), failed.get());
+            future.set(this);
+        }
+    }
+
+    /* ====================================================================== */
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getSucceededCount() {
+        return succeeded.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getInFlightCount() {
+        return submitted.get() - succeeded.get() - failed.get();
+    }
+
+    public double getThroughput() {
+        final long start = started;
+        if (start == 0) return 0;
+        final long end = finished == 0 ? System.nanoTime() : finished;
+        final long completed = succeeded.get() + failed.get();
+        return end == start ? 0 : completed * 1000000000.0 / (end - start);
+    }
+
+    public long getAverageLatency(TimeUnit unit) {
+        final long completed = succeeded.get() + failed.get();
+        return completed == 0 ? 0 : unit.convert(latency.get() / completed, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatency.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /* ====================================================================== */
+
+    private final class ItemListener implements ResponseListener<T> {
+
+        private final long created = System.nanoTime();
+
+        private void done() {
+            final long elapsed = System.nanoTime() - created;
+            latency.addAndGet(elapsed);
+
+            long max = maxLatency.get();
+            while ((elapsed > max) && (!maxLatency.compareAndSet(max, elapsed))) max = maxLatency.get();
+
+            completed();
+        }
+
+        private void failed(Throwable throwable) {
+            try {
+                failed.incrementAndGet();
+                /* Only counted otherwise, don't hide what went wrong */
+                if (listener == null) log.warn("Bulk store in %s failed: %s", bucket.getName(), throwable);
+                else listener.responseFailed(new ResponseEvent<T>(client, throwable));
+            } finally {
+                done();
+            }
+        }
+
+        @Override
+        public void responseHandled(ResponseEvent<T> event) {
+            try {
+                succeeded.incrementAndGet();
+                if (listener != null) listener.responseHandled(event);
+            } finally {
+                done();
+            }
+        }
+
+        @Override
+        public void responseFailed(ResponseEvent<T> event) {
+            failed(event.getThrowable());
+        }
+    }
+}
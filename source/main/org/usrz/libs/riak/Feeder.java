@@ -0,0 +1,220 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.futures.IterableFuture;
+
+/* Submits items while the window allows, and never waits for them: every
+ * completion signals the feeder back onto the client's executor. Only one
+ * thread feeds at any time, the state below is confined to it. Items from
+ * an IterableFuture (say, a key listing) are polled without blocking, and
+ * awaited on a thread of their own; other iterables must never block. */
+abstract class Feeder<I> implements Runnable {
+
+    private static final Log log = new Log();
+    private static ScheduledExecutorService pacer = null;
+    private static ExecutorService waiter = null;
+
+    private final AtomicBoolean waiting = new AtomicBoolean();
+    private final AtomicInteger signals = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AbstractRiakClient client;
+    private final Iterable<I> items;
+    private final IterableFuture<I> future;
+
+    private Iterator<I> iterator = null;
+    private boolean exhausted = false;
+    private boolean finished = false;
+    private int window = 0;
+    private long interval = 0;
+    private long next = 0;
+
+    private volatile boolean stopped = false;
+
+    @SuppressWarnings("unchecked")
+    protected Feeder(AbstractRiakClient client, Iterable<I> items) {
+        if (client == null) throw new NullPointerException("Null client");
+        if (items == null) throw new NullPointerException("Null items");
+        this.client = client;
+        this.items = items;
+        future = items instanceof IterableFuture ? (IterableFuture<I>) items : null;
+    }
+
+    /* ====================================================================== */
+
+    protected final void start(int window) {
+        start(window, 0);
+    }
+
+    protected final void start(int window, double rate) {
+        if (window < 1) throw new IllegalArgumentException("Negative or zero window");
+        if (rate < 0) throw new IllegalArgumentException("Negative rate");
+        this.interval = rate == 0 ? 0 : (long) (1000000000L / rate);
+        this.next = System.nanoTime();
+        this.window = window;
+        signal();
+    }
+
+    protected final void stop() {
+        stopped = true;
+        signal();
+    }
+
+    protected final void completed() {
+        inFlight.decrementAndGet();
+        signal();
+    }
+
+    /* Must call completed() exactly once per item, and never throw */
+    protected abstract void submit(I item);
+
+    /* Invoked once, with a null throwable if all items were completed */
+    protected abstract void finished(Throwable throwable);
+
+    /* ====================================================================== */
+
+    private void signal() {
+        if (signals.getAndIncrement() == 0) client.feed(this);
+    }
+
+    private void wake(long delay) {
+        waiting.set(true);
+        pacer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                waiting.set(false);
+                signal();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void await() {
+        waiting.set(true);
+        waiter().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.hasNext(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (Exception exception) {
+                    /* Failures are reported when the feeder asks again */
+                } finally {
+                    waiting.set(false);
+                    signal();
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService waiter() {
+        if (waiter == null) waiter = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "RiakClient-Feeder-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return waiter;
+    }
+
+    private static synchronized ScheduledExecutorService pacer() {
+        if (pacer == null) pacer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "RiakClient-Pacer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return pacer;
+    }
+
+    @Override
+    public final void run() {
+        int missed = 1;
+        do {
+            feed();
+            missed = signals.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void feed() {
+        if (finished) return;
+
+        try {
+            if ((iterator == null) && (future == null)) iterator = items.iterator();
+            while ((!exhausted) && (!stopped) && (inFlight.get() < window)) {
+
+                /* Someone else will signal us: the pacer, or the waiter */
+                if (waiting.get()) return;
+
+                /* Streamed items might not be here yet, never block for them */
+                boolean available;
+                if (future == null) available = iterator.hasNext();
+                else try {
+                    available = future.hasNext(0, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException exception) {
+                    await();
+                    return;
+                }
+
+                if (!available) {
+                    exhausted = true;
+                    break;
+                }
+
+                /* Paced? Come back when the next slot opens, don't sleep on it */
+                if (interval > 0) {
+                    final long now = System.nanoTime();
+                    if (next - now > 0) {
+                        wake(next - now);
+                        return;
+                    }
+                    next = Math.max(next, now) + interval;
+                }
+
+                final I item = future != null ? future.next(0, TimeUnit.NANOSECONDS) : iterator.next();
+                inFlight.incrementAndGet();
+                submit(item);
+            }
+        } catch (Throwable throwable) {
+            /* Failure iterating items, the whole lot is broken */
+            log.error(throwable, "Exception feeding %s", getClass().getSimpleName());
+            finished = true;
+            finished(throwable);
+            return;
+        }
+
+        if ((exhausted || stopped) && (inFlight.get() == 0)) {
+            finished = true;
+            finished(null);
+        }
+    }
+}
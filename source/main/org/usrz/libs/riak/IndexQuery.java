@@ -0,0 +1,128 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.io.IOException;
+
+import org.usrz.libs.riak.utils.RiakUtils;
+import org.usrz.libs.utils.futures.IterableFuture;
+
+public class IndexQuery implements RiakLocation {
+
+    private final Bucket bucket;
+    private final Index index;
+    private final String start;
+    private final String end;
+
+    private String continuation = null;
+    private int maxResults = 0;
+
+    public IndexQuery(Bucket bucket, Index index, Object value) {
+        this(bucket, index, value, null);
+    }
+
+    public IndexQuery(Bucket bucket, Index index, Object start, Object end) {
+        if (bucket == null) throw new NullPointerException("Null bucket");
+        if (index == null) throw new NullPointerException("Null index");
+        if (start == null) throw new NullPointerException("Null value");
+        this.start = value(index, start);
+        this.end = end == null ? null : value(index, end);
+        this.bucket = bucket;
+        this.index = index;
+    }
+
+    private static String value(Index index, Object value) {
+        if (index.getType() == IndexType.BINARY) return value.toString();
+        if (value instanceof Number) return Long.toString(((Number) value).longValue());
+        try {
+            return Long.toString(Long.parseLong(value.toString().trim()));
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException("Invalid value \"" + value + "\" for integer index " + index.getName(), exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public RiakClient getRiakClient() {
+        return bucket.getRiakClient();
+    }
+
+    @Override
+    public String getLocation() {
+        final StringBuilder builder = new StringBuilder(bucket.getLocation())
+                         .append("index/")
+                         .append(RiakUtils.encode(index.getName() + index.getType().getSuffix()))
+                         .append('/')
+                         .append(RiakUtils.encode(start));
+        if (end != null) builder.append('/').append(RiakUtils.encode(end));
+        return builder.toString();
+    }
+
+    public Bucket getBucket() {
+        return bucket;
+    }
+
+    public Index getIndex() {
+        return index;
+    }
+
+    public String getStart() {
+        return start;
+    }
+
+    public String getEnd() {
+        return end;
+    }
+
+    public boolean isRange() {
+        return end != null;
+    }
+
+    /* ====================================================================== */
+
+    public IndexQuery setMaxResults(int maxResults) {
+        if (maxResults < 0) throw new IllegalArgumentException("Negative max results");
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public IndexQuery setContinuation(String continuation) {
+        this.continuation = continuation;
+        return this;
+    }
+
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /* ====================================================================== */
+
+    public IterableFuture<Key> getKeys()
+    throws IOException {
+        return bucket.getRiakClient().getKeys(this);
+    }
+
+    public IterableFuture<IndexTerm> getTerms()
+    throws IOException {
+        return bucket.getRiakClient().getTerms(this);
+    }
+
+}
@@ -0,0 +1,65 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+public class IndexTerm {
+
+    private final String term;
+    private final Key key;
+
+    public IndexTerm(String term, Key key) {
+        if (key == null) throw new NullPointerException("Null key");
+        this.term = term;
+        this.key = key;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) return true;
+        if (object == null) return false;
+        try {
+            final IndexTerm indexTerm = (IndexTerm) object;
+            return key.equals(indexTerm.key) && (term == null ? indexTerm.term == null : term.equals(indexTerm.term));
+        } catch (ClassCastException exception) {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode() ^ (term == null ? 0 : term.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder(this.getClass().getName())
+                         .append('[')
+                         .append(term)
+                         .append("->")
+                         .append(key.getLocation())
+                         .append("]@")
+                         .append(Integer.toHexString(hashCode()))
+                         .toString();
+    }
+}
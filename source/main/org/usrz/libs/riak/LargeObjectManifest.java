@@ -0,0 +1,103 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The manifest of a large object, stored under the object's own key and
+ * listing (in order) the keys of the chunks holding its content.
+ *
+ * <p>Manifests also remember the uploads they replaced, whose chunks are
+ * kept for a while for the benefit of readers still streaming them.</p>
+ *
+ * @see LargeObjects
+ */
+public class LargeObjectManifest {
+
+    private String upload;
+    private String contentType;
+    private long length;
+    private int chunkSize;
+    private List<String> chunks = new ArrayList<>();
+    private List<LargeObjectManifest> superseded = new ArrayList<>();
+    private long supersededAt;
+
+    public LargeObjectManifest() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    public String getUpload() {
+        return upload;
+    }
+
+    public void setUpload(String upload) {
+        this.upload = upload;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<String> chunks) {
+        this.chunks = chunks == null ? new ArrayList<String>() : chunks;
+    }
+
+    public List<LargeObjectManifest> getSuperseded() {
+        return superseded;
+    }
+
+    public void setSuperseded(List<LargeObjectManifest> superseded) {
+        this.superseded = superseded == null ? new ArrayList<LargeObjectManifest>() : superseded;
+    }
+
+    /* Milliseconds since the epoch, zero while this is the current upload */
+    public long getSupersededAt() {
+        return supersededAt;
+    }
+
+    public void setSupersededAt(long supersededAt) {
+        this.supersededAt = supersededAt;
+    }
+
+}
@@ -0,0 +1,415 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
+
+/**
+ * A layer storing objects too big for a single Riak value.
+ *
+ * <p>Content is split into fixed-size chunks, stored in parallel (with a
+ * bounded concurrency) under keys derived from the object's key, and then
+ * a {@link LargeObjectManifest} listing them is stored under the object's
+ * key itself. Chunk keys are unique to each upload, so readers never see
+ * a mix of old and new chunks.</p>
+ *
+ * <p>Manifests are only ever replaced conditionally, and the uploads they
+ * replace are remembered in the new manifest, so concurrent overwrites
+ * never leave chunks behind. Chunks of replaced uploads are kept for a
+ * grace period, for readers still streaming them, and are deleted by the
+ * first overwrite after it expires, or when the object is deleted.</p>
+ *
+ * <p>All methods block the calling thread until their work is done.</p>
+ */
+public class LargeObjects {
+
+    private static final Log log = new Log();
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RiakClient client;
+
+    private long gracePeriod = TimeUnit.HOURS.toMillis(1);
+    private int chunkSize = 1024 * 1024;
+    private int concurrency = 4;
+    private int readAhead = 4;
+
+    public LargeObjects(RiakClient client) {
+        if (client == null) throw new NullPointerException("Null client");
+        this.client = client;
+    }
+
+    /* ====================================================================== */
+
+    public LargeObjects setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("Negative or zero chunk size");
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public LargeObjects setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("Negative or zero concurrency");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public LargeObjects setReadAhead(int readAhead) {
+        if (readAhead < 1) throw new IllegalArgumentException("Negative or zero read ahead");
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    public LargeObjects setGracePeriod(long gracePeriod, TimeUnit unit) {
+        if (unit == null) throw new NullPointerException("Null time unit");
+        if (gracePeriod < 0) throw new IllegalArgumentException("Negative grace period");
+        this.gracePeriod = unit.toMillis(gracePeriod);
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    public LargeObjectManifest store(Key key, Path path, String contentType)
+    throws IOException {
+        if (path == null) throw new NullPointerException("Null path");
+        try (final InputStream input = Files.newInputStream(path)) {
+            return store(key, input, contentType);
+        }
+    }
+
+    public LargeObjectManifest store(Key key, InputStream input, String contentType)
+    throws IOException {
+        if (key == null) throw new NullPointerException("Null key");
+        if (input == null) throw new NullPointerException("Null input");
+
+        /* Remember what we're replacing, as it was when we started */
+        Response<LargeObjectManifest> current = fetch(key);
+
+        final LargeObjectManifest manifest = new LargeObjectManifest();
+        manifest.setUpload(UUID.randomUUID().toString());
+        manifest.setContentType(contentType == null ? SerializerRegistry.BYTES : contentType);
+        manifest.setChunkSize(chunkSize);
+
+        final List<LargeObjectManifest> expired = new ArrayList<>();
+        final Window window = new Window();
+        try {
+            long length = 0;
+            for (byte[] chunk = read(input, chunkSize); chunk != null; chunk = read(input, chunkSize)) {
+                final String name = key.getName() + ".chunk." + manifest.getUpload() + "." + manifest.getChunks().size();
+                final Key chunkKey = new Key(key.getBucket(), name);
+                manifest.getChunks().add(name);
+                window.add(chunkKey, client.store(chunkKey, chunk)
+                                           .setContentType(SerializerRegistry.BYTES)
+                                           .setVectorClockMode(VectorClockMode.NONE)
+                                           .setReturnBody(false)
+                                           .execute());
+                length += chunk.length;
+            }
+            manifest.setLength(length);
+            window.await();
+
+            /* All chunks are in, now (and only now) the manifest */
+            while ((current = commit(key, manifest, current, expired)) != null) {
+                log.debug("Large object %s replaced while storing, retrying", key.getLocation());
+            }
+
+        } catch (IOException | RuntimeException | Error throwable) {
+            /* Whatever we uploaded would be orphaned, remove it */
+            log.warn("Failed storing large object %s, removing its chunks: %s", key.getLocation(), throwable);
+            window.abort();
+            purge(key.getBucket(), manifest.getChunks());
+            throw throwable;
+        }
+
+        /* Nobody should be reading these anymore */
+        for (LargeObjectManifest superseded: expired) purge(key.getBucket(), superseded.getChunks());
+        return manifest;
+    }
+
+    /* Store a manifest replacing the current one, returning the latest if it changed meanwhile */
+    private Response<LargeObjectManifest> commit(Key key, LargeObjectManifest manifest, Response<LargeObjectManifest> current, List<LargeObjectManifest> expired)
+    throws IOException {
+        final LargeObjectManifest previous = current.getContent();
+        final long now = System.currentTimeMillis();
+
+        /* Keep what readers might still be streaming, expire the rest */
+        manifest.getSuperseded().clear();
+        expired.clear();
+        if (previous != null) {
+            final List<LargeObjectManifest> superseded = new ArrayList<>(previous.getSuperseded());
+            previous.setSuperseded(null);
+            previous.setSupersededAt(now);
+            superseded.add(previous);
+
+            for (LargeObjectManifest upload: superseded) {
+                if (upload.getSupersededAt() + gracePeriod > now) manifest.getSuperseded().add(upload);
+                else expired.add(upload);
+            }
+        }
+
+        /* Only replace exactly what we've seen */
+        final StoreRequest<LargeObjectManifest> request = client.store(key, manifest).setReturnBody(false);
+        if (previous == null) request.setIfNoneMatch("*").setVectorClockMode(VectorClockMode.NONE);
+        else request.setIfMatch(current.getETag()).setVectorClock(current.getVectorClock());
+
+        try {
+            get(request.execute());
+            return null;
+        } catch (IOException exception) {
+            /* A conflict if the manifest changed, a failure otherwise */
+            final Response<LargeObjectManifest> latest = fetch(key);
+            if (Objects.equals(latest.getETag(), current.getETag())) throw exception;
+            return latest;
+        }
+    }
+
+    /* ====================================================================== */
+
+    public LargeObjectManifest getManifest(Key key)
+    throws IOException {
+        return fetch(key).getContent();
+    }
+
+    public InputStream open(Key key)
+    throws IOException {
+        final LargeObjectManifest manifest = getManifest(key);
+        return manifest == null ? null : new ChunksInputStream(key, manifest);
+    }
+
+    public boolean delete(Key key)
+    throws IOException {
+        final LargeObjectManifest manifest = getManifest(key);
+        if (manifest == null) return false;
+
+        /* Manifest first, so nobody can read a partially deleted object */
+        get(client.delete(key).execute());
+        purge(key.getBucket(), manifest.getChunks());
+        for (LargeObjectManifest superseded: manifest.getSuperseded()) purge(key.getBucket(), superseded.getChunks());
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    private Response<LargeObjectManifest> fetch(Key key)
+    throws IOException {
+        if (key == null) throw new NullPointerException("Null key");
+        return get(client.fetch(key, LargeObjectManifest.class).execute());
+    }
+
+    private void purge(Bucket bucket, List<String> chunks) {
+        final Window window = new Window();
+        for (String name: chunks) {
+            if (Thread.currentThread().isInterrupted()) {
+                log.warn("Interrupted deleting chunks in %s", bucket.getName());
+                break;
+            }
+
+            final Key key = new Key(bucket, name);
+            try {
+                window.add(key, client.delete(key).execute());
+            } catch (IOException | RuntimeException exception) {
+                log.warn("Unable to delete orphaned chunk: %s", exception);
+            }
+        }
+
+        /* Wait for all deletes to complete */
+        while (!window.isEmpty()) try {
+            window.next();
+        } catch (IOException exception) {
+            log.warn("Unable to delete orphaned chunk: %s", exception);
+        }
+    }
+
+    private static byte[] read(InputStream input, int size)
+    throws IOException {
+        final byte[] chunk = new byte[size];
+        int length = 0;
+        int read;
+        while ((length < size) && ((read = input.read(chunk, length, size - length)) >= 0)) length += read;
+        return length == 0 ? null : length == size ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    private static <T> Response<T> get(ResponseFuture<T> future)
+    throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted waiting for response");
+        } catch (ExecutionException exception) {
+            final Throwable cause = exception.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Exception waiting for response", cause);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /*
+     * Bounds the requests in flight by waiting for the oldest one on the
+     * calling thread, so nothing depends on listeners being called back.
+     */
+    private final class Window {
+
+        private final Deque<ResponseFuture<?>> futures = new ArrayDeque<>();
+        private final Deque<Key> keys = new ArrayDeque<>();
+
+        private void add(Key key, ResponseFuture<?> future)
+        throws IOException {
+            keys.add(key);
+            futures.add(future);
+            if (futures.size() >= concurrency) next();
+        }
+
+        private void next()
+        throws IOException {
+            final Key key = keys.poll();
+            try {
+                get(futures.poll());
+            } catch (IOException exception) {
+                throw new KeyFailedException(key, exception);
+            }
+        }
+
+        private boolean isEmpty() {
+            return futures.isEmpty();
+        }
+
+        private void await()
+        throws IOException {
+            while (!futures.isEmpty()) next();
+        }
+
+        private void abort() {
+            /* Let whatever is in flight land, we're going to delete it */
+            while (!futures.isEmpty()) try {
+                next();
+            } catch (IOException exception) {
+                /* Ignore, we're failing already */
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    private final class ChunksInputStream extends InputStream {
+
+        private final Deque<ResponseFuture<byte[]>> pending = new ArrayDeque<>();
+        private final LargeObjectManifest manifest;
+        private final List<String> chunks;
+        private final Bucket bucket;
+        private final Key key;
+
+        private byte[] chunk = EMPTY;
+        private boolean closed = false;
+        private int requested = 0;
+        private int consumed = 0;
+        private int position = 0;
+        private long total = 0;
+
+        private ChunksInputStream(Key key, LargeObjectManifest manifest) {
+            this.chunks = new ArrayList<>(manifest.getChunks());
+            this.bucket = key.getBucket();
+            this.manifest = manifest;
+            this.key = key;
+        }
+
+        private void request()
+        throws IOException {
+            /* Keep our read-ahead window full */
+            while ((pending.size() < readAhead) && (requested < chunks.size())) {
+                final Key chunk = new Key(bucket, chunks.get(requested ++));
+                pending.add(client.fetch(chunk, byte[].class).execute());
+            }
+        }
+
+        private boolean next()
+        throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            request();
+
+            final ResponseFuture<byte[]> future = pending.poll();
+            if (future == null) {
+                if (total != manifest.getLength())
+                    throw new IOException("Large object " + key.getLocation() + " truncated at " + total + " bytes of " + manifest.getLength());
+                return false;
+            }
+
+            final String name = chunks.get(consumed ++);
+            final byte[] content = get(future).getContent();
+            if (content == null) throw new IOException("Missing chunk " + name + " of large object " + key.getLocation());
+
+            final boolean last = consumed == chunks.size();
+            if (last ? content.length > manifest.getChunkSize() : content.length != manifest.getChunkSize())
+                throw new IOException("Invalid size " + content.length + " for chunk " + name + " of large object " + key.getLocation());
+
+            chunk = content;
+            position = 0;
+            total += content.length;
+            request();
+            return true;
+        }
+
+        @Override
+        public int read()
+        throws IOException {
+            while (position == chunk.length) if (!next()) return -1;
+            return chunk[position ++] & 0x0FF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        throws IOException {
+            if (len == 0) return 0;
+            while (position == chunk.length) if (!next()) return -1;
+            final int read = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            for (ResponseFuture<byte[]> future: pending) future.cancel(true);
+            pending.clear();
+            chunk = EMPTY;
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.futures.IterableFuture;
+import org.usrz.libs.utils.futures.QueueingFuture;
+
+public class LinkWalk<T> {
+
+    private static final Log log = new Log();
+
+    /* The same key can be reached at different depths, each one is a hop of its own */
+    private final Set<Hop> visited = Collections.newSetFromMap(new ConcurrentHashMap<Hop, Boolean>());
+    private final QueueingFuture<Response<T>> results = new QueueingFuture<>();
+    private final Queue<Hop> queue = new ConcurrentLinkedQueue<>();
+    /* Hops queued or in flight, when zero we're done */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final List<Step> steps = new ArrayList<>();
+    private final RiakClient client;
+    private final Iterable<Key> keys;
+    private final Class<T> type;
+
+    private ResponseListener<T> listener = null;
+    private int concurrency = 16;
+    private int maxDepth = 0;
+
+    private volatile boolean stopped = false;
+    private boolean started = false;
+    private int inFlight = 0;
+
+    protected LinkWalk(RiakClient client, Iterable<Key> keys, Class<T> type) {
+        if (client == null) throw new NullPointerException("Null client");
+        if (keys == null) throw new NullPointerException("Null keys");
+        if (type == null) throw new NullPointerException("Null type");
+        this.client = client;
+        this.keys = keys;
+        this.type = type;
+    }
+
+    /* ====================================================================== */
+
+    public LinkWalk<T> step(String bucket, String tag) {
+        return this.step(bucket, tag, false);
+    }
+
+    public LinkWalk<T> step(String bucket, String tag, boolean keep) {
+        steps.add(new Step(bucket, tag == null ? null : tag.trim().toLowerCase(), keep));
+        return this;
+    }
+
+    public LinkWalk<T> setMaxDepth(int maxDepth) {
+        if (maxDepth < 0) throw new IllegalArgumentException("Negative max depth");
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public LinkWalk<T> setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("Negative or zero concurrency");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public LinkWalk<T> setListener(ResponseListener<T> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    public IterableFuture<Response<T>> execute() {
+        synchronized (this) {
+            if (started) throw new IllegalStateException("Link walk already started");
+            if (steps.isEmpty()) throw new IllegalStateException("No steps to walk");
+            /* Without a max depth, walk each step once */
+            if (maxDepth == 0) maxDepth = steps.size();
+            started = true;
+        }
+
+        /* Keep one pending while we queue up our starting keys */
+        pending.incrementAndGet();
+        for (Key key: keys) submit(key, 0);
+        done();
+
+        return results;
+    }
+
+    /* ====================================================================== */
+
+    private Step step(int depth) {
+        /* Past the last step, the last step repeats itself */
+        return steps.get(Math.min(depth, steps.size()) - 1);
+    }
+
+    private void submit(Key key, int depth) {
+        if (stopped) return;
+        final Hop hop = new Hop(key, depth);
+        if (!visited.add(hop)) return;
+        pending.incrementAndGet();
+        queue.add(hop);
+        pump();
+    }
+
+    private void pump() {
+        while (!stopped) {
+            final Hop hop;
+            synchronized (this) {
+                if (inFlight >= concurrency) return;
+                if ((hop = queue.poll()) == null) return;
+                inFlight ++;
+            }
+            hop.start();
+        }
+    }
+
+    private void done() {
+        if (pending.decrementAndGet() == 0) results.close();
+    }
+
+    /* ====================================================================== */
+
+    private final class Hop implements ResponseListener<T> {
+
+        private final boolean expand;
+        private final boolean keep;
+        private final int depth;
+        private final Key key;
+
+        private Hop(Key key, int depth) {
+            this.expand = depth < maxDepth;
+            this.keep = (depth > 0) && ((depth == maxDepth) || step(depth).keep);
+            this.depth = depth;
+            this.key = key;
+        }
+
+        private void start() {
+            try {
+                /* Objects we don't keep are only looked at for their links */
+                client.fetch(key, type).setReturnBody(keep).execute().addListener(this);
+            } catch (Throwable throwable) {
+                failed(throwable);
+            }
+        }
+
+        private void finish() {
+            synchronized (LinkWalk.this) {
+                inFlight --;
+            }
+            pump();
+            done();
+        }
+
+        private void failed(Throwable throwable) {
+            try {
+                log.debug("Link walk to %s failed: %s", key.getLocation(), throwable.getMessage());
+                if (listener != null) listener.responseFailed(new ResponseEvent<T>(client, new KeyFailedException(key, throwable)));
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void responseHandled(ResponseEvent<T> event) {
+            try {
+                final Response<T> response = event.getResponse();
+                if (response.getStatus() == 404) return;
+
+                if (keep) {
+                    /* Nobody's consuming results anymore? Stop walking */
+                    if (!results.put(response)) {
+                        stopped = true;
+                        return;
+                    }
+                    if (listener != null) listener.responseHandled(event);
+                }
+
+                if (expand) {
+                    final Step next = step(depth + 1);
+                    for (Entry<String, Set<Key>> entry: response.getLinksMap().entrySet()) {
+                        if ((next.tag != null) && (!next.tag.equals(entry.getKey()))) continue;
+                        for (Key link: entry.getValue()) {
+                            if ((next.bucket != null) && (!next.bucket.equals(link.getBucketName()))) continue;
+                            submit(link, depth + 1);
+                        }
+                    }
+                }
+            } catch (Throwable throwable) {
+                log.error(throwable, "Exception following links from %s", key.getLocation());
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void responseFailed(ResponseEvent<T> event) {
+            failed(event.getThrowable());
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (object == this) return true;
+            if (!(object instanceof LinkWalk.Hop)) return false;
+            final LinkWalk<?>.Hop hop = (LinkWalk<?>.Hop) object;
+            return (depth == hop.depth) && key.equals(hop.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + depth;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class Step {
+
+        private final String bucket;
+        private final String tag;
+        private final boolean keep;
+
+        private Step(String bucket, String tag, boolean keep) {
+            this.bucket = bucket;
+            this.tag = tag;
+            this.keep = keep;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.usrz.libs.utils.futures.IterableFuture;
+
+public class MapReduce implements RiakClientAware {
+
+    private final List<Map<String, Object>> phases = new ArrayList<>();
+    private final RiakClient client;
+
+    private Object inputs = null;
+    private long timeout = 0;
+
+    public MapReduce(RiakClient client) {
+        if (client == null) throw new NullPointerException("Null client");
+        this.client = client;
+    }
+
+    @Override
+    public RiakClient getRiakClient() {
+        return client;
+    }
+
+    /* ====================================================================== */
+
+    public MapReduce setInputs(Bucket bucket) {
+        if (bucket == null) throw new NullPointerException("Null bucket");
+        inputs = bucket.getName();
+        return this;
+    }
+
+    public MapReduce setInputs(Iterable<Key> keys) {
+        if (keys == null) throw new NullPointerException("Null keys");
+        final List<List<String>> list = new ArrayList<>();
+        for (Key key: keys) list.add(Arrays.asList(key.getBucketName(), key.getName()));
+        inputs = list;
+        return this;
+    }
+
+    public MapReduce setInputs(IndexQuery query) {
+        if (query == null) throw new NullPointerException("Null query");
+        final Index index = query.getIndex();
+        final boolean integer = index.getType() == IndexType.INTEGER;
+
+        final Map<String, Object> map = new LinkedHashMap<>();
+        map.put("bucket", query.getBucket().getName());
+        map.put("index", index.getName() + index.getType().getSuffix());
+        if (query.isRange()) {
+            map.put("start", integer ? (Object) Long.valueOf(query.getStart()) : query.getStart());
+            map.put("end",   integer ? (Object) Long.valueOf(query.getEnd())   : query.getEnd());
+        } else {
+            map.put("key",   integer ? (Object) Long.valueOf(query.getStart()) : query.getStart());
+        }
+        inputs = map;
+        return this;
+    }
+
+    public MapReduce setTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("Negative timeout");
+        this.timeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    public MapReduce map(Function function) {
+        return this.phase("map", function, null, false);
+    }
+
+    public MapReduce map(Function function, boolean keep) {
+        return this.phase("map", function, null, keep);
+    }
+
+    public MapReduce map(Function function, Object argument, boolean keep) {
+        return this.phase("map", function, argument, keep);
+    }
+
+    public MapReduce reduce(Function function) {
+        return this.phase("reduce", function, null, false);
+    }
+
+    public MapReduce reduce(Function function, boolean keep) {
+        return this.phase("reduce", function, null, keep);
+    }
+
+    public MapReduce reduce(Function function, Object argument, boolean keep) {
+        return this.phase("reduce", function, argument, keep);
+    }
+
+    private MapReduce phase(String type, Function function, Object argument, boolean keep) {
+        if (function == null) throw new NullPointerException("Null function");
+
+        final Map<String, Object> phase = new LinkedHashMap<>(function.definition);
+        if (argument != null) phase.put("arg", argument);
+        phase.put("keep", keep);
+        phases.add(Collections.<String, Object>singletonMap(type, phase));
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    public Map<String, Object> getJob() {
+        if (inputs == null) throw new IllegalStateException("No inputs specified");
+        if (phases.isEmpty()) throw new IllegalStateException("No phases specified");
+
+        final Map<String, Object> job = new LinkedHashMap<>();
+        job.put("inputs", inputs);
+        job.put("query", phases);
+        if (timeout > 0) job.put("timeout", timeout);
+        return Collections.unmodifiableMap(job);
+    }
+
+    public <R> IterableFuture<R> execute(Class<R> type)
+    throws IOException {
+        return client.mapReduce(this, type);
+    }
+
+    /* ====================================================================== */
+
+    public static Function javascript(String name) {
+        if (name == null) throw new NullPointerException("Null function name");
+        final Map<String, Object> definition = new LinkedHashMap<>();
+        definition.put("language", "javascript");
+        definition.put("name", name);
+        return new Function(definition);
+    }
+
+    public static Function javascriptSource(String source) {
+        if (source == null) throw new NullPointerException("Null function source");
+        final Map<String, Object> definition = new LinkedHashMap<>();
+        definition.put("language", "javascript");
+        definition.put("source", source);
+        return new Function(definition);
+    }
+
+    public static Function erlang(String module, String function) {
+        if (module == null) throw new NullPointerException("Null module name");
+        if (function == null) throw new NullPointerException("Null function name");
+        final Map<String, Object> definition = new LinkedHashMap<>();
+        definition.put("language", "erlang");
+        definition.put("module", module);
+        definition.put("function", function);
+        return new Function(definition);
+    }
+
+    public static final class Function {
+
+        private final Map<String, Object> definition;
+
+        private Function(Map<String, Object> definition) {
+            this.definition = definition;
+        }
+    }
+}
@@ -33,6 +33,10 @@ public interface PartialResponse<T> extends RiakClientAware, RiakLocation {
 
     public Date getLastModified();
 
+    public String getETag();
+
+    public String getContentType();
+
     public Key getKey();
 
 }
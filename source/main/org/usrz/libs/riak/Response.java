@@ -47,6 +47,16 @@ public class Response<T> extends AbstractPartialResponse<T> {
         return partial.getLastModified();
     }
 
+    @Override
+    public String getETag() {
+        return partial.getETag();
+    }
+
+    @Override
+    public String getContentType() {
+        return partial.getContentType();
+    }
+
     @Override
     public Key getKey() {
         return partial.getKey();
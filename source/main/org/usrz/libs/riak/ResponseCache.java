@@ -0,0 +1,207 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Cached responses are handed out as they are to every caller: their content
+ * is shared, and must be treated as immutable. Entries remember the request
+ * parameters (r, pr, basic_quorum, ...) they were fetched with, and only
+ * serve requests asking for the same.
+ */
+public class ResponseCache {
+
+    private static final int MAX_INVALIDATIONS = 1024;
+
+    private final Map<String, Entry<?>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /* Reads started before an invalidation must never repopulate the cache */
+    private final Map<String, Long> invalidations = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() <= MAX_INVALIDATIONS) return false;
+            floor = eldest.getValue();
+            return true;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long maximumWeight;
+
+    private volatile long timeToLive = TimeUnit.SECONDS.toNanos(1);
+    private long weight = 0;
+    private long stamp = 0;
+    private long floor = 0;
+
+    public ResponseCache(long maximumWeight) {
+        if (maximumWeight < 1) throw new IllegalArgumentException("Negative or zero maximum weight");
+        this.maximumWeight = maximumWeight;
+    }
+
+    public ResponseCache(long maximumWeight, long timeToLive, TimeUnit unit) {
+        this(maximumWeight);
+        setTimeToLive(timeToLive, unit);
+    }
+
+    /* ====================================================================== */
+
+    public ResponseCache setTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) throw new IllegalArgumentException("Negative time to live");
+        if (unit == null) throw new NullPointerException("Null time unit");
+        this.timeToLive = unit.toNanos(timeToLive);
+        return this;
+    }
+
+    /* Override to weigh entries by something other than their count */
+    protected long weigh(Response<?> response) {
+        return 1;
+    }
+
+    /* ====================================================================== */
+
+    public <T> Entry<T> get(Key key, Class<T> type) {
+        return get(key, type, Collections.<String, Object>emptyMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T> Entry<T> get(Key key, Class<T> type, Map<String, ?> parameters) {
+        if (key == null) throw new NullPointerException("Null key");
+        if (type == null) throw new NullPointerException("Null type");
+        if (parameters == null) throw new NullPointerException("Null parameters");
+
+        final Entry<?> entry = entries.get(key.getLocation());
+        if ((entry == null) || (entry.type != type) || (!entry.parameters.equals(parameters))) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return (Entry<T>) entry;
+        }
+    }
+
+    public synchronized <T> Entry<T> put(Key key, Class<T> type, Response<T> response) {
+        return put(key, type, Collections.<String, Object>emptyMap(), response, stamp);
+    }
+
+    /* Returns null if the key was invalidated after "stamp" was taken */
+    public synchronized <T> Entry<T> put(Key key, Class<T> type, Map<String, ?> parameters, Response<T> response, long stamp) {
+        if (key == null) throw new NullPointerException("Null key");
+        if (type == null) throw new NullPointerException("Null type");
+        if (parameters == null) throw new NullPointerException("Null parameters");
+        if (response == null) throw new NullPointerException("Null response");
+
+        final String location = key.getLocation();
+        final Long invalidated = invalidations.get(location);
+        if ((invalidated == null ? floor : invalidated) > stamp) return null;
+
+        final Entry<T> entry = new Entry<>(type, parameters, response, weigh(response));
+        final Entry<?> previous = entries.put(location, entry);
+        if (previous != null) weight -= previous.weight;
+        weight += entry.weight;
+
+        /* Evict the least recently used entries until we fit */
+        final Iterator<Entry<?>> iterator = entries.values().iterator();
+        while ((weight > maximumWeight) && iterator.hasNext()) {
+            final Entry<?> evicted = iterator.next();
+            weight -= evicted.weight;
+            iterator.remove();
+        }
+
+        return entry;
+    }
+
+    public synchronized void invalidate(Key key) {
+        if (key == null) throw new NullPointerException("Null key");
+        final String location = key.getLocation();
+        final Entry<?> entry = entries.remove(location);
+        if (entry != null) weight -= entry.weight;
+
+        /* Re-insert, so that the eldest invalidation is always the oldest */
+        invalidations.remove(location);
+        invalidations.put(location, ++ stamp);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        invalidations.clear();
+        floor = ++ stamp;
+        weight = 0;
+    }
+
+    /* Take before reading, and pass to put() with what was read */
+    public synchronized long stamp() {
+        return stamp;
+    }
+
+    /* ====================================================================== */
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /* ====================================================================== */
+
+    public final class Entry<T> {
+
+        private final Map<String, ?> parameters;
+        private final Response<T> response;
+        private final Class<T> type;
+        private final long weight;
+        private volatile long validated;
+
+        private Entry(Class<T> type, Map<String, ?> parameters, Response<T> response, long weight) {
+            this.parameters = new TreeMap<>(parameters);
+            this.validated = System.nanoTime();
+            this.response = response;
+            this.weight = weight;
+            this.type = type;
+        }
+
+        public Response<T> getResponse() {
+            return response;
+        }
+
+        public boolean isFresh() {
+            return System.nanoTime() - validated < timeToLive;
+        }
+
+        public void refresh() {
+            validated = System.nanoTime();
+        }
+    }
+}
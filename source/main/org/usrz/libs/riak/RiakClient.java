@@ -41,6 +41,15 @@ public interface RiakClient {
     public IterableFuture<Key> getKeys(String bucket)
     throws IOException;
 
+    public IterableFuture<Key> getKeys(IndexQuery query)
+    throws IOException;
+
+    public IterableFuture<IndexTerm> getTerms(IndexQuery query)
+    throws IOException;
+
+    public <R> IterableFuture<R> mapReduce(MapReduce job, Class<R> type)
+    throws IOException;
+
     /* ====================================================================== */
 
     public <T> FetchRequest<T> fetch(String bucket, String key, Class<T> type);
@@ -55,6 +64,14 @@ public interface RiakClient {
 
     public <T> FetchRequest<T> fetch(Key key, ContentHandler<T>  handler);
 
+    public <T> IterableFuture<Response<T>> fetchAll(Iterable<Key> keys, Class<T> type);
+
+    public <T> IterableFuture<Response<T>> fetchAll(Iterable<Key> keys, Class<T> type, int window, ResponseListener<T> listener);
+
+    public <T> LinkWalk<T> walk(Key key, Class<T> type);
+
+    public <T> LinkWalk<T> walk(Iterable<Key> keys, Class<T> type);
+
     /* ====================================================================== */
 
     public <T> StoreRequest<T> store(String bucket, T object);
@@ -77,6 +94,10 @@ public interface RiakClient {
 
     public <T> StoreRequest<T> store(Key key, T object, ContentHandler<T>  handler);
 
+    public <T> BulkStore<T> bulkStore(String bucket, Iterable<T> objects);
+
+    public <T> BulkStore<T> bulkStore(Bucket bucket, Iterable<T> objects);
+
     /* ====================================================================== */
 
     public DeleteRequest delete(String bucket, String key);
@@ -31,6 +31,8 @@ extends Request<T>,
         WriteQuorumRequest<T, StoreRequest<T>>,
         OptionalBodyRequest<T, StoreRequest<T>> {
 
+    public StoreRequest<T> setContentType(String contentType);
+
     public Metadata getMetadata();
 
     public IndexMap getIndexMap();
@@ -0,0 +1,108 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class VectorClockCache {
+
+    /* Independently locked segments, each its own little LRU map */
+    private final Segment[] segments;
+    private final int maximumSize;
+
+    public VectorClockCache() {
+        this(65536);
+    }
+
+    public VectorClockCache(int maximumSize) {
+        if (maximumSize < 1) throw new IllegalArgumentException("Negative or zero maximum size");
+
+        final int count = Math.min(16, maximumSize);
+        segments = new Segment[count];
+        for (int x = 0; x < count; x ++) {
+            segments[x] = new Segment(Math.max(1, maximumSize / count));
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    private Segment segment(Key key) {
+        if (key == null) throw new NullPointerException("Null key");
+        final int hash = key.hashCode();
+        return segments[((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % segments.length];
+    }
+
+    /* ====================================================================== */
+
+    public String get(Key key) {
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public void put(Key key, String vectorClock) {
+        if (vectorClock == null) throw new NullPointerException("Null vector clock");
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, vectorClock);
+        }
+    }
+
+    public void invalidate(Key key) {
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment: segments) synchronized (segment) {
+            segment.clear();
+        }
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment: segments) synchronized (segment) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /* ====================================================================== */
+
+    private static final class Segment extends LinkedHashMap<Key, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maximumSize;
+
+        private Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            return size() > maximumSize;
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.usrz.libs.riak.Key;
 import org.usrz.libs.riak.LinksMap;
 import org.usrz.libs.riak.Metadata;
 import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.riak.serializers.BytesSerializer;
 import org.usrz.libs.utils.introspection.IntrospectedProperty;
 import org.usrz.libs.utils.introspection.IntrospectionDescriptor;
 import org.usrz.libs.utils.introspection.IntrospectionException;
@@ -58,7 +59,10 @@ public class RiakIntrospector {
     @SuppressWarnings("unchecked")
     private <T> IntrospectionDescriptor<T> descriptor(T instance) {
         if (instance == null) throw new NullPointerException("Null instance");
-        return (IntrospectionDescriptor<T>) introspector.getDescriptor(instance.getClass());
+
+        /* Files and channels are stored as they are, never introspected */
+        final Class<?> type = BytesSerializer.isRaw(instance) ? Object.class : instance.getClass();
+        return (IntrospectionDescriptor<T>) introspector.getDescriptor(type);
     }
 
     private Set<Object> combine(Set<Object> result, Object object) {
@@ -0,0 +1,167 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+
+/*
+ * Streams a request body from a channel, straight into the buffers of the
+ * HTTP provider. File channels are read positionally, so the same body can
+ * be sent more than once (retries, PUT after HEAD), other channels can be
+ * read only once. Channels are never closed here, they belong to callers.
+ */
+public class AsyncChannelGenerator implements BodyGenerator {
+
+    private final AtomicBoolean consumed = new AtomicBoolean();
+    private final ReadableByteChannel channel;
+    private final long position;
+    private final long length;
+
+    public AsyncChannelGenerator(ReadableByteChannel channel)
+    throws IOException {
+        if (channel == null) throw new NullPointerException("Null channel");
+        this.channel = channel;
+
+        if (channel instanceof FileChannel) {
+            final FileChannel file = (FileChannel) channel;
+            position = file.position();
+            length = Math.max(0, file.size() - position);
+        } else {
+            position = -1;
+            length = -1;
+        }
+    }
+
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public Body createBody()
+    throws IOException {
+        if (channel instanceof FileChannel) return new FileBody((FileChannel) channel, position, length);
+        if (consumed.getAndSet(true)) throw new IOException("Channel body can not be sent twice");
+        return new ChannelBody(channel);
+    }
+
+    /* ====================================================================== */
+
+    private static final class FileBody implements Body {
+
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        private FileBody(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public long getContentLength() {
+            return end - position;
+        }
+
+        @Override
+        public long read(ByteBuffer buffer)
+        throws IOException {
+            final long remaining = end - position;
+            if (remaining <= 0) return -1;
+
+            /* Never read past the length we declared */
+            final int limit = buffer.limit();
+            if (buffer.remaining() > remaining) buffer.limit(buffer.position() + (int) remaining);
+            try {
+                final int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("File truncated while sending");
+                position += read;
+                return read;
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+
+        @Override
+        public void close() {
+            /* The channel is not ours to close */
+        }
+    }
+
+    /*
+     * The Netty provider declares these bodies as chunked but writes them as
+     * they are read (its own InputStreamBodyGenerator works around the same
+     * issue), so each read here is framed as one chunk.
+     */
+    private static final class ChannelBody implements Body {
+
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(US_ASCII);
+        private static final byte[] CRLF = "\r\n".getBytes(US_ASCII);
+        private static final int HEADER = 10; // 8 hex digits and CRLF
+
+        private final ReadableByteChannel channel;
+        private boolean finished;
+
+        private ChannelBody(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long read(ByteBuffer buffer)
+        throws IOException {
+            if (finished) return -1;
+            if (buffer.remaining() <= HEADER + CRLF.length) return 0;
+
+            /* Read past the room left for the chunk size */
+            final int start = buffer.position();
+            final ByteBuffer data = buffer.duplicate();
+            data.position(start + HEADER).limit(buffer.limit() - CRLF.length);
+            final int read = channel.read(data);
+
+            if (read < 0) {
+                finished = true;
+                buffer.put(LAST_CHUNK);
+                return LAST_CHUNK.length;
+            } else if (read == 0) {
+                return 0;
+            }
+
+            buffer.put(String.format("%08x\r\n", read).getBytes(US_ASCII));
+            buffer.position(start + HEADER + read);
+            buffer.put(CRLF);
+            return buffer.position() - start;
+        }
+
+        @Override
+        public void close() {
+            /* The channel is not ours to close */
+        }
+    }
+}
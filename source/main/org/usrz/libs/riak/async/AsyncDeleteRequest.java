@@ -18,7 +18,9 @@ package org.usrz.libs.riak.async;
 import java.io.IOException;
 
 import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.ResponseCache;
 import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.metrics.Operation;
 import org.usrz.libs.riak.request.AbstractDeleteRequest;
 import org.usrz.libs.riak.response.SuccessContentHandler;
 import org.usrz.libs.utils.beans.Mapper;
@@ -30,6 +32,8 @@ public abstract class AsyncDeleteRequest
 extends AbstractDeleteRequest
 implements Mapper {
 
+    private static final EncodingPlan PLAN = new EncodingPlan(AsyncDeleteRequest.class);
+
     private final AsyncRiakClient client;
 
     public AsyncDeleteRequest(AsyncRiakClient client, Key key) {
@@ -42,8 +46,13 @@ implements Mapper {
     throws IOException {
 
         final BoundRequestBuilder builder = client.prepareDelete(key.getLocation());
-        final Request request = client.instrument(mappedProperties(), builder).build();
-        return client.execute(request, new SuccessContentHandler()); // TODO: should use null handler?
+        final Request request = client.instrument(PLAN, mappedProperties(), builder).build();
+
+        /* Whatever we had cached is gone */
+        final ResponseCache cache = client.getResponseCache();
+        if (cache != null) cache.invalidate(key);
+
+        return client.execute(Operation.DELETE, request, new SuccessContentHandler()); // TODO: should use null handler?
 
     }
 
@@ -16,20 +16,34 @@
 package org.usrz.libs.riak.async;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.usrz.libs.riak.ContentHandler;
 import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseCache;
+import org.usrz.libs.riak.ResponseEvent;
 import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.ResponseListener;
 import org.usrz.libs.riak.request.AbstractFetchRequest;
+import org.usrz.libs.riak.metrics.Operation;
+import org.usrz.libs.riak.response.JsonContentHandler;
+import org.usrz.libs.riak.response.NullContentHandler;
+import org.usrz.libs.riak.response.VectorClockContentHandler;
 import org.usrz.libs.utils.beans.Mapper;
 
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
 import com.ning.http.client.Request;
+import com.ning.http.util.DateUtil;
 
 public abstract class AsyncFetchRequest<T>
 extends AbstractFetchRequest<T>
 implements Mapper {
 
+    private static final EncodingPlan PLAN = new EncodingPlan(AsyncFetchRequest.class);
+
     private final AsyncRiakClient client;
 
     public AsyncFetchRequest(AsyncRiakClient client, Key key, ContentHandler<T> handler) {
@@ -38,16 +52,126 @@ implements Mapper {
     }
 
     @Override
-    protected ResponseFuture<T> execute(Key key, ContentHandler<T> handler)
+    protected ResponseFuture<T> execute(final Key key, ContentHandler<T> handler)
     throws IOException {
 
         final BoundRequestBuilder builder = getReturnBody() ?
                                             client.prepareGet(key.getLocation()) :
                                             client.prepareHead(key.getLocation()) ;
 
-        final Request request = client.instrument(mappedProperties(), builder).build();
-        return client.execute(request, handler);
+        final Map<String, ?> properties = mappedProperties();
+        final ResponseCache cache = client.getResponseCache();
+
+        /* Let the cluster compress what it sends us */
+        if (client.isCompressing()) builder.setHeader("Accept-Encoding", "gzip");
+
+        /* Siblings we can resolve come all together in one response */
+        if ((handler instanceof JsonContentHandler) && client.hasSiblingResolver(((JsonContentHandler<T>) handler).getType()))
+            builder.setHeader("Accept", "multipart/mixed, application/json;q=0.9, */*;q=0.8");
+
+        /* Only plain JSON reads are cached, conditionals go to the cluster */
+        if ((cache == null) || (!getReturnBody())
+                            || (!(handler instanceof JsonContentHandler))
+                            || PLAN.isConditional(properties)) {
+            final Request request = client.instrument(PLAN, properties, builder).build();
+            return client.execute(operation(), request, handler, flight(key, properties, handler, null, null), spare(handler));
+        }
+
+        /* Quorums and friends make different reads, cache them apart */
+        final Map<String, Object> parameters = new TreeMap<>();
+        for (Map.Entry<String, ?> property: properties.entrySet())
+            if (property.getValue() != null) parameters.put(property.getKey(), property.getValue());
+
+        final Class<T> type = ((JsonContentHandler<T>) handler).getType();
+        final ResponseCache.Entry<T> entry = cache.get(key, type, parameters);
+        final long stamp = cache.stamp();
+        final AsyncResponseFuture<T> future = new AsyncResponseFuture<>(client);
+        String eTag = null;
+        Date lastModified = null;
+
+        /* Serve fresh hits immediately, revalidate stale ones */
+        if (entry != null) {
+            if (entry.isFresh()) {
+                future.set(entry.getResponse());
+                return future;
+            }
+
+            eTag = entry.getResponse().getETag();
+            lastModified = entry.getResponse().getLastModified();
+            if (eTag != null) builder.setHeader("If-None-Match", eTag);
+            if (lastModified != null) builder.setHeader("If-Modified-Since", DateUtil.formatDate(lastModified));
+        }
+
+        final Request request = client.instrument(PLAN, properties, builder).build();
+        final String flight = flight(key, properties, handler, eTag, lastModified);
+        return future.notify(client.execute(operation(), request, handler, flight, spare(handler)).addListener(new ResponseListener<T>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<T> event) {
+                final Response<T> response = event.getResponse();
+                switch (response.getStatus()) {
+                    case 200:
+                        cache.put(key, type, parameters, response, stamp);
+                        future.set(response);
+                        break;
+                    case 304:
+                        /* Not modified, refresh and return what we have */
+                        if (entry == null) {
+                            future.set(response);
+                        } else {
+                            entry.refresh();
+                            future.set(entry.getResponse());
+                        }
+                        break;
+                    case 404:
+                        cache.invalidate(key);
+                        future.set(response);
+                        break;
+                    default:
+                        future.set(response);
+                }
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<T> event) {
+                future.fail(event.getThrowable());
+            }
+        }));
 
     }
 
+    /* ====================================================================== */
+
+    private Operation operation() {
+        /* Metadata-only reads are timed apart, not to skew the fetch percentiles */
+        return getReturnBody() ? Operation.FETCH : Operation.HEAD;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ContentHandler<T> spare(ContentHandler<T> handler) {
+        /* A fresh handler for hedged duplicates, only for those we know */
+        if (handler.getClass() == JsonContentHandler.class) return new JsonContentHandler<T>(((JsonContentHandler<T>) handler).getSerializerRegistry(), ((JsonContentHandler<T>) handler).getType());
+        if (handler.getClass() == NullContentHandler.class) return new NullContentHandler<T>();
+        if (handler.getClass() == VectorClockContentHandler.class) return (ContentHandler<T>) new VectorClockContentHandler();
+        return null;
+    }
+
+    private String flight(Key key, Map<String, ?> properties, ContentHandler<T> handler, String eTag, Date lastModified) {
+
+        /* Only handlers whose result depends solely on the response are shared */
+        final String signature = handler.getClass() == JsonContentHandler.class ?
+                                     ((JsonContentHandler<T>) handler).getType().getName() :
+                                 handler.getClass() == NullContentHandler.class ? "null" :
+                                 handler.getClass() == VectorClockContentHandler.class ? "vclock" :
+                                     null;
+        if (signature == null) return null;
+
+        return new StringBuilder(getReturnBody() ? "GET " : "HEAD ")
+                         .append(key.getLocation())
+                         .append(' ').append(properties.isEmpty() ? "{}" : new TreeMap<>(properties))
+                         .append(' ').append(eTag)
+                         .append(' ').append(lastModified == null ? null : lastModified.getTime())
+                         .append(' ').append(signature)
+                         .toString();
+    }
 }
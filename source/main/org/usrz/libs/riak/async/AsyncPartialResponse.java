@@ -30,6 +30,8 @@ public class AsyncPartialResponse<T> extends AbstractPartialResponse<T> {
 
     private final String vectorClock;
     private final Date lastModified;
+    private final String contentType;
+    private final String eTag;
     private final String location;
     private final Key key;
 
@@ -41,6 +43,8 @@ public class AsyncPartialResponse<T> extends AbstractPartialResponse<T> {
 
         /* Get the vector clock... *ALWAYS* */
         this.vectorClock = map.getFirstValue("X-Riak-Vclock");
+        this.eTag = map.getFirstValue("ETag");
+        this.contentType = map.getFirstValue("Content-Type");
 
         /* Set up our location and key */
         this.location = map.getFirstValue("Location");
@@ -60,7 +64,7 @@ public class AsyncPartialResponse<T> extends AbstractPartialResponse<T> {
         Date lastModified = null;
         try {
             final String text = map.getFirstValue("Last-Modified");
-            lastModified = lastModified == null ? null : parseDate(text);
+            lastModified = text == null ? null : parseDate(text);
         } catch (Exception exception) {
             lastModified = null; /* Invalid format, just set to null */
         } finally {
@@ -78,6 +82,16 @@ public class AsyncPartialResponse<T> extends AbstractPartialResponse<T> {
         return lastModified;
     }
 
+    @Override
+    public String getETag() {
+        return eTag;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
     @Override
     public Key getKey() {
         return key;
@@ -15,6 +15,7 @@
  * ========================================================================== */
 package org.usrz.libs.riak.async;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
@@ -23,6 +24,7 @@ import org.usrz.libs.riak.Response;
 import org.usrz.libs.riak.ResponseEvent;
 import org.usrz.libs.riak.ResponseFuture;
 import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.metrics.MetricsSample;
 import org.usrz.libs.utils.futures.SettableFuture;
 
 import com.ning.http.client.listenable.ExecutionList;
@@ -35,10 +37,16 @@ implements ResponseFuture<T> {
     private final ExecutionList executionList = new ExecutionList();
     private final AsyncRiakClient client;
     private final Executor executor;
+    private final MetricsSample sample;
 
     public AsyncResponseFuture(AsyncRiakClient client) {
-        this.executor = client.getExecutorService();
+        this(client, null);
+    }
+
+    public AsyncResponseFuture(AsyncRiakClient client, MetricsSample sample) {
+        this.executor = client.getListenerExecutor();
         this.client = client;
+        this.sample = sample;
     }
 
     @Override
@@ -66,7 +74,34 @@ implements ResponseFuture<T> {
     @Override
     public boolean set(Response<T> response) {
         try {
-            return super.set(response);
+            final boolean set = super.set(response);
+            if (set && (sample != null)) sample.completed();
+            return set;
+        } finally {
+            this.executionList.run();
+        }
+    }
+
+    @Override
+    public boolean fail(Throwable throwable) {
+        try {
+            final boolean failed = super.fail(throwable);
+            if (failed && (sample != null)) {
+                if (throwable instanceof CancellationException) sample.cancelled();
+                else sample.failed();
+            }
+            return failed;
+        } finally {
+            this.executionList.run();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        try {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && (sample != null)) sample.cancelled();
+            return cancelled;
         } finally {
             this.executionList.run();
         }
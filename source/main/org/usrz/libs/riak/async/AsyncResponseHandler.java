@@ -16,13 +16,25 @@
 package org.usrz.libs.riak.async;
 
 import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.usrz.libs.logging.Log;
 import org.usrz.libs.riak.ContentHandler;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.PartialResponse;
 import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseCache;
+import org.usrz.libs.riak.VectorClockCache;
+import org.usrz.libs.riak.metrics.MetricsSample;
 import org.usrz.libs.riak.response.ErrorContentHandler;
+import org.usrz.libs.riak.response.InlineContentHandler;
 import org.usrz.libs.riak.response.NullContentHandler;
-import org.usrz.libs.riak.response.SiblingsContentHandler;
+import org.usrz.libs.riak.response.QueuedContentHandler;
+import org.usrz.libs.riak.utils.GzipDecoder;
 import org.usrz.libs.utils.futures.SettableFuture;
 
 import com.ning.http.client.AsyncHandler;
@@ -39,13 +51,27 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
     private final SettableFuture<Response<T>> future;
     private final ContentHandler<T> handler;
     private final AsyncRiakClient client;
+    private final MetricsSample sample;
+    private final RiakNode node;
     private final Request request;
+    private final ReadThrottle throttle = new ReadThrottle();
+    private final long started = System.nanoTime();
 
     private AsyncPartialResponse<T> partial = null;
+    private InlineContentHandler<T> inline = null;
+    private QueuedContentHandler<T> queued = null;
+    private ContentHandler<T> selected = null;
     private OutputStream output = null;
+    private GzipDecoder decoder = null;
+    private Throwable failure = null;
     private int status = -1;
+    private boolean ended = false;
 
-    protected AsyncResponseHandler(AsyncRiakClient client, Request request, ContentHandler<T> handler, SettableFuture<Response<T>> future) {
+    protected AsyncResponseHandler(AsyncRiakClient client, RiakNode node, Request request, ContentHandler<T> handler, SettableFuture<Response<T>> future) {
+        this(client, node, request, handler, future, null);
+    }
+
+    protected AsyncResponseHandler(AsyncRiakClient client, RiakNode node, Request request, ContentHandler<T> handler, SettableFuture<Response<T>> future, MetricsSample sample) {
         if (client == null) throw new NullPointerException("Null client");
         if (request == null) throw new NullPointerException("Null request");
         if (handler == null) throw new NullPointerException("Null handler");
@@ -54,9 +80,40 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
         log.trace("Handler for %s on %s created", request.getMethod(), request.getUrl());
 
         this.client = client;
+        this.node = node;
         this.request = request;
         this.handler = handler;
         this.future = future;
+        this.sample = sample;
+    }
+
+    protected void attach(Future<?> execution) {
+        throttle.attach(execution);
+    }
+
+    private void end(boolean failed) {
+        if (ended || (node == null)) return;
+        client.getNodePool().end(node, failed, System.nanoTime() - started);
+        ended = true;
+    }
+
+    private void cancel() {
+        if (ended || (node == null)) return;
+        client.getNodePool().cancel(node);
+        ended = true;
+    }
+
+    private void invalidate() {
+        final ResponseCache cache = client.getResponseCache();
+        final String method = request.getMethod();
+        if ((cache == null) || "GET".equals(method) || "HEAD".equals(method)) return;
+
+        /* A failed write might still have made it to the node */
+        try {
+            cache.invalidate(new Key(client, URI.create(request.getUrl()).getRawPath()));
+        } catch (Exception exception) {
+            /* Not a key, nothing to invalidate */
+        }
     }
 
     @Override
@@ -67,6 +124,28 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
         return STATE.CONTINUE;
     }
 
+    private void remember(PartialResponse<T> partial) {
+        final Key key = partial.getKey();
+        if (key == null) return;
+
+        /* Writes are done (or failed) on the node, reads since may be stale */
+        final String method = request.getMethod();
+        final boolean read = "GET".equals(method) || "HEAD".equals(method);
+        final ResponseCache cache = client.getResponseCache();
+        if ((cache != null) && (!read)) cache.invalidate(key);
+
+        final VectorClockCache clocks = client.getVectorClockCache();
+        if (clocks == null) return;
+
+        /* Remember the clock we just saw, or forget the one we had if stale */
+        final String vectorClock = partial.getVectorClock();
+        if ((vectorClock != null) && (status < 400)) {
+            clocks.put(key, vectorClock);
+        } else if ((status == 404) || (!read)) {
+            clocks.invalidate(key);
+        }
+    }
+
     @Override
     public STATE onHeadersReceived(HttpResponseHeaders headers)
     throws Exception {
@@ -74,6 +153,16 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
 
         /* Create our partial response */
         this.partial = new AsyncPartialResponse<T>(client, headers, status);
+        remember(partial);
+
+        /* Server errors are often fast, they don't say much about latency */
+        if ((node != null) && (status < 500)) client.getNodePool().record(node, System.nanoTime() - started);
+
+        /* The request body is fully written by the time we get here */
+        if (sample != null) {
+            sample.headers(status);
+            sample.sent(client.getContentLength(request));
+        }
 
         /*
          * Statuses:
@@ -94,34 +183,116 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
         final ContentHandler<T> handler = status == 200 ? this.handler : // Success, parse (if any)
                                           status == 201 ? this.handler : // Created, parse (if any)
                                           status == 204 ? this.handler : // No content, parse (SuccessContentHandler, for example)
-                                          status == 300 ? new SiblingsContentHandler<T>() : // Siblings, parse
+                                          status == 300 ? client.getSiblingsContentHandler(this.handler, partial.getContentType()) : // Siblings, parse or resolve
                                           status == 304 ? new NullContentHandler<T>() : // Not modified, discard
                                           status == 404 ? new NullContentHandler<T>() : // Not found, discard
                                               new ErrorContentHandler<T>(); // All other errors, fail
 
-        /* Create our output, and a completion handler for the response */
+        /* Compressed content is inflated part by part, as it arrives */
+        final String encoding = headers.getHeaders().getFirstValue("Content-Encoding");
+        if ((encoding != null) && "gzip".equalsIgnoreCase(encoding.trim())) decoder = new GzipDecoder();
+
+        /* Create our output, queued handlers take body parts directly */
         output = handler.getOutputStream(partial);
-        future.notify(client.getExecutorService().submit(new Runnable() {
+        selected = handler;
+
+        /* Small (or streamed) content might be parsed right here */
+        if ((handler instanceof InlineContentHandler) && client.isInline(contentLength(headers))) {
+            inline = (InlineContentHandler<T>) handler;
+            return STATE.CONTINUE;
+        }
+
+        if (handler instanceof QueuedContentHandler) {
+            queued = (QueuedContentHandler<T>) handler;
+
+            /* Non-streaming handlers are called only when all content is in */
+            if (!queued.isStreaming()) return STATE.CONTINUE;
+
+            /* Streaming ones pause our reads while they catch up */
+            queued.setWritableListener(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        future.set(handler.call());
-                    } catch (Throwable throwable) {
-                        future.fail(null);
-                    }
+                    throttle.resume();
                 }
-            }));
+            });
+        }
+
+        /* Call the handler now, it will read content as it arrives */
+        submit();
 
         /* No matter what, always continue */
         return STATE.CONTINUE;
 
     }
 
+    private long contentLength(HttpResponseHeaders headers) {
+        final String length = headers.getHeaders().getFirstValue("Content-Length");
+        if (length != null) try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException exception) {
+            /* Ignore and treat as unknown */
+        }
+        return -1;
+    }
+
+    private void submit() {
+        final ContentHandler<T> handler = selected;
+        try {
+            future.notify(client.getExecutorService().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            future.set(handler.call());
+                        } catch (Throwable throwable) {
+                            future.fail(throwable);
+                        }
+                    }
+                }));
+        } catch (RejectedExecutionException exception) {
+            /* Overloaded, fail fast rather than queueing forever */
+            log.error(exception, "Handler for %s %s rejected by executor", request.getMethod(), request.getUrl());
+            failed(exception);
+        }
+    }
+
+    private void failed(Throwable throwable) {
+        /* Our own failure, not the node's: drain the rest and fail the future */
+        if (failure != null) return;
+        failure = throwable;
+        future.fail(throwable);
+    }
+
     @Override
     public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart)
     throws Exception {
         log.trace("Received body part for request %s", bodyPart.getUrl());
-        bodyPart.writeTo(output);
+        final ByteBuffer received = bodyPart.getBodyByteBuffer();
+        if (sample != null) sample.received(received.remaining());
+
+        /* Once we failed, the rest of the body is simply discarded */
+        if (failure != null) return STATE.CONTINUE;
+
+        try {
+            /* Inflate compressed parts, nothing to do until we have some data */
+            final ByteBuffer buffer = decoder == null ? received : decoder.decode(received);
+            if (!buffer.hasRemaining()) return STATE.CONTINUE;
+
+            if (inline != null) {
+                /* Non-blocking parsing, right here on the I/O thread */
+                inline.feed(buffer);
+            } else if (queued != null) {
+                /* Parts are already copied off the wire, queue them as they are */
+                if (!queued.offer(buffer)) throttle.pause();
+            } else if (decoder != null) {
+                output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                bodyPart.writeTo(output);
+            }
+        } catch (Exception exception) {
+            /* Malformed content or a gone handler, the node did its job */
+            log.debug("Request: %s %s -> %d failed reading content: %s", request.getMethod(), request.getRawUrl(), status, exception);
+            failed(exception);
+        }
         return STATE.CONTINUE;
     }
 
@@ -129,19 +300,42 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
     public Response<T> onCompleted()
     throws Exception {
         log.trace("Completed processing of %s", request.getUrl());
+        throttle.finish();
+
+        /* Server errors count as failures of the node, parsing errors don't */
+        end(status >= 500);
 
         try {
+            if (decoder != null) try {
+                if (failure == null) decoder.finish();
+            } finally {
+                decoder.close();
+            }
             output.close();
+            if (failure != null) return null;
+            if (inline != null) future.set(inline.complete());
+            else if ((queued != null) && (!queued.isStreaming())) submit();
         } catch (Throwable throwable) {
             future.fail(throwable);
         }
 
-        return future.get();
+        /* Never wait for the handler here, we're on an I/O thread */
+        return future.isDone() ? future.get() : null;
     }
 
     @Override
     public void onThrowable(Throwable throwable) {
-        log.error(throwable, "Request: %s %s -> %d", request.getMethod(), request.getRawUrl(), status);
+        throttle.finish();
+
+        /* Only transport errors get here, but cancelled (say, a losing hedge) is not the node's fault */
+        if (throwable instanceof CancellationException) {
+            log.debug("Request: %s %s cancelled", request.getMethod(), request.getRawUrl());
+            cancel();
+        } else {
+            log.error(throwable, "Request: %s %s -> %d", request.getMethod(), request.getRawUrl(), status);
+            end(true);
+        }
+        invalidate();
 
         /* First, try to kill the Response<?> future */
         try {
@@ -153,6 +347,7 @@ public class AsyncResponseHandler<T> implements AsyncHandler<Response<T>> {
 
         /* Then close the output */
         try {
+            if (decoder != null) decoder.close();
             if (output != null) output.close();
         } catch (Throwable fail) {
             /* Could throw IOException */
@@ -15,13 +15,28 @@
  * ========================================================================== */
 package org.usrz.libs.riak.async;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.Date;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
 
 import org.usrz.libs.logging.Log;
 import org.usrz.libs.riak.AbstractJsonClient;
@@ -31,18 +46,37 @@ import org.usrz.libs.riak.DeleteRequest;
 import org.usrz.libs.riak.FetchRequest;
 import org.usrz.libs.riak.Index;
 import org.usrz.libs.riak.IndexMap;
+import org.usrz.libs.riak.IndexQuery;
+import org.usrz.libs.riak.IndexTerm;
 import org.usrz.libs.riak.Key;
 import org.usrz.libs.riak.LinksMap;
+import org.usrz.libs.riak.MapReduce;
 import org.usrz.libs.riak.Metadata;
-import org.usrz.libs.riak.Quorum;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseCache;
 import org.usrz.libs.riak.ResponseEvent;
 import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.ResponseListener;
 import org.usrz.libs.riak.ResponseListenerAdapter;
 import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.riak.SiblingResolver;
 import org.usrz.libs.riak.StoreRequest;
+import org.usrz.libs.riak.VectorClockCache;
 import org.usrz.libs.riak.annotations.RiakIntrospector;
+import org.usrz.libs.riak.metrics.ClientMetrics;
+import org.usrz.libs.riak.metrics.LatencyHistogram;
+import org.usrz.libs.riak.metrics.MetricsSample;
+import org.usrz.libs.riak.metrics.Operation;
 import org.usrz.libs.riak.response.BucketListContentHandler;
+import org.usrz.libs.riak.response.IndexContentHandler;
 import org.usrz.libs.riak.response.KeyListContentHandler;
+import org.usrz.libs.riak.response.MapReduceContentHandler;
+import org.usrz.libs.riak.response.MultipartFeeder;
+import org.usrz.libs.riak.response.SiblingsContentHandler;
+import org.usrz.libs.riak.serializers.BytesSerializer;
+import org.usrz.libs.riak.serializers.Serializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
+import org.usrz.libs.riak.utils.ByteBufferPool;
 import org.usrz.libs.riak.utils.RiakUtils;
 import org.usrz.libs.utils.beans.InstanceBuilder;
 import org.usrz.libs.utils.beans.MapperBuilder;
@@ -54,24 +88,73 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
 import com.ning.http.client.Request;
-import com.ning.http.util.DateUtil;
+import com.ning.http.client.RequestBuilder;
 
-public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
+public class AsyncRiakClient extends AbstractJsonClient implements RiakClient, Closeable {
 
     private final Log log = new Log();
 
-    private final ExecutorService executor = Executors.newCachedThreadPool();
     private final RiakIntrospector introspector = new RiakIntrospector(this);
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
     private final AsyncHttpClient client;
+    private final RiakNodePool nodes;
+    private final boolean ownsNodes;
+    private final ExecutorService executor;
+
+    private volatile Executor listenerExecutor;
+    private volatile long inlineThreshold = 0;
+    private volatile ResponseCache responseCache;
+    private volatile VectorClockCache vectorClockCache = new VectorClockCache();
+    private volatile boolean coalescing = false;
+    private volatile ClientMetrics metrics = new ClientMetrics();
+    private volatile long hedgeDelay = -1;
+    private volatile double hedgeBudget = 5;
+    private volatile int compressionThreshold = -1;
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private final AtomicLong hedgeable = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLongArray adaptiveDelays = new AtomicLongArray(Operation.values().length);
+    private final AtomicLongArray adaptiveExpiries = new AtomicLongArray(Operation.values().length);
+    private ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<String, Flight<?>> flights = new ConcurrentHashMap<>();
 
     private final Class<AsyncFetchRequest<?>> fetchRequestClass;
     private final Class<AsyncStoreRequest<?>> storeRequestClass;
     private final Class<AsyncDeleteRequest> deleteRequestClass;
 
     public AsyncRiakClient(AsyncHttpClient client) {
+        this(client, new RiakNodePool("http://127.0.0.1:4198"), new BoundedExecutorService(), true);
+    }
+
+    public AsyncRiakClient(AsyncHttpClient client, String... nodes) {
+        this(client, new RiakNodePool(nodes), new BoundedExecutorService(), true);
+    }
+
+    public AsyncRiakClient(AsyncHttpClient client, RiakNodePool nodes) {
+        this(client, nodes, new BoundedExecutorService(), false);
+    }
+
+    public AsyncRiakClient(AsyncHttpClient client, ExecutorService executor) {
+        this(client, new RiakNodePool("http://127.0.0.1:4198"), executor, true);
+    }
+
+    public AsyncRiakClient(AsyncHttpClient client, RiakNodePool nodes, ExecutorService executor) {
+        this(client, nodes, executor, false);
+    }
+
+    private AsyncRiakClient(AsyncHttpClient client, RiakNodePool nodes, ExecutorService executor, boolean ownsNodes) {
         super(new ObjectMapper());
         if (client == null) throw new NullPointerException("Null client");
+        if (nodes == null) throw new NullPointerException("Null node pool");
+        if (executor == null) throw new NullPointerException("Null executor");
         this.client = client;
+        this.nodes = nodes;
+        this.ownsNodes = ownsNodes;
+        this.executor = executor;
+        listenerExecutor = new CallerRunsExecutor(executor);
+        nodes.start(client);
 
         final MapperBuilder builder = new MapperBuilder();
         fetchRequestClass = builder.newClass(AsyncFetchRequest.class);
@@ -79,20 +162,155 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
         deleteRequestClass = builder.newClass(AsyncDeleteRequest.class);
     }
 
+    @Override
+    public void close() {
+        /* The HTTP client, the executor and a node pool we were given are not ours to close */
+        if (ownsNodes) nodes.close();
+        synchronized (this) {
+            if (scheduler != null) scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
     /* ====================================================================== */
 
     protected RiakIntrospector getIntrospector() {
         return introspector;
     }
 
+    @Override
     protected ExecutorService getExecutorService() {
         return executor;
     }
 
+    protected Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
     protected ObjectMapper getObjectMapper() {
         return mapper;
     }
 
+    protected RiakNodePool getNodePool() {
+        return nodes;
+    }
+
+    protected ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /* ====================================================================== */
+
+    public AsyncRiakClient setListenerExecutor(Executor listenerExecutor) {
+        if (listenerExecutor == null) throw new NullPointerException("Null listener executor");
+        this.listenerExecutor = new CallerRunsExecutor(listenerExecutor);
+        return this;
+    }
+
+    public AsyncRiakClient setInlineThreshold(long inlineThreshold) {
+        this.inlineThreshold = inlineThreshold;
+        return this;
+    }
+
+    public AsyncRiakClient setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public AsyncRiakClient setVectorClockCache(VectorClockCache vectorClockCache) {
+        this.vectorClockCache = vectorClockCache;
+        return this;
+    }
+
+    public VectorClockCache getVectorClockCache() {
+        return vectorClockCache;
+    }
+
+    public AsyncRiakClient setMetrics(ClientMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AsyncRiakClient setHedgeDelay(long delay, TimeUnit unit) {
+        /* Negative disables, zero uses the observed 95th percentile */
+        if (unit == null) throw new NullPointerException("Null time unit");
+        hedgeDelay = delay < 0 ? -1 : unit.toNanos(delay);
+        return this;
+    }
+
+    public AsyncRiakClient setHedgeBudget(double percent) {
+        if ((percent < 0) || (percent > 100)) throw new IllegalArgumentException("Invalid hedge budget " + percent + "%");
+        hedgeBudget = percent;
+        return this;
+    }
+
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    public AsyncRiakClient setCompressionThreshold(int threshold) {
+        /* Negative disables, otherwise bodies this big (or bigger) are compressed */
+        compressionThreshold = threshold < 0 ? -1 : threshold;
+        return this;
+    }
+
+    public AsyncRiakClient setCompressionLevel(int level) {
+        if ((level < Deflater.DEFAULT_COMPRESSION) || (level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        compressionLevel = level;
+        return this;
+    }
+
+    protected boolean isCompressing() {
+        return compressionThreshold >= 0;
+    }
+
+    public AsyncRiakClient setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+        return this;
+    }
+
+    public <T> AsyncRiakClient setSiblingResolver(Class<T> type, SiblingResolver<T> resolver) {
+        return this.setSiblingResolver(type, resolver, false);
+    }
+
+    public <T> AsyncRiakClient setSiblingResolver(Class<T> type, SiblingResolver<T> resolver, boolean writeBack) {
+        putSiblingResolver(type, resolver, writeBack, null);
+        return this;
+    }
+
+    /* Writes back resolved siblings, and tells the listener how it went */
+    public <T> AsyncRiakClient setSiblingResolver(Class<T> type, SiblingResolver<T> resolver, ResponseListener<T> writeBackListener) {
+        if (writeBackListener == null) throw new NullPointerException("Null write back listener");
+        putSiblingResolver(type, resolver, true, writeBackListener);
+        return this;
+    }
+
+    @Override
+    protected boolean hasSiblingResolver(Class<?> type) {
+        return super.hasSiblingResolver(type);
+    }
+
+    protected <T> ContentHandler<T> getSiblingsContentHandler(ContentHandler<T> handler, String contentType) {
+        /* Without a resolver or multipart siblings, just report the vtags */
+        final ContentHandler<T> resolver = MultipartFeeder.getBoundary(contentType) == null ? null : getSiblingResolver(handler);
+        return resolver != null ? resolver : new SiblingsContentHandler<T>();
+    }
+
+    protected boolean isInline(long contentLength) {
+        /* Zero or negative disables, unknown lengths could be anything */
+        final long threshold = inlineThreshold;
+        return (threshold > 0) && (contentLength >= 0) && (contentLength <= threshold);
+    }
+
     /* ====================================================================== */
 
     @Override
@@ -103,7 +321,7 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
         final Request request = prepareGet("/buckets?buckets=stream").build();
         final BucketListContentHandler handler = new BucketListContentHandler(mapper, iterable);
 
-        return iterable.notify(iterate(request, iterable, handler));
+        return iterable.notify(iterate(Operation.LIST, request, iterable, handler));
     }
 
     @Override
@@ -114,7 +332,55 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
         final Request request = prepareGet(bucket.getLocation() + "keys/?keys=stream").build();
         final KeyListContentHandler handler = new KeyListContentHandler(mapper, bucket, iterable);
 
-        return iterable.notify(iterate(request, iterable, handler));
+        return iterable.notify(iterate(Operation.LIST, request, iterable, handler));
+    }
+
+    @Override
+    protected IterableFuture<IndexTerm> query(IndexQuery query, boolean returnTerms)
+    throws IOException {
+        final QueueingFuture<IndexTerm> iterable = new QueueingFuture<>();
+        page(query, returnTerms, query.getContinuation(), iterable);
+        return iterable;
+    }
+
+    private void page(final IndexQuery query, final boolean returnTerms, String continuation, final QueueingFuture<IndexTerm> iterable)
+    throws IOException {
+        final BoundRequestBuilder builder = prepareGet(query.getLocation()).addQueryParameter("stream", "true");
+        if (returnTerms) builder.addQueryParameter("return_terms", "true");
+        if (query.getMaxResults() > 0) builder.addQueryParameter("max_results", Integer.toString(query.getMaxResults()));
+        if (continuation != null) builder.addQueryParameter("continuation", continuation);
+
+        final Request request = builder.build();
+        final IndexContentHandler handler = new IndexContentHandler(mapper, query, iterable);
+
+        iterable.notify(iterate(Operation.QUERY, request, iterable, handler).addListener(new ResponseListenerAdapter<Boolean>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<Boolean> event) {
+                /* Follow continuations until we're done or nobody's listening */
+                final String continuation = handler.getContinuation();
+                if ((continuation == null) || (!Boolean.TRUE.equals(event.getContent()))) return;
+                try {
+                    page(query, returnTerms, continuation, iterable);
+                } catch (Throwable throwable) {
+                    iterable.fail(throwable);
+                }
+            }
+        }));
+    }
+
+    @Override
+    public <R> IterableFuture<R> mapReduce(MapReduce job, Class<R> type)
+    throws IOException {
+        final QueueingFuture<R> iterable = new QueueingFuture<>();
+
+        final Request request = preparePost("/mapred?chunked=true")
+                                    .setBody(new AsyncSerializingGenerator(this, job.getJob()))
+                                    .addHeader("Content-Type", "application/json")
+                                    .build();
+        final MapReduceContentHandler<R> handler = new MapReduceContentHandler<>(mapper, type, iterable);
+
+        return iterable.notify(iterate(Operation.QUERY, request, iterable, handler));
     }
 
     /* ====================================================================== */
@@ -147,7 +413,7 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
     /* ====================================================================== */
 
     private final String getUrl(String location) {
-        return "http://127.0.0.1:4198" + location;
+        return nodes.select().getUrl(location);
     }
 
     protected BoundRequestBuilder prepareHead(String location) {
@@ -170,20 +436,276 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
         return client.prepareDelete(getUrl(location));
     }
 
-    protected <T> ResponseFuture<T> execute(Request request, ContentHandler<T> handler)
+    protected <T> ResponseFuture<T> execute(Operation operation, Request request, ContentHandler<T> handler)
     throws IOException {
+        if (operation == null) throw new NullPointerException("Null operation");
         log.debug("Calling %s on %s", request.getMethod(), request.getUrl());
 
+        /* Figure out what node we're talking to, and account for the request */
+        final RiakNode node = nodes.getNode(request.getUrl());
+        if (node != null) nodes.acquire(node); // Fails fast when overloaded
+
+        /* Time it from here, queueing in the HTTP client is part of latency */
+        final ClientMetrics metrics = this.metrics;
+        final MetricsSample sample = metrics == null ? null : metrics.begin(operation);
+
         /* See https://github.com/AsyncHttpClient/async-http-client/issues/489 */
-        final AsyncResponseFuture<T> future = new AsyncResponseFuture<>(this);
-        future.notify(client.executeRequest(request, new AsyncResponseHandler<>(this, request, handler, future)));
+        final AsyncResponseFuture<T> future = new AsyncResponseFuture<>(this, sample);
+        try {
+            final AsyncResponseHandler<T> responseHandler = new AsyncResponseHandler<>(this, node, request, handler, future, sample);
+            final Future<Response<T>> execution = client.executeRequest(request, responseHandler);
+            responseHandler.attach(execution);
+            future.notify(execution);
+        } catch (IOException | RuntimeException exception) {
+            if (node != null) nodes.end(node, true);
+            if (sample != null) sample.failed();
+            throw exception;
+        }
         return future;
 
     }
 
-    protected <T, R> ResponseFuture<R> iterate(final Request request, final Puttable<T> iterable, ContentHandler<R> handler)
+    protected long getContentLength(Request request) {
+        if (request.getByteData() != null) return request.getByteData().length;
+        if (request.getFile() != null) return request.getFile().length();
+        if (request.getBodyGenerator() instanceof AsyncChannelGenerator)
+            return ((AsyncChannelGenerator) request.getBodyGenerator()).getContentLength();
+        if (request.getBodyGenerator() instanceof AsyncSerializingGenerator)
+            return ((AsyncSerializingGenerator) request.getBodyGenerator()).getContentLength();
+        return -1;
+    }
+
+    protected <T> ResponseFuture<T> execute(Operation operation, Request request, ContentHandler<T> handler, final String flight)
+    throws IOException {
+        return this.execute(operation, request, handler, flight, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <T> ResponseFuture<T> execute(Operation operation, Request request, ContentHandler<T> handler, String flight, ContentHandler<T> spare)
+    throws IOException {
+        if ((flight == null) || (!coalescing)) return hedge(operation, request, handler, spare);
+
+        while (true) {
+            /* Someone else is already fetching the same thing? Join in */
+            final Flight<T> current = (Flight<T>) flights.get(flight);
+            if (current != null) {
+                if (current.join()) {
+                    log.trace("Coalescing %s on %s", request.getMethod(), request.getUrl());
+                    return current.caller();
+                }
+
+                /* Everyone left, and it's being cancelled */
+                flights.remove(flight, current);
+                continue;
+            }
+
+            final Flight<T> created = new Flight<>(flight);
+            if (flights.putIfAbsent(flight, created) != null) continue;
+
+            final ResponseFuture<T> caller = created.caller();
+            try {
+                created.shared.notify(hedge(operation, request, handler, spare).addListener(created));
+            } catch (IOException | RuntimeException exception) {
+                flights.remove(flight, created);
+                created.shared.fail(exception);
+                throw exception;
+            }
+            return caller;
+        }
+    }
+
+    private final class Flight<T> implements ResponseListener<T> {
+
+        private final AsyncResponseFuture<T> shared = new AsyncResponseFuture<>(AsyncRiakClient.this);
+        private final AtomicInteger callers = new AtomicInteger(1);
+        private final String flight;
+
+        private Flight(String flight) {
+            this.flight = flight;
+        }
+
+        private boolean join() {
+            for (int current = callers.get(); current > 0; current = callers.get())
+                if (callers.compareAndSet(current, current + 1)) return true;
+            return false;
+        }
+
+        private void leave() {
+            /* The last one out cancels the request */
+            if (callers.decrementAndGet() != 0) return;
+            flights.remove(flight, this);
+            shared.cancel(true);
+        }
+
+        private ResponseFuture<T> caller() {
+            /* Every caller gets its own future, cancelling one won't affect others */
+            final AsyncResponseFuture<T> future = new AsyncResponseFuture<T>(AsyncRiakClient.this) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    final boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    if (cancelled) leave();
+                    return cancelled;
+                }
+            };
+
+            shared.addListener(new ResponseListener<T>() {
+
+                @Override
+                public void responseHandled(ResponseEvent<T> event) {
+                    future.set(event.getResponse());
+                }
+
+                @Override
+                public void responseFailed(ResponseEvent<T> event) {
+                    future.fail(event.getThrowable());
+                }
+            });
+            return future;
+        }
+
+        @Override
+        public void responseHandled(ResponseEvent<T> event) {
+            flights.remove(flight, this);
+            shared.set(event.getResponse());
+        }
+
+        @Override
+        public void responseFailed(ResponseEvent<T> event) {
+            flights.remove(flight, this);
+            shared.fail(event.getThrowable());
+        }
+    }
+
+    /* ====================================================================== */
+
+    private long getHedgeDelay(Operation operation) {
+        final long delay = hedgeDelay;
+        if (delay != 0) return delay;
+
+        /* Adaptive, re-read the operation's 95th percentile at most once a second */
+        final int index = operation.ordinal();
+        final long now = System.nanoTime();
+        if (now - adaptiveExpiries.get(index) < 0) return adaptiveDelays.get(index);
+
+        final ClientMetrics metrics = this.metrics;
+        final LatencyHistogram.Snapshot snapshot = metrics == null ? null : metrics.getSnapshot(operation).getTimeToHeaders();
+        final long adaptive = (snapshot == null) || (snapshot.getCount() < 100) ? -1 : // Not enough data yet
+                              TimeUnit.MICROSECONDS.toNanos(snapshot.getPercentile(95));
+        adaptiveDelays.set(index, adaptive);
+        adaptiveExpiries.set(index, now + TimeUnit.SECONDS.toNanos(1));
+        return adaptive;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "AsyncRiakClient-Hedging");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        return scheduler;
+    }
+
+    protected <T> ResponseFuture<T> hedge(Operation operation, Request request, ContentHandler<T> handler, ContentHandler<T> spare)
     throws IOException {
-        return this.execute(request, handler)
+        /* Only idempotent reads, with a handler for the duplicate, on a known node */
+        final String method = request.getMethod();
+        final RiakNode node = nodes.getNode(request.getUrl());
+        final long delay = spare == null ? -1 : getHedgeDelay(operation);
+        if ((delay < 0) || (node == null) || (!("GET".equals(method) || "HEAD".equals(method))))
+            return execute(operation, request, handler);
+
+        hedgeable.incrementAndGet();
+        final Hedge<T> hedge = new Hedge<>(operation, request, node, spare);
+        hedge.primary = execute(operation, request, handler);
+        hedge.future.notify(hedge.primary.addListener(hedge));
+        getScheduler().schedule(hedge, delay, TimeUnit.NANOSECONDS);
+        return hedge.future;
+    }
+
+    private final class Hedge<T> implements Runnable, ResponseListener<T> {
+
+        private final AsyncResponseFuture<T> future = new AsyncResponseFuture<T>(AsyncRiakClient.this) {
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                /* Whoever is still running goes too, not just the primary */
+                try {
+                    return super.cancel(mayInterruptIfRunning);
+                } finally {
+                    Hedge.this.cancel(primary);
+                    Hedge.this.cancel(duplicate);
+                }
+            }
+        };
+        private final AtomicInteger attempts = new AtomicInteger(1);
+        private final ContentHandler<T> spare;
+        private final Operation operation;
+        private final Request request;
+        private final RiakNode node;
+        private volatile ResponseFuture<T> primary;
+        private volatile ResponseFuture<T> duplicate;
+
+        private Hedge(Operation operation, Request request, RiakNode node, ContentHandler<T> spare) {
+            this.operation = operation;
+            this.request = request;
+            this.spare = spare;
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) return;
+
+            /* Keep duplicates within budget, and on a different node */
+            if (hedged.get() * 100 >= hedgeBudget * hedgeable.get()) return;
+            final RiakNode other = nodes.select(node);
+            if (other == null) return;
+            if (!attempts.compareAndSet(1, 2)) return;
+            hedged.incrementAndGet();
+
+            /* Same request, minus the query string which the builder keeps */
+            final String url = request.getUrl();
+            final int query = url.indexOf('?');
+            final String path = url.substring(node.getUrl().length(), query < 0 ? url.length() : query);
+
+            try {
+                log.debug("Hedging %s on %s to %s", request.getMethod(), url, other.getUrl());
+                duplicate = execute(operation, new RequestBuilder(request).setUrl(other.getUrl(path)).build(), spare).addListener(this);
+                if (future.isDone()) duplicate.cancel(true);
+            } catch (Throwable throwable) {
+                responseFailed(new ResponseEvent<T>(AsyncRiakClient.this, throwable));
+            }
+        }
+
+        @Override
+        public void responseHandled(ResponseEvent<T> event) {
+            final Response<T> response = event.getResponse();
+            if (!future.set(response)) return;
+
+            /* First one wins, cancel whoever is still running */
+            cancel(primary);
+            cancel(duplicate);
+        }
+
+        private void cancel(ResponseFuture<T> attempt) {
+            if ((attempt != null) && (!attempt.isDone())) attempt.cancel(true);
+        }
+
+        @Override
+        public void responseFailed(ResponseEvent<T> event) {
+            /* Only fail when no other attempt is still running */
+            if (attempts.decrementAndGet() == 0) future.fail(event.getThrowable());
+        }
+    }
+
+    /* ====================================================================== */
+
+    protected <T, R> ResponseFuture<R> iterate(Operation operation, final Request request, final Puttable<T> iterable, ContentHandler<R> handler)
+    throws IOException {
+        return this.execute(operation, request, handler)
                 .addListener(new ResponseListenerAdapter<R>() {
 
                     @Override
@@ -203,57 +725,90 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
 
     /* ====================================================================== */
 
-    protected BoundRequestBuilder instrument(Map<String, ?> properties, BoundRequestBuilder builder) {
-
-        /*
-         * From "ConditionalRequest":
-         * - ifMatch // String
-         * - ifModifiedSince // Date
-         * - ifNoneMatch // String
-         * - ifUnmodifiedSince // Date
-         */
-        if (properties.containsKey("ifMatch"))           builder.setHeader("If-Match",      (String) properties.get("ifMatch"));
-        if (properties.containsKey("ifNoneMatch"))       builder.setHeader("If-None-Match", (String) properties.get("ifNoneMatch"));
-        if (properties.containsKey("ifModifiedSince"))   builder.setHeader("If-Modified-Since",   DateUtil.formatDate((Date) properties.get("ifModifiedSince")));
-        if (properties.containsKey("ifUnmodifiedSince")) builder.setHeader("If-Unmodified-Since", DateUtil.formatDate((Date) properties.get("ifUnmodifiedSince")));
-
-        /*
-         * From "BasicQuorumRequest":
-         * - basicQuorum // boolean
-         */
-        if (properties.containsKey("basicQuorum")) builder.addQueryParameter("basic_quorum", ((Boolean) properties.get("basicQuorum")).toString());
-
-        /*
-         * From "ReadQuorumRequest":
-         * - readQuorum // int or Quorum
-         * - primaryReadQuorum // int or Quorum
-         *
-         * From "WriteQuorumRequest":
-         * - writeQuorum // int or Quorum
-         * - primaryWriteQuorum // int or Quorum
-         * - durableWriteQuorum // int or Quorum
-         */
-        if (properties.containsKey("readQuorum"))         builder.addQueryParameter("r",  Quorum.getParameter(properties.get("readQuorum")));
-        if (properties.containsKey("primaryReadQuorum"))  builder.addQueryParameter("pr", Quorum.getParameter(properties.get("primaryReadQuorum")));
-        if (properties.containsKey("writeQuorum"))        builder.addQueryParameter("w",  Quorum.getParameter(properties.get("writeQuorum")));
-        if (properties.containsKey("primaryWriteQuorum")) builder.addQueryParameter("pw", Quorum.getParameter(properties.get("primaryWriteQuorum")));
-        if (properties.containsKey("durableWriteQuorum")) builder.addQueryParameter("dw", Quorum.getParameter(properties.get("durableWriteQuorum")));
-
-        /*
-         * From "SiblingsRequest":
-         * - sibling // string
-         */
-        if (properties.containsKey("sibling")) builder.addQueryParameter("vtag", (String) properties.get("sibling"));
-
-        /* Done! */
-        return builder;
+    protected BoundRequestBuilder setBody(Bucket bucket, String contentType, Object value, BoundRequestBuilder builder)
+    throws IOException {
+
+        /* Files and channels are sent as they are, never loaded on the heap */
+        if (BytesSerializer.isRaw(value)) {
+            if (value instanceof Path) builder.setBody(((Path) value).toFile());
+            else builder.setBody(new AsyncChannelGenerator((ReadableByteChannel) value));
+            return builder.setHeader("Content-Type", contentType == null ? SerializerRegistry.BYTES : contentType);
+        }
+
+        final Serializer serializer = serializers.getSerializer(bucket, contentType);
+        return setBody(serializer, value, builder).setHeader("Content-Type", serializer.getContentType());
+    }
+
+    protected BoundRequestBuilder setBody(Serializer serializer, Object value, BoundRequestBuilder builder)
+    throws IOException {
+        final int threshold = compressionThreshold;
+        if (threshold < 0) return builder.setBody(new AsyncSerializingGenerator(this, serializer, value));
+
+        /* Headers depend on the size, serialize only up to the threshold */
+        if (threshold > 0) {
+            final ThresholdOutputStream output = new ThresholdOutputStream(threshold);
+            try {
+                serializer.write(output, value);
+                return builder.setBody(output.toByteArray());
+            } catch (IOException exception) {
+                if (!output.isExceeded()) throw exception;
+            }
+        }
+
+        /* Big enough, gzipped as it's serialized when the body is created */
+        return builder.setBody(new AsyncSerializingGenerator(this, serializer, value, compressionLevel))
+                      .addHeader("Content-Encoding", "gzip");
+    }
+
+    /* Keeps small bodies, and gives up as soon as they reach the threshold */
+    private static final class ThresholdOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int threshold;
+        private boolean exceeded;
+
+        private ThresholdOutputStream(int threshold) {
+            this.threshold = threshold;
+        }
+
+        private boolean isExceeded() {
+            return exceeded;
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public void write(int b)
+        throws IOException {
+            check(1);
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        throws IOException {
+            check(len);
+            bytes.write(b, off, len);
+        }
+
+        private void check(int length)
+        throws IOException {
+            if (bytes.size() + length < threshold) return;
+            exceeded = true;
+            throw new IOException("Body reached the compression threshold of " + threshold + " bytes");
+        }
+    }
+
+    protected BoundRequestBuilder instrument(EncodingPlan plan, Map<String, ?> properties, BoundRequestBuilder builder) {
+        return plan.encode(properties, builder);
     }
 
     protected BoundRequestBuilder instrument(IndexMap indexMap, BoundRequestBuilder builder) {
         for (Entry<Index, Set<String>> entry: indexMap.entrySet()) {
             final Index index = entry.getKey();
-            builder.addHeader("X-Riak-Index-" + RiakUtils.encode(index.getName()) + index.getType().getSuffix(),
-                              RiakUtils.encode(entry.getValue()));
+            builder.addHeader(HeaderNames.index(index), RiakUtils.encode(entry.getValue()));
         }
         return builder;
     }
@@ -263,7 +818,10 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
             final String tag = entry.getKey();
             for (Key key: entry.getValue()) {
                 final String location = key.getLocation();
-                builder.addHeader("Link", "<" + location + ">; riaktag=\"" + tag + "\"");
+                builder.addHeader("Link", new StringBuilder(location.length() + tag.length() + 14)
+                                                  .append('<').append(location)
+                                                  .append(">; riaktag=\"").append(tag).append('"')
+                                                  .toString());
             }
         }
         return builder;
@@ -271,8 +829,7 @@ public class AsyncRiakClient extends AbstractJsonClient implements RiakClient {
 
     protected BoundRequestBuilder instrument(Metadata metadata, BoundRequestBuilder builder) {
         for (Entry<String, Set<String>> entry: metadata.entrySet())
-            builder.addHeader("X-Riak-Meta-" + RiakUtils.encode(entry.getKey()),
-                              RiakUtils.encode(entry.getValue()));
+            builder.addHeader(HeaderNames.metadata(entry.getKey()), RiakUtils.encode(entry.getValue()));
         return builder;
     }
 
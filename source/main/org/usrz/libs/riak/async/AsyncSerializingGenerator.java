@@ -0,0 +1,144 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.usrz.libs.riak.serializers.Serializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
+import org.usrz.libs.riak.utils.ByteBufferOutputStream;
+import org.usrz.libs.riak.utils.ByteBufferPool;
+
+import com.ning.http.client.Body;
+import com.ning.http.client.BodyGenerator;
+
+/*
+ * Serializes a value into pooled buffers, released as they are sent.
+ *
+ * Jackson can not pause half way through a value, and the HTTP provider
+ * would spin its I/O thread on a body with nothing to read yet, so values
+ * are fully serialized when the body is created. Their length is therefore
+ * always known, and they are sent with a Content-Length, never chunked.
+ *
+ * Compressed values are gzipped as they are serialized, straight into the
+ * same pooled buffers, and the length known is the compressed one.
+ */
+public class AsyncSerializingGenerator implements BodyGenerator {
+
+    private final Serializer serializer;
+    private final ByteBufferPool pool;
+    private final Object value;
+    private final boolean compressed;
+    private final int level;
+    private volatile long contentLength = -1;
+
+    public AsyncSerializingGenerator(AsyncRiakClient client, Object value) {
+        this(client, client.getSerializerRegistry().getSerializer(SerializerRegistry.JSON), value);
+    }
+
+    public AsyncSerializingGenerator(AsyncRiakClient client, Serializer serializer, Object value) {
+        if (serializer == null) throw new NullPointerException("Null serializer");
+        this.serializer = serializer;
+        this.pool = client.getBufferPool();
+        this.value = value;
+        compressed = false;
+        level = Deflater.DEFAULT_COMPRESSION;
+    }
+
+    public AsyncSerializingGenerator(AsyncRiakClient client, Serializer serializer, Object value, int level) {
+        if (serializer == null) throw new NullPointerException("Null serializer");
+        if ((level < Deflater.DEFAULT_COMPRESSION) || (level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        this.serializer = serializer;
+        this.pool = client.getBufferPool();
+        this.value = value;
+        this.level = level;
+        compressed = true;
+    }
+
+    /* Known once the body was created, -1 until then */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public Body createBody()
+    throws IOException {
+
+        /* Write straight into pooled buffers, they're freed as they're sent */
+        final ByteBufferOutputStream output = new ByteBufferOutputStream(pool);
+        try {
+            if (compressed) {
+                try (final GzipOutputStream gzip = new GzipOutputStream(output, level)) {
+                    serializer.write(gzip, value);
+                }
+            } else {
+                serializer.write(output, value);
+            }
+            output.close();
+            contentLength = output.size();
+            return new BufferedBody(output);
+        } catch (IOException | RuntimeException | Error throwable) {
+            output.release();
+            throw throwable;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class GzipOutputStream extends GZIPOutputStream {
+
+        private GzipOutputStream(OutputStream output, int level)
+        throws IOException {
+            super(output);
+            /* Nothing was deflated yet, the level applies to all of it */
+            def.setLevel(level);
+        }
+    }
+
+    protected static class BufferedBody implements Body {
+
+        private final ByteBufferOutputStream output;
+        private final long length;
+
+        protected BufferedBody(ByteBufferOutputStream output) {
+            this.length = output.size();
+            this.output = output;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public long read(ByteBuffer buffer)
+        throws IOException {
+            if (output.isDrained()) return -1;
+            return output.drainTo(buffer);
+        }
+
+        @Override
+        public void close() {
+            output.release();
+        }
+    }
+
+}
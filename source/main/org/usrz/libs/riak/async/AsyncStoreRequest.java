@@ -21,11 +21,16 @@ import java.util.Map;
 import org.usrz.libs.riak.Bucket;
 import org.usrz.libs.riak.ContentHandler;
 import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.ResponseCache;
 import org.usrz.libs.riak.ResponseEvent;
 import org.usrz.libs.riak.ResponseFuture;
 import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.VectorClockCache;
+import org.usrz.libs.riak.metrics.Operation;
 import org.usrz.libs.riak.request.AbstractStoreRequest;
+import org.usrz.libs.riak.request.VectorClockMode;
 import org.usrz.libs.riak.response.VectorClockContentHandler;
+import org.usrz.libs.riak.serializers.BytesSerializer;
 import org.usrz.libs.utils.beans.Mapper;
 
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
@@ -35,6 +40,8 @@ public abstract class AsyncStoreRequest<T>
 extends AbstractStoreRequest<T>
 implements Mapper {
 
+    private static final EncodingPlan PLAN = new EncodingPlan(AsyncStoreRequest.class);
+
     private final AsyncRiakClient client;
 
     public AsyncStoreRequest(AsyncRiakClient client, Bucket bucket, T instance, ContentHandler<T> handler) {
@@ -47,18 +54,19 @@ implements Mapper {
         this.client = client;
     }
 
-    private BoundRequestBuilder prepare(BoundRequestBuilder builder, T instance) {
+    private BoundRequestBuilder prepare(BoundRequestBuilder builder, Bucket bucket, T instance)
+    throws IOException {
         final Map<String, ?> properties = mappedProperties();
 
-        /* Return body */
-        builder.addQueryParameter("returnbody", Boolean.toString(getReturnBody()));
+        /* Return body, but never download raw content we just sent */
+        final boolean returnBody = getReturnBody() && !BytesSerializer.isRaw(instance);
+        builder.addQueryParameter("returnbody", Boolean.toString(returnBody));
 
-        /* Append our body */
-        builder.setBody(new AsyncJsonGenerator(client, instance))
-               .addHeader("Content-Type", "application/json");
+        /* Append our body (possibly compressed) in the bucket's (or requested) format */
+        client.setBody(bucket, getContentType(), instance, builder);
 
         /* Instrument the rest of the request */
-        return client.instrument(properties,
+        return client.instrument(PLAN, properties,
                client.instrument(getIndexMap(),
                client.instrument(getLinksMap(),
                client.instrument(getMetadata(),
@@ -71,8 +79,8 @@ implements Mapper {
 
         final String location = bucket.getLocation() + "keys/";
         final BoundRequestBuilder builder = client.preparePost(location);
-        final Request request = prepare(builder, instance).build();
-        return client.execute(request, handler);
+        final Request request = prepare(builder, bucket, instance).build();
+        return client.execute(Operation.STORE, request, handler);
 
     }
 
@@ -80,15 +88,30 @@ implements Mapper {
     protected ResponseFuture<T> execute(final Key key, T instance, final ContentHandler<T> handler, String vectorClock)
     throws IOException {
 
+        /* Reuse the last vector clock we've seen for this key, if we can */
+        final VectorClockCache clocks = client.getVectorClockCache();
+        if ((vectorClock == null) && (clocks != null) && (getVectorClockMode() == VectorClockMode.CACHED)) {
+            vectorClock = clocks.get(key);
+        }
+
         final BoundRequestBuilder builder = client.preparePut(key.getLocation());
-        final Request request = prepare(builder, instance).build();
+        final Request request = prepare(builder, key.getBucket(), instance).build();
+
+        /* Whatever we had cached is about to be stale */
+        final ResponseCache cache = client.getResponseCache();
+        if (cache != null) cache.invalidate(key);
 
         /* Vector clock */
         if (vectorClock != null) {
 
             /* We have a vector clock, just do the PUT */
             request.getHeaders().replace("X-Riak-Vclock", vectorClock);
-            return client.execute(request, handler);
+            return client.execute(Operation.STORE, request, handler);
+
+        } else if (getVectorClockMode() == VectorClockMode.NONE) {
+
+            /* Blind write, no vector clock at all */
+            return client.execute(Operation.STORE, request, handler);
 
         } else {
 
@@ -111,7 +134,7 @@ implements Mapper {
                             /* Successful HEAD, initiate PUT */
                             final String vectorClock = event.getContent();
                             request.getHeaders().replace("X-Riak-Vclock", vectorClock);
-                            client.execute(request, handler)
+                            client.execute(Operation.STORE, request, handler)
                                   .addListener(new ResponseListener<T>() {
 
                                       @Override
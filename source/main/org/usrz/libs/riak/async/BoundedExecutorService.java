@@ -0,0 +1,87 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.usrz.libs.logging.Log;
+
+public class BoundedExecutorService extends ThreadPoolExecutor {
+
+    private static final AtomicInteger pools = new AtomicInteger();
+    private static final Log log = new Log();
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final int queueSize;
+
+    public BoundedExecutorService() {
+        this(Math.max(16, Runtime.getRuntime().availableProcessors() * 4), 4096);
+    }
+
+    public BoundedExecutorService(int threads, int queueSize) {
+        super(threads, threads, 60, SECONDS, new ArrayBlockingQueue<Runnable>(queueSize));
+        this.queueSize = queueSize;
+
+        final String prefix = "AsyncRiakClient-" + pools.incrementAndGet() + "-";
+        setThreadFactory(new ThreadFactory() {
+
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, prefix + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                final long count = rejected.incrementAndGet();
+                if (executor.isShutdown()) throw new RejectedExecutionException("Executor shut down");
+                log.warn("Task rejected, queue full at %d tasks (%d rejected so far)", BoundedExecutorService.this.queueSize, count);
+                throw new RejectedExecutionException("Executor queue full at " + BoundedExecutorService.this.queueSize + " tasks");
+            }
+        });
+
+        /* Idle threads go away, we don't want to keep them forever */
+        allowCoreThreadTimeOut(true);
+    }
+
+    /* ====================================================================== */
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+}
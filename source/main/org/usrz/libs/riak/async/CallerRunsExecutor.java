@@ -0,0 +1,57 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link Executor} running tasks on the calling thread whenever its
+ * delegate rejects them (say, a saturated {@link BoundedExecutorService}).
+ *
+ * <p>Listeners of response futures go through this: dropping one would
+ * leave every future chained to it waiting forever.</p>
+ *
+ * <p>Futures are often completed by Netty's I/O threads, so under rejection
+ * a listener might run on one of those, stalling every connection it serves
+ * until the listener returns. That is the lesser evil, but it should stay
+ * rare: size the executor so that {@link BoundedExecutorService#getRejectedCount()}
+ * stays at zero, or give the client a listener executor of its own.</p>
+ */
+public final class CallerRunsExecutor implements Executor {
+
+    private static final Log log = new Log();
+
+    private final Executor executor;
+
+    public CallerRunsExecutor(Executor executor) {
+        if (executor == null) throw new NullPointerException("Null executor");
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException exception) {
+            log.debug("Task rejected (%s), running it on the calling thread", exception.getMessage());
+            runnable.run();
+        }
+    }
+
+}
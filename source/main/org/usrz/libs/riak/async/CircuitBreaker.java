@@ -0,0 +1,145 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private volatile double failureRateThreshold = 0.5;
+    private volatile double slowRateThreshold = 0.5;
+    private volatile long slowCallThreshold = SECONDS.toNanos(5);
+    private volatile long window = SECONDS.toNanos(10);
+    private volatile long openInterval = SECONDS.toNanos(5);
+    private volatile int minimumRequests = 20;
+
+    private volatile State state = State.CLOSED;
+    private long windowStart = System.nanoTime();
+    private long openedAt;
+    private boolean probing;
+    private int requests;
+    private int failures;
+    private int slow;
+
+    protected CircuitBreaker() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    public CircuitBreaker setFailureRateThreshold(double threshold) {
+        if ((threshold <= 0) || (threshold > 1)) throw new IllegalArgumentException("Invalid failure rate threshold " + threshold);
+        failureRateThreshold = threshold;
+        return this;
+    }
+
+    public CircuitBreaker setSlowCallThreshold(long duration, TimeUnit unit, double rate) {
+        if (duration < 1) throw new IllegalArgumentException("Negative or zero slow call duration");
+        if ((rate <= 0) || (rate > 1)) throw new IllegalArgumentException("Invalid slow call rate threshold " + rate);
+        slowCallThreshold = unit.toNanos(duration);
+        slowRateThreshold = rate;
+        return this;
+    }
+
+    public CircuitBreaker setWindow(long window, TimeUnit unit, int minimumRequests) {
+        if (window < 1) throw new IllegalArgumentException("Negative or zero window");
+        if (minimumRequests < 1) throw new IllegalArgumentException("Negative or zero minimum requests");
+        this.window = unit.toNanos(window);
+        this.minimumRequests = minimumRequests;
+        return this;
+    }
+
+    public CircuitBreaker setOpenInterval(long interval, TimeUnit unit) {
+        if (interval < 1) throw new IllegalArgumentException("Negative or zero open interval");
+        openInterval = unit.toNanos(interval);
+        return this;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /* ====================================================================== */
+
+    /* Lock-free check for node selection, nothing changes state here */
+    protected boolean isAvailable() {
+        if (state == State.CLOSED) return true;
+        synchronized (this) {
+            if (state == State.CLOSED) return true;
+            return state == State.OPEN ? System.nanoTime() - openedAt >= openInterval : !probing;
+        }
+    }
+
+    protected synchronized boolean allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openInterval) return false;
+                state = State.HALF_OPEN;
+                probing = true;
+                return true;
+            default:
+                /* Half open, one probe at a time */
+                if (probing) return false;
+                probing = true;
+                return true;
+        }
+    }
+
+    protected synchronized void cancel() {
+        /* Allowed, but never sent: let someone else probe */
+        if (state == State.HALF_OPEN) probing = false;
+    }
+
+    protected synchronized void record(boolean failed, long nanos) {
+        final boolean slow = nanos >= slowCallThreshold;
+        final long now = System.nanoTime();
+
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failed || slow) open(now);
+            else close(now);
+            return;
+        }
+
+        /* Stragglers from before the circuit opened */
+        if (state == State.OPEN) return;
+
+        if (now - windowStart > window) close(now);
+        requests ++;
+        if (failed) failures ++;
+        if (slow) this.slow ++;
+
+        if ((requests >= minimumRequests) && ((failures >= failureRateThreshold * requests) ||
+                                              (this.slow >= slowRateThreshold * requests))) open(now);
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+    }
+
+    private void close(long now) {
+        state = State.CLOSED;
+        windowStart = now;
+        requests = failures = slow = 0;
+    }
+}
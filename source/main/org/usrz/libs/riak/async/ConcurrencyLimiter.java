@@ -0,0 +1,132 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * AIMD limit on in-flight requests: grows by one every "limit" successful
+ * requests, shrinks multiplicatively on failures or when the time to headers
+ * grows well beyond the best one seen (a sign of queueing on the node).
+ * Disabled by default: only counts requests until enabled.
+ */
+public class ConcurrencyLimiter {
+
+    private static final int MIN_RTT_RESET = 1000;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile boolean enabled = false;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 256;
+    private volatile double backoff = 0.9;
+    private volatile double tolerance = 2.0;
+    private volatile double limit = 32;
+
+    private long minRtt = Long.MAX_VALUE;
+    private int samples;
+
+    protected ConcurrencyLimiter() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    public ConcurrencyLimiter setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ConcurrencyLimiter setLimits(int initial, int min, int max) {
+        if (min < 1) throw new IllegalArgumentException("Negative or zero minimum limit");
+        if (max < min) throw new IllegalArgumentException("Maximum limit less than minimum");
+        if ((initial < min) || (initial > max)) throw new IllegalArgumentException("Initial limit out of range");
+        minLimit = min;
+        maxLimit = max;
+        limit = initial;
+        return this;
+    }
+
+    public ConcurrencyLimiter setBackoff(double backoff) {
+        if ((backoff <= 0) || (backoff >= 1)) throw new IllegalArgumentException("Invalid backoff ratio " + backoff);
+        this.backoff = backoff;
+        return this;
+    }
+
+    public ConcurrencyLimiter setRttTolerance(double tolerance) {
+        if (tolerance < 1) throw new IllegalArgumentException("Invalid RTT tolerance " + tolerance);
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /* ====================================================================== */
+
+    protected boolean hasCapacity() {
+        return (!enabled) || (inFlight.get() < (int) limit);
+    }
+
+    protected boolean tryAcquire() {
+        if (!enabled) {
+            inFlight.incrementAndGet();
+            return true;
+        }
+
+        for (int current = inFlight.get(); current < (int) limit; current = inFlight.get())
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        return false;
+    }
+
+    protected void release() {
+        inFlight.decrementAndGet();
+    }
+
+    protected void failed() {
+        if (!enabled) return;
+        synchronized (this) {
+            limit = Math.max(minLimit, limit * backoff);
+        }
+    }
+
+    protected void sample(long nanos) {
+        /* Time to headers only, bodies go as fast as whoever reads them */
+        if (!enabled) return;
+        synchronized (this) {
+            /* The best RTT goes stale as the cluster changes, reset it now and then */
+            if ((++ samples % MIN_RTT_RESET) == 0) minRtt = nanos;
+            else if (nanos < minRtt) minRtt = nanos;
+
+            final double current = limit;
+            if (nanos > minRtt * tolerance) {
+                limit = Math.max(minLimit, current * backoff);
+            } else if (inFlight.get() >= current / 2) {
+                /* Only grow when we're actually using what we have */
+                limit = Math.min(maxLimit, current + 1 / current);
+            }
+        }
+    }
+}
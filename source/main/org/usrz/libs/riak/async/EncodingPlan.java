@@ -0,0 +1,147 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.usrz.libs.riak.Quorum;
+import org.usrz.libs.riak.request.BasicQuorumRequest;
+import org.usrz.libs.riak.request.ConditionalRequest;
+import org.usrz.libs.riak.request.ReadQuorumRequest;
+import org.usrz.libs.riak.request.SiblingsRequest;
+import org.usrz.libs.riak.request.WriteQuorumRequest;
+
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.util.DateUtil;
+
+/**
+ * A precompiled plan translating the mapped properties of a request class
+ * into HTTP headers and query parameters.
+ *
+ * <p>Plans are built once per request class, from the request interfaces
+ * it implements, and only visit the properties actually set on a request.</p>
+ *
+ * <p>Requests have no fields to read those properties from: their setters
+ * are generated by a {@link org.usrz.libs.utils.beans.MapperBuilder} and
+ * store values in the map returned by {@code mappedProperties()}, which is
+ * therefore what plans walk.</p>
+ */
+public final class EncodingPlan {
+
+    private final Map<String, Step> steps = new HashMap<>();
+
+    public EncodingPlan(Class<?> type) {
+        if (type == null) throw new NullPointerException("Null request type");
+
+        if (ConditionalRequest.class.isAssignableFrom(type)) {
+            add("ifMatch",           true, "If-Match",            Format.STRING, true);
+            add("ifNoneMatch",       true, "If-None-Match",       Format.STRING, true);
+            add("ifModifiedSince",   true, "If-Modified-Since",   Format.DATE,   true);
+            add("ifUnmodifiedSince", true, "If-Unmodified-Since", Format.DATE,   true);
+        }
+
+        if (BasicQuorumRequest.class.isAssignableFrom(type)) {
+            add("basicQuorum", false, "basic_quorum", Format.BOOLEAN, false);
+        }
+
+        if (ReadQuorumRequest.class.isAssignableFrom(type)) {
+            add("readQuorum",        false, "r",  Format.QUORUM, false);
+            add("primaryReadQuorum", false, "pr", Format.QUORUM, false);
+        }
+
+        if (WriteQuorumRequest.class.isAssignableFrom(type)) {
+            add("writeQuorum",        false, "w",  Format.QUORUM, false);
+            add("primaryWriteQuorum", false, "pw", Format.QUORUM, false);
+            add("durableWriteQuorum", false, "dw", Format.QUORUM, false);
+        }
+
+        if (SiblingsRequest.class.isAssignableFrom(type)) {
+            add("sibling", false, "vtag", Format.STRING, true);
+        }
+    }
+
+    private void add(String property, boolean header, String name, Format format, boolean conditional) {
+        steps.put(property, new Step(header, name, format, conditional));
+    }
+
+    /* ====================================================================== */
+
+    public BoundRequestBuilder encode(Map<String, ?> properties, BoundRequestBuilder builder) {
+        if (properties.isEmpty()) return builder;
+
+        for (Entry<String, ?> entry: properties.entrySet()) {
+            final Object value = entry.getValue();
+            if (value == null) continue;
+
+            final Step step = steps.get(entry.getKey());
+            if (step == null) continue;
+
+            final String string = step.format.format(value);
+            if (step.header) builder.setHeader(step.name, string);
+            else builder.addQueryParameter(step.name, string);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Check whether any of the given properties makes the response depend
+     * on more than the key being requested (conditionals, siblings, ...).
+     */
+    public boolean isConditional(Map<String, ?> properties) {
+        if (properties.isEmpty()) return false;
+
+        for (Entry<String, ?> entry: properties.entrySet()) {
+            if (entry.getValue() == null) continue;
+            final Step step = steps.get(entry.getKey());
+            if ((step != null) && step.conditional) return true;
+        }
+        return false;
+    }
+
+    /* ====================================================================== */
+
+    private enum Format {
+        STRING, DATE, BOOLEAN, QUORUM;
+
+        private String format(Object value) {
+            switch (this) {
+                case DATE:    return DateUtil.formatDate((Date) value);
+                case BOOLEAN: return ((Boolean) value).toString();
+                case QUORUM:  return Quorum.getParameter(value);
+                default:      return (String) value;
+            }
+        }
+    }
+
+    private static final class Step {
+
+        private final boolean header;
+        private final String name;
+        private final Format format;
+        private final boolean conditional;
+
+        private Step(boolean header, String name, Format format, boolean conditional) {
+            this.header = header;
+            this.name = name;
+            this.format = format;
+            this.conditional = conditional;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.usrz.libs.riak.Index;
+import org.usrz.libs.riak.utils.RiakUtils;
+
+/**
+ * A cache of encoded <code>X-Riak-Index-*</code> and <code>X-Riak-Meta-*</code>
+ * header names, as the same few names recur on (nearly) every request.
+ */
+final class HeaderNames {
+
+    /* Beyond this many names we encode without remembering */
+    private static final int MAXIMUM_SIZE = 4096;
+
+    private static final ConcurrentMap<Index, String> INDEXES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, String> METADATA = new ConcurrentHashMap<>();
+
+    private HeaderNames() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    static String index(Index index) {
+        final String cached = INDEXES.get(index);
+        if (cached != null) return cached;
+
+        final String name = new StringBuilder("X-Riak-Index-")
+                                    .append(RiakUtils.encode(index.getName()))
+                                    .append(index.getType().getSuffix())
+                                    .toString();
+        if (INDEXES.size() < MAXIMUM_SIZE) INDEXES.putIfAbsent(index, name);
+        return name;
+    }
+
+    static String metadata(String field) {
+        final String cached = METADATA.get(field);
+        if (cached != null) return cached;
+
+        final String name = "X-Riak-Meta-" + RiakUtils.encode(field);
+        if (METADATA.size() < MAXIMUM_SIZE) METADATA.putIfAbsent(field, name);
+        return name;
+    }
+}
@@ -0,0 +1,111 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Future;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * Pause and resume reading a response from its connection, so that a slow
+ * consumer of streamed content never parks an I/O thread.
+ *
+ * <p>The HTTP client has no public API for this, so we reach for the Netty
+ * channel behind its future. With any other provider (or if the channel
+ * can not be found) pausing does nothing, and content simply queues up.</p>
+ */
+final class ReadThrottle {
+
+    private static final Log log = new Log();
+
+    private static final Method CHANNEL = method("com.ning.http.client.providers.netty.NettyResponseFuture", "channel");
+    private static final Method SET_READABLE = method("org.jboss.netty.channel.Channel", "setReadable", boolean.class);
+
+    private volatile Future<?> execution;
+    private Object paused = null;
+    private boolean finished = false;
+    private int balance = 0;
+
+    ReadThrottle() {
+        /* Nothing to do */
+    }
+
+    private static Method method(String className, String name, Class<?>... types) {
+        try {
+            final Method method = Class.forName(className, false, ReadThrottle.class.getClassLoader()).getDeclaredMethod(name, types);
+            method.setAccessible(true);
+            return method;
+        } catch (Exception | LinkageError exception) {
+            log.debug("Reads can not be paused, %s.%s() unavailable: %s", className, name, exception);
+            return null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    void attach(Future<?> execution) {
+        this.execution = execution;
+    }
+
+    synchronized void pause() {
+        /* A resume might overtake its pause, then they cancel out */
+        if (finished || (++ balance < 1)) return;
+
+        final Object channel = channel();
+        if ((channel != null) && readable(channel, false)) paused = channel;
+    }
+
+    synchronized void resume() {
+        if ((-- balance) < 1) release();
+    }
+
+    synchronized void finish() {
+        finished = true;
+        release();
+    }
+
+    /* ====================================================================== */
+
+    private void release() {
+        if (paused == null) return;
+        readable(paused, true);
+        paused = null;
+    }
+
+    private Object channel() {
+        final Future<?> execution = this.execution;
+        if ((CHANNEL == null) || (execution == null)) return null;
+        if (!CHANNEL.getDeclaringClass().isInstance(execution)) return null;
+        try {
+            return CHANNEL.invoke(execution);
+        } catch (Exception exception) {
+            log.debug("Unable to find the channel for %s: %s", execution, exception);
+            return null;
+        }
+    }
+
+    private static boolean readable(Object channel, boolean readable) {
+        if (SET_READABLE == null) return false;
+        try {
+            SET_READABLE.invoke(channel, readable);
+            return true;
+        } catch (Exception exception) {
+            log.debug("Unable to %s reading from %s: %s", readable ? "resume" : "pause", channel, exception);
+            return false;
+        }
+    }
+}
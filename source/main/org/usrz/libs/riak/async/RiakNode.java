@@ -0,0 +1,148 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RiakNode {
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong latency = new AtomicLong(-1);
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+    private volatile boolean healthy = true;
+    private final String url;
+
+    protected RiakNode(String url) {
+        if (url == null) throw new NullPointerException("Null URL");
+
+        final URI uri = URI.create(url.trim());
+        final String scheme = uri.getScheme();
+        if (!("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)))
+            throw new IllegalArgumentException("Invalid scheme for node URL " + url);
+        if (uri.getHost() == null)
+            throw new IllegalArgumentException("No host in node URL " + url);
+
+        /* Normalize to "scheme://host:port/path", locations always start with "/" */
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        while (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        this.url = scheme.toLowerCase() + "://" + uri.getRawAuthority() + path;
+    }
+
+    /* ====================================================================== */
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getUrl(String location) {
+        return url + location;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public boolean isAvailable() {
+        return healthy && circuitBreaker.isAvailable() && limiter.hasCapacity();
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /* Smoothed time to headers in nanoseconds, or -1 if never measured */
+    public long getLatency() {
+        return latency.get();
+    }
+
+    /* ====================================================================== */
+
+    protected void acquire()
+    throws NodeUnavailableException {
+        if (!limiter.tryAcquire())
+            throw new NodeUnavailableException(this, "Node " + url + " reached its limit of " + limiter.getLimit() + " concurrent requests");
+        if (!circuitBreaker.allow()) {
+            limiter.release();
+            throw new NodeUnavailableException(this, "Circuit breaker for node " + url + " is " + circuitBreaker.getState().name().toLowerCase());
+        }
+        outstanding.incrementAndGet();
+    }
+
+    protected int end(boolean failed) {
+        return end(failed, -1);
+    }
+
+    protected int end(boolean failed, long nanos) {
+        outstanding.decrementAndGet();
+        limiter.release();
+        if (failed) limiter.failed();
+        if (nanos >= 0) circuitBreaker.record(failed, nanos);
+        else circuitBreaker.cancel();
+
+        if (failed) return failures.incrementAndGet();
+        failures.set(0);
+        return 0;
+    }
+
+    protected void cancel() {
+        /* Neither a success nor a failure, only the slot is released */
+        outstanding.decrementAndGet();
+        limiter.release();
+        circuitBreaker.cancel();
+    }
+
+    protected void record(long nanos) {
+        limiter.sample(nanos);
+
+        /* Exponentially weighted, each sample counts for 1/8th (like TCP's RTT) */
+        for (long current = latency.get(); ; current = latency.get()) {
+            final long updated = current < 0 ? nanos : current + ((nanos - current) >> 3);
+            if (latency.compareAndSet(current, updated)) return;
+        }
+    }
+
+    protected boolean admit() {
+        failures.set(0);
+        if (healthy) return false;
+        healthy = true;
+        return true;
+    }
+
+    protected boolean eject() {
+        if (!healthy) return false;
+        healthy = false;
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[" + url + (healthy ? "" : ",ejected") + "]@" + Integer.toHexString(hashCode());
+    }
+}
@@ -0,0 +1,258 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.usrz.libs.logging.Log;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+
+public class RiakNodePool implements Closeable {
+
+    public enum Selection { ROUND_ROBIN, LEAST_OUTSTANDING, LEAST_LATENCY }
+
+    private static final Log log = new Log();
+
+    private final AtomicInteger counter = new AtomicInteger();
+    private final Selection selection;
+    private final RiakNode[] nodes;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> healthCheck;
+    private AsyncHttpClient client;
+    private long healthCheckInterval = SECONDS.toMillis(5);
+    private int maxFailures = 3;
+
+    public RiakNodePool(String... urls) {
+        this(Selection.ROUND_ROBIN, Arrays.asList(urls));
+    }
+
+    public RiakNodePool(Selection selection, String... urls) {
+        this(selection, Arrays.asList(urls));
+    }
+
+    public RiakNodePool(Selection selection, Collection<String> urls) {
+        if (selection == null) throw new NullPointerException("Null selection");
+        if (urls == null) throw new NullPointerException("Null URLs");
+        if (urls.isEmpty()) throw new IllegalArgumentException("No node URLs specified");
+
+        final List<RiakNode> nodes = new ArrayList<>(urls.size());
+        for (String url: urls) nodes.add(new RiakNode(url));
+        this.nodes = nodes.toArray(new RiakNode[nodes.size()]);
+        this.selection = selection;
+    }
+
+    /* ====================================================================== */
+
+    public synchronized RiakNodePool setHealthCheckInterval(long interval, TimeUnit unit) {
+        if (interval < 1) throw new IllegalArgumentException("Negative or zero health check interval");
+        healthCheckInterval = unit.toMillis(interval);
+        if (scheduler != null) schedule();
+        return this;
+    }
+
+    public RiakNodePool setMaxFailures(int maxFailures) {
+        if (maxFailures < 1) throw new IllegalArgumentException("Negative or zero maximum failures");
+        this.maxFailures = maxFailures;
+        return this;
+    }
+
+    public RiakNodePool setConcurrencyLimiting(boolean enabled) {
+        for (RiakNode node: nodes) node.getConcurrencyLimiter().setEnabled(enabled);
+        return this;
+    }
+
+    public List<RiakNode> getNodes() {
+        return Collections.unmodifiableList(Arrays.asList(nodes));
+    }
+
+    /* ====================================================================== */
+
+    public RiakNode select() {
+        /* Single node, nothing to balance */
+        if (nodes.length == 1) return nodes[0];
+
+        /* All nodes ejected? Rather than failing, try them all in turn */
+        final RiakNode selected = select(null);
+        return selected != null ? selected : nodes[(counter.getAndIncrement() & Integer.MAX_VALUE) % nodes.length];
+    }
+
+    public RiakNode select(RiakNode excluded) {
+        final int offset = counter.getAndIncrement() & Integer.MAX_VALUE;
+        RiakNode selected = null;
+        long score = Long.MAX_VALUE;
+
+        for (int x = 0; x < nodes.length; x ++) {
+            final RiakNode node = nodes[(offset + x) % nodes.length];
+            if ((!node.isAvailable()) || (node == excluded)) continue;
+            if (selection == Selection.ROUND_ROBIN) return node;
+
+            /* Unmeasured nodes look fast, so that they get measured */
+            final long current = selection == Selection.LEAST_OUTSTANDING ? node.getOutstanding() :
+                                 Math.max(node.getLatency(), 0) * (node.getOutstanding() + 1);
+            if (current < score) {
+                selected = node;
+                score = current;
+            }
+        }
+        return selected;
+    }
+
+    public RiakNode getNode(String url) {
+        if (url != null) for (RiakNode node: nodes) {
+            final String prefix = node.getUrl();
+            if (url.startsWith(prefix) && (url.length() == prefix.length() || url.charAt(prefix.length()) == '/'))
+                return node;
+        }
+        return null;
+    }
+
+    /* ====================================================================== */
+
+    protected void record(RiakNode node, long nanos) {
+        node.record(nanos);
+    }
+
+    protected void acquire(RiakNode node)
+    throws NodeUnavailableException {
+        node.acquire();
+    }
+
+    protected void end(RiakNode node, boolean failed) {
+        end(node, failed, -1);
+    }
+
+    protected void end(RiakNode node, boolean failed, long nanos) {
+        if ((node.end(failed, nanos) >= maxFailures) && node.eject())
+            log.warn("Node %s ejected after %d consecutive failures", node.getUrl(), maxFailures);
+    }
+
+    protected void cancel(RiakNode node) {
+        node.cancel();
+    }
+
+    /* ====================================================================== */
+
+    /* Health checks go through the HTTP client of the first caller; as that
+     * client might be closed while we're still running, a pool can be shared
+     * among several Riak clients only if they all use the same HTTP client */
+    protected synchronized void start(final AsyncHttpClient client) {
+        if (client == null) throw new NullPointerException("Null client");
+
+        /* Already running? */
+        if (scheduler != null) {
+            if (client == this.client) return;
+            throw new IllegalStateException("Node pool already started with a different HTTP client");
+        }
+
+        this.client = client;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "RiakNodePool-HealthCheck");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedule();
+    }
+
+    private void schedule() {
+        /* Called with a new interval, replace any previous schedule */
+        if (healthCheck != null) healthCheck.cancel(false);
+
+        final AsyncHttpClient client = this.client;
+        healthCheck = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (RiakNode node: nodes) try {
+                    client.prepareGet(node.getUrl("/ping")).execute(new HealthCheck(node));
+                } catch (Throwable throwable) {
+                    log.error(throwable, "Unable to schedule health check for %s", node.getUrl());
+                }
+            }
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+        healthCheck = null;
+        scheduler = null;
+        client = null;
+    }
+
+    /* ====================================================================== */
+
+    private final class HealthCheck implements AsyncHandler<Boolean> {
+
+        private final RiakNode node;
+        private int status = -1;
+
+        private HealthCheck(RiakNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus status) {
+            this.status = status.getStatusCode();
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders headers) {
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) {
+            return STATE.CONTINUE;
+        }
+
+        @Override
+        public Boolean onCompleted() {
+            if (status == 200) {
+                if (node.admit()) log.info("Node %s re-admitted after successful health check", node.getUrl());
+                return true;
+            }
+            if (node.eject()) log.warn("Node %s ejected, health check returned status %d", node.getUrl(), status);
+            return false;
+        }
+
+        @Override
+        public void onThrowable(Throwable throwable) {
+            if (node.eject()) log.warn("Node %s ejected, health check failed: %s", node.getUrl(), throwable.getMessage());
+        }
+    }
+}
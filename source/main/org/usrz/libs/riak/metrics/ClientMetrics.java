@@ -0,0 +1,51 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+public class ClientMetrics {
+
+    private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+
+    public ClientMetrics() {
+        /* Populated once, read concurrently without locks after that */
+        for (Operation operation: Operation.values())
+            operations.put(operation, new OperationMetrics(operation));
+    }
+
+    /* ====================================================================== */
+
+    public MetricsSample begin(Operation operation) {
+        if (operation == null) throw new NullPointerException("Null operation");
+        return new MetricsSample(operations.get(operation));
+    }
+
+    public OperationMetrics.Snapshot getSnapshot(Operation operation) {
+        if (operation == null) throw new NullPointerException("Null operation");
+        return operations.get(operation).getSnapshot();
+    }
+
+    public Map<Operation, OperationMetrics.Snapshot> getSnapshot() {
+        final Map<Operation, OperationMetrics.Snapshot> snapshot = new EnumMap<>(Operation.class);
+        for (OperationMetrics metrics: operations.values())
+            snapshot.put(metrics.getOperation(), metrics.getSnapshot());
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+}
@@ -0,0 +1,122 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A lock-free log-linear histogram of microseconds: values up to 15 are
+ * exact, above that each power of two is split in 8 buckets (12.5% error).
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    static int index(long value) {
+        if (value < (SUB_COUNT << 1)) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < (SUB_COUNT << 1)) return index;
+        final int shift = (index / SUB_COUNT) - 1;
+        final long lower = (long) (SUB_COUNT + (index % SUB_COUNT)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /* ====================================================================== */
+
+    public void record(long nanos) {
+        final long micros = nanos < 0 ? 0 : nanos / 1000;
+        counts.incrementAndGet(index(micros));
+        sum.add(micros);
+
+        /* Only ever contended by new maximums, which are rare */
+        for (long current = max.get(); micros > current; current = max.get())
+            if (max.compareAndSet(current, micros)) break;
+    }
+
+    public Snapshot getSnapshot() {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int x = 0; x < BUCKETS; x ++) total += (snapshot[x] = counts.get(x));
+        return new Snapshot(snapshot, total, sum.sum(), max.get());
+    }
+
+    /* ====================================================================== */
+
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public long getPercentile(double percentile) {
+            if ((percentile < 0) || (percentile > 100)) throw new IllegalArgumentException("Invalid percentile " + percentile);
+            if (count == 0) return 0;
+
+            final long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int x = 0; x < counts.length; x ++) {
+                seen += counts[x];
+                if (seen >= target) return Math.min(upperBound(x), max);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ",mean=" + getMean() + "us,p50=" + getPercentile(50)
+                 + "us,p99=" + getPercentile(99) + "us,max=" + max + "us";
+        }
+    }
+}
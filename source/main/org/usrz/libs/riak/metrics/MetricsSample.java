@@ -0,0 +1,68 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Timings of a single request, from submission to decoded object */
+public class MetricsSample {
+
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final OperationMetrics metrics;
+    private final long started;
+
+    MetricsSample(OperationMetrics metrics) {
+        this.metrics = metrics;
+        started = System.nanoTime();
+        metrics.started();
+    }
+
+    public Operation getOperation() {
+        return metrics.getOperation();
+    }
+
+    public long getElapsed() {
+        return System.nanoTime() - started;
+    }
+
+    /* ====================================================================== */
+
+    public void headers(int status) {
+        metrics.headers(status, System.nanoTime() - started);
+    }
+
+    public void received(long bytes) {
+        if (bytes > 0) metrics.received(bytes);
+    }
+
+    public void sent(long bytes) {
+        if (bytes > 0) metrics.sent(bytes);
+    }
+
+    public void completed() {
+        if (done.compareAndSet(false, true)) metrics.completed(System.nanoTime() - started);
+    }
+
+    public void failed() {
+        if (done.compareAndSet(false, true)) metrics.failed();
+    }
+
+    /* Not a failure, nobody wanted the response anymore */
+    public void cancelled() {
+        if (done.compareAndSet(false, true)) metrics.cancelled();
+    }
+
+}
@@ -0,0 +1,174 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class OperationMetrics {
+
+    private final LatencyHistogram headers = new LatencyHistogram();
+    private final LatencyHistogram decoded = new LatencyHistogram();
+    private final AtomicLongArray statuses = new AtomicLongArray(600);
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Operation operation;
+
+    protected OperationMetrics(Operation operation) {
+        if (operation == null) throw new NullPointerException("Null operation");
+        this.operation = operation;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /* ====================================================================== */
+
+    void started() {
+        started.increment();
+        inFlight.increment();
+    }
+
+    void headers(int status, long nanos) {
+        if ((status >= 0) && (status < 600)) statuses.incrementAndGet(status);
+        headers.record(nanos);
+    }
+
+    void completed(long nanos) {
+        decoded.record(nanos);
+        completed.increment();
+        inFlight.decrement();
+    }
+
+    void failed() {
+        failed.increment();
+        inFlight.decrement();
+    }
+
+    void cancelled() {
+        cancelled.increment();
+        inFlight.decrement();
+    }
+
+    void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /* ====================================================================== */
+
+    public Snapshot getSnapshot() {
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        for (int x = 0; x < this.statuses.length(); x ++) {
+            final long count = this.statuses.get(x);
+            if (count > 0) statuses.put(x, count);
+        }
+
+        return new Snapshot(this, statuses);
+    }
+
+    public static final class Snapshot {
+
+        private final Operation operation;
+        private final long started;
+        private final long completed;
+        private final long failed;
+        private final long cancelled;
+        private final long inFlight;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final Map<Integer, Long> statuses;
+        private final LatencyHistogram.Snapshot headers;
+        private final LatencyHistogram.Snapshot decoded;
+
+        private Snapshot(OperationMetrics metrics, Map<Integer, Long> statuses) {
+            operation = metrics.operation;
+            started = metrics.started.sum();
+            completed = metrics.completed.sum();
+            failed = metrics.failed.sum();
+            cancelled = metrics.cancelled.sum();
+            inFlight = metrics.inFlight.sum();
+            bytesIn = metrics.bytesIn.sum();
+            bytesOut = metrics.bytesOut.sum();
+            headers = metrics.headers.getSnapshot();
+            decoded = metrics.decoded.getSnapshot();
+            this.statuses = Collections.unmodifiableMap(statuses);
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getCancelled() {
+            return cancelled;
+        }
+
+        public long getInFlight() {
+            return inFlight;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public Map<Integer, Long> getStatuses() {
+            return statuses;
+        }
+
+        public LatencyHistogram.Snapshot getTimeToHeaders() {
+            return headers;
+        }
+
+        public LatencyHistogram.Snapshot getTimeToObject() {
+            return decoded;
+        }
+
+        @Override
+        public String toString() {
+            return operation + "[started=" + started + ",completed=" + completed + ",failed=" + failed
+                 + ",cancelled=" + cancelled + ",inFlight=" + inFlight + ",bytesIn=" + bytesIn + ",bytesOut=" + bytesOut
+                 + ",statuses=" + statuses + ",headers={" + headers + "},object={" + decoded + "}]";
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.usrz.libs.logging.Log;
+
+class PbcConnection {
+
+    /* Riak refuses objects over 50 MiB by default, leave room for siblings */
+    static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    /* What we read into normally, grown (and then shrunk) for larger frames */
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final Log log = new Log();
+
+    /* Exchanges waiting for responses, Riak answers them in order */
+    private final Deque<PbcExchange> pending = new ArrayDeque<>();
+    private final Deque<ByteBuffer> writes = new ArrayDeque<>();
+    private final InetSocketAddress address;
+    private final SocketChannel channel;
+    private final PbcTransport transport;
+
+    private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+    private SelectionKey key;
+    private boolean closed;
+
+    PbcConnection(PbcTransport transport, InetSocketAddress address)
+    throws IOException {
+        this.transport = transport;
+        this.address = address;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        channel.connect(address);
+    }
+
+    /* ====================================================================== */
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /* Returns true if the transport needs to update our interest ops */
+    boolean send(PbcExchange exchange) {
+        synchronized (this) {
+            if (!closed) {
+                pending.add(exchange);
+                writes.add(exchange.getFrame());
+                return true;
+            }
+        }
+        exchange.failed(new IOException("Connection to " + address + " closed"));
+        return false;
+    }
+
+    /* ====================================================================== */
+
+    boolean isRegistered() {
+        return key != null;
+    }
+
+    void register(Selector selector)
+    throws IOException {
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+
+    void update() {
+        if ((key == null) || (!key.isValid())) return;
+        if (!channel.isConnected()) return;
+        synchronized (this) {
+            key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void ready() {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                log.debug("Connected to Riak node at %s", address);
+                update();
+            }
+            if (key.isValid() && key.isWritable()) write();
+            if (key.isValid() && key.isReadable()) read();
+        } catch (Throwable throwable) {
+            close(throwable);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private void write()
+    throws IOException {
+        synchronized (this) {
+            while (!writes.isEmpty()) {
+                final ByteBuffer buffer = writes.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) return;
+                writes.poll();
+            }
+        }
+        update();
+    }
+
+    private void read()
+    throws Exception {
+        if (channel.read(input) < 0) throw new EOFException("Connection closed by " + address);
+
+        /* Process all the complete frames we have */
+        input.flip();
+        while (input.remaining() >= 4) {
+            final int length = input.getInt(input.position());
+            if (length < 1) throw new IOException("Invalid frame length " + length + " from " + address);
+            if (length > transport.getMaxFrameSize()) {
+                /* Our own limit, the node did nothing wrong */
+                final IOException exception = new IOException("Frame of " + length + " bytes from " + address + " exceeds the maximum of " + transport.getMaxFrameSize());
+                close(exception, false);
+                throw exception;
+            }
+
+            if (input.remaining() < length + 4) {
+                /* Frame bigger than our buffer? Grow it */
+                if (length + 4 > input.capacity()) {
+                    final ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+                    buffer.put(input);
+                    input = buffer;
+                    return;
+                }
+                break;
+            }
+
+            final int position = input.position();
+            final int code = input.get(position + 4) & 0xFF;
+            final ProtobufReader reader = new ProtobufReader(input.array(), input.arrayOffset() + position + 5, length - 1);
+            input.position(position + length + 4);
+            dispatch(code, reader);
+        }
+
+        /* Back to our normal size once a large frame is gone */
+        if ((input.capacity() > BUFFER_SIZE) && (input.remaining() <= BUFFER_SIZE)) {
+            input = ByteBuffer.allocate(BUFFER_SIZE).put(input);
+        } else {
+            input.compact();
+        }
+    }
+
+    private void dispatch(int code, ProtobufReader reader)
+    throws IOException {
+        final PbcExchange exchange;
+        synchronized (this) {
+            exchange = pending.peek();
+        }
+        if (exchange == null) throw new IOException("Unexpected message " + code + " from " + address);
+
+        boolean done = true;
+        try {
+            if (code == 0) {
+                /* RpbErrorResp: errmsg = 1, errcode = 2 */
+                String message = null;
+                int errorCode = 0;
+                for (int field = reader.next(); field != 0; field = reader.next()) {
+                    if (field == 1) message = reader.readString();
+                    else if (field == 2) errorCode = reader.readUnsigned();
+                    else reader.skip();
+                }
+                exchange.failed(new PbcException(message, errorCode));
+            } else {
+                done = exchange.message(code, reader);
+            }
+        } catch (Throwable throwable) {
+            /*
+             * We can't tell how many more frames this exchange would have
+             * received, and if we just moved on they'd go to the next one:
+             * close this connection (failing the others), then fail it.
+             */
+            synchronized (this) {
+                pending.poll();
+            }
+            final IOException exception = new IOException("Exchange failed processing message " + code + " from " + address, throwable);
+            close(exception, false);
+            exchange.failed(throwable);
+            throw exception;
+        }
+
+        /* Whatever it said, the node answered */
+        transport.succeeded(address);
+        if (done) synchronized (this) {
+            pending.poll();
+        }
+    }
+
+    /* ====================================================================== */
+
+    void close(Throwable cause) {
+        close(cause, true);
+    }
+
+    /* Our failures processing messages are no reason to back off the node */
+    private void close(Throwable cause, boolean nodeFailed) {
+        final List<PbcExchange> failed;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            failed = new ArrayList<>(pending);
+            pending.clear();
+            writes.clear();
+        }
+
+        /* An idle connection the node let go of is no failure, not connecting is */
+        if (cause != null) {
+            log.warn("Connection to Riak node at %s failed: %s", address, cause);
+            if (nodeFailed && ((!failed.isEmpty()) || (!channel.isConnected()))) transport.failed(address);
+        }
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException exception) {
+            log.debug("Exception closing connection to %s: %s", address, exception);
+        }
+
+        final IOException exception = cause instanceof IOException ? (IOException) cause :
+                                      new IOException("Connection to " + address + " closed", cause);
+        for (PbcExchange exchange: failed) exchange.failed(exception);
+    }
+}
@@ -0,0 +1,148 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.usrz.libs.riak.Index;
+import org.usrz.libs.riak.IndexMap;
+import org.usrz.libs.riak.IndexMapBuilder;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.LinksMap;
+import org.usrz.libs.riak.LinksMapBuilder;
+import org.usrz.libs.riak.Metadata;
+import org.usrz.libs.riak.MetadataBuilder;
+import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.riak.utils.GzipDecoder;
+
+/* A decoded "RpbContent" message */
+class PbcContent {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final LinksMapBuilder links;
+    final IndexMapBuilder indexes = new IndexMapBuilder();
+    final MetadataBuilder metadata = new MetadataBuilder();
+
+    byte[] value = EMPTY;
+    String contentType;
+    String contentEncoding;
+    String vtag;
+    Date lastModified;
+    boolean deleted;
+
+    private PbcContent(RiakClient client) {
+        links = new LinksMapBuilder(client);
+    }
+
+    static PbcContent read(RiakClient client, ProtobufReader reader)
+    throws IOException {
+        final PbcContent content = new PbcContent(client);
+        long seconds = -1, micros = 0;
+
+        for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+            case 1:  content.value = reader.readBytes(); break;
+            case 2:  content.contentType = reader.readString(); break;
+            case 4:  content.contentEncoding = reader.readString(); break;
+            case 5:  content.vtag = reader.readString(); break;
+            case 6:  content.readLink(reader.readMessage()); break;
+            case 7:  seconds = reader.readVarint() & 0xFFFFFFFFL; break;
+            case 8:  micros = reader.readVarint() & 0xFFFFFFFFL; break;
+            case 9:  content.readPair(reader.readMessage(), false); break;
+            case 10: content.readPair(reader.readMessage(), true); break;
+            case 11: content.deleted = reader.readBoolean(); break;
+            default: reader.skip(); /* charset, ... */
+        }
+
+        if (seconds >= 0) content.lastModified = new Date(seconds * 1000 + micros / 1000);
+        return content;
+    }
+
+    /* Our value, inflated if it was stored compressed: never on the transport thread */
+    ByteBuffer decode()
+    throws IOException {
+        if ((contentEncoding == null) || (!"gzip".equalsIgnoreCase(contentEncoding.trim()))) return ByteBuffer.wrap(value);
+
+        final GzipDecoder decoder = new GzipDecoder();
+        try {
+            final ByteBuffer decoded = decoder.decode(ByteBuffer.wrap(value));
+            decoder.finish();
+            return decoded;
+        } finally {
+            decoder.close();
+        }
+    }
+
+    private void readLink(ProtobufReader reader)
+    throws IOException {
+        String bucket = null, key = null, tag = null;
+        for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+            case 1:  bucket = reader.readString(); break;
+            case 2:  key = reader.readString(); break;
+            case 3:  tag = reader.readString(); break;
+            default: reader.skip();
+        }
+        if ((bucket != null) && (key != null) && (tag != null)) links.add(tag, bucket, key);
+    }
+
+    private void readPair(ProtobufReader reader, boolean index)
+    throws IOException {
+        String key = null, value = null;
+        for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+            case 1:  key = reader.readString(); break;
+            case 2:  value = reader.readString(); break;
+            default: reader.skip();
+        }
+        if ((key == null) || (value == null)) return;
+        if (index) indexes.add(new Index(key), value);
+        else metadata.add(key, value);
+    }
+
+    /* ====================================================================== */
+
+    static ProtobufWriter write(byte[] value, String contentType, LinksMap links, IndexMap indexes, Metadata metadata) {
+        final ProtobufWriter writer = new ProtobufWriter(value.length + 64)
+                                            .writeBytes(1, value)
+                                            .writeString(2, contentType);
+
+        for (Entry<String, Set<Key>> entry: links.entrySet())
+            for (Key key: entry.getValue())
+                writer.writeMessage(6, new ProtobufWriter()
+                                            .writeString(1, key.getBucketName())
+                                            .writeString(2, key.getName())
+                                            .writeString(3, entry.getKey()));
+
+        for (Entry<String, Set<String>> entry: metadata.entrySet())
+            for (String string: entry.getValue())
+                writer.writeMessage(9, pair(entry.getKey(), string));
+
+        for (Entry<Index, Set<String>> entry: indexes.entrySet()) {
+            final Index index = entry.getKey();
+            for (String string: entry.getValue())
+                writer.writeMessage(10, pair(index.getName() + index.getType().getSuffix(), string));
+        }
+
+        return writer;
+    }
+
+    private static ProtobufWriter pair(String key, String value) {
+        return new ProtobufWriter().writeString(1, key).writeString(2, value);
+    }
+}
@@ -0,0 +1,79 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.VectorClockCache;
+import org.usrz.libs.riak.request.AbstractDeleteRequest;
+import org.usrz.libs.riak.response.SuccessContentHandler;
+import org.usrz.libs.utils.beans.Mapper;
+
+public abstract class PbcDeleteRequest
+extends AbstractDeleteRequest
+implements Mapper {
+
+    private final PbcRiakClient client;
+
+    public PbcDeleteRequest(PbcRiakClient client, Key key) {
+        super(key);
+        this.client = client;
+    }
+
+    @Override
+    protected ResponseFuture<Boolean> execute(final Key key)
+    throws IOException {
+        final Map<String, ?> properties = mappedProperties();
+
+        /* RpbDelReq, a known vector clock avoids resurrecting siblings */
+        final ProtobufWriter message = new ProtobufWriter()
+                        .writeString(1, key.getBucketName())
+                        .writeString(2, key.getName());
+        final VectorClockCache clocks = client.getVectorClockCache();
+        final String vectorClock = clocks == null ? null : clocks.get(key);
+        if (vectorClock != null) message.writeBytes(4, PbcRiakClient.decodeVectorClock(vectorClock));
+        client.quorum(properties, "readQuorum", message, 5);
+        client.quorum(properties, "writeQuorum", message, 6);
+        client.quorum(properties, "primaryReadQuorum", message, 7);
+        client.quorum(properties, "primaryWriteQuorum", message, 8);
+        client.quorum(properties, "durableWriteQuorum", message, 9);
+
+        final PbcResponseFuture<Boolean> future = new PbcResponseFuture<>(client);
+        client.send(new PbcExchange(message, PbcRiakClient.DEL_REQ) {
+
+            @Override
+            protected boolean message(int code, ProtobufReader reader)
+            throws IOException {
+                if (code != PbcRiakClient.DEL_RESP) throw new IOException("Unexpected message " + code + " deleting " + key.getLocation());
+
+                /* Riak doesn't tell us whether something was there */
+                client.remember(key, null, 204);
+                client.deliver(new PbcPartialResponse<Boolean>(client, key, 204, null, null), null, new SuccessContentHandler(), future);
+                return true;
+            }
+
+            @Override
+            protected void failed(Throwable throwable) {
+                future.fail(throwable);
+            }
+        });
+        return future;
+    }
+
+}
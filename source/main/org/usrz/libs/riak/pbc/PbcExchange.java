@@ -0,0 +1,43 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.nio.ByteBuffer;
+
+public abstract class PbcExchange {
+
+    private final ByteBuffer frame;
+
+    protected PbcExchange(ProtobufWriter message, int code) {
+        if (message == null) throw new NullPointerException("Null message");
+        frame = message.toFrame(code);
+    }
+
+    protected final ByteBuffer getFrame() {
+        return frame;
+    }
+
+    /*
+     * Called on the transport thread for each message received: readers
+     * are only valid for the duration of the call, and this must never
+     * block. Returns true when the exchange is complete.
+     */
+    protected abstract boolean message(int code, ProtobufReader reader)
+    throws Exception;
+
+    protected abstract void failed(Throwable throwable);
+
+}
@@ -0,0 +1,103 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.usrz.libs.riak.ContentHandler;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.request.AbstractFetchRequest;
+import org.usrz.libs.utils.beans.Mapper;
+
+public abstract class PbcFetchRequest<T>
+extends AbstractFetchRequest<T>
+implements Mapper {
+
+    private final PbcRiakClient client;
+
+    public PbcFetchRequest(PbcRiakClient client, Key key, ContentHandler<T> handler) {
+        super(key, handler);
+        this.client = client;
+    }
+
+    @Override
+    protected ResponseFuture<T> execute(final Key key, final ContentHandler<T> handler)
+    throws IOException {
+        final Map<String, ?> properties = mappedProperties();
+        final String sibling = (String) properties.get("sibling");
+
+        /* RpbGetReq, conditional headers have no equivalent here */
+        final ProtobufWriter message = new ProtobufWriter()
+                        .writeString(1, key.getBucketName())
+                        .writeString(2, key.getName());
+        client.quorum(properties, "readQuorum", message, 3);
+        client.quorum(properties, "primaryReadQuorum", message, 4);
+        if (properties.containsKey("basicQuorum")) message.writeBoolean(5, (Boolean) properties.get("basicQuorum"));
+        if (!getReturnBody()) message.writeBoolean(8, true);
+
+        final PbcResponseFuture<T> future = new PbcResponseFuture<>(client);
+        client.send(new PbcExchange(message, PbcRiakClient.GET_REQ) {
+
+            @Override
+            protected boolean message(int code, ProtobufReader reader)
+            throws IOException {
+                if (code != PbcRiakClient.GET_RESP) throw new IOException("Unexpected message " + code + " fetching " + key.getLocation());
+
+                /* RpbGetResp: content = 1, vclock = 2, unchanged = 3 */
+                final List<PbcContent> contents = new ArrayList<>();
+                String vectorClock = null;
+                boolean unchanged = false;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 1:  contents.add(PbcContent.read(client, reader.readMessage())); break;
+                    case 2:  vectorClock = PbcRiakClient.encodeVectorClock(reader.readBytes()); break;
+                    case 3:  unchanged = reader.readBoolean(); break;
+                    default: reader.skip();
+                }
+
+                /* Tombstones and siblings we didn't ask for are not there */
+                final List<PbcContent> live = new ArrayList<>();
+                for (PbcContent content: contents)
+                    if ((!content.deleted) && ((sibling == null) || sibling.equals(content.vtag))) live.add(content);
+
+                final int status = unchanged ? 304 :
+                                   live.isEmpty() ? 404 :
+                                   live.size() > 1 ? 300 :
+                                       200;
+                final PbcContent content = status == 200 ? live.get(0) : null;
+                client.remember(key, vectorClock, status);
+
+                if (status == 300) {
+                    client.siblings(key, vectorClock, live, handler, future);
+                } else {
+                    final PbcPartialResponse<T> partial = new PbcPartialResponse<>(client, key, status, vectorClock, content);
+                    client.deliver(partial, content, handler, future);
+                }
+                return true;
+            }
+
+            @Override
+            protected void failed(Throwable throwable) {
+                future.fail(throwable);
+            }
+        });
+
+        return future;
+    }
+}
@@ -0,0 +1,78 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.util.Date;
+
+import org.usrz.libs.riak.AbstractPartialResponse;
+import org.usrz.libs.riak.Key;
+
+public class PbcPartialResponse<T> extends AbstractPartialResponse<T> {
+
+    private final String vectorClock;
+    private final Date lastModified;
+    private final String contentType;
+    private final String eTag;
+    private final String location;
+    private final Key key;
+
+    PbcPartialResponse(PbcRiakClient client, Key key, int status, String vectorClock, PbcContent content) {
+        super(client,
+              content == null ? null : content.links.build(),
+              content == null ? null : content.indexes.build(),
+              content == null ? null : content.metadata.build(),
+              status);
+
+        /* Statuses emulate what the HTTP interface would have returned */
+        this.key = key;
+        this.vectorClock = vectorClock;
+        location = key == null ? null : key.getLocation();
+        contentType = content == null ? null : content.contentType;
+        lastModified = content == null ? null : content.lastModified;
+        eTag = content == null ? null : content.vtag;
+    }
+
+    @Override
+    public String getVectorClock() {
+        return vectorClock;
+    }
+
+    @Override
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getETag() {
+        return eTag;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public Key getKey() {
+        return key;
+    }
+
+    @Override
+    public String getLocation() {
+        return location;
+    }
+
+}
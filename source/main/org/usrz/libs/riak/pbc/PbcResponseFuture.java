@@ -0,0 +1,121 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.utils.futures.SettableFuture;
+
+public class PbcResponseFuture<T>
+extends SettableFuture<Response<T>>
+implements ResponseFuture<T> {
+
+    private final List<Runnable> listeners = new ArrayList<>();
+    private final PbcRiakClient client;
+    private final Executor executor;
+    private boolean notified;
+
+    public PbcResponseFuture(PbcRiakClient client) {
+        if (client == null) throw new NullPointerException("Null client");
+        this.executor = client.getListenerExecutor();
+        this.client = client;
+    }
+
+    @Override
+    public PbcResponseFuture<T> addListener(final ResponseListener<T> listener) {
+        if (listener == null) throw new NullPointerException("Null listener");
+        final Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    final Response<T> response = get();
+                    if (response == null) {
+                        listener.responseFailed(new ResponseEvent<T>(client, new IllegalStateException("Null response from Future")));
+                    } else {
+                        listener.responseHandled(new ResponseEvent<T>(client, response));
+                    }
+                } catch (Throwable throwable) {
+                    if (throwable instanceof ExecutionException) throwable = throwable.getCause();
+                    listener.responseFailed(new ResponseEvent<T>(client, throwable));
+                }
+            }
+        };
+
+        synchronized (listeners) {
+            if (!notified) {
+                listeners.add(runnable);
+                return this;
+            }
+        }
+
+        executor.execute(runnable);
+        return this;
+    }
+
+    private void done() {
+        final List<Runnable> runnables;
+        synchronized (listeners) {
+            if (notified || (!isDone())) return;
+            runnables = new ArrayList<>(listeners);
+            listeners.clear();
+            notified = true;
+        }
+        for (Runnable runnable: runnables) executor.execute(runnable);
+    }
+
+    @Override
+    public boolean set(Response<T> response) {
+        try {
+            return super.set(response);
+        } finally {
+            done();
+        }
+    }
+
+    @Override
+    public boolean fail(Throwable throwable) {
+        try {
+            return super.fail(throwable);
+        } finally {
+            done();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        try {
+            return super.cancel(mayInterruptIfRunning);
+        } finally {
+            done();
+        }
+    }
+
+    @Override
+    public PbcResponseFuture<T> notify(Future<?> future) {
+        super.notify(future);
+        return this;
+    }
+
+}
@@ -0,0 +1,515 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.riak.AbstractJsonClient;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.ContentHandler;
+import org.usrz.libs.riak.DeleteRequest;
+import org.usrz.libs.riak.FetchRequest;
+import org.usrz.libs.riak.Index;
+import org.usrz.libs.riak.IndexQuery;
+import org.usrz.libs.riak.IndexTerm;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.MapReduce;
+import org.usrz.libs.riak.Quorum;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.riak.SiblingResolver;
+import org.usrz.libs.riak.SiblingsException;
+import org.usrz.libs.riak.StoreRequest;
+import org.usrz.libs.riak.VectorClockCache;
+import org.usrz.libs.riak.annotations.RiakIntrospector;
+import org.usrz.libs.riak.async.BoundedExecutorService;
+import org.usrz.libs.riak.async.CallerRunsExecutor;
+import org.usrz.libs.riak.response.InlineContentHandler;
+import org.usrz.libs.riak.response.MultipartSiblingsContentHandler;
+import org.usrz.libs.riak.response.NullContentHandler;
+import org.usrz.libs.riak.response.QueuedContentHandler;
+import org.usrz.libs.utils.beans.InstanceBuilder;
+import org.usrz.libs.utils.beans.MapperBuilder;
+import org.usrz.libs.utils.futures.IterableFuture;
+import org.usrz.libs.utils.futures.QueueingFuture;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class PbcRiakClient extends AbstractJsonClient implements RiakClient, Closeable {
+
+    /* Message codes, from "riak_pb_messages.csv" */
+    static final int ERROR_RESP = 0;
+    static final int GET_REQ = 9;
+    static final int GET_RESP = 10;
+    static final int PUT_REQ = 11;
+    static final int PUT_RESP = 12;
+    static final int DEL_REQ = 13;
+    static final int DEL_RESP = 14;
+    static final int LIST_BUCKETS_REQ = 15;
+    static final int LIST_BUCKETS_RESP = 16;
+    static final int LIST_KEYS_REQ = 17;
+    static final int LIST_KEYS_RESP = 18;
+    static final int MAPRED_REQ = 23;
+    static final int MAPRED_RESP = 24;
+    static final int INDEX_REQ = 25;
+    static final int INDEX_RESP = 26;
+
+    private final Log log = new Log();
+
+    private final RiakIntrospector introspector = new RiakIntrospector(this);
+    private final PbcTransport transport;
+    private final ExecutorService executor;
+
+    private volatile Executor listenerExecutor;
+    private volatile VectorClockCache vectorClockCache = new VectorClockCache();
+
+    private final Class<PbcFetchRequest<?>> fetchRequestClass;
+    private final Class<PbcStoreRequest<?>> storeRequestClass;
+    private final Class<PbcDeleteRequest> deleteRequestClass;
+
+    public PbcRiakClient()
+    throws IOException {
+        this("127.0.0.1", 8087);
+    }
+
+    public PbcRiakClient(String host, int port)
+    throws IOException {
+        this(new InetSocketAddress(host, port));
+    }
+
+    public PbcRiakClient(InetSocketAddress... nodes)
+    throws IOException {
+        this(new BoundedExecutorService(), 4, nodes);
+    }
+
+    public PbcRiakClient(ExecutorService executor, int connectionsPerNode, InetSocketAddress... nodes)
+    throws IOException {
+        super(new ObjectMapper());
+        if (executor == null) throw new NullPointerException("Null executor");
+        transport = new PbcTransport(nodes, connectionsPerNode);
+        this.executor = executor;
+        listenerExecutor = new CallerRunsExecutor(executor);
+
+        final MapperBuilder builder = new MapperBuilder();
+        fetchRequestClass = builder.newClass(PbcFetchRequest.class);
+        storeRequestClass = builder.newClass(PbcStoreRequest.class);
+        deleteRequestClass = builder.newClass(PbcDeleteRequest.class);
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    /* ====================================================================== */
+
+    protected RiakIntrospector getIntrospector() {
+        return introspector;
+    }
+
+    @Override
+    protected ExecutorService getExecutorService() {
+        return executor;
+    }
+
+    protected Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    protected ObjectMapper getObjectMapper() {
+        return mapper;
+    }
+
+    /* ====================================================================== */
+
+    public PbcRiakClient setListenerExecutor(Executor listenerExecutor) {
+        if (listenerExecutor == null) throw new NullPointerException("Null listener executor");
+        this.listenerExecutor = new CallerRunsExecutor(listenerExecutor);
+        return this;
+    }
+
+    public PbcRiakClient setMaxFrameSize(int maxFrameSize) {
+        transport.setMaxFrameSize(maxFrameSize);
+        return this;
+    }
+
+    public int getMaxFrameSize() {
+        return transport.getMaxFrameSize();
+    }
+
+    public <T> PbcRiakClient setSiblingResolver(Class<T> type, SiblingResolver<T> resolver) {
+        return this.setSiblingResolver(type, resolver, false);
+    }
+
+    public <T> PbcRiakClient setSiblingResolver(Class<T> type, SiblingResolver<T> resolver, boolean writeBack) {
+        putSiblingResolver(type, resolver, writeBack, null);
+        return this;
+    }
+
+    /* Writes back resolved siblings, and tells the listener how it went */
+    public <T> PbcRiakClient setSiblingResolver(Class<T> type, SiblingResolver<T> resolver, ResponseListener<T> writeBackListener) {
+        if (writeBackListener == null) throw new NullPointerException("Null write back listener");
+        putSiblingResolver(type, resolver, true, writeBackListener);
+        return this;
+    }
+
+    public PbcRiakClient setVectorClockCache(VectorClockCache vectorClockCache) {
+        this.vectorClockCache = vectorClockCache;
+        return this;
+    }
+
+    public VectorClockCache getVectorClockCache() {
+        return vectorClockCache;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public IterableFuture<Bucket> getBuckets()
+    throws IOException {
+        final QueueingFuture<Bucket> iterable = new QueueingFuture<>();
+        final ProtobufWriter message = new ProtobufWriter().writeBoolean(2, true);
+
+        return stream(new StreamingExchange<Bucket>(message, LIST_BUCKETS_REQ, LIST_BUCKETS_RESP, iterable) {
+
+            @Override
+            protected boolean message(ProtobufReader reader)
+            throws IOException {
+                boolean done = false;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 1:  put(getBucket(reader.readString())); break;
+                    case 2:  done = reader.readBoolean(); break;
+                    default: reader.skip();
+                }
+                return done ? close() : false;
+            }
+        });
+    }
+
+    @Override
+    public IterableFuture<Key> getKeys(final Bucket bucket)
+    throws IOException {
+        final QueueingFuture<Key> iterable = new QueueingFuture<>();
+        final ProtobufWriter message = new ProtobufWriter().writeString(1, bucket.getName());
+
+        return stream(new StreamingExchange<Key>(message, LIST_KEYS_REQ, LIST_KEYS_RESP, iterable) {
+
+            @Override
+            protected boolean message(ProtobufReader reader)
+            throws IOException {
+                boolean done = false;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 1:  put(new Key(bucket, reader.readString())); break;
+                    case 2:  done = reader.readBoolean(); break;
+                    default: reader.skip();
+                }
+                return done ? close() : false;
+            }
+        });
+    }
+
+    @Override
+    protected IterableFuture<IndexTerm> query(IndexQuery query, boolean returnTerms)
+    throws IOException {
+        return page(query, returnTerms, query.getContinuation(), new QueueingFuture<IndexTerm>());
+    }
+
+    private IterableFuture<IndexTerm> page(final IndexQuery query, final boolean returnTerms, String continuation, final QueueingFuture<IndexTerm> iterable)
+    throws IOException {
+        final Index index = query.getIndex();
+        final ProtobufWriter message = new ProtobufWriter()
+                        .writeString(1, query.getBucket().getName())
+                        .writeString(2, index.getName() + index.getType().getSuffix())
+                        .writeUnsigned(3, query.isRange() ? 1 : 0)
+                        .writeBoolean(8, true);
+        if (query.isRange()) message.writeString(5, query.getStart()).writeString(6, query.getEnd());
+        else message.writeString(4, query.getStart());
+        if (returnTerms) message.writeBoolean(7, true);
+        if (query.getMaxResults() > 0) message.writeUnsigned(9, query.getMaxResults());
+        if (continuation != null) message.writeString(10, continuation);
+
+        return stream(new StreamingExchange<IndexTerm>(message, INDEX_REQ, INDEX_RESP, iterable) {
+
+            private String continuation = null;
+
+            @Override
+            protected boolean message(ProtobufReader reader)
+            throws IOException {
+                /* Exact matches only return keys, the term is the one we asked */
+                final String term = query.isRange() ? null : query.getStart();
+
+                boolean done = false;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 1:  put(new IndexTerm(term, new Key(query.getBucket(), reader.readString()))); break;
+                    case 2:  put(result(reader.readMessage())); break;
+                    case 3:  continuation = reader.readString(); break;
+                    case 4:  done = reader.readBoolean(); break;
+                    default: reader.skip();
+                }
+                if (!done) return false;
+
+                /* Follow continuations until we're done or nobody's listening */
+                if ((continuation == null) || (!isOpen())) return close();
+                page(query, returnTerms, continuation, iterable);
+                return true;
+            }
+
+            private IndexTerm result(ProtobufReader reader)
+            throws IOException {
+                String term = null, key = null;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 1:  term = reader.readString(); break;
+                    case 2:  key = reader.readString(); break;
+                    default: reader.skip();
+                }
+                return new IndexTerm(term, new Key(query.getBucket(), key));
+            }
+        });
+    }
+
+    @Override
+    public <R> IterableFuture<R> mapReduce(MapReduce job, final Class<R> type)
+    throws IOException {
+        final QueueingFuture<R> iterable = new QueueingFuture<>();
+        final ProtobufWriter message = new ProtobufWriter()
+                        .writeBytes(1, mapper.writeValueAsBytes(job.getJob()))
+                        .writeString(2, "application/json");
+
+        return stream(new StreamingExchange<R>(message, MAPRED_REQ, MAPRED_RESP, iterable) {
+
+            @Override
+            protected boolean message(ProtobufReader reader)
+            throws IOException {
+                boolean done = false;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 2:  for (JsonNode node: mapper.readTree(reader.readBytes())) put(mapper.treeToValue(node, type)); break;
+                    case 3:  done = reader.readBoolean(); break;
+                    default: reader.skip(); /* phase */
+                }
+                return done ? close() : false;
+            }
+        });
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public <T> FetchRequest<T> fetch(Key key, ContentHandler<T> handler) {
+        log.trace("Preparing FETCH request for %s", key.getLocation());
+        return InstanceBuilder.newInstance(fetchRequestClass, this, key, handler);
+    }
+
+    @Override
+    public <T> StoreRequest<T> store(Bucket bucket, T object, ContentHandler<T> handler) {
+        log.trace("Preparing STORE request for %s (no key)", bucket.getLocation());
+        return InstanceBuilder.newInstance(storeRequestClass, this, bucket, object, handler);
+    }
+
+    @Override
+    public <T> StoreRequest<T> store(Key key, T object, ContentHandler<T> handler) {
+        log.trace("Preparing STORE request for %s", key.getLocation());
+        return InstanceBuilder.newInstance(storeRequestClass, this, key, object, handler);
+    }
+
+    @Override
+    public DeleteRequest delete(Key key) {
+        log.trace("Preparing DELETE request for %s", key.getLocation());
+        return InstanceBuilder.newInstance(deleteRequestClass, this, key);
+    }
+
+    /* ====================================================================== */
+
+    protected void send(PbcExchange exchange)
+    throws IOException {
+        transport.send(exchange);
+    }
+
+    private <T> IterableFuture<T> stream(StreamingExchange<T> exchange)
+    throws IOException {
+        try {
+            transport.send(exchange);
+        } catch (IOException | RuntimeException exception) {
+            exchange.iterable.fail(exception);
+            throw exception;
+        }
+        return exchange.iterable;
+    }
+
+    protected <T> void deliver(final PbcPartialResponse<T> partial, final PbcContent content, ContentHandler<T> handler, PbcResponseFuture<T> future) {
+        final int status = partial.getStatus();
+        final ContentHandler<T> selected = (status == 304) || (status == 404) ? new NullContentHandler<T>() : handler;
+
+        /* All our content is here, write it all then read it on one thread */
+        submit(future, new Callable<Response<T>>() {
+
+            @Override
+            public Response<T> call()
+            throws Exception {
+                final ByteBuffer value = content == null ? ByteBuffer.allocate(0) : content.decode();
+                final OutputStream output = selected.getOutputStream(partial);
+                try {
+                    if (selected instanceof InlineContentHandler) ((InlineContentHandler<T>) selected).feed(value);
+                    else if (selected instanceof QueuedContentHandler) ((QueuedContentHandler<T>) selected).offer(value);
+                    else output.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+                } finally {
+                    output.close();
+                }
+                return selected instanceof InlineContentHandler ? ((InlineContentHandler<T>) selected).complete() : selected.call();
+            }
+        });
+    }
+
+    protected <T> void siblings(final Key key, final String vectorClock, final List<PbcContent> siblings, ContentHandler<T> handler, PbcResponseFuture<T> future) {
+        final MultipartSiblingsContentHandler<T> resolver = getSiblingResolver(handler);
+        if (resolver == null) {
+            final Set<String> vtags = new HashSet<>();
+            for (PbcContent sibling: siblings) if (sibling.vtag != null) vtags.add(sibling.vtag);
+            future.fail(new SiblingsException(key, vtags));
+            return;
+        }
+
+        /* Parse each sibling and merge them, keeping the 300 status */
+        submit(future, new Callable<Response<T>>() {
+
+            @Override
+            public Response<T> call()
+            throws Exception {
+                final List<Response<T>> responses = new ArrayList<>();
+                for (PbcContent sibling: siblings) {
+                    if (sibling.deleted) continue;
+                    final ByteBuffer value = sibling.decode();
+                    final T content = !value.hasRemaining() ? null :
+                                      serializers.getSerializer(sibling.contentType)
+                                                 .read(new ByteArrayInputStream(value.array(), value.arrayOffset() + value.position(), value.remaining()), resolver.getType());
+                    responses.add(new Response<T>(new PbcPartialResponse<T>(PbcRiakClient.this, key, 200, vectorClock, sibling), content));
+                }
+
+                final PbcPartialResponse<T> partial = new PbcPartialResponse<>(PbcRiakClient.this, key, 300, vectorClock, null);
+                return new Response<T>(partial, resolver.resolve(partial, responses));
+            }
+        });
+    }
+
+    private <T> void submit(final PbcResponseFuture<T> future, final Callable<Response<T>> callable) {
+        /* Never parse on the transport thread, it serves all connections */
+        try {
+            future.notify(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        future.set(callable.call());
+                    } catch (Throwable throwable) {
+                        future.fail(throwable);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException exception) {
+            future.fail(exception);
+        }
+    }
+
+    protected void remember(Key key, String vectorClock, int status) {
+        final VectorClockCache clocks = vectorClockCache;
+        if ((clocks == null) || (key == null)) return;
+        if ((vectorClock != null) && (status < 400)) clocks.put(key, vectorClock);
+        else clocks.invalidate(key);
+    }
+
+    /* ====================================================================== */
+
+    static String encodeVectorClock(byte[] vectorClock) {
+        return vectorClock == null ? null : Base64.getEncoder().encodeToString(vectorClock);
+    }
+
+    static byte[] decodeVectorClock(String vectorClock) {
+        return vectorClock == null ? null : Base64.getDecoder().decode(vectorClock);
+    }
+
+    protected ProtobufWriter quorum(Map<String, ?> properties, String property, ProtobufWriter message, int field) {
+        if (!properties.containsKey(property)) return message;
+
+        /* Symbolic quorums are encoded as special unsigned values */
+        final String parameter = Quorum.getParameter(properties.get(property));
+        final int value = Quorum.ONE.getParameter().equals(parameter)    ? 0xFFFFFFFE :
+                          Quorum.QUORUM.getParameter().equals(parameter) ? 0xFFFFFFFD :
+                          Quorum.ALL.getParameter().equals(parameter)    ? 0xFFFFFFFC :
+                              Integer.parseInt(parameter);
+        return message.writeUnsigned(field, value);
+    }
+
+    /* ====================================================================== */
+
+    private abstract static class StreamingExchange<T> extends PbcExchange {
+
+        private final QueueingFuture<T> iterable;
+        private final int responseCode;
+        private boolean open = true;
+
+        private StreamingExchange(ProtobufWriter message, int requestCode, int responseCode, QueueingFuture<T> iterable) {
+            super(message, requestCode);
+            this.responseCode = responseCode;
+            this.iterable = iterable;
+        }
+
+        @Override
+        protected final boolean message(int code, ProtobufReader reader)
+        throws Exception {
+            if (code != responseCode) throw new IOException("Unexpected message " + code + ", wanted " + responseCode);
+            return message(reader);
+        }
+
+        protected abstract boolean message(ProtobufReader reader)
+        throws IOException;
+
+        protected final void put(T object) {
+            /* Keep reading when closed, the stream has to be drained anyway */
+            if (open) open = iterable.put(object);
+        }
+
+        protected final boolean isOpen() {
+            return open;
+        }
+
+        protected final boolean close() {
+            iterable.close();
+            return true;
+        }
+
+        @Override
+        protected void failed(Throwable throwable) {
+            iterable.fail(throwable);
+        }
+    }
+}
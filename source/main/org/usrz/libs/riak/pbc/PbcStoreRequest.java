@@ -0,0 +1,187 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.ContentHandler;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.VectorClockCache;
+import org.usrz.libs.riak.request.AbstractStoreRequest;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.riak.response.VectorClockContentHandler;
+import org.usrz.libs.riak.serializers.BytesSerializer;
+import org.usrz.libs.riak.serializers.Serializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
+import org.usrz.libs.utils.beans.Mapper;
+
+public abstract class PbcStoreRequest<T>
+extends AbstractStoreRequest<T>
+implements Mapper {
+
+    private final PbcRiakClient client;
+
+    public PbcStoreRequest(PbcRiakClient client, Bucket bucket, T instance, ContentHandler<T> handler) {
+        super(bucket, instance, handler, client.getIntrospector());
+        this.client = client;
+    }
+
+    public PbcStoreRequest(PbcRiakClient client, Key key, T instance, ContentHandler<T> handler) {
+        super(key, instance, handler, client.getIntrospector());
+        this.client = client;
+    }
+
+    private ProtobufWriter prepare(Bucket bucket, Key key, T instance, String vectorClock)
+    throws IOException {
+        final Map<String, ?> properties = mappedProperties();
+
+        /* RpbPutReq, with our content in the bucket's (or requested) format */
+        final String contentType = getContentType();
+        final Serializer serializer = BytesSerializer.isRaw(instance) ?
+                                          new BytesSerializer(contentType == null ? SerializerRegistry.BYTES : contentType) :
+                                          client.getSerializerRegistry().getSerializer(bucket, contentType);
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        serializer.write(content, instance);
+
+        final ProtobufWriter message = new ProtobufWriter().writeString(1, bucket.getName());
+        if (key != null) message.writeString(2, key.getName());
+        if (vectorClock != null) message.writeBytes(3, PbcRiakClient.decodeVectorClock(vectorClock));
+        message.writeMessage(4, PbcContent.write(content.toByteArray(),
+                                                 serializer.getContentType(),
+                                                 getLinksMap(),
+                                                 getIndexMap(),
+                                                 getMetadata()));
+
+        client.quorum(properties, "writeQuorum", message, 5);
+        client.quorum(properties, "durableWriteQuorum", message, 6);
+        client.quorum(properties, "primaryWriteQuorum", message, 8);
+        if (getReturnBody() && !BytesSerializer.isRaw(instance)) message.writeBoolean(7, true);
+
+        /* Only the "this clock" and "no object" conditionals map here */
+        if (properties.containsKey("ifMatch")) message.writeBoolean(9, true);
+        if ("*".equals(properties.get("ifNoneMatch"))) message.writeBoolean(10, true);
+        return message;
+    }
+
+    private ResponseFuture<T> send(final Bucket bucket, final Key key, ProtobufWriter message, final ContentHandler<T> handler)
+    throws IOException {
+        final PbcResponseFuture<T> future = new PbcResponseFuture<>(client);
+        client.send(new PbcExchange(message, PbcRiakClient.PUT_REQ) {
+
+            @Override
+            protected boolean message(int code, ProtobufReader reader)
+            throws IOException {
+                if (code != PbcRiakClient.PUT_RESP) throw new IOException("Unexpected message " + code + " storing in " + bucket.getLocation());
+
+                /* RpbPutResp: content = 1, vclock = 2, key = 3 */
+                final List<PbcContent> contents = new ArrayList<>();
+                String vectorClock = null;
+                Key stored = key;
+                for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+                    case 1:  contents.add(PbcContent.read(client, reader.readMessage())); break;
+                    case 2:  vectorClock = PbcRiakClient.encodeVectorClock(reader.readBytes()); break;
+                    case 3:  stored = new Key(bucket, reader.readString()); break;
+                    default: reader.skip();
+                }
+
+                final int status = contents.size() > 1 ? 300 :
+                                   key == null ? 201 :
+                                   contents.size() > 0 ? 200 :
+                                       204;
+                client.remember(stored, vectorClock, status);
+
+                if (status == 300) {
+                    client.siblings(stored, vectorClock, contents, handler, future);
+                } else {
+                    final PbcContent content = contents.isEmpty() ? null : contents.get(0);
+                    final PbcPartialResponse<T> partial = new PbcPartialResponse<>(client, stored, status, vectorClock, content);
+                    client.deliver(partial, content, handler, future);
+                }
+                return true;
+            }
+
+            @Override
+            protected void failed(Throwable throwable) {
+                future.fail(throwable);
+            }
+        });
+        return future;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected ResponseFuture<T> execute(Bucket bucket, T instance, ContentHandler<T> handler)
+    throws IOException {
+        return send(bucket, null, prepare(bucket, null, instance, null), handler);
+    }
+
+    @Override
+    protected ResponseFuture<T> execute(final Key key, final T instance, final ContentHandler<T> handler, String vectorClock)
+    throws IOException {
+
+        /* Reuse the last vector clock we've seen for this key, if we can */
+        final VectorClockCache clocks = client.getVectorClockCache();
+        if ((vectorClock == null) && (clocks != null) && (getVectorClockMode() == VectorClockMode.CACHED)) {
+            vectorClock = clocks.get(key);
+        }
+
+        /* We have a vector clock, or we're doing a blind write */
+        if ((vectorClock != null) || (getVectorClockMode() == VectorClockMode.NONE)) {
+            return send(key.getBucket(), key, prepare(key.getBucket(), key, instance, vectorClock), handler);
+        }
+
+        /* Fetch the head of the object to get the vector clock */
+        final PbcResponseFuture<T> future = new PbcResponseFuture<>(client);
+        return future.notify(client.fetch(key, new VectorClockContentHandler()).setReturnBody(false).execute()
+            .addListener(new ResponseListener<String>() {
+
+                @Override
+                public void responseFailed(ResponseEvent<String> event) {
+                    future.fail(event.getThrowable());
+                }
+
+                @Override
+                public void responseHandled(ResponseEvent<String> event) {
+                    try {
+                        final ProtobufWriter message = prepare(key.getBucket(), key, instance, event.getContent());
+                        send(key.getBucket(), key, message, handler).addListener(new ResponseListener<T>() {
+
+                            @Override
+                            public void responseHandled(ResponseEvent<T> event) {
+                                future.set(event.getResponse());
+                            }
+
+                            @Override
+                            public void responseFailed(ResponseEvent<T> event) {
+                                future.fail(event.getThrowable());
+                            }
+                        });
+                    } catch (Throwable throwable) {
+                        future.fail(throwable);
+                    }
+                }
+            }));
+    }
+}
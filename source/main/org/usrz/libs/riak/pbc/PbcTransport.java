@@ -0,0 +1,200 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.usrz.libs.logging.Log;
+
+class PbcTransport implements Runnable, Closeable {
+
+    /* Reconnections to a failing node back off exponentially, between these */
+    private static final long MIN_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(10);
+
+    private static final AtomicInteger transports = new AtomicInteger();
+    private static final Log log = new Log();
+
+    /* Connections needing registration or interest updates */
+    private final Queue<PbcConnection> updates = new ConcurrentLinkedQueue<>();
+    private final PbcConnection[] connections;
+    private final InetSocketAddress[] nodes;
+    /* Consecutive failures per node, and when we can try connecting again */
+    private final AtomicIntegerArray failures;
+    private final AtomicLongArray retries;
+    private final Selector selector;
+    private final Thread thread;
+
+    private volatile int maxFrameSize = PbcConnection.DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+    private int next;
+
+    PbcTransport(InetSocketAddress[] nodes, int connectionsPerNode)
+    throws IOException {
+        if (nodes == null) throw new NullPointerException("Null nodes");
+        if (nodes.length < 1) throw new IllegalArgumentException("No nodes specified");
+        if (connectionsPerNode < 1) throw new IllegalArgumentException("Invalid connections per node " + connectionsPerNode);
+        for (InetSocketAddress node: nodes) if (node == null) throw new NullPointerException("Null node");
+
+        this.nodes = nodes.clone();
+        failures = new AtomicIntegerArray(nodes.length);
+        retries = new AtomicLongArray(nodes.length);
+        connections = new PbcConnection[nodes.length * connectionsPerNode];
+        selector = Selector.open();
+
+        thread = new Thread(this, "PbcRiakClient-Transport-" + transports.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* ====================================================================== */
+
+    int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize < 1) throw new IllegalArgumentException("Invalid maximum frame size " + maxFrameSize);
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /* ====================================================================== */
+
+    void send(PbcExchange exchange)
+    throws IOException {
+        if (exchange == null) throw new NullPointerException("Null exchange");
+        if (closed) throw new IOException("Transport closed");
+
+        final PbcConnection connection = select();
+        if (connection.send(exchange)) {
+            updates.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    private synchronized PbcConnection select()
+    throws IOException {
+        if (closed) throw new IOException("Transport closed");
+
+        /* Replace dead connections unless backing off, and pick the least busy one */
+        final long now = System.nanoTime();
+        PbcConnection selected = null;
+        for (int x = 0; x < connections.length; x ++) {
+            final int index = (next + x) % connections.length;
+            final int node = index % nodes.length;
+            if ((failures.get(node) > 0) && (retries.get(node) - now > 0)) continue;
+
+            PbcConnection connection = connections[index];
+            if ((connection == null) || connection.isClosed()) {
+                connection = connections[index] = new PbcConnection(this, nodes[node]);
+                updates.add(connection);
+            }
+            if ((selected == null) || (connection.getPendingCount() < selected.getPendingCount()))
+                selected = connection;
+        }
+
+        /* Every node is failing, don't hammer them until one is due again */
+        if (selected == null) throw new IOException("No Riak node available, all failed and backing off");
+
+        /* Rotate where we start, so ties spread across nodes */
+        next = (next + 1) % connections.length;
+        return selected;
+    }
+
+    private int node(InetSocketAddress address) {
+        for (int x = 0; x < nodes.length; x ++) if (nodes[x].equals(address)) return x;
+        return -1;
+    }
+
+    /* A connection to the node failed: wait longer and longer to reconnect */
+    void failed(InetSocketAddress address) {
+        final int node = node(address);
+        if (node < 0) return;
+        final int count = failures.incrementAndGet(node);
+        final long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(count - 1, 20));
+        retries.set(node, System.nanoTime() + backoff);
+        log.debug("Riak node at %s failed %d times, reconnecting in %d ms", address, count, TimeUnit.NANOSECONDS.toMillis(backoff));
+    }
+
+    /* The node answered, it's healthy again */
+    void succeeded(InetSocketAddress address) {
+        final int node = node(address);
+        if ((node >= 0) && (failures.getAndSet(node, 0) > 0))
+            log.info("Riak node at %s is answering again", address);
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                for (PbcConnection connection = updates.poll(); connection != null; connection = updates.poll()) try {
+                    if (connection.isClosed()) continue;
+                    if (!connection.isRegistered()) connection.register(selector);
+                    connection.update();
+                } catch (Throwable throwable) {
+                    connection.close(throwable);
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    ((PbcConnection) key.attachment()).ready();
+                }
+            }
+        } catch (Throwable throwable) {
+            log.error(throwable, "Exception in transport selector loop");
+        } finally {
+            shutdown();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void shutdown() {
+        closed = true;
+        synchronized (this) {
+            for (PbcConnection connection: connections)
+                if (connection != null) connection.close(null);
+        }
+        for (PbcConnection connection = updates.poll(); connection != null; connection = updates.poll())
+            connection.close(null);
+        try {
+            selector.close();
+        } catch (IOException exception) {
+            log.debug("Exception closing selector: %s", exception);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/* A minimal protobuf decoder, just what Riak's messages need */
+public class ProtobufReader {
+
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+    private int wireType = -1;
+
+    public ProtobufReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public ProtobufReader(byte[] buffer, int offset, int length) {
+        if (buffer == null) throw new NullPointerException("Null buffer");
+        if ((offset < 0) || (length < 0) || (offset + length > buffer.length))
+            throw new IndexOutOfBoundsException("Invalid offset or length");
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /* ====================================================================== */
+
+    /* Returns the next field number, or zero at the end of the message */
+    public int next()
+    throws IOException {
+        if (position >= limit) return 0;
+        final long tag = varint();
+        wireType = (int) (tag & 0x07);
+        return (int) (tag >>> 3);
+    }
+
+    public long readVarint()
+    throws IOException {
+        check(0);
+        return varint();
+    }
+
+    public int readUnsigned()
+    throws IOException {
+        return (int) readVarint();
+    }
+
+    public boolean readBoolean()
+    throws IOException {
+        return readVarint() != 0;
+    }
+
+    public byte[] readBytes()
+    throws IOException {
+        check(2);
+        final int length = length();
+        final byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    public String readString()
+    throws IOException {
+        check(2);
+        final int length = length();
+        final String string = new String(buffer, position, length, UTF_8);
+        position += length;
+        return string;
+    }
+
+    public ProtobufReader readMessage()
+    throws IOException {
+        check(2);
+        final int length = length();
+        final ProtobufReader reader = new ProtobufReader(buffer, position, length);
+        position += length;
+        return reader;
+    }
+
+    public void skip()
+    throws IOException {
+        switch (wireType) {
+            case 0: varint(); break;
+            case 1: advance(8); break;
+            case 2: advance(length()); break;
+            case 5: advance(4); break;
+            default: throw new IOException("Unsupported wire type " + wireType);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private void check(int expected)
+    throws IOException {
+        if (wireType != expected) throw new IOException("Wire type " + wireType + " found, " + expected + " expected");
+    }
+
+    private void advance(int count)
+    throws IOException {
+        if (position + count > limit) throw new EOFException("Truncated protobuf message");
+        position += count;
+    }
+
+    private int length()
+    throws IOException {
+        final long length = varint();
+        if ((length < 0) || (position + length > limit)) throw new EOFException("Truncated protobuf message");
+        return (int) length;
+    }
+
+    private long varint()
+    throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= limit) throw new EOFException("Truncated protobuf varint");
+            final byte b = buffer[position ++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed protobuf varint");
+    }
+
+}
@@ -0,0 +1,107 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* A minimal protobuf encoder, just what Riak's messages need */
+public class ProtobufWriter {
+
+    private byte[] buffer;
+    private int length = 0;
+
+    public ProtobufWriter() {
+        this(64);
+    }
+
+    public ProtobufWriter(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /* ====================================================================== */
+
+    private void ensure(int needed) {
+        if (length + needed <= buffer.length) return;
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + needed));
+    }
+
+    private void varint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[length ++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length ++] = (byte) value;
+    }
+
+    private void tag(int field, int wireType) {
+        varint((field << 3) | wireType);
+    }
+
+    /* ====================================================================== */
+
+    public ProtobufWriter writeVarint(int field, long value) {
+        tag(field, 0);
+        varint(value);
+        return this;
+    }
+
+    public ProtobufWriter writeUnsigned(int field, int value) {
+        return writeVarint(field, value & 0xFFFFFFFFL);
+    }
+
+    public ProtobufWriter writeBoolean(int field, boolean value) {
+        return writeVarint(field, value ? 1 : 0);
+    }
+
+    public ProtobufWriter writeBytes(int field, byte[] value) {
+        return writeBytes(field, value, 0, value.length);
+    }
+
+    public ProtobufWriter writeBytes(int field, byte[] value, int offset, int count) {
+        tag(field, 2);
+        varint(count);
+        ensure(count);
+        System.arraycopy(value, offset, buffer, length, count);
+        length += count;
+        return this;
+    }
+
+    public ProtobufWriter writeString(int field, String value) {
+        return writeBytes(field, value.getBytes(UTF_8));
+    }
+
+    public ProtobufWriter writeMessage(int field, ProtobufWriter message) {
+        return writeBytes(field, message.buffer, 0, message.length);
+    }
+
+    /* ====================================================================== */
+
+    public int size() {
+        return length;
+    }
+
+    /* Length prefixed frame: 4 bytes length, 1 byte message code, message */
+    public ByteBuffer toFrame(int code) {
+        final ByteBuffer frame = ByteBuffer.allocate(length + 5);
+        frame.putInt(length + 1).put((byte) code).put(buffer, 0, length).flip();
+        return frame;
+    }
+
+}
@@ -36,7 +36,9 @@ implements StoreRequest<T> {
     private final LinksMap linksMap;
     private final T instance;
 
+    private VectorClockMode vectorClockMode = VectorClockMode.CACHED;
     private String vectorClock;
+    private String contentType;
 
     protected AbstractStoreRequest(Bucket bucket, T instance, ContentHandler<T> handler, RiakIntrospector introspector) {
         super(bucket, introspector.getKeyName(instance), handler);
@@ -85,6 +87,29 @@ implements StoreRequest<T> {
         return thisInstance;
     }
 
+    @Override
+    public StoreRequest<T> setVectorClockMode(VectorClockMode mode) {
+        if (mode == null) throw new NullPointerException("Null vector clock mode");
+        this.vectorClockMode = mode;
+        return thisInstance;
+    }
+
+    public VectorClockMode getVectorClockMode() {
+        return vectorClockMode;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public StoreRequest<T> setContentType(String contentType) {
+        this.contentType = contentType;
+        return thisInstance;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
     /* ====================================================================== */
 
     @Override
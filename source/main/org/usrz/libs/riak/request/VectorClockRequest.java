@@ -22,4 +22,6 @@ extends Request<T> {
 
     public R setVectorClock(String vectorClock);
 
+    public R setVectorClockMode(VectorClockMode mode);
+
 }
@@ -0,0 +1,47 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+
+import org.usrz.libs.riak.PartialResponse;
+
+/*
+ * Writes raw content straight into a channel as it arrives, returning the
+ * number of bytes written. The channel is never closed by this handler.
+ */
+public class ChannelContentHandler extends QueuedContentHandler<Long> {
+
+    private final WritableByteChannel channel;
+
+    public ChannelContentHandler(WritableByteChannel channel) {
+        if (channel == null) throw new NullPointerException("Null channel");
+        this.channel = channel;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    protected Long read(PartialResponse<Long> partial, InputStream input)
+    throws Exception {
+        return transferTo(channel);
+    }
+
+}
@@ -15,24 +15,34 @@
  * ========================================================================== */
 package org.usrz.libs.riak.response;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import org.usrz.libs.riak.PartialResponse;
+import org.usrz.libs.riak.Response;
 import org.usrz.libs.utils.futures.Puttable;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 public abstract class ChunkedContentHandler<T, H extends ChunkedContentHandler<T, H>>
-extends PipedContentHandler<Boolean> {
+extends QueuedContentHandler<Boolean>
+implements InlineContentHandler<Boolean> {
 
     private final Class<? extends Chunk<T, H>> chunkType;
     private final Puttable<T> puttable;
     private final ObjectMapper mapper;
     private final H thisInstance;
 
+    private MultipartFeeder multipart;
+    private JsonTokenFeeder feeder;
+    private boolean result = true;
+
     @SuppressWarnings("unchecked")
     public ChunkedContentHandler(ObjectMapper mapper, Puttable<T> puttable, Class<? extends Chunk<T, H>> chunkType) {
         if (mapper == null) throw new NullPointerException("Null object mapper");
@@ -44,18 +54,35 @@ extends PipedContentHandler<Boolean> {
         thisInstance = (H) this;
     }
 
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
     @Override
     protected Boolean read(PartialResponse<Boolean> partial, InputStream input)
     throws Exception {
         try {
-            final JsonParser parser = mapper.getFactory().createParser(input);
+
+            /* Multipart content goes through the same path as inline feeding */
+            if (MultipartFeeder.getBoundary(partial.getContentType()) != null) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) >= 0) {
+                    feed(ByteBuffer.wrap(buffer, 0, read));
+                    if (!result) return false;
+                }
+                return complete().getContent();
+            }
+
+            final JsonParser parser = createParser(mapper.getFactory(), input);
             final MappingIterator<? extends Chunk<T, H>> iterator = mapper.readValues(parser, chunkType);
             while (iterator.hasNextValue()) {
                 final Chunk<T, H> chunk = iterator.next();
                 if (chunk.putAll(partial, thisInstance)) continue;
                 else return false;
             }
-            return puttable.close();
+            return completed();
         } catch (Throwable throwable) {
             puttable.fail(throwable);
             if (throwable instanceof Exception) throw (Exception) throwable;
@@ -63,6 +90,71 @@ extends PipedContentHandler<Boolean> {
         }
     }
 
+    /* ====================================================================== */
+
+    /*
+     * Streamed listings and queries arrive chunked, without a length, so the
+     * client never parses them inline. This path still serves multipart
+     * content read above, and small responses some proxy buffered for us.
+     */
+    @Override
+    public void feed(ByteBuffer buffer)
+    throws IOException {
+        try {
+            if (feeder == null) {
+                feeder = new JsonTokenFeeder(mapper.getFactory()) {
+                    @Override
+                    protected boolean value(TokenBuffer tokens)
+                    throws IOException {
+                        final Chunk<T, H> chunk = mapper.readValue(tokens.asParser(mapper), chunkType);
+                        return result = chunk.putAll(getPartialResponse(), thisInstance);
+                    }
+                };
+
+                /* Each part of a multipart response is a JSON chunk */
+                final String boundary = MultipartFeeder.getBoundary(getPartialResponse().getContentType());
+                if (boundary != null) multipart = new MultipartFeeder(boundary) {
+
+                    @Override
+                    protected void part(Map<String, String> headers) {
+                        /* Ignore part headers */
+                    }
+
+                    @Override
+                    protected void body(ByteBuffer buffer)
+                    throws IOException {
+                        feeder.feed(buffer);
+                    }
+                };
+            }
+
+            if (multipart != null) multipart.feed(buffer);
+            else feeder.feed(buffer);
+        } catch (IOException | RuntimeException exception) {
+            puttable.fail(exception);
+            throw exception;
+        }
+    }
+
+    @Override
+    public Response<Boolean> complete()
+    throws Exception {
+        try {
+            if (multipart != null) multipart.end();
+            if (feeder != null) feeder.end();
+            return new Response<Boolean>(getPartialResponse(), result && completed());
+        } catch (Exception exception) {
+            puttable.fail(exception);
+            throw exception;
+        }
+    }
+
+    /* ====================================================================== */
+
+    protected boolean completed() {
+        return puttable.close();
+    }
+
     public boolean put(T instance) {
         return puttable.put(instance);
     }
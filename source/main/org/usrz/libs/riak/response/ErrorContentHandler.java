@@ -22,7 +22,7 @@ import java.util.regex.Pattern;
 
 import org.usrz.libs.riak.PartialResponse;
 
-public class ErrorContentHandler<T> extends PipedContentHandler<T> {
+public class ErrorContentHandler<T> extends QueuedContentHandler<T> {
 
     private static final Pattern WHITESPACE = Pattern.compile("\\s+");
 
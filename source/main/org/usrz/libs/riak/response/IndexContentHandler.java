@@ -0,0 +1,89 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.usrz.libs.riak.IndexQuery;
+import org.usrz.libs.riak.IndexTerm;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.PartialResponse;
+import org.usrz.libs.utils.futures.Puttable;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class IndexContentHandler extends ChunkedContentHandler<IndexTerm, IndexContentHandler> {
+
+    private final IndexQuery query;
+    private String continuation;
+
+    public IndexContentHandler(ObjectMapper mapper, IndexQuery query, Puttable<IndexTerm> puttable) {
+        super(mapper, puttable, IndexChunk.class);
+        if (query == null) throw new NullPointerException("Null query");
+        this.query = query;
+    }
+
+    public String getContinuation() {
+        return continuation;
+    }
+
+    @Override
+    protected boolean completed() {
+        /* More pages to come, don't close our results just yet */
+        return continuation != null || super.completed();
+    }
+
+    public static final class IndexChunk extends Chunk<IndexTerm, IndexContentHandler> {
+
+        private final List<String> keys;
+        private final List<Map<String, String>> results;
+        private final String continuation;
+
+        public IndexChunk(@JsonProperty("keys") List<String> keys,
+                          @JsonProperty("results") List<Map<String, String>> results,
+                          @JsonProperty("continuation") String continuation) {
+            this.keys = keys;
+            this.results = results;
+            this.continuation = continuation;
+        }
+
+        @Override
+        public boolean putAll(PartialResponse<Boolean> partial, IndexContentHandler handler) {
+            if (continuation != null) handler.continuation = continuation;
+
+            /* Exact matches only return keys, the term is the one we asked */
+            if (keys != null) for (String name: keys) {
+                final String term = handler.query.isRange() ? null : handler.query.getStart();
+                if (handler.put(new IndexTerm(term, new Key(handler.query.getBucket(), name)))) continue;
+                return false;
+            }
+
+            if (results != null) for (Map<String, String> result: results) {
+                for (Entry<String, String> entry: result.entrySet()) {
+                    if (handler.put(new IndexTerm(entry.getKey(), new Key(handler.query.getBucket(), entry.getValue())))) continue;
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+    }
+
+}
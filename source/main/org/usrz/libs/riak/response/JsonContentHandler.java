@@ -15,32 +15,69 @@
  * ========================================================================== */
 package org.usrz.libs.riak.response;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.usrz.libs.riak.PartialResponse;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.serializers.MapperSerializer;
+import org.usrz.libs.riak.serializers.Serializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
 
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
-public class JsonContentHandler<T> extends PipedContentHandler<T> {
+public class JsonContentHandler<T> extends QueuedContentHandler<T>
+implements InlineContentHandler<T> {
 
-    private final ObjectMapper mapper;
+    private final SerializerRegistry registry;
     private final Class<T> type;
 
+    private Serializer serializer;
+    private JsonTokenFeeder feeder;
+    private ByteArrayOutputStream pending;
+    private T value;
+
     public JsonContentHandler(ObjectMapper mapper, Class<T> type) {
-        if (mapper == null) throw new NullPointerException("Null object mapper");
+        this(new SerializerRegistry(new MapperSerializer(SerializerRegistry.JSON, mapper)), type);
+    }
+
+    public JsonContentHandler(SerializerRegistry registry, Class<T> type) {
+        if (registry == null) throw new NullPointerException("Null serializer registry");
         if (type == null) throw new NullPointerException("Null type");
-        this.mapper = mapper;
+        this.registry = registry;
         this.type = type;
     }
 
+    public Class<T> getType() {
+        return type;
+    }
+
+    public SerializerRegistry getSerializerRegistry() {
+        return registry;
+    }
+
+    private Serializer getSerializer(PartialResponse<T> partial) {
+        /* Decode whatever format the response says it's in */
+        if (serializer == null) serializer = registry.getSerializer(partial == null ? null : partial.getContentType());
+        return serializer;
+    }
+
     @Override
     protected T read(PartialResponse<T> partial, InputStream input)
     throws Exception {
 
+        final Serializer serializer = getSerializer(partial);
+        if (!(serializer instanceof MapperSerializer)) return serializer.read(input, type);
+        final ObjectMapper mapper = ((MapperSerializer) serializer).getObjectMapper();
+
         /* Use a MappingIterator, as we don't want to fail on empty JSON */
-        final JsonParser parser = mapper.getFactory().createParser(input);
+        final JsonParser parser = createParser(mapper.getFactory(), input);
         final MappingIterator<T> iterator = mapper.readValues(parser, type);
 
         /* Read only the first value, then close */
@@ -53,4 +90,51 @@ public class JsonContentHandler<T> extends PipedContentHandler<T> {
         /* Didn't even get the first value */
         return null;
     }
+
+    /* ====================================================================== */
+
+    @Override
+    public void feed(ByteBuffer buffer)
+    throws IOException {
+        if ((feeder == null) && (pending == null)) {
+            final Serializer serializer = getSerializer(getPartialResponse());
+
+            if ((serializer instanceof MapperSerializer) && ((MapperSerializer) serializer).canParseAsync()) {
+                final ObjectMapper mapper = ((MapperSerializer) serializer).getObjectMapper();
+                feeder = new JsonTokenFeeder(mapper.getFactory()) {
+                    @Override
+                    protected boolean value(TokenBuffer tokens)
+                    throws IOException {
+                        /* Read only the first value, then stop */
+                        value = mapper.readValue(tokens.asParser(mapper), type);
+                        return false;
+                    }
+                };
+            } else {
+                /* No non-blocking parser for this format, keep it for later */
+                pending = new ByteArrayOutputStream();
+            }
+        }
+
+        if (feeder != null) {
+            feeder.feed(buffer);
+        } else if (buffer.hasArray()) {
+            pending.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            pending.write(bytes, 0, bytes.length);
+        }
+    }
+
+    @Override
+    public Response<T> complete()
+    throws Exception {
+        /* Empty content is not a failure, just a null value */
+        if (feeder != null) feeder.end();
+        if ((pending != null) && (pending.size() > 0)) {
+            value = getSerializer(getPartialResponse()).read(new ByteArrayInputStream(pending.toByteArray()), type);
+        }
+        return new Response<T>(getPartialResponse(), value);
+    }
 }
@@ -0,0 +1,105 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+public abstract class JsonTokenFeeder {
+
+    private final ByteArrayFeeder feeder;
+    private final JsonParser parser;
+
+    private TokenBuffer tokens = null;
+    private byte[] scratch = null;
+    private boolean done = false;
+    private int depth = 0;
+
+    protected JsonTokenFeeder(JsonFactory factory)
+    throws IOException {
+        if (factory == null) throw new NullPointerException("Null factory");
+        parser = factory.createNonBlockingByteArrayParser();
+        feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /* ====================================================================== */
+
+    public void feed(ByteBuffer buffer)
+    throws IOException {
+        if (done || (!buffer.hasRemaining())) return;
+
+        if (buffer.hasArray()) {
+            /* No copies, the parser consumes everything before we return */
+            final int offset = buffer.arrayOffset() + buffer.position();
+            feeder.feedInput(buffer.array(), offset, offset + buffer.remaining());
+        } else {
+            /* Direct buffer, copy it in our scratch array */
+            final int length = buffer.remaining();
+            if ((scratch == null) || (scratch.length < length)) scratch = new byte[length];
+            buffer.duplicate().get(scratch, 0, length);
+            feeder.feedInput(scratch, 0, length);
+        }
+
+        drain();
+    }
+
+    public void end()
+    throws IOException {
+        if (done) return;
+        feeder.endOfInput();
+        drain();
+        done = true;
+        parser.close();
+        if (tokens != null) throw new EOFException("Truncated JSON content");
+    }
+
+    /* ====================================================================== */
+
+    private void drain()
+    throws IOException {
+        JsonToken token;
+        while ((!done) && ((token = parser.nextToken()) != null)) {
+            if (token == JsonToken.NOT_AVAILABLE) return;
+
+            if (tokens == null) tokens = new TokenBuffer(parser);
+            tokens.copyCurrentEvent(parser);
+
+            if (token.isStructStart()) depth ++;
+            else if (token.isStructEnd()) depth --;
+            if (depth > 0) continue;
+
+            /* A root-level value was fully parsed */
+            final TokenBuffer value = tokens;
+            tokens = null;
+            if (value(value)) continue;
+
+            /* No more values wanted, ignore whatever comes next */
+            done = true;
+            parser.close();
+        }
+    }
+
+    protected abstract boolean value(TokenBuffer tokens)
+    throws IOException;
+
+}
@@ -0,0 +1,66 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.util.List;
+
+import org.usrz.libs.riak.PartialResponse;
+import org.usrz.libs.utils.futures.Puttable;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MapReduceContentHandler<R> extends ChunkedContentHandler<R, MapReduceContentHandler<R>> {
+
+    private final ObjectMapper mapper;
+    private final Class<R> type;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public MapReduceContentHandler(ObjectMapper mapper, Class<R> type, Puttable<R> puttable) {
+        super(mapper, puttable, (Class) MapReduceChunk.class);
+        if (type == null) throw new NullPointerException("Null type");
+        this.mapper = mapper;
+        this.type = type;
+    }
+
+    /* Results of all kept phases go to the same stream, as the same type */
+    @JsonIgnoreProperties("phase")
+    public static final class MapReduceChunk<R> extends Chunk<R, MapReduceContentHandler<R>> {
+
+        private final List<JsonNode> data;
+
+        public MapReduceChunk(@JsonProperty("data") List<JsonNode> data) {
+            this.data = data;
+        }
+
+        @Override
+        public boolean putAll(PartialResponse<Boolean> partial, MapReduceContentHandler<R> handler) {
+            if (data != null) for (JsonNode node: data) try {
+                if (handler.put(handler.mapper.treeToValue(node, handler.type))) continue;
+                return false;
+            } catch (JsonProcessingException exception) {
+                handler.fail(exception);
+                return false;
+            }
+            return true;
+        }
+
+    }
+
+}
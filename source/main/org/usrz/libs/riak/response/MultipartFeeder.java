@@ -0,0 +1,200 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+public abstract class MultipartFeeder {
+
+    private enum State { PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE }
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final byte[] delimiter;
+
+    private Map<String, String> headers;
+    private State state = State.PREAMBLE;
+    private byte[] buffer = new byte[4096];
+    private int start = 0;
+    private int end = 0;
+
+    protected MultipartFeeder(String boundary) {
+        if (boundary == null) throw new NullPointerException("Null boundary");
+        if (boundary.length() == 0) throw new IllegalArgumentException("Empty boundary");
+        delimiter = ("\r\n--" + boundary).getBytes(ISO_8859_1);
+
+        /* The first delimiter might not be preceded by CRLF, fake one */
+        buffer[end ++] = '\r';
+        buffer[end ++] = '\n';
+    }
+
+    public static String getBoundary(String contentType) {
+        if (contentType == null) return null;
+        if (!contentType.trim().toLowerCase().startsWith("multipart/")) return null;
+
+        for (String parameter: contentType.split(";")) {
+            final int equals = parameter.indexOf('=');
+            if (equals < 0) continue;
+            if (!parameter.substring(0, equals).trim().equalsIgnoreCase("boundary")) continue;
+
+            String boundary = parameter.substring(equals + 1).trim();
+            if ((boundary.length() > 1) && boundary.startsWith("\"") && boundary.endsWith("\""))
+                boundary = boundary.substring(1, boundary.length() - 1);
+            return boundary.length() == 0 ? null : boundary;
+        }
+        return null;
+    }
+
+    /* ====================================================================== */
+
+    public void feed(ByteBuffer input)
+    throws IOException {
+        if ((state == State.EPILOGUE) || (!input.hasRemaining())) return;
+
+        /* Make room for the new data, compacting or growing our buffer */
+        final int length = input.remaining();
+        if (end + length > buffer.length) {
+            final int used = end - start;
+            final byte[] target = used + length > buffer.length ?
+                                      new byte[Math.max(buffer.length * 2, used + length)] :
+                                      buffer;
+            System.arraycopy(buffer, start, target, 0, used);
+            buffer = target;
+            start = 0;
+            end = used;
+        }
+
+        input.duplicate().get(buffer, end, length);
+        end += length;
+        process();
+    }
+
+    public void end()
+    throws IOException {
+        if (state != State.EPILOGUE) throw new EOFException("Truncated multipart content");
+    }
+
+    /* ====================================================================== */
+
+    protected abstract void part(Map<String, String> headers)
+    throws IOException;
+
+    protected abstract void body(ByteBuffer buffer)
+    throws IOException;
+
+    protected void partComplete()
+    throws IOException {
+        /* Do nothing by default */
+    }
+
+    /* ====================================================================== */
+
+    private void process()
+    throws IOException {
+        while (true) switch (state) {
+
+            case PREAMBLE: {
+                final int index = indexOf(delimiter, start);
+                if (index < 0) {
+                    /* Keep enough for a delimiter split across buffers */
+                    start = Math.max(start, end - delimiter.length + 1);
+                    return;
+                }
+                start = index + delimiter.length;
+                state = State.DELIMITER;
+                break;
+            }
+
+            case DELIMITER: {
+                if (end - start < 2) return;
+                if ((buffer[start] == '-') && (buffer[start + 1] == '-')) {
+                    /* Close delimiter, anything else is epilogue */
+                    state = State.EPILOGUE;
+                    start = end;
+                    return;
+                }
+                final int eol = indexOf(CRLF, start);
+                if (eol < 0) return;
+                headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                start = eol + 2;
+                state = State.HEADERS;
+                break;
+            }
+
+            case HEADERS: {
+                final int eol = indexOf(CRLF, start);
+                if (eol < 0) return;
+                if (eol == start) {
+                    /* Empty line, headers are done */
+                    start += 2;
+                    state = State.BODY;
+                    part(headers);
+                    break;
+                }
+
+                final String line = new String(buffer, start, eol - start, ISO_8859_1);
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    final String name = line.substring(0, colon).trim();
+                    final String value = line.substring(colon + 1).trim();
+                    final String previous = headers.get(name);
+                    headers.put(name, previous == null ? value : previous + ", " + value);
+                }
+                start = eol + 2;
+                break;
+            }
+
+            case BODY: {
+                final int index = indexOf(delimiter, start);
+                if (index < 0) {
+                    /* Emit what can not be part of a delimiter */
+                    final int safe = end - delimiter.length + 1;
+                    if (safe > start) {
+                        body(ByteBuffer.wrap(buffer, start, safe - start));
+                        start = safe;
+                    }
+                    return;
+                }
+                if (index > start) body(ByteBuffer.wrap(buffer, start, index - start));
+                start = index + delimiter.length;
+                state = State.DELIMITER;
+                partComplete();
+                break;
+            }
+
+            default:
+                start = end;
+                return;
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        final int last = end - pattern.length;
+        search: for (int x = from; x <= last; x ++) {
+            for (int y = 0; y < pattern.length; y ++) {
+                if (buffer[x + y] != pattern[y]) continue search;
+            }
+            return x;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,177 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.PartialResponse;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.SiblingResolver;
+import org.usrz.libs.riak.SiblingsException;
+import org.usrz.libs.riak.serializers.MapperSerializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Parses all siblings from a "multipart/mixed" 300 response and merges
+ * them with a resolver. The returned response keeps the 300 status, so
+ * callers can tell a resolution happened, and its vector clock covers all
+ * the siblings, ready to be used when writing the merged value back.
+ * The outcome of the write back goes to its listener, if any.
+ */
+public class MultipartSiblingsContentHandler<T> extends QueuedContentHandler<T> {
+
+    private static final Log log = new Log();
+
+    private final ResponseListener<T> listener;
+    private final SiblingResolver<T> resolver;
+    private final SerializerRegistry registry;
+    private final boolean writeBack;
+    private final Class<T> type;
+
+    public MultipartSiblingsContentHandler(ObjectMapper mapper, Class<T> type, SiblingResolver<T> resolver, boolean writeBack) {
+        this(new SerializerRegistry(new MapperSerializer(SerializerRegistry.JSON, mapper)), type, resolver, writeBack, null);
+    }
+
+    public MultipartSiblingsContentHandler(SerializerRegistry registry, Class<T> type, SiblingResolver<T> resolver, boolean writeBack) {
+        this(registry, type, resolver, writeBack, null);
+    }
+
+    public MultipartSiblingsContentHandler(SerializerRegistry registry, Class<T> type, SiblingResolver<T> resolver, boolean writeBack, ResponseListener<T> listener) {
+        if (registry == null) throw new NullPointerException("Null serializer registry");
+        if (type == null) throw new NullPointerException("Null type");
+        if (resolver == null) throw new NullPointerException("Null resolver");
+        this.writeBack = writeBack;
+        this.listener = listener;
+        this.resolver = resolver;
+        this.registry = registry;
+        this.type = type;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    protected T read(final PartialResponse<T> partial, InputStream input)
+    throws Exception {
+        final Key key = partial.getKey();
+        if (key == null) throw new NullPointerException("Null key parsing siblings");
+
+        final String boundary = MultipartFeeder.getBoundary(partial.getContentType());
+        if (boundary == null) throw new IOException("Siblings response for " + key.getLocation() + " is not multipart");
+
+        /* Read all our siblings */
+        final List<Response<T>> siblings = new ArrayList<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final MultipartFeeder feeder = new MultipartFeeder(boundary) {
+
+            private SiblingPartialResponse<T> sibling;
+
+            @Override
+            protected void part(Map<String, String> headers) {
+                sibling = new SiblingPartialResponse<>(partial, headers);
+                body.reset();
+            }
+
+            @Override
+            protected void body(ByteBuffer buffer) {
+                body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+
+            @Override
+            protected void partComplete()
+            throws IOException {
+                /* Tombstones have nothing to merge */
+                if (sibling.isDeleted()) return;
+                /* Each sibling is decoded according to its own content type */
+                final T content = body.size() == 0 ? null : registry.getSerializer(sibling.getContentType())
+                                                                    .read(new ByteArrayInputStream(body.toByteArray()), type);
+                siblings.add(new Response<T>(sibling, content));
+            }
+        };
+
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) feeder.feed(ByteBuffer.wrap(buffer, 0, read));
+        feeder.end();
+
+        return resolve(partial, siblings);
+    }
+
+    /**
+     * Resolve siblings already parsed (for example, by a client not using
+     * multipart responses), writing the merged value back if configured.
+     */
+    public T resolve(PartialResponse<T> partial, List<Response<T>> siblings)
+    throws Exception {
+        final Key key = partial.getKey();
+        if (key == null) throw new NullPointerException("Null key resolving siblings");
+
+        /* Merge them, or fail as if we had no resolver */
+        final T resolved = siblings.isEmpty() ? null : resolver.resolve(key, siblings);
+        if (resolved == null) {
+            final Set<String> vtags = new HashSet<>();
+            for (Response<T> sibling: siblings) if (sibling.getETag() != null) vtags.add(sibling.getETag());
+            throw new SiblingsException(key, vtags);
+        }
+
+        if (writeBack) writeBack(partial, key, resolved);
+        return resolved;
+    }
+
+    private void writeBack(final PartialResponse<T> partial, final Key key, T resolved) {
+        try {
+            partial.getRiakClient().store(key, resolved)
+                                   .setVectorClock(partial.getVectorClock())
+                                   .setReturnBody(false)
+                                   .execute()
+                                   .addListener(new ResponseListener<T>() {
+
+                                       @Override
+                                       public void responseHandled(ResponseEvent<T> event) {
+                                           if (listener != null) listener.responseHandled(event);
+                                       }
+
+                                       @Override
+                                       public void responseFailed(ResponseEvent<T> event) {
+                                           failed(key, event);
+                                       }
+                                   });
+        } catch (Throwable throwable) {
+            failed(key, new ResponseEvent<T>(partial.getRiakClient(), throwable));
+        }
+    }
+
+    private void failed(Key key, ResponseEvent<T> event) {
+        if (listener != null) listener.responseFailed(event);
+        else log.warn("Unable to write back resolved siblings for %s: %s", key.getLocation(), event.getThrowable());
+    }
+}
@@ -17,12 +17,12 @@ package org.usrz.libs.riak.response;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
-import org.usrz.libs.riak.ContentHandler;
 import org.usrz.libs.riak.PartialResponse;
 import org.usrz.libs.riak.Response;
 
-public class NullContentHandler<T> implements ContentHandler<T> {
+public class NullContentHandler<T> implements InlineContentHandler<T> {
 
     private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
         @Override public void write(int b) {}
@@ -46,6 +46,17 @@ public class NullContentHandler<T> implements ContentHandler<T> {
         return NULL_OUTPUT_STREAM;
     }
 
+    @Override
+    public void feed(ByteBuffer buffer) {
+        /* Discard */
+    }
+
+    @Override
+    public Response<T> complete()
+    throws Exception {
+        return call();
+    }
+
     @Override
     public final Response<T> call()
     throws Exception {
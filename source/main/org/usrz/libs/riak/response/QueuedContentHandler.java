@@ -0,0 +1,332 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.usrz.libs.riak.ContentHandler;
+import org.usrz.libs.riak.PartialResponse;
+import org.usrz.libs.riak.Response;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+public abstract class QueuedContentHandler<T> implements ContentHandler<T> {
+
+    /* Above this many queued bytes, streaming producers should pause... */
+    private static final int HIGH_WATER_MARK = 1024 * 1024;
+    /* ...until the consumer brings the queue down to this many */
+    private static final int LOW_WATER_MARK = HIGH_WATER_MARK / 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    private PartialResponse<T> partial;
+    private Runnable writableListener;
+    private boolean discarding = false;
+    private boolean throttled = false;
+    private boolean closed = false;
+    private long queued = 0;
+
+    protected QueuedContentHandler() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    protected final PartialResponse<T> getPartialResponse() {
+        return partial;
+    }
+
+    /**
+     * Set a {@link Runnable} to be invoked (once) when a producer, told to
+     * pause by {@link #offer(ByteBuffer)}, can resume offering content.
+     */
+    public QueuedContentHandler<T> setWritableListener(Runnable writableListener) {
+        lock.lock();
+        try {
+            this.writableListener = writableListener;
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream(PartialResponse<T> partial)
+    throws IllegalStateException, IOException {
+        if (this.partial != null) throw new IllegalStateException();
+        this.partial = partial;
+
+        /* Callers of "write(byte[]...)" may reuse their arrays, copy them */
+        return new OutputStream() {
+
+            @Override
+            public void write(int b)
+            throws IOException {
+                offer(ByteBuffer.wrap(new byte[] { (byte) b }));
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            throws IOException {
+                if (len > 0) offer(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            }
+
+            @Override
+            public void close() {
+                QueuedContentHandler.this.close();
+            }
+        };
+    }
+
+    /**
+     * Queue the specified buffer, never waiting.
+     *
+     * <p>This returns <b>false</b> when a streaming consumer starts falling
+     * behind: the producer should then pause (for example, stop reading
+     * from its socket) until the {@linkplain #setWritableListener(Runnable)
+     * writable listener} is invoked, exactly once, for each pause.</p>
+     */
+    public boolean offer(ByteBuffer buffer)
+    throws IOException {
+        if (!buffer.hasRemaining()) return true;
+
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Content handler closed");
+
+            /* The consumer might have given up already */
+            if (discarding) return true;
+
+            queued += buffer.remaining();
+            buffers.add(buffer);
+            readable.signal();
+
+            /* Only streaming handlers are read while content is received */
+            if (throttled || (!isStreaming()) || (queued < HIGH_WATER_MARK)) return true;
+            throttled = true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Call with the lock held, run what's returned once unlocked */
+    private Runnable drained() {
+        if ((!throttled) || ((queued > LOW_WATER_MARK) && (!discarding))) return null;
+        throttled = false;
+        return writableListener;
+    }
+
+    private static void resume(Runnable listener) {
+        if (listener != null) listener.run();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public Response<T> call()
+    throws Exception {
+        final InputStream input = new QueueInputStream();
+        try {
+            return new Response<T>(partial, read(partial, input));
+        } finally {
+            input.close();
+        }
+    }
+
+    protected abstract T read(PartialResponse<T> partial, InputStream input)
+    throws Exception;
+
+    /**
+     * Take the next whole buffer off the queue, waiting for it to arrive,
+     * or return <b>null</b> once all content was consumed.
+     */
+    protected final ByteBuffer poll()
+    throws IOException {
+        Runnable listener = null;
+        lock.lock();
+        try {
+            while (true) {
+                final ByteBuffer buffer = buffers.poll();
+                if (buffer != null) {
+                    if (!buffer.hasRemaining()) continue;
+                    queued -= buffer.remaining();
+                    listener = drained();
+                    return buffer;
+                }
+                if (closed) return null;
+                readable.await();
+            }
+        } catch (InterruptedException exception) {
+            throw new InterruptedIOException("Interrupted waiting for content");
+        } finally {
+            lock.unlock();
+            resume(listener);
+        }
+    }
+
+    /**
+     * Write all content to the given channel as it arrives, without copying
+     * it through intermediate arrays.
+     */
+    protected final long transferTo(WritableByteChannel channel)
+    throws IOException {
+        long transferred = 0;
+        for (ByteBuffer buffer = poll(); buffer != null; buffer = poll()) {
+            while (buffer.hasRemaining()) transferred += channel.write(buffer);
+        }
+        return transferred;
+    }
+
+    /* ====================================================================== */
+
+    protected JsonParser createParser(JsonFactory factory, InputStream input)
+    throws IOException {
+
+        /* All content in a single array-backed buffer? Parse it in place */
+        lock.lock();
+        try {
+            if (closed && (buffers.size() == 1)) {
+                final ByteBuffer buffer = buffers.peek();
+                if (buffer.hasArray()) {
+                    buffers.clear();
+                    queued = 0;
+                    return factory.createParser(buffer.array(),
+                                                buffer.arrayOffset() + buffer.position(),
+                                                buffer.remaining());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        /* Multiple buffers, or still receiving, read from the queue */
+        return factory.createParser(input);
+    }
+
+    /* ====================================================================== */
+
+    private final class QueueInputStream extends InputStream {
+
+        private ByteBuffer next()
+        throws IOException {
+            try {
+                while (true) {
+                    final ByteBuffer buffer = buffers.peek();
+                    if (buffer != null) {
+                        if (buffer.hasRemaining()) return buffer;
+                        buffers.remove();
+                        continue;
+                    }
+                    if (closed) return null;
+                    readable.await();
+                }
+            } catch (InterruptedException exception) {
+                throw new InterruptedIOException("Interrupted waiting for content");
+            }
+        }
+
+        @Override
+        public int read()
+        throws IOException {
+            Runnable listener = null;
+            lock.lock();
+            try {
+                final ByteBuffer buffer = next();
+                if (buffer == null) return -1;
+                queued -= 1;
+                listener = drained();
+                return buffer.get() & 0x0FF;
+            } finally {
+                lock.unlock();
+                resume(listener);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        throws IOException {
+            if (len == 0) return 0;
+            Runnable listener = null;
+            lock.lock();
+            try {
+                final ByteBuffer buffer = next();
+                if (buffer == null) return -1;
+                final int read = Math.min(len, buffer.remaining());
+                buffer.get(b, off, read);
+                queued -= read;
+                listener = drained();
+                return read;
+            } finally {
+                lock.unlock();
+                resume(listener);
+            }
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return (int) Math.min(queued, Integer.MAX_VALUE);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            Runnable listener = null;
+            lock.lock();
+            try {
+                /* Discard whatever is left, and resume any paused producer */
+                buffers.clear();
+                queued = 0;
+                discarding = true;
+                listener = drained();
+            } finally {
+                lock.unlock();
+                resume(listener);
+            }
+        }
+    }
+}
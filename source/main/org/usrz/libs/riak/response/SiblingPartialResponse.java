@@ -0,0 +1,99 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import static com.ning.http.util.DateUtil.parseDate;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.usrz.libs.riak.AbstractPartialResponse;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.PartialResponse;
+
+public class SiblingPartialResponse<T> extends AbstractPartialResponse<T> {
+
+    private final PartialResponse<T> parent;
+    private final Map<String, String> headers;
+    private final Date lastModified;
+
+    public SiblingPartialResponse(PartialResponse<T> parent, Map<String, String> headers) {
+        super(parent.getRiakClient(), lists(headers), 200);
+        this.headers = headers;
+        this.parent = parent;
+
+        /* Set up our last modified date */
+        Date lastModified = null;
+        try {
+            final String text = headers.get("Last-Modified");
+            lastModified = text == null ? null : parseDate(text);
+        } catch (Exception exception) {
+            lastModified = null; /* Invalid format, just set to null */
+        } finally {
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static Map<String, List<String>> lists(Map<String, String> headers) {
+        final Map<String, List<String>> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Entry<String, String> header: headers.entrySet())
+            map.put(header.getKey(), Collections.singletonList(header.getValue()));
+        return map;
+    }
+
+    /* ====================================================================== */
+
+    public boolean isDeleted() {
+        return "true".equalsIgnoreCase(headers.get("X-Riak-Deleted"));
+    }
+
+    @Override
+    public String getLocation() {
+        return parent.getLocation();
+    }
+
+    /* Siblings share the vector clock of the response they came in */
+    @Override
+    public String getVectorClock() {
+        return parent.getVectorClock();
+    }
+
+    @Override
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getETag() {
+        final String eTag = headers.get("ETag");
+        return eTag != null ? eTag : headers.get("X-Riak-Vtag");
+    }
+
+    @Override
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    @Override
+    public Key getKey() {
+        return parent.getKey();
+    }
+
+}
@@ -25,7 +25,7 @@ import org.usrz.libs.riak.Key;
 import org.usrz.libs.riak.PartialResponse;
 import org.usrz.libs.riak.SiblingsException;
 
-public class SiblingsContentHandler<T> extends PipedContentHandler<T> {
+public class SiblingsContentHandler<T> extends QueuedContentHandler<T> {
 
     private static final Pattern WHITESPACE = Pattern.compile("\\s+");
 
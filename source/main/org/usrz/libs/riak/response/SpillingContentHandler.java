@@ -0,0 +1,135 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.riak.PartialResponse;
+
+/*
+ * Reads raw content in a heap buffer while small, and spills it to a
+ * temporary file (returned memory-mapped) once past a threshold, so that
+ * large values never end up on the heap. The temporary file is deleted
+ * right after it's mapped, and the mapping stays valid until collected.
+ * Where mapped files can not be deleted (Windows) it's left until exit.
+ */
+public class SpillingContentHandler extends QueuedContentHandler<ByteBuffer> {
+
+    private static final Log log = new Log();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final int threshold;
+    private final Path directory;
+
+    public SpillingContentHandler(int threshold) {
+        this(threshold, null);
+    }
+
+    public SpillingContentHandler(int threshold, Path directory) {
+        if (threshold < 0) throw new IllegalArgumentException("Negative threshold " + threshold);
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    protected ByteBuffer read(PartialResponse<ByteBuffer> partial, InputStream input)
+    throws Exception {
+        ByteBuffer heap = null;
+        FileChannel file = null;
+        Path temp = null;
+        long size = 0;
+
+        try {
+            for (ByteBuffer buffer = poll(); buffer != null; buffer = poll()) {
+                final int length = buffer.remaining();
+
+                /* Still small enough to keep on the heap */
+                if ((file == null) && (size + length <= threshold)) {
+                    heap = append(heap, buffer);
+                    size += length;
+                    continue;
+                }
+
+                /* Too big, move what we have to a temporary file */
+                if (file == null) {
+                    temp = directory == null ? Files.createTempFile("riak-", ".tmp") :
+                                               Files.createTempFile(directory, "riak-", ".tmp");
+                    file = FileChannel.open(temp, READ, WRITE);
+                    if (heap != null) {
+                        heap.flip();
+                        while (heap.hasRemaining()) file.write(heap);
+                        heap = null;
+                    }
+                }
+
+                while (buffer.hasRemaining()) file.write(buffer);
+                size += length;
+            }
+
+            if (file == null) {
+                if (heap == null) return EMPTY;
+                heap.flip();
+                return heap;
+            }
+
+            if (size > Integer.MAX_VALUE) throw new IOException("Content too big to map (" + size + " bytes)");
+            return file.map(MapMode.READ_ONLY, 0, size);
+
+        } finally {
+            if (file != null) file.close();
+            if (temp != null) delete(temp);
+        }
+    }
+
+    private void delete(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException | RuntimeException exception) {
+            log.warn("Unable to delete temporary file %s, deleting on exit: %s", temp, exception);
+            temp.toFile().deleteOnExit();
+        }
+    }
+
+    private ByteBuffer append(ByteBuffer heap, ByteBuffer buffer) {
+        final int length = buffer.remaining();
+        if ((heap == null) || (heap.remaining() < length)) {
+            final int position = heap == null ? 0 : heap.position();
+            final int capacity = Math.min(threshold, Math.max(position + length, position * 2));
+            final ByteBuffer grown = ByteBuffer.allocate(capacity);
+            if (heap != null) {
+                heap.flip();
+                grown.put(heap);
+            }
+            heap = grown;
+        }
+        return heap.put(buffer);
+    }
+}
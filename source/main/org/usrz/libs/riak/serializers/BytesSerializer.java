@@ -0,0 +1,89 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.serializers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A {@link Serializer} for opaque content, read as a plain <code>byte[]</code>
+ * and written from a <code>byte[]</code>, a {@link Path} or a channel.
+ */
+public class BytesSerializer implements Serializer {
+
+    private final String contentType;
+
+    public BytesSerializer() {
+        this("application/octet-stream");
+    }
+
+    public BytesSerializer(String contentType) {
+        if (contentType == null) throw new NullPointerException("Null content type");
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public <T> T read(InputStream input, Class<T> type)
+    throws IOException {
+        if (!type.isAssignableFrom(byte[].class))
+            throw new IOException("Unable to read " + contentType + " as " + type.getName());
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+        return type.cast(output.toByteArray());
+    }
+
+    @Override
+    public void write(OutputStream output, Object value)
+    throws IOException {
+        if (value instanceof byte[]) {
+            output.write((byte[]) value);
+        } else if (value instanceof Path) {
+            Files.copy((Path) value, output);
+        } else if (value instanceof ReadableByteChannel) {
+            final ReadableByteChannel channel = (ReadableByteChannel) value;
+            final ByteBuffer buffer = ByteBuffer.allocate(8192);
+            while (channel.read(buffer) >= 0) {
+                output.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } else {
+            throw new IOException("Unable to write " + value.getClass().getName() + " as " + contentType);
+        }
+    }
+
+    /**
+     * Check whether the given value is raw content (a file or a channel)
+     * to be streamed as it is, rather than serialized.
+     */
+    public static boolean isRaw(Object value) {
+        return (value instanceof Path) || (value instanceof ReadableByteChannel);
+    }
+
+}
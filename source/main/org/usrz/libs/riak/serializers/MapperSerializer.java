@@ -0,0 +1,68 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.serializers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A {@link Serializer} for any format Jackson has a factory for (JSON,
+ * Smile, CBOR, ...).
+ */
+public class MapperSerializer implements Serializer {
+
+    private final String contentType;
+    private final ObjectMapper mapper;
+
+    public MapperSerializer(String contentType, ObjectMapper mapper) {
+        if (contentType == null) throw new NullPointerException("Null content type");
+        if (mapper == null) throw new NullPointerException("Null object mapper");
+        this.contentType = contentType;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return mapper;
+    }
+
+    /**
+     * Check whether content can be parsed as it arrives, without blocking.
+     */
+    public boolean canParseAsync() {
+        return mapper.getFactory().canParseAsync();
+    }
+
+    @Override
+    public <T> T read(InputStream input, Class<T> type)
+    throws IOException {
+        return mapper.readValue(input, type);
+    }
+
+    @Override
+    public void write(OutputStream output, Object value)
+    throws IOException {
+        mapper.writeValue(output, value);
+    }
+
+}
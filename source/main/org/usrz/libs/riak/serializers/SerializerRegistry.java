@@ -0,0 +1,129 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.serializers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.usrz.libs.riak.Bucket;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * A registry of {@link Serializer}s keyed by <code>Content-Type</code>.
+ *
+ * <p>Responses are decoded with the serializer matching their own
+ * <code>Content-Type</code>, so buckets holding a mix of formats can be
+ * read at any time. Writes use the content type requested explicitly,
+ * then the one configured for the bucket, and finally the default.</p>
+ */
+public class SerializerRegistry {
+
+    public static final String JSON = "application/json";
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+    public static final String BYTES = "application/octet-stream";
+
+    private final ConcurrentMap<String, Serializer> serializers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Serializer> buckets = new ConcurrentHashMap<>();
+    private volatile Serializer defaultSerializer;
+
+    /**
+     * Create a registry for JSON, Smile, CBOR and raw bytes, where the
+     * binary formats share the configuration of the given JSON mapper.
+     */
+    public SerializerRegistry(ObjectMapper mapper) {
+        this(new MapperSerializer(JSON, mapper));
+        register(new MapperSerializer(SMILE, derive(mapper, new SmileFactory())));
+        register(new MapperSerializer(CBOR, derive(mapper, new CBORFactory())));
+        register(new BytesSerializer(BYTES));
+    }
+
+    /**
+     * Create a registry knowing only about the given default serializer.
+     */
+    public SerializerRegistry(Serializer defaultSerializer) {
+        if (defaultSerializer == null) throw new NullPointerException("Null default serializer");
+        register(defaultSerializer);
+        this.defaultSerializer = defaultSerializer;
+    }
+
+    /* A full copy, keeping modules and custom (de)serializers, not just the configs */
+    private static ObjectMapper derive(ObjectMapper mapper, JsonFactory factory) {
+        return mapper.copyWith(factory);
+    }
+
+    private static String normalize(String contentType) {
+        if (contentType == null) throw new NullPointerException("Null content type");
+        final int parameters = contentType.indexOf(';');
+        return (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim().toLowerCase();
+    }
+
+    /* ====================================================================== */
+
+    public SerializerRegistry register(Serializer serializer) {
+        if (serializer == null) throw new NullPointerException("Null serializer");
+        serializers.put(normalize(serializer.getContentType()), serializer);
+        return this;
+    }
+
+    public SerializerRegistry setDefaultContentType(String contentType) {
+        defaultSerializer = get(contentType);
+        return this;
+    }
+
+    public SerializerRegistry setContentType(Bucket bucket, String contentType) {
+        if (bucket == null) throw new NullPointerException("Null bucket");
+        if (contentType == null) buckets.remove(bucket.getName());
+        else buckets.put(bucket.getName(), get(contentType));
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    public Serializer getDefaultSerializer() {
+        return defaultSerializer;
+    }
+
+    /**
+     * Return the serializer to decode content of the given type, falling
+     * back to the default one when the type is missing or unknown.
+     */
+    public Serializer getSerializer(String contentType) {
+        if (contentType == null) return defaultSerializer;
+        final Serializer serializer = serializers.get(normalize(contentType));
+        return serializer == null ? defaultSerializer : serializer;
+    }
+
+    /**
+     * Return the serializer to write into the given bucket, either the one
+     * for the content type requested (if any) or the bucket's own.
+     */
+    public Serializer getSerializer(Bucket bucket, String contentType) {
+        if (contentType != null) return get(contentType);
+        final Serializer serializer = bucket == null ? null : buckets.get(bucket.getName());
+        return serializer == null ? defaultSerializer : serializer;
+    }
+
+    private Serializer get(String contentType) {
+        final Serializer serializer = serializers.get(normalize(contentType));
+        if (serializer == null) throw new IllegalArgumentException("No serializer registered for " + contentType);
+        return serializer;
+    }
+}
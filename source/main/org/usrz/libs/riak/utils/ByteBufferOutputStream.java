@@ -0,0 +1,115 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+public class ByteBufferOutputStream extends OutputStream {
+
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final ByteBufferPool pool;
+    private ByteBuffer current = null;
+    private boolean closed = false;
+    private long size = 0;
+
+    public ByteBufferOutputStream(ByteBufferPool pool) {
+        if (pool == null) throw new NullPointerException("Null pool");
+        this.pool = pool;
+    }
+
+    /* ====================================================================== */
+
+    private ByteBuffer current()
+    throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if ((current == null) || (!current.hasRemaining())) {
+            current = pool.acquire();
+            buffers.add(current);
+        }
+        return current;
+    }
+
+    @Override
+    public void write(int b)
+    throws IOException {
+        current().put((byte) b);
+        size ++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    throws IOException {
+        while (len > 0) {
+            final ByteBuffer buffer = current();
+            final int written = Math.min(len, buffer.remaining());
+            buffer.put(b, off, written);
+            size += written;
+            off += written;
+            len -= written;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (ByteBuffer buffer: buffers) buffer.flip();
+        current = null;
+    }
+
+    /* ====================================================================== */
+
+    public long size() {
+        return size;
+    }
+
+    public int drainTo(ByteBuffer target) {
+        if (!closed) throw new IllegalStateException("Stream not closed");
+
+        int drained = 0;
+        while (target.hasRemaining()) {
+            final ByteBuffer buffer = buffers.peek();
+            if (buffer == null) break;
+
+            if (buffer.remaining() <= target.remaining()) {
+                drained += buffer.remaining();
+                target.put(buffer);
+                pool.release(buffers.remove());
+            } else {
+                final ByteBuffer slice = buffer.duplicate();
+                slice.limit(slice.position() + target.remaining());
+                drained += slice.remaining();
+                target.put(slice);
+                buffer.position(slice.position());
+            }
+        }
+        return drained;
+    }
+
+    public boolean isDrained() {
+        return closed && buffers.isEmpty();
+    }
+
+    public void release() {
+        closed = true;
+        while (!buffers.isEmpty()) pool.release(buffers.remove());
+        current = null;
+    }
+}
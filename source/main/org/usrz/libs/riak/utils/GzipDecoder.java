@@ -0,0 +1,198 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.utils;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An incremental decoder for <code>gzip</code> content, decompressing
+ * buffers as they arrive rather than waiting for the whole stream.
+ *
+ * <p>Instances are not thread safe, and must be {@linkplain #close() closed}
+ * to release the native resources of the underlying {@link Inflater}.</p>
+ */
+public class GzipDecoder {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    private enum State { HEADER, EXTRA_LENGTH, EXTRA, NAME, COMMENT, HEADER_CRC, DATA, TRAILER }
+
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[10];
+    private State state = State.HEADER;
+    private byte[] scratch = null;
+    private boolean member = false;
+    private int position = 0;
+    private int flags = 0;
+
+    public GzipDecoder() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Consume all of the given compressed input, returning whatever could
+     * be decompressed from it (possibly nothing at all).
+     */
+    public ByteBuffer decode(ByteBuffer input)
+    throws ZipException {
+        byte[] output = null;
+        int length = 0;
+
+        while (input.hasRemaining()) switch (state) {
+
+            case HEADER:
+                member = true;
+                header[position ++] = input.get();
+                if (position < 10) continue;
+
+                if (((header[0] & 0xFF) != 0x1F) || ((header[1] & 0xFF) != 0x8B))
+                    throw new ZipException("Not in GZIP format");
+                if (header[2] != 8)
+                    throw new ZipException("Unsupported compression method " + header[2]);
+
+                flags = header[3] & 0xFF;
+                state = next(State.HEADER);
+                continue;
+
+            case EXTRA_LENGTH:
+                header[position ++] = input.get();
+                if (position < 2) continue;
+                position = (header[0] & 0xFF) | ((header[1] & 0xFF) << 8);
+                state = position > 0 ? State.EXTRA : next(State.EXTRA);
+                continue;
+
+            case EXTRA:
+                final int skip = Math.min(position, input.remaining());
+                input.position(input.position() + skip);
+                position -= skip;
+                if (position == 0) state = next(State.EXTRA);
+                continue;
+
+            case NAME:
+            case COMMENT:
+                if (input.get() == 0) state = next(state);
+                continue;
+
+            case HEADER_CRC:
+                input.get();
+                if (++ position < 2) continue;
+                state = next(State.HEADER_CRC);
+                continue;
+
+            case DATA:
+                final int count = input.remaining();
+                if (input.hasArray()) {
+                    inflater.setInput(input.array(), input.arrayOffset() + input.position(), count);
+                } else {
+                    if ((scratch == null) || (scratch.length < count)) scratch = new byte[count];
+                    input.duplicate().get(scratch, 0, count);
+                    inflater.setInput(scratch, 0, count);
+                }
+
+                if (output == null) output = new byte[Math.max(1024, count * 4)];
+                try {
+                    while (true) {
+                        if (length == output.length) output = Arrays.copyOf(output, output.length * 2);
+                        final int inflated = inflater.inflate(output, length, output.length - length);
+                        crc.update(output, length, inflated);
+                        length += inflated;
+                        if (inflater.finished() || inflater.needsDictionary()) break;
+                        if ((inflated == 0) && inflater.needsInput()) break;
+                    }
+                } catch (DataFormatException exception) {
+                    final ZipException zip = new ZipException("Invalid GZIP content");
+                    zip.initCause(exception);
+                    throw zip;
+                }
+
+                if (inflater.needsDictionary()) throw new ZipException("GZIP content requires a dictionary");
+                input.position(input.position() + count - inflater.getRemaining());
+                if (inflater.finished()) state = next(State.DATA);
+                continue;
+
+            case TRAILER:
+                header[position ++] = input.get();
+                if (position < 8) continue;
+
+                if (int32(0) != (int) crc.getValue())
+                    throw new ZipException("Corrupt GZIP trailer (CRC mismatch)");
+                if (int32(4) != (int) inflater.getBytesWritten())
+                    throw new ZipException("Corrupt GZIP trailer (size mismatch)");
+
+                /* Concatenated members are allowed, start over */
+                inflater.reset();
+                crc.reset();
+                member = false;
+                state = State.HEADER;
+                position = 0;
+                continue;
+        }
+
+        return output == null ? EMPTY : ByteBuffer.wrap(output, 0, length);
+    }
+
+    /**
+     * Verify that the compressed input was complete.
+     */
+    public void finish()
+    throws EOFException {
+        if (member) throw new EOFException("Truncated GZIP content");
+    }
+
+    /**
+     * Release the native resources associated with this decoder.
+     */
+    public void close() {
+        inflater.end();
+    }
+
+    /* ====================================================================== */
+
+    @SuppressWarnings("fallthrough")
+    private State next(State current) {
+        position = 0;
+        /* Optional header sections follow each other, falling through */
+        switch (current) {
+            case HEADER:     if ((flags & FEXTRA) != 0) return State.EXTRA_LENGTH;
+            case EXTRA:      if ((flags & FNAME) != 0) return State.NAME;
+            case NAME:       if ((flags & FCOMMENT) != 0) return State.COMMENT;
+            case COMMENT:    if ((flags & FHCRC) != 0) return State.HEADER_CRC;
+            case HEADER_CRC: return State.DATA;
+            default:         return State.TRAILER;
+        }
+    }
+
+    private int int32(int offset) {
+        return (header[offset]             & 0xFF)
+             | ((header[offset + 1] & 0xFF) << 8)
+             | ((header[offset + 2] & 0xFF) << 16)
+             | ((header[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -61,7 +61,10 @@ public final class RiakUtils {
          * - The space character " " is converted into a plus sign "+".
          */
 
-        final StringBuilder encoded = new StringBuilder(key.length());
+        /* Most keys need no escaping at all, return them as they are */
+        if (isUnreserved(key)) return key;
+
+        final StringBuilder encoded = new StringBuilder(key.length() + 16);
         for (byte b: key.getBytes(UTF8)) {
             if ((b == '.') || (b == '-') || (b == '*') || (b == '_') ||
                 ((b >= 'a') && (b <= 'z')) ||
@@ -79,9 +82,30 @@ public final class RiakUtils {
     }
 
     public static final String encode(Iterable<String> keys) {
-        final StringBuilder builder = new StringBuilder();
-        for (String key: keys) builder.append(", ").append(encode(key));
-        return builder.length() > 2 ? builder.substring(2) : "";
+        StringBuilder builder = null;
+        String first = null;
+        for (String key: keys) {
+            final String encoded = encode(key);
+            if (first == null) {
+                first = encoded;
+            } else {
+                if (builder == null) builder = new StringBuilder(first);
+                builder.append(", ").append(encoded);
+            }
+        }
+        return builder != null ? builder.toString() : first != null ? first : "";
+    }
+
+    private static final boolean isUnreserved(String key) {
+        for (int x = 0; x < key.length(); x ++) {
+            final char c = key.charAt(x);
+            if ((c == '.') || (c == '-') || (c == '*') || (c == '_') ||
+                ((c >= 'a') && (c <= 'z')) ||
+                ((c >= 'A') && (c <= 'Z')) ||
+                ((c >= '0') && (c <= '9'))) continue;
+            return false;
+        }
+        return true;
     }
 
 
@@ -0,0 +1,211 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.async.RiakNodePool;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class BatchFetchTest extends AbstractTest {
+
+    private ExecutorService executor;
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private RiakNodePool nodes;
+    private AsyncRiakClient client;
+    private Bucket bucket;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        /* A single thread: feeders holding it would starve their own fetches */
+        executor = Executors.newSingleThreadExecutor();
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        nodes = new RiakNodePool(emulator.getUrl());
+        client = new AsyncRiakClient(http, nodes, executor);
+        bucket = client.getBucket("batch");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        nodes.close();
+        http.close();
+        emulator.close();
+        executor.shutdown();
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testFetchAll()
+    throws Exception {
+        final List<Key> keys = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) {
+            bucket.store(new TestObject("value" + x), "key" + x).execute().get();
+            keys.add(new Key(bucket, "key" + x));
+        }
+
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Set<String> values = new ConcurrentSkipListSet<>();
+        for (Response<TestObject> response: client.fetchAll(keys, TestObject.class, 4, count(handled, failed)))
+            values.add(response.getContent().value);
+
+        assertEquals(values.size(), 100);
+        for (int x = 0; x < 100; x ++) assertTrue(values.contains("value" + x), "value" + x);
+        assertEquals(handled.get(), 100);
+        assertEquals(failed.get(), 0);
+    }
+
+    @Test(timeOut = 30000)
+    public void testFetchAllStreamed()
+    throws Exception {
+        for (int x = 0; x < 20; x ++) bucket.store(new TestObject("value" + x), "key" + x).execute().get();
+
+        /* Keys trickle in while our only thread would be feeding */
+        emulator.setLatency(500, TimeUnit.MILLISECONDS);
+
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Set<String> values = new ConcurrentSkipListSet<>();
+        for (Response<TestObject> response: client.fetchAll(bucket.getKeys(), TestObject.class, 4, count(handled, failed)))
+            values.add(response.getContent().value);
+
+        assertEquals(values.size(), 20);
+        for (int x = 0; x < 20; x ++) assertTrue(values.contains("value" + x), "value" + x);
+        assertEquals(handled.get(), 20);
+        assertEquals(failed.get(), 0);
+    }
+
+    @Test(timeOut = 30000)
+    public void testFailures()
+    throws Exception {
+        final List<Key> keys = new ArrayList<>();
+        for (int x = 0; x < 20; x ++) {
+            /* Every fourth one can not be parsed as a TestObject */
+            if ((x % 4) == 0) bucket.store(Integer.valueOf(x), "key" + x).execute().get();
+            else bucket.store(new TestObject("value" + x), "key" + x).execute().get();
+            keys.add(new Key(bucket, "key" + x));
+        }
+
+        final Set<Key> failures = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+        final ResponseListener<TestObject> listener = new ResponseListener<TestObject>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<TestObject> event) {
+                /* Nothing to do */
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<TestObject> event) {
+                failures.add(((KeyFailedException) event.getThrowable()).getKey());
+            }
+        };
+
+        int results = 0;
+        for (Response<TestObject> response: client.fetchAll(keys, TestObject.class, 3, listener)) {
+            assertNotNull(response.getContent());
+            results ++;
+        }
+
+        assertEquals(results, 15);
+        assertEquals(failures.size(), 5);
+        for (int x = 0; x < 20; x += 4) assertTrue(failures.contains(new Key(bucket, "key" + x)), "key" + x);
+    }
+
+    @Test(timeOut = 30000)
+    public void testFailuresWithoutListener()
+    throws Exception {
+        final List<Key> keys = new ArrayList<>();
+        for (int x = 0; x < 10; x ++) {
+            bucket.store(Integer.valueOf(x), "key" + x).execute().get();
+            keys.add(new Key(bucket, "key" + x));
+        }
+
+        /* Nothing comes back, but the batch still completes */
+        int results = 0;
+        for (@SuppressWarnings("unused") Response<TestObject> response: client.fetchAll(keys, TestObject.class)) results ++;
+        assertEquals(results, 0);
+    }
+
+    @Test(timeOut = 30000)
+    public void testConcurrentBatches()
+    throws Exception {
+        final List<Key> keys = new ArrayList<>();
+        for (int x = 0; x < 20; x ++) {
+            bucket.store(new TestObject("value" + x), "key" + x).execute().get();
+            keys.add(new Key(bucket, "key" + x));
+        }
+
+        final List<Iterable<Response<TestObject>>> batches = new ArrayList<>();
+        for (int x = 0; x < 8; x ++) batches.add(client.fetchAll(keys, TestObject.class, 2, null));
+
+        for (Iterable<Response<TestObject>> batch: batches) {
+            int results = 0;
+            for (@SuppressWarnings("unused") Response<TestObject> response: batch) results ++;
+            assertEquals(results, 20);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static <T> ResponseListener<T> count(final AtomicInteger handled, final AtomicInteger failed) {
+        return new ResponseListener<T>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<T> event) {
+                handled.incrementAndGet();
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<T> event) {
+                failed.incrementAndGet();
+            }
+        };
+    }
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.annotations.RiakKey;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.async.RiakNodePool;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.utils.futures.QueueingFuture;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.ning.http.client.AsyncHttpClient;
+
+public class BulkStoreTest extends AbstractTest {
+
+    private ExecutorService executor;
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private RiakNodePool nodes;
+    private AsyncRiakClient client;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        /* A single thread: feeders holding it would starve their own stores */
+        executor = Executors.newSingleThreadExecutor();
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        nodes = new RiakNodePool(emulator.getUrl());
+        client = new AsyncRiakClient(http, nodes, executor);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        nodes.close();
+        http.close();
+        emulator.close();
+        executor.shutdown();
+    }
+
+    private static List<TestObject> objects(int count) {
+        final List<TestObject> objects = new ArrayList<>(count);
+        for (int x = 0; x < count; x ++) objects.add(new TestObject("value" + x));
+        return objects;
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testStore()
+    throws Exception {
+        final AtomicLong inFlight = new AtomicLong();
+        final BulkStore<TestObject> store = client.bulkStore("bulk", objects(200)).setConcurrency(4);
+        store.setListener(new ResponseListener<TestObject>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<TestObject> event) {
+                final long current = store.getInFlightCount();
+                for (long max = inFlight.get(); (current > max) && (!inFlight.compareAndSet(max, current)); max = inFlight.get());
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<TestObject> event) {
+                fail("Store failed", event.getThrowable());
+            }
+        });
+
+        assertSame(store.execute().get(), store);
+        assertEquals(store.getSubmittedCount(), 200);
+        assertEquals(store.getSucceededCount(), 200);
+        assertEquals(store.getFailedCount(), 0);
+        assertEquals(store.getInFlightCount(), 0);
+        assertTrue(inFlight.get() <= 4, "In flight " + inFlight.get());
+        assertEquals(emulator.size("bulk"), 200);
+    }
+
+    @Test(timeOut = 30000)
+    public void testRate()
+    throws Exception {
+        /* The first goes right away, the other 19 every 10 milliseconds */
+        final long started = System.nanoTime();
+        final BulkStore<TestObject> store = client.bulkStore("paced", objects(20)).setRate(100).execute().get();
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        assertEquals(store.getSucceededCount(), 20);
+        assertTrue(elapsed >= 150, "Completed in " + elapsed + " ms");
+        assertEquals(emulator.size("paced"), 20);
+    }
+
+    @Test(timeOut = 30000)
+    public void testStreamed()
+    throws Exception {
+        /* Objects trickle in from elsewhere, our only thread must not wait for them */
+        final QueueingFuture<TestObject> objects = new QueueingFuture<>();
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int x = 0; x < 20; x ++) {
+                        Thread.sleep(10);
+                        objects.put(new TestObject("value" + x));
+                    }
+                    objects.close();
+                } catch (InterruptedException exception) {
+                    objects.fail(exception);
+                }
+            }
+        };
+        producer.start();
+
+        final BulkStore<TestObject> store = client.bulkStore("streamed", objects).setConcurrency(4).execute().get();
+        assertEquals(store.getSucceededCount(), 20);
+        assertEquals(store.getFailedCount(), 0);
+        assertEquals(emulator.size("streamed"), 20);
+        producer.join();
+    }
+
+    @Test(timeOut = 30000)
+    public void testCachedVectorClocks()
+    throws Exception {
+        final Bucket bucket = client.getBucket("clocks");
+        final List<KeyedObject> objects = new ArrayList<>();
+        for (int x = 0; x < 10; x ++) objects.add(new KeyedObject(new Key(bucket, "key" + x)));
+
+        /* First time around we look the clocks up, then we know them */
+        client.bulkStore(bucket, objects).execute().get();
+        final long requests = emulator.getRequestCount();
+        final BulkStore<KeyedObject> store = client.bulkStore(bucket, objects).execute().get();
+        assertEquals(store.getSucceededCount(), 10);
+        assertEquals(emulator.getRequestCount() - requests, 10);
+    }
+
+    @Test(timeOut = 30000)
+    public void testFailures()
+    throws Exception {
+        /* Nothing listens here once the socket is closed */
+        final ServerSocket socket = new ServerSocket(0);
+        socket.close();
+
+        final RiakNodePool nodes = new RiakNodePool("http://127.0.0.1:" + socket.getLocalPort());
+        final AsyncRiakClient client = new AsyncRiakClient(http, nodes, executor);
+        try {
+            final BulkStore<TestObject> store = client.bulkStore("failed", objects(10)).setConcurrency(2).execute().get();
+            assertEquals(store.getSubmittedCount(), 10);
+            assertEquals(store.getSucceededCount(), 0);
+            assertEquals(store.getFailedCount(), 10);
+            assertEquals(store.getInFlightCount(), 0);
+        } finally {
+            client.close();
+            nodes.close();
+        }
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+
+    public static class KeyedObject {
+
+        @RiakKey @JsonIgnore
+        public Key key;
+        public String value;
+
+        public KeyedObject() {
+            /* Nothing to do */
+        }
+
+        public KeyedObject(Key key) {
+            this.key = key;
+            value = key.getName();
+        }
+    }
+}
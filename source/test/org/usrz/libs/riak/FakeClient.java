@@ -16,6 +16,7 @@
 package org.usrz.libs.riak;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import org.usrz.libs.utils.futures.IterableFuture;
 
@@ -27,6 +28,11 @@ public class FakeClient extends AbstractJsonClient {
         super(new ObjectMapper());
     }
 
+    @Override
+    protected ExecutorService getExecutorService() {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public <T> FetchRequest<T> fetch(Key key, ContentHandler<T> handler) {
         throw new UnsupportedOperationException();
@@ -54,6 +60,18 @@ public class FakeClient extends AbstractJsonClient {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    protected IterableFuture<IndexTerm> query(IndexQuery query, boolean returnTerms)
+    throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <R> IterableFuture<R> mapReduce(MapReduce job, Class<R> type)
+    throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public DeleteRequest delete(Key key) {
         throw new UnsupportedOperationException();
@@ -0,0 +1,141 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ning.http.client.AsyncHttpClient;
+
+public class IndexQueryTest extends AbstractTest {
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Bucket bucket;
+
+    @BeforeClass
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+        bucket = client.getBucket("indexed");
+
+        for (int x = 0; x < 10; x ++) {
+            final StoreRequest<TestObject> request = bucket.store(new TestObject("value" + x), "key" + x);
+            request.getIndexMap().add("number", IndexType.INTEGER, Integer.toString(x));
+            request.getIndexMap().add("parity", IndexType.BINARY, x % 2 == 0 ? "even" : "odd");
+            request.setReturnBody(false).execute().get();
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stop() {
+        client.close();
+        http.close();
+        emulator.close();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testLocation() {
+        assertEquals(bucket.query("parity", "even").getLocation(), "/buckets/indexed/index/parity_bin/even");
+        assertEquals(bucket.query("number", 3, 6).getLocation(), "/buckets/indexed/index/number_int/3/6");
+    }
+
+    @Test
+    public void testExact()
+    throws Exception {
+        /* Exact matches report the term we asked for */
+        final List<String> names = new ArrayList<>();
+        for (IndexTerm term: bucket.query("parity", "even").getTerms()) {
+            assertEquals(term.getTerm(), "even");
+            names.add(term.getKey().getName());
+        }
+        assertEquals(names.size(), 5);
+        for (int x = 0; x < 10; x += 2) assertTrue(names.contains("key" + x), "key" + x);
+    }
+
+    @Test
+    public void testRange()
+    throws Exception {
+        /* Ranges come with return_terms, each key with its own term */
+        final List<String> terms = new ArrayList<>();
+        for (IndexTerm term: bucket.query("number", 3, 6).getTerms()) {
+            assertEquals(term.getKey().getName(), "key" + term.getTerm());
+            terms.add(term.getTerm());
+        }
+        assertEquals(terms.size(), 4);
+        for (int x = 3; x <= 6; x ++) assertTrue(terms.contains(Integer.toString(x)), Integer.toString(x));
+    }
+
+    @Test
+    public void testPaging()
+    throws Exception {
+        /* Ten results, three per page: four requests to get them all */
+        final long requests = emulator.getRequestCount();
+        final List<String> terms = new ArrayList<>();
+        for (IndexTerm term: bucket.query("number", 0, 9).setMaxResults(3).getTerms()) terms.add(term.getTerm());
+
+        assertEquals(emulator.getRequestCount() - requests, 4L);
+        assertEquals(terms.size(), 10);
+        for (int x = 0; x < 10; x ++) assertEquals(terms.get(x), Integer.toString(x));
+    }
+
+    @Test
+    public void testContinuation()
+    throws Exception {
+        /* Ask for the first page ourselves, and resume from its token */
+        final String body = http.prepareGet(emulator.getUrl() + "/buckets/indexed/index/number_int/0/9?max_results=4")
+                                .execute().get().getResponseBody();
+        final String continuation = (String) new ObjectMapper().readValue(body, Map.class).get("continuation");
+        assertNotNull(continuation);
+
+        final IndexQuery query = bucket.query("number", 0, 9).setMaxResults(4).setContinuation(continuation);
+        assertEquals(query.getContinuation(), continuation);
+
+        final List<String> names = new ArrayList<>();
+        for (Key key: query.getKeys()) names.add(key.getName());
+        assertEquals(names.size(), 6);
+        for (int x = 4; x < 10; x ++) assertTrue(names.contains("key" + x), "key" + x);
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class LargeObjectsTest extends AbstractTest {
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Key key;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+        key = new Key(client, "large", "object");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        http.close();
+        emulator.close();
+    }
+
+    private static byte[] random(int length) {
+        final byte[] data = new byte[length];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(InputStream input, int length)
+    throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[333];
+        while (output.size() < length) {
+            final int read = input.read(buffer, 0, Math.min(buffer.length, length - output.size()));
+            if (read < 0) break;
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testConcurrentReader()
+    throws Exception {
+        final LargeObjects objects = new LargeObjects(client).setChunkSize(1000).setReadAhead(1);
+        final byte[] first = random(10000);
+        final byte[] second = random(5000);
+
+        objects.store(key, new ByteArrayInputStream(first), null);
+        try (final InputStream input = objects.open(key)) {
+            final byte[] head = read(input, 1500);
+
+            /* Overwritten half way, but the old chunks are still there */
+            objects.store(key, new ByteArrayInputStream(second), null);
+            final byte[] tail = read(input, Integer.MAX_VALUE);
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(head);
+            output.write(tail);
+            assertEquals(output.toByteArray(), first);
+        }
+
+        /* Both uploads are there, until the grace period expires */
+        assertEquals(emulator.size("large"), 10 + 5 + 1);
+        assertEquals(objects.getManifest(key).getSuperseded().size(), 1);
+
+        objects.setGracePeriod(0, TimeUnit.SECONDS).store(key, new ByteArrayInputStream(second), null);
+        assertEquals(emulator.size("large"), 5 + 1);
+        assertEquals(objects.getManifest(key).getSuperseded().size(), 0);
+        try (final InputStream input = objects.open(key)) {
+            assertEquals(read(input, Integer.MAX_VALUE), second);
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testExpiredReader()
+    throws Exception {
+        final LargeObjects objects = new LargeObjects(client).setChunkSize(1000).setReadAhead(1).setGracePeriod(0, TimeUnit.SECONDS);
+
+        objects.store(key, new ByteArrayInputStream(random(10000)), null);
+        try (final InputStream input = objects.open(key)) {
+            read(input, 1500);
+
+            /* Without a grace period, old chunks go right away */
+            objects.store(key, new ByteArrayInputStream(random(5000)), null);
+            read(input, Integer.MAX_VALUE);
+            fail("No exception");
+        } catch (IOException exception) {
+            assertTrue(exception.getMessage().startsWith("Missing chunk "), exception.getMessage());
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testConcurrentOverwrites()
+    throws Exception {
+        final LargeObjects objects = new LargeObjects(client).setChunkSize(1000).setConcurrency(2);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<byte[]> uploads = new ArrayList<>();
+        final List<Future<LargeObjectManifest>> futures = new ArrayList<>();
+
+        try {
+            for (int x = 0; x < 8; x ++) {
+                final byte[] data = random(3000 + x * 1000);
+                uploads.add(data);
+                futures.add(executor.submit(new Callable<LargeObjectManifest>() {
+
+                    @Override
+                    public LargeObjectManifest call()
+                    throws Exception {
+                        latch.await();
+                        return objects.store(key, new ByteArrayInputStream(data), null);
+                    }
+                }));
+            }
+
+            latch.countDown();
+            int chunks = 0;
+            for (Future<LargeObjectManifest> future: futures) chunks += future.get().getChunks().size();
+
+            /* One of them won, and all others are remembered, none orphaned */
+            final LargeObjectManifest manifest = objects.getManifest(key);
+            assertEquals(manifest.getSuperseded().size(), 7);
+            assertEquals(emulator.size("large"), chunks + 1);
+
+            final byte[] content;
+            try (final InputStream input = objects.open(key)) {
+                content = read(input, Integer.MAX_VALUE);
+            }
+            assertEquals(content, uploads.get((int) (manifest.getLength() / 1000) - 3)); // Lengths are unique
+
+            /* Deleting removes every single chunk */
+            assertTrue(objects.delete(key));
+            assertEquals(emulator.size("large"), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testFailedUpload()
+    throws Exception {
+        final LargeObjects objects = new LargeObjects(client).setChunkSize(1000).setConcurrency(2);
+        final byte[] data = random(10000);
+
+        objects.store(key, new ByteArrayInputStream(data), null);
+        try {
+            objects.store(key, new InputStream() {
+
+                private int count = 0;
+
+                @Override
+                public int read()
+                throws IOException {
+                    if (count ++ < 4500) return 0;
+                    throw new IOException("Broken input");
+                }
+            }, null);
+            fail("No exception");
+        } catch (IOException exception) {
+            assertEquals(exception.getMessage(), "Broken input");
+        }
+
+        /* The failed upload left nothing behind, the old one is intact */
+        assertEquals(emulator.size("large"), 10 + 1);
+        try (final InputStream input = objects.open(key)) {
+            assertEquals(read(input, Integer.MAX_VALUE), data);
+        }
+        assertTrue(objects.getManifest(key).getSuperseded().isEmpty());
+    }
+}
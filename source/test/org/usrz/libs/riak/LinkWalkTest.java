@@ -0,0 +1,187 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.annotations.RiakLink;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.ning.http.client.AsyncHttpClient;
+
+public class LinkWalkTest extends AbstractTest {
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Key alice;
+
+    @BeforeClass
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+
+        /*
+         * alice -friend-> bob   -friend-> dave
+         *                       -pet----> rex
+         *       -friend-> carol -friend-> dave, erin
+         *                       -pet----> tom
+         *       -friend-> ghost (never stored)
+         *       -pet----> fido
+         *
+         * head -next-> middle -next-> tail
+         *      -next-> tail
+         */
+        alice = store("people", "alice", "friend:bob", "friend:carol", "friend:ghost", "pet:fido");
+        store("people", "bob", "friend:dave", "pet:rex");
+        store("people", "carol", "friend:dave", "friend:erin", "pet:tom");
+        store("people", "dave", "friend:alice");
+        store("people", "erin");
+        store("pets", "rex");
+        store("pets", "tom");
+        store("pets", "fido");
+
+        store("people", "head", "next:middle", "next:tail");
+        store("people", "middle", "next:tail");
+        store("people", "tail");
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stop() {
+        client.close();
+        http.close();
+        emulator.close();
+    }
+
+    private Key store(String bucket, String name, String... links)
+    throws Exception {
+        final Node node = new Node(name);
+        node.links = new LinksMap(client);
+        for (String link: links) {
+            final String[] split = link.split(":");
+            node.links.add(split[0], "pet".equals(split[0]) ? "pets" : "people", split[1]);
+        }
+        return client.store(bucket, name, node).execute().get().getKey();
+    }
+
+    private static Set<String> names(LinkWalk<Node> walk) {
+        final Set<String> names = new HashSet<>();
+        for (Response<Node> response: walk.execute()) assertTrue(names.add(response.getContent().name), "Duplicate " + response.getContent().name);
+        return names;
+    }
+
+    private static Set<String> set(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testSingleStep() {
+        /* Links to nowhere are skipped */
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend")), set("bob", "carol"));
+    }
+
+    @Test(timeOut = 30000)
+    public void testFilters() {
+        /* By bucket only, or by tag only */
+        assertEquals(names(client.walk(alice, Node.class).step("people", null)), set("bob", "carol"));
+        assertEquals(names(client.walk(alice, Node.class).step(null, "pet")), set("fido"));
+        assertEquals(names(client.walk(alice, Node.class).step(null, null)), set("bob", "carol", "fido"));
+    }
+
+    @Test(timeOut = 30000)
+    public void testMultipleSteps() {
+        /* Only the last step is kept */
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend")
+                                                         .step("pets", "pet")), set("rex", "tom"));
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend")
+                                                         .step("people", "friend")), set("dave", "erin"));
+    }
+
+    @Test(timeOut = 30000)
+    public void testKeepSteps() {
+        /* Kept steps come back along with the last one */
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend", true)
+                                                         .step("pets", "pet")), set("bob", "carol", "rex", "tom"));
+
+        /* Keeping the last step changes nothing */
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend")
+                                                         .step("pets", "pet", true)), set("rex", "tom"));
+    }
+
+    @Test(timeOut = 30000)
+    public void testMaxDepth() {
+        /* The last step repeats, going round in circles only as deep as we're told */
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend").setMaxDepth(2)), set("dave", "erin"));
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend").setMaxDepth(3)), set("alice"));
+        assertEquals(names(client.walk(alice, Node.class).step("people", "friend", true).setMaxDepth(3)), set("bob", "carol", "dave", "erin", "alice"));
+    }
+
+    @Test(timeOut = 30000)
+    public void testRevisitedKeys() {
+        final Key head = new Key(client, "people", "head");
+        final Key middle = new Key(client, "people", "middle");
+
+        /* The tail is an intermediate of the first step, and the target of the second */
+        for (int x = 0; x < 10; x ++) {
+            assertEquals(names(client.walk(head, Node.class).step(null, "next")
+                                                            .step(null, "next")), set("tail"));
+
+            /* Kept at both steps, it comes back once for each */
+            final List<String> kept = new ArrayList<>();
+            for (Response<Node> response: client.walk(head, Node.class).step(null, "next", true)
+                                                                       .step(null, "next").execute())
+                kept.add(response.getContent().name);
+            Collections.sort(kept);
+            assertEquals(kept, Arrays.asList("middle", "tail", "tail"));
+        }
+
+        /* A starting key can still be reached by another starting key */
+        assertEquals(names(client.walk(Arrays.asList(head, middle), Node.class).step(null, "next")), set("middle", "tail"));
+    }
+
+    /* ====================================================================== */
+
+    public static class Node {
+
+        public String name;
+
+        @RiakLink @JsonIgnore
+        public LinksMap links;
+
+        public Node() {
+            /* Nothing to do */
+        }
+
+        public Node(String name) {
+            this.name = name;
+        }
+    }
+}
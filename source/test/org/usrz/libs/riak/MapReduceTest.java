@@ -0,0 +1,77 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import static org.usrz.libs.riak.MapReduce.erlang;
+import static org.usrz.libs.riak.MapReduce.javascript;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.response.MapReduceContentHandler.MapReduceChunk;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MapReduceTest extends AbstractTest {
+
+    private final RiakClient client = new FakeClient();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testBucket()
+    throws Exception {
+        final MapReduce job = new MapReduce(client)
+                    .setInputs(client.getBucket("users"))
+                    .map(javascript("Riak.mapValuesJson"))
+                    .reduce(erlang("riak_kv_mapreduce", "reduce_sum"), true)
+                    .setTimeout(30, TimeUnit.SECONDS);
+
+        assertEquals(mapper.writeValueAsString(job.getJob()),
+                     "{\"inputs\":\"users\",\"query\":["
+                   + "{\"map\":{\"language\":\"javascript\",\"name\":\"Riak.mapValuesJson\",\"keep\":false}},"
+                   + "{\"reduce\":{\"language\":\"erlang\",\"module\":\"riak_kv_mapreduce\",\"function\":\"reduce_sum\",\"keep\":true}}"
+                   + "],\"timeout\":30000}");
+    }
+
+    @Test
+    public void testKeysAndIndex()
+    throws Exception {
+        final MapReduce keys = new MapReduce(client)
+                    .setInputs(Arrays.asList(new Key(client, "a", "b"), new Key(client, "c", "d")))
+                    .map(javascript("Riak.mapValues"), true);
+        assertEquals(mapper.writeValueAsString(keys.getJob().get("inputs")), "[[\"a\",\"b\"],[\"c\",\"d\"]]");
+
+        final MapReduce index = new MapReduce(client)
+                    .setInputs(client.getBucket("users").query("age", 18, 30))
+                    .map(javascript("Riak.mapValues"), true);
+        assertEquals(mapper.writeValueAsString(index.getJob().get("inputs")), "{\"bucket\":\"users\",\"index\":\"age_int\",\"start\":18,\"end\":30}");
+    }
+
+    @Test
+    public void testChunk()
+    throws Exception {
+        /* Whatever phase they come from, results are parsed the same way */
+        assertNotNull(mapper.readValue("{\"phase\":1,\"data\":[1,2,3]}", MapReduceChunk.class));
+        assertNotNull(mapper.readValue("{\"data\":[]}", MapReduceChunk.class));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testNoInputs() {
+        new MapReduce(client).map(javascript("Riak.mapValues")).getJob();
+    }
+}
@@ -0,0 +1,184 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class ResponseCacheTest extends AbstractTest {
+
+    private final RiakClient client = new FakeClient();
+
+    private Response<String> response(final String content) {
+        return new Response<String>(new AbstractPartialResponse<String>(client, null, null, null, 200) {
+            @Override public String getLocation()    { return null; }
+            @Override public String getVectorClock() { return null; }
+            @Override public Date getLastModified()  { return null; }
+            @Override public String getETag()        { return "\"" + content + "\""; }
+            @Override public String getContentType() { return "application/json"; }
+            @Override public Key getKey()            { return null; }
+        }, content);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final ResponseCache cache = new ResponseCache(10);
+        final Key key = new Key(client, "test", "key");
+
+        assertNull(cache.get(key, String.class));
+        cache.put(key, String.class, response("foo"));
+
+        assertEquals(cache.get(key, String.class).getResponse().getContent(), "foo");
+        assertEquals(cache.get(key, String.class).getResponse().getETag(), "\"foo\"");
+        assertNull(cache.get(key, Integer.class));
+
+        assertEquals(cache.getHitCount(), 2);
+        assertEquals(cache.getMissCount(), 2);
+
+        cache.invalidate(key);
+        assertNull(cache.get(key, String.class));
+        assertEquals(cache.getWeight(), 0);
+    }
+
+    @Test
+    public void testEviction() {
+        final ResponseCache cache = new ResponseCache(3);
+        final Key key1 = new Key(client, "test", "key1");
+        final Key key2 = new Key(client, "test", "key2");
+        final Key key3 = new Key(client, "test", "key3");
+        final Key key4 = new Key(client, "test", "key4");
+
+        cache.put(key1, String.class, response("1"));
+        cache.put(key2, String.class, response("2"));
+        cache.put(key3, String.class, response("3"));
+
+        /* Touch the first, the second becomes the eldest */
+        assertNotNull(cache.get(key1, String.class));
+        cache.put(key4, String.class, response("4"));
+
+        assertEquals(cache.getSize(), 3);
+        assertNotNull(cache.get(key1, String.class));
+        assertNull(cache.get(key2, String.class));
+        assertNotNull(cache.get(key3, String.class));
+        assertNotNull(cache.get(key4, String.class));
+    }
+
+    @Test
+    public void testFreshness()
+    throws Exception {
+        final ResponseCache cache = new ResponseCache(10, 50, TimeUnit.MILLISECONDS);
+        final Key key = new Key(client, "test", "key");
+
+        final ResponseCache.Entry<String> entry = cache.put(key, String.class, response("foo"));
+        assertTrue(entry.isFresh());
+
+        Thread.sleep(100);
+        assertFalse(entry.isFresh());
+
+        entry.refresh();
+        assertTrue(entry.isFresh());
+    }
+
+    @Test
+    public void testParameters() {
+        final ResponseCache cache = new ResponseCache(10);
+        final Key key = new Key(client, "test", "key");
+        final Map<String, ?> quorum1 = Collections.singletonMap("r", "1");
+        final Map<String, ?> quorum2 = Collections.singletonMap("r", "2");
+
+        cache.put(key, String.class, quorum1, response("foo"), cache.stamp());
+        assertNotNull(cache.get(key, String.class, quorum1));
+        assertNull(cache.get(key, String.class, quorum2));
+        assertNull(cache.get(key, String.class));
+
+        /* One entry per key, the last read wins */
+        cache.put(key, String.class, quorum2, response("bar"), cache.stamp());
+        assertNull(cache.get(key, String.class, quorum1));
+        assertEquals(cache.get(key, String.class, quorum2).getResponse().getContent(), "bar");
+        assertEquals(cache.getSize(), 1);
+    }
+
+    @Test
+    public void testStaleReads() {
+        final ResponseCache cache = new ResponseCache(10);
+        final Key key1 = new Key(client, "test", "key1");
+        final Key key2 = new Key(client, "test", "key2");
+        final Map<String, ?> none = Collections.emptyMap();
+
+        /* Read started, then the key is written: what was read is stale */
+        final long stamp = cache.stamp();
+        cache.invalidate(key1);
+        assertNull(cache.put(key1, String.class, none, response("old"), stamp));
+        assertNull(cache.get(key1, String.class));
+
+        /* Other keys are not affected, and new reads are cached */
+        assertNotNull(cache.put(key2, String.class, none, response("foo"), stamp));
+        assertNotNull(cache.put(key1, String.class, none, response("new"), cache.stamp()));
+        assertEquals(cache.get(key1, String.class).getResponse().getContent(), "new");
+
+        /* Clearing invalidates everything read before */
+        final long cleared = cache.stamp();
+        cache.clear();
+        assertNull(cache.put(key2, String.class, none, response("old"), cleared));
+        assertEquals(cache.getSize(), 0);
+
+        /* And so do invalidations we no longer remember */
+        final long forgotten = cache.stamp();
+        for (int x = 0; x < 2000; x ++) cache.invalidate(new Key(client, "test", "other" + x));
+        assertNull(cache.put(key1, String.class, none, response("old"), forgotten));
+    }
+
+    @Test(timeOut = 30000)
+    public void testAsyncClient()
+    throws Exception {
+        final RiakEmulator emulator = new RiakEmulator();
+        final AsyncHttpClient http = new AsyncHttpClient();
+        final AsyncRiakClient client = new AsyncRiakClient(http, emulator.getUrl());
+        try {
+            final ResponseCache cache = new ResponseCache(10, 1, TimeUnit.HOURS);
+            final Bucket bucket = client.setResponseCache(cache).getBucket("cached");
+
+            bucket.store("foo", "key").execute().get();
+            assertEquals(bucket.fetch("key", String.class).execute().get().getContent(), "foo");
+            assertEquals(bucket.fetch("key", String.class).execute().get().getContent(), "foo");
+            assertEquals(cache.getHitCount(), 1);
+
+            /* Different quorums are different reads */
+            assertEquals(bucket.fetch("key", String.class).setReadQuorum(Quorum.ALL).execute().get().getContent(), "foo");
+            assertEquals(cache.getHitCount(), 1);
+
+            /* Stores and deletes are never hidden by the cache */
+            bucket.store("bar", "key").execute().get();
+            assertEquals(bucket.fetch("key", String.class).execute().get().getContent(), "bar");
+            bucket.delete("key").execute().get();
+            assertEquals(bucket.fetch("key", String.class).execute().get().getStatus(), 404);
+            assertEquals(cache.getHitCount(), 1);
+        } finally {
+            client.close();
+            http.close();
+            emulator.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak;
+
+import static org.usrz.libs.riak.request.VectorClockMode.CACHED;
+import static org.usrz.libs.riak.request.VectorClockMode.FETCH;
+import static org.usrz.libs.riak.request.VectorClockMode.NONE;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class VectorClockCacheTest extends AbstractTest {
+
+    private final RiakClient client = new FakeClient();
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient riak;
+    private Bucket bucket;
+
+    @BeforeClass
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        riak = new AsyncRiakClient(http, emulator.getUrl());
+        bucket = riak.getBucket("clocks");
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stop() {
+        riak.close();
+        http.close();
+        emulator.close();
+    }
+
+    private long store(String key, VectorClockMode mode, boolean returnBody)
+    throws Exception {
+        final long requests = emulator.getRequestCount();
+        bucket.store(new TestObject(key), key).setVectorClockMode(mode).setReturnBody(returnBody).execute().get();
+        return emulator.getRequestCount() - requests;
+    }
+
+    private long store(String key, VectorClockMode mode)
+    throws Exception {
+        return store(key, mode, false);
+    }
+
+    @Test
+    public void testPutAndInvalidate() {
+        final VectorClockCache cache = new VectorClockCache();
+        final Key key = new Key(client, "test", "key");
+
+        assertNull(cache.get(key));
+        cache.put(key, "a85hYGBgzGDKBVIcR4M2cgczH7HPYEpkzGNlsP/VfYYvCwA=");
+        assertEquals(cache.get(new Key(client, "/buckets/test/keys/key")), "a85hYGBgzGDKBVIcR4M2cgczH7HPYEpkzGNlsP/VfYYvCwA=");
+
+        cache.invalidate(key);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testBounded() {
+        final VectorClockCache cache = new VectorClockCache(64);
+        for (int x = 0; x < 1000; x ++) {
+            cache.put(new Key(client, "test", "key" + x), "clock" + x);
+        }
+
+        assertTrue(cache.getSize() <= 64, "Too many entries: " + cache.getSize());
+        assertEquals(cache.get(new Key(client, "test", "key999")), "clock999");
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testUnknownKey()
+    throws Exception {
+        /* Nothing seen yet: look it up, unless blind */
+        assertEquals(store("unknown-cached", CACHED), 2L);
+        assertEquals(store("unknown-fetch", FETCH), 2L);
+        assertEquals(store("unknown-none", NONE), 1L);
+    }
+
+    @Test
+    public void testFetchThenStore()
+    throws Exception {
+        for (VectorClockMode mode: VectorClockMode.values()) {
+            final String key = "fetched-" + mode.name().toLowerCase();
+            store(key, NONE);
+            riak.getVectorClockCache().invalidate(new Key(bucket, key));
+
+            /* The fetch alone tells us the clock */
+            bucket.fetch(key, TestObject.class).execute().get();
+            assertEquals(store(key, mode), mode == FETCH ? 2L : 1L, mode.name());
+        }
+    }
+
+    @Test
+    public void testStoreThenStore()
+    throws Exception {
+        for (VectorClockMode mode: VectorClockMode.values()) {
+            final String key = "stored-" + mode.name().toLowerCase();
+            store(key, NONE);
+            assertEquals(store(key, mode), mode == FETCH ? 2L : 1L, mode.name());
+        }
+    }
+
+    @Test
+    public void testReturnBodyThenStore()
+    throws Exception {
+        for (VectorClockMode mode: VectorClockMode.values()) {
+            final String key = "returned-" + mode.name().toLowerCase();
+            riak.getVectorClockCache().invalidate(new Key(bucket, key));
+            assertEquals(store(key, NONE, true), 1L);
+            assertEquals(store(key, mode), mode == FETCH ? 2L : 1L, mode.name());
+        }
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.Body;
+
+public class AsyncChannelGeneratorTest extends AbstractTest {
+
+    private final byte[] data = new byte[100000];
+    private Path file;
+
+    @BeforeClass
+    public void before()
+    throws IOException {
+        new Random().nextBytes(data);
+        file = Files.createTempFile("generator", ".bin");
+        Files.write(file, data);
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void after()
+    throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /* Drain a body in small reads, like the HTTP provider does */
+    private static byte[] drain(Body body)
+    throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try {
+            while (body.read(buffer) >= 0) {
+                buffer.flip();
+                output.write(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        } finally {
+            body.close();
+        }
+        return output.toByteArray();
+    }
+
+    /* Decode "Transfer-Encoding: chunked", checking the framing as we go */
+    private static byte[] unchunk(byte[] chunked)
+    throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final String framed = new String(chunked, ISO_8859_1);
+        int position = 0;
+        while (true) {
+            final int header = framed.indexOf("\r\n", position);
+            final int size = Integer.parseInt(framed.substring(position, header), 16);
+            position = header + 2;
+            if (size == 0) break;
+            output.write(chunked, position, size);
+            assertEquals(framed.substring(position + size, position + size + 2), "\r\n");
+            position += size + 2;
+        }
+        assertEquals(framed.substring(position), "\r\n", "Trailing data");
+        return output.toByteArray();
+    }
+
+    @Test
+    public void testFileChannel()
+    throws Exception {
+        try (final FileChannel channel = FileChannel.open(file, READ)) {
+
+            /* Starts from the channel's current position */
+            channel.position(1000);
+            final AsyncChannelGenerator generator = new AsyncChannelGenerator(channel);
+            assertEquals(generator.getContentLength(), data.length - 1000L);
+
+            final Body body = generator.createBody();
+            assertEquals(body.getContentLength(), data.length - 1000L);
+            assertEquals(drain(body), Arrays.copyOfRange(data, 1000, data.length));
+
+            /* Can be sent again, and the channel was never moved */
+            assertEquals(drain(generator.createBody()), Arrays.copyOfRange(data, 1000, data.length));
+            assertEquals(channel.position(), 1000L);
+            assertTrue(channel.isOpen());
+        }
+    }
+
+    @Test
+    public void testTruncatedFile()
+    throws Exception {
+        final Path truncated = Files.createTempFile("generator", ".bin");
+        try (final FileChannel channel = FileChannel.open(truncated, READ, WRITE)) {
+            channel.write(ByteBuffer.wrap(data));
+            channel.position(0);
+
+            final AsyncChannelGenerator generator = new AsyncChannelGenerator(channel);
+            channel.truncate(10);
+            try {
+                drain(generator.createBody());
+                fail("No exception");
+            } catch (IOException exception) {
+                assertEquals(exception.getMessage(), "File truncated while sending");
+            }
+        } finally {
+            Files.delete(truncated);
+        }
+    }
+
+    @Test
+    public void testChannel()
+    throws Exception {
+        final AsyncChannelGenerator generator = new AsyncChannelGenerator(Channels.newChannel(new ByteArrayInputStream(data)));
+
+        /* Unknown length, read once */
+        assertEquals(generator.getContentLength(), -1L);
+        final Body body = generator.createBody();
+        assertEquals(body.getContentLength(), -1L);
+        assertEquals(unchunk(drain(body)), data);
+
+        try {
+            generator.createBody();
+            fail("No exception");
+        } catch (IOException exception) {
+            assertEquals(exception.getMessage(), "Channel body can not be sent twice");
+        }
+    }
+}
@@ -17,7 +17,9 @@ package org.usrz.libs.riak.async;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.testng.annotations.Test;
 import org.usrz.libs.logging.Log;
@@ -29,6 +31,9 @@ import org.usrz.libs.riak.StoreRequest;
 import org.usrz.libs.riak.annotations.RiakIndex;
 import org.usrz.libs.riak.annotations.RiakLink;
 import org.usrz.libs.riak.annotations.RiakMetadata;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.metrics.ClientMetrics;
+import org.usrz.libs.riak.metrics.Operation;
 import org.usrz.libs.testing.AbstractTest;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -38,6 +43,106 @@ public class AsyncRiakClientTest extends AbstractTest {
 
     private final Log log = new Log();
 
+    @Test
+    public void testInlineThreshold() {
+        final AsyncHttpClient http = new AsyncHttpClient();
+        final AsyncRiakClient client = new AsyncRiakClient(http);
+        try {
+            /* Disabled by default */
+            assertFalse(client.isInline(0));
+
+            client.setInlineThreshold(1024);
+            assertTrue(client.isInline(0));
+            assertTrue(client.isInline(1024));
+            assertFalse(client.isInline(1025));
+
+            /* Chunked, or just not told: never inline */
+            assertFalse(client.isInline(-1));
+        } finally {
+            client.close();
+            http.close();
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testMalformedInline()
+    throws Exception {
+        final RiakEmulator emulator = new RiakEmulator();
+        final AsyncHttpClient http = new AsyncHttpClient();
+        final RiakNodePool nodes = new RiakNodePool(emulator.getUrl()).setMaxFailures(1);
+        final AsyncRiakClient client = new AsyncRiakClient(http, nodes).setInlineThreshold(1024);
+        try {
+            http.preparePut(emulator.getUrl() + "/buckets/malformed/keys/key")
+                .setHeader("Content-Type", "application/json")
+                .setBody("{\"value\":]}")
+                .execute().get();
+
+            /* Our parsing failed, the node answered just fine */
+            for (int x = 0; x < 3; x ++) try {
+                client.getBucket("malformed").fetch("key", TestObject.class).execute().get();
+                fail("Malformed content parsed");
+            } catch (ExecutionException exception) {
+                log.debug("Expected parsing failure: %s", exception.getCause());
+            }
+
+            /* Futures fail on the first bad part, nodes are released when the response ends */
+            final RiakNode node = nodes.getNodes().get(0);
+            for (int x = 0; (x < 200) && (node.getOutstanding() != 0); x ++) Thread.sleep(10);
+            assertTrue(node.isHealthy());
+            assertEquals(node.getCircuitBreaker().getState(), CircuitBreaker.State.CLOSED);
+            assertEquals(node.getOutstanding(), 0);
+        } finally {
+            client.close();
+            nodes.close();
+            http.close();
+            emulator.close();
+        }
+    }
+
+    @Test
+    public void testCompression()
+    throws Exception {
+        final RiakEmulator emulator = new RiakEmulator();
+        final AsyncHttpClient http = new AsyncHttpClient();
+        final ClientMetrics metrics = new ClientMetrics();
+        final AsyncRiakClient client = new AsyncRiakClient(http, emulator.getUrl()).setMetrics(metrics)
+                                                                                .setCompressionThreshold(1024);
+        try {
+            final Bucket bucket = client.getBucket("compressed");
+            final char[] chars = new char[100000];
+            Arrays.fill(chars, 'x');
+            final TestObject large = new TestObject();
+            large.setValue(new String(chars));
+            final TestObject small = new TestObject();
+            small.setValue("small");
+
+            /* Below the threshold, sent as it is */
+            bucket.store(small, "small").execute().get();
+            long sent = metrics.getSnapshot(Operation.STORE).getBytesOut();
+            assertEquals(sent, (long) "{\"value\":\"small\"}".length());
+
+            /* Above, gzipped as it's serialized */
+            bucket.store(large, "large").execute().get();
+            long compressed = metrics.getSnapshot(Operation.STORE).getBytesOut() - sent;
+            assertTrue(compressed < 1024, "Sent " + compressed + " bytes");
+            sent += compressed;
+
+            /* No compression, but still gzip */
+            client.setCompressionLevel(Deflater.NO_COMPRESSION);
+            bucket.store(large, "stored").execute().get();
+            compressed = metrics.getSnapshot(Operation.STORE).getBytesOut() - sent;
+            assertTrue(compressed > chars.length, "Sent " + compressed + " bytes");
+
+            assertEquals(bucket.fetch("small", TestObject.class).execute().get().getContent().getValue(), "small");
+            assertEquals(bucket.fetch("large", TestObject.class).execute().get().getContent().getValue(), large.getValue());
+            assertEquals(bucket.fetch("stored", TestObject.class).execute().get().getContent().getValue(), large.getValue());
+        } finally {
+            client.close();
+            http.close();
+            emulator.close();
+        }
+    }
+
     @Test(groups="local")
     public void testGetBucketsAndKeys()
     throws Exception {
@@ -0,0 +1,132 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class BoundedExecutorServiceTest extends AbstractTest {
+
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private BoundedExecutorService executor;
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private RiakNodePool nodes;
+    private AsyncRiakClient client;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        executor = new BoundedExecutorService(1, 1);
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        nodes = new RiakNodePool(emulator.getUrl());
+        client = new AsyncRiakClient(http, nodes, executor);
+
+        /* One task runs, one waits in the queue: nothing else fits */
+        for (int x = 0; x < 2; x ++) executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        blocked.countDown();
+        client.close();
+        nodes.close();
+        http.close();
+        emulator.close();
+        executor.shutdown();
+    }
+
+    /* ====================================================================== */
+
+    private static <T> ResponseListener<T> count(final AtomicInteger counter) {
+        return new ResponseListener<T>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<T> event) {
+                counter.incrementAndGet();
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<T> event) {
+                counter.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testListenersRunWhenSaturated()
+    throws Exception {
+        final AtomicInteger notified = new AtomicInteger();
+        final List<AsyncResponseFuture<String>> futures = new ArrayList<>();
+        for (int x = 0; x < 30; x ++) futures.add(new AsyncResponseFuture<String>(client).addListener(BoundedExecutorServiceTest.<String>count(notified)));
+
+        /* Failed, cancelled, and listened to once already done */
+        for (int x = 0; x < 10; x ++) futures.get(x).fail(new IOException("Failed " + x));
+        for (int x = 10; x < 20; x ++) futures.get(x).cancel(false);
+        for (int x = 20; x < 30; x ++) futures.get(x - 20).addListener(BoundedExecutorServiceTest.<String>count(notified));
+
+        assertEquals(notified.get(), 30);
+        assertTrue(executor.getRejectedCount() >= 30, "Rejected " + executor.getRejectedCount());
+    }
+
+    @Test
+    public void testRequestsCompleteWhenSaturated()
+    throws Exception {
+        final Bucket bucket = client.getBucket("saturated");
+        final AtomicInteger notified = new AtomicInteger();
+        final List<ResponseFuture<?>> futures = new ArrayList<>();
+        for (int x = 0; x < 10; x ++) {
+            futures.add(bucket.store("value" + x, "key" + x).setReturnBody(false).execute().addListener(BoundedExecutorServiceTest.<String>count(notified)));
+            futures.add(bucket.fetch("missing" + x, String.class).execute().addListener(BoundedExecutorServiceTest.<String>count(notified)));
+        }
+
+        /* Whether they succeed or fail with the executor full, they all finish */
+        for (ResponseFuture<?> future: futures) try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException exception) {
+            /* Rejected handlers fail their futures */
+        }
+        for (int x = 0; (x < 100) && (notified.get() < futures.size()); x ++) Thread.sleep(10);
+        assertEquals(notified.get(), futures.size());
+    }
+}
@@ -0,0 +1,153 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class CoalescingTest extends AbstractTest {
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Bucket bucket;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+        bucket = client.getBucket("coalesced");
+
+        bucket.store(new TestObject("foo"), "good").execute().get();
+        bucket.store(Integer.valueOf(1), "bad").execute().get();
+
+        /* Long enough for all our fetches to overlap */
+        emulator.setLatency(200, TimeUnit.MILLISECONDS);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        http.close();
+        emulator.close();
+    }
+
+    private List<ResponseFuture<TestObject>> fetch(String key, int count)
+    throws Exception {
+        final List<ResponseFuture<TestObject>> futures = new ArrayList<>();
+        for (int x = 0; x < count; x ++) futures.add(bucket.fetch(key, TestObject.class).execute());
+        return futures;
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testDisabledByDefault()
+    throws Exception {
+        final long requests = emulator.getRequestCount();
+        for (ResponseFuture<TestObject> future: fetch("good", 5)) assertEquals(future.get().getContent().value, "foo");
+        assertEquals(emulator.getRequestCount() - requests, 5);
+    }
+
+    @Test(timeOut = 30000)
+    public void testMerging()
+    throws Exception {
+        client.setCoalescing(true);
+
+        final long requests = emulator.getRequestCount();
+        final List<Response<TestObject>> responses = new ArrayList<>();
+        for (ResponseFuture<TestObject> future: fetch("good", 5)) responses.add(future.get());
+        assertEquals(emulator.getRequestCount() - requests, 1);
+
+        /* Different keys are different requests */
+        for (Response<TestObject> response: responses) assertEquals(response.getContent().value, "foo");
+        assertEquals(bucket.fetch("missing", TestObject.class).execute().get().getStatus(), 404);
+        assertEquals(emulator.getRequestCount() - requests, 2);
+    }
+
+    @Test(timeOut = 30000)
+    public void testErrors()
+    throws Exception {
+        client.setCoalescing(true);
+
+        /* One request, one parsing failure, every caller gets it */
+        final long requests = emulator.getRequestCount();
+        for (ResponseFuture<TestObject> future: fetch("bad", 5)) try {
+            future.get();
+            fail("Parsing did not fail");
+        } catch (ExecutionException exception) {
+            assertNotNull(exception.getCause());
+        }
+        assertEquals(emulator.getRequestCount() - requests, 1);
+    }
+
+    @Test(timeOut = 30000)
+    public void testCancellation()
+    throws Exception {
+        client.setCoalescing(true);
+        final long requests = emulator.getRequestCount();
+
+        /* Cancelling one leaves the others alone */
+        final List<ResponseFuture<TestObject>> futures = fetch("good", 3);
+        assertTrue(futures.get(0).cancel(true));
+        assertEquals(futures.get(1).get().getContent().value, "foo");
+        assertEquals(futures.get(2).get().getContent().value, "foo");
+        assertEquals(emulator.getRequestCount() - requests, 1);
+
+        /* Cancelling all of them cancels the request, nobody joins it anymore */
+        final List<ResponseFuture<TestObject>> cancelled = fetch("good", 3);
+        for (ResponseFuture<TestObject> future: cancelled) assertTrue(future.cancel(true));
+        for (ResponseFuture<TestObject> future: cancelled) try {
+            future.get();
+            fail("Future not cancelled");
+        } catch (CancellationException exception) {
+            /* Expected */
+        }
+
+        assertEquals(bucket.fetch("good", TestObject.class).execute().get().getContent().value, "foo");
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.metrics.ClientMetrics;
+import org.usrz.libs.riak.metrics.Operation;
+import org.usrz.libs.riak.metrics.OperationMetrics;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class HedgingTest extends AbstractTest {
+
+    private final RiakEmulator[] emulators = new RiakEmulator[2];
+    private ClientMetrics metrics;
+    private AsyncHttpClient http;
+    private RiakNodePool nodes;
+    private AsyncRiakClient client;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        http = new AsyncHttpClient();
+        for (int x = 0; x < emulators.length; x ++) {
+            emulators[x] = new RiakEmulator();
+
+            /* Each emulator keeps its own data, store it everywhere */
+            final AsyncRiakClient single = new AsyncRiakClient(http, emulators[x].getUrl());
+            try {
+                single.getBucket("hedged").store(new TestObject("foo"), "key").execute().get();
+            } finally {
+                single.close();
+            }
+        }
+
+        metrics = new ClientMetrics();
+        nodes = new RiakNodePool(emulators[0].getUrl(), emulators[1].getUrl());
+        client = new AsyncRiakClient(http, nodes).setMetrics(metrics)
+                                                 .setHedgeDelay(20, TimeUnit.MILLISECONDS)
+                                                 .setHedgeBudget(100);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        nodes.close();
+        http.close();
+        for (RiakEmulator emulator: emulators) emulator.close();
+    }
+
+    private OperationMetrics.Snapshot snapshot()
+    throws InterruptedException {
+        return snapshot(Operation.FETCH);
+    }
+
+    private OperationMetrics.Snapshot snapshot(Operation operation)
+    throws InterruptedException {
+        for (int x = 0; x < 200; x ++) {
+            final OperationMetrics.Snapshot snapshot = metrics.getSnapshot(operation);
+            if (snapshot.getInFlight() == 0) return snapshot;
+            Thread.sleep(10);
+        }
+        return metrics.getSnapshot(operation);
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testHedging()
+    throws Exception {
+        for (RiakEmulator emulator: emulators) emulator.setLatency(200, TimeUnit.MILLISECONDS);
+
+        assertEquals(client.getBucket("hedged").fetch("key", TestObject.class).execute().get().getContent().value, "foo");
+        assertEquals(client.getHedgedCount(), 1L);
+
+        /* The loser is cancelled, and that's nobody's fault */
+        final OperationMetrics.Snapshot fetch = snapshot();
+        assertEquals(fetch.getStarted(), 2L);
+        assertEquals(fetch.getCompleted(), 1L);
+        assertEquals(fetch.getCancelled(), 1L);
+        assertEquals(fetch.getFailed(), 0L);
+        for (RiakNode node: nodes.getNodes()) assertTrue(node.isAvailable(), "Node " + node + " unavailable");
+    }
+
+    @Test(timeOut = 30000)
+    public void testHedgingHead()
+    throws Exception {
+        for (RiakEmulator emulator: emulators) emulator.setLatency(200, TimeUnit.MILLISECONDS);
+
+        assertEquals(client.getBucket("hedged").fetch("key", TestObject.class).setReturnBody(false).execute().get().getStatus(), 200);
+        assertEquals(client.getHedgedCount(), 1L);
+
+        /* Both attempts are timed as metadata reads, fetches are untouched */
+        final OperationMetrics.Snapshot head = snapshot(Operation.HEAD);
+        assertEquals(head.getStarted(), 2L);
+        assertEquals(head.getCompleted(), 1L);
+        assertEquals(head.getCancelled(), 1L);
+        assertEquals(snapshot().getStarted(), 0L);
+    }
+
+    @Test(timeOut = 30000)
+    public void testCancel()
+    throws Exception {
+        for (RiakEmulator emulator: emulators) emulator.setLatency(1, TimeUnit.SECONDS);
+
+        final ResponseFuture<TestObject> future = client.getBucket("hedged").fetch("key", TestObject.class).execute();
+        while (client.getHedgedCount() == 0) Thread.sleep(10);
+        assertTrue(future.cancel(true));
+
+        /* Both the primary and the duplicate are gone */
+        final OperationMetrics.Snapshot fetch = snapshot();
+        assertEquals(fetch.getStarted(), 2L);
+        assertEquals(fetch.getCancelled(), 2L);
+        assertEquals(fetch.getCompleted(), 0L);
+        assertEquals(fetch.getInFlight(), 0L);
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
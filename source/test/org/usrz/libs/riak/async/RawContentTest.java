@@ -0,0 +1,152 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.response.ChannelContentHandler;
+import org.usrz.libs.riak.response.PathContentHandler;
+import org.usrz.libs.riak.response.SpillingContentHandler;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class RawContentTest extends AbstractTest {
+
+    private final byte[] data = new byte[300000];
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Bucket bucket;
+    private Path directory;
+    private Path file;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        new Random().nextBytes(data);
+        directory = Files.createTempDirectory("raw");
+        file = Files.write(directory.resolve("source.bin"), data);
+
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+        bucket = client.getBucket("raw");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop()
+    throws Exception {
+        client.close();
+        http.close();
+        emulator.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path: files) Files.delete(path);
+        }
+        Files.delete(directory);
+    }
+
+    private byte[] fetch(String key)
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Response<Long> response = bucket.fetch(key, new ChannelContentHandler(Channels.newChannel(output))).execute().get();
+        assertEquals(response.getContent(), Long.valueOf(output.size()));
+        return output.toByteArray();
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testPath()
+    throws Exception {
+
+        /* Stored as-is, nothing comes back to be parsed */
+        final Response<Path> stored = bucket.store(file, "path").execute().get();
+        assertEquals(stored.getStatus(), 204);
+        assertNull(stored.getContent());
+
+        /* Fetched straight into a file */
+        final Path target = directory.resolve("target.bin");
+        final Response<Path> fetched = bucket.fetch("path", new PathContentHandler(target)).execute().get();
+        assertEquals(fetched.getContent(), target);
+        assertEquals(fetched.getContentType(), "application/octet-stream");
+        assertEquals(Files.readAllBytes(target), data);
+    }
+
+    @Test(timeOut = 30000)
+    public void testReturnBody()
+    throws Exception {
+
+        /* Raw content is never sent back, even when asked to */
+        final Response<Path> stored = bucket.store(file, "path").setReturnBody(true).execute().get();
+        assertEquals(stored.getStatus(), 204);
+        assertNull(stored.getContent());
+        assertEquals(fetch("path"), data);
+    }
+
+    @Test(timeOut = 30000)
+    public void testFileChannel()
+    throws Exception {
+
+        /* Some content already stored, so the PUT follows a HEAD */
+        bucket.store(file, "channel").execute().get();
+
+        try (final FileChannel channel = FileChannel.open(file, READ)) {
+            channel.position(1000);
+            final Response<FileChannel> stored = bucket.store(channel, "channel").setContentType("image/png").execute().get();
+            assertEquals(stored.getStatus(), 204);
+            assertTrue(channel.isOpen());
+        }
+
+        assertEquals(fetch("channel"), Arrays.copyOfRange(data, 1000, data.length));
+        assertEquals(bucket.fetch("channel", new ChannelContentHandler(Channels.newChannel(new ByteArrayOutputStream())))
+                           .execute().get().getContentType(), "image/png");
+    }
+
+    @Test(timeOut = 30000)
+    public void testChannel()
+    throws Exception {
+
+        /* Chunked, with the key assigned by Riak */
+        final Response<?> stored = bucket.store(Channels.newChannel(new ByteArrayInputStream(data))).execute().get();
+        assertEquals(stored.getStatus(), 201);
+        assertNotNull(stored.getKey());
+
+        /* Spilled to disk, past the threshold */
+        final Response<ByteBuffer> fetched = stored.getKey().getBucket().fetch(stored.getKey().getName(), new SpillingContentHandler(1024, directory)).execute().get();
+        final byte[] bytes = new byte[fetched.getContent().remaining()];
+        fetched.getContent().get(bytes);
+        assertEquals(bytes, data);
+    }
+}
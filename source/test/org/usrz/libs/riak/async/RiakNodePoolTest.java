@@ -0,0 +1,294 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import static org.usrz.libs.riak.async.RiakNodePool.Selection.LEAST_LATENCY;
+import static org.usrz.libs.riak.async.RiakNodePool.Selection.LEAST_OUTSTANDING;
+import static org.usrz.libs.riak.async.RiakNodePool.Selection.ROUND_ROBIN;
+
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class RiakNodePoolTest extends AbstractTest {
+
+    @Test
+    public void testRoundRobin() {
+        final RiakNodePool pool = new RiakNodePool(ROUND_ROBIN, "http://node1:8098", "http://node2:8098/", "https://node3");
+
+        final Set<RiakNode> selected = new HashSet<>();
+        for (int x = 0; x < 3; x ++) selected.add(pool.select());
+        assertEquals(selected.size(), 3);
+
+        final List<RiakNode> nodes = pool.getNodes();
+        assertEquals(nodes.get(0).getUrl(), "http://node1:8098");
+        assertEquals(nodes.get(1).getUrl(), "http://node2:8098");
+        assertEquals(nodes.get(2).getUrl(), "https://node3");
+        assertEquals(nodes.get(1).getUrl("/buckets/foo"), "http://node2:8098/buckets/foo");
+    }
+
+    @Test
+    public void testBasePath() {
+        final RiakNodePool pool = new RiakNodePool("http://proxy:80/riak/", "http://proxy:80/riak2");
+        final RiakNode node = pool.getNodes().get(0);
+        assertEquals(node.getUrl(), "http://proxy:80/riak");
+        assertEquals(node.getUrl("/buckets/foo"), "http://proxy:80/riak/buckets/foo");
+        assertSame(pool.getNode("http://proxy:80/riak/buckets/foo"), node);
+        assertSame(pool.getNode("http://proxy:80/riak2/buckets/foo"), pool.getNodes().get(1));
+    }
+
+    @Test
+    public void testLeastOutstanding()
+    throws NodeUnavailableException {
+        final RiakNodePool pool = new RiakNodePool(LEAST_OUTSTANDING, "http://node1:8098", "http://node2:8098");
+        final RiakNode node1 = pool.getNodes().get(0);
+        final RiakNode node2 = pool.getNodes().get(1);
+
+        pool.acquire(node1);
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node2);
+
+        pool.acquire(node2);
+        pool.acquire(node2);
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node1);
+
+        pool.end(node2, false);
+        pool.end(node2, false);
+        pool.end(node1, false);
+        assertEquals(node1.getOutstanding(), 0);
+        assertEquals(node2.getOutstanding(), 0);
+    }
+
+    @Test
+    public void testLeastLatency()
+    throws NodeUnavailableException {
+        final RiakNodePool pool = new RiakNodePool(LEAST_LATENCY, "http://node1:8098", "http://node2:8098");
+        final RiakNode node1 = pool.getNodes().get(0);
+        final RiakNode node2 = pool.getNodes().get(1);
+
+        /* Unmeasured nodes are tried first */
+        pool.record(node1, 10000000);
+        assertEquals(node1.getLatency(), 10000000L);
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node2);
+
+        /* The slow node converges, but stays slower */
+        pool.record(node2, 1000000);
+        for (int x = 0; x < 10; x ++) pool.record(node1, 2000000);
+        assertTrue(node1.getLatency() < 10000000L);
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node2);
+
+        /* Unless the fast one is too busy */
+        for (int x = 0; x < 10; x ++) pool.acquire(node2);
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node1);
+
+        /* Hedges go elsewhere, or nowhere */
+        assertSame(pool.select(node1), node2);
+        node2.eject();
+        assertNull(pool.select(node1));
+    }
+
+    @Test
+    public void testEjection()
+    throws NodeUnavailableException {
+        final RiakNodePool pool = new RiakNodePool(ROUND_ROBIN, "http://node1:8098", "http://node2:8098").setMaxFailures(2);
+        final RiakNode node1 = pool.getNodes().get(0);
+        final RiakNode node2 = pool.getNodes().get(1);
+
+        for (int x = 0; x < 2; x ++) {
+            pool.acquire(node1);
+            pool.end(node1, true);
+        }
+
+        assertFalse(node1.isHealthy());
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node2);
+
+        /* When everything is ejected, we still get a node */
+        node2.eject();
+        assertNotNull(pool.select());
+
+        /* Re-admission */
+        assertTrue(node1.admit());
+        assertFalse(node1.admit());
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node1);
+    }
+
+    @Test
+    public void testCircuitBreaker()
+    throws Exception {
+        final RiakNodePool pool = new RiakNodePool(ROUND_ROBIN, "http://node1:8098", "http://node2:8098").setMaxFailures(1000);
+        final RiakNode node1 = pool.getNodes().get(0);
+        final RiakNode node2 = pool.getNodes().get(1);
+        node1.getCircuitBreaker().setWindow(1, TimeUnit.MINUTES, 10).setOpenInterval(100, TimeUnit.MILLISECONDS);
+
+        /* Half of the requests failing trips the breaker */
+        for (int x = 0; x < 10; x ++) {
+            pool.acquire(node1);
+            pool.end(node1, x % 2 == 0, 1000000);
+        }
+        assertEquals(node1.getCircuitBreaker().getState(), CircuitBreaker.State.OPEN);
+        assertTrue(node1.isHealthy());
+        assertFalse(node1.isAvailable());
+        for (int x = 0; x < 10; x ++) assertSame(pool.select(), node2);
+
+        try {
+            pool.acquire(node1);
+            fail("Circuit breaker did not reject");
+        } catch (NodeUnavailableException exception) {
+            assertSame(exception.getNode(), node1);
+        }
+
+        /* After the interval, a single probe closes it again */
+        Thread.sleep(150);
+        pool.acquire(node1);
+        assertEquals(node1.getCircuitBreaker().getState(), CircuitBreaker.State.HALF_OPEN);
+        assertFalse(node1.isAvailable());
+        pool.end(node1, false, 1000000);
+        assertEquals(node1.getCircuitBreaker().getState(), CircuitBreaker.State.CLOSED);
+        assertTrue(node1.isAvailable());
+    }
+
+    @Test
+    public void testConcurrencyLimiterDisabled()
+    throws Exception {
+        final RiakNodePool pool = new RiakNodePool("http://node1:8098");
+        final RiakNode node = pool.getNodes().get(0);
+        final ConcurrencyLimiter limiter = node.getConcurrencyLimiter().setLimits(4, 2, 8);
+        assertFalse(limiter.isEnabled());
+
+        /* Only counts, never rejects nor adapts */
+        for (int x = 0; x < 100; x ++) pool.acquire(node);
+        assertTrue(node.isAvailable());
+        assertEquals(limiter.getInFlight(), 100);
+
+        pool.record(node, 1000000);
+        pool.record(node, 100000000);
+        for (int x = 0; x < 100; x ++) pool.end(node, true, 1000000);
+        assertEquals(limiter.getLimit(), 4);
+        assertEquals(limiter.getInFlight(), 0);
+    }
+
+    @Test
+    public void testConcurrencyLimiter()
+    throws Exception {
+        final RiakNodePool pool = new RiakNodePool("http://node1:8098").setConcurrencyLimiting(true);
+        final RiakNode node = pool.getNodes().get(0);
+        final ConcurrencyLimiter limiter = node.getConcurrencyLimiter().setLimits(4, 2, 8);
+        assertTrue(limiter.isEnabled());
+
+        for (int x = 0; x < 4; x ++) pool.acquire(node);
+        try {
+            pool.acquire(node);
+            fail("Concurrency limiter did not reject");
+        } catch (NodeUnavailableException exception) {
+            assertEquals(limiter.getInFlight(), 4);
+        }
+
+        /* Headers much slower than the best ones back off */
+        pool.record(node, 1000000);
+        pool.record(node, 10000000);
+        assertEquals(limiter.getLimit(), 3);
+
+        /* But slow bodies say nothing about the node */
+        pool.end(node, false, 1000000);
+        pool.end(node, false, 100000000);
+        assertEquals(limiter.getLimit(), 3);
+
+        /* Failures back off down to the minimum (keep the circuit closed) */
+        node.getCircuitBreaker().setWindow(10, TimeUnit.SECONDS, 1000);
+        pool.end(node, true, 1000000);
+        pool.end(node, true, 1000000);
+        for (int x = 0; x < 10; x ++) {
+            pool.acquire(node);
+            pool.end(node, true, 1000000);
+        }
+        assertEquals(limiter.getLimit(), 2);
+        assertEquals(limiter.getInFlight(), 0);
+
+        /* And busy, healthy round trips grow it back */
+        for (int x = 0; x < 100; x ++) {
+            pool.acquire(node);
+            pool.acquire(node);
+            pool.record(node, 1000000);
+            pool.record(node, 1000000);
+            pool.end(node, false, 1000000);
+            pool.end(node, false, 1000000);
+        }
+        assertTrue(limiter.getLimit() > 2, "Limit " + limiter.getLimit());
+    }
+
+    @Test
+    public void testGetNode() {
+        final RiakNodePool pool = new RiakNodePool("http://node1:8098", "http://node1:18098");
+        assertSame(pool.getNode("http://node1:8098/buckets/foo/keys/bar"), pool.getNodes().get(0));
+        assertSame(pool.getNode("http://node1:18098/buckets/foo/keys/bar"), pool.getNodes().get(1));
+        assertNull(pool.getNode("http://node2:8098/buckets/foo/keys/bar"));
+        assertNull(pool.getNode(null));
+    }
+
+    @Test
+    public void testHealthCheck()
+    throws Exception {
+        /* Nothing listens here once the socket is closed */
+        final ServerSocket socket = new ServerSocket(0);
+        socket.close();
+
+        final AsyncHttpClient client = new AsyncHttpClient();
+        final RiakNodePool pool = new RiakNodePool("http://127.0.0.1:" + socket.getLocalPort());
+        final RiakNode node = pool.getNodes().get(0);
+        try {
+            /* A single node gets checked too, and a new interval applies right away */
+            pool.setHealthCheckInterval(1, TimeUnit.HOURS).start(client);
+            pool.setHealthCheckInterval(50, TimeUnit.MILLISECONDS);
+            for (int x = 0; (x < 100) && node.isHealthy(); x ++) Thread.sleep(50);
+            assertFalse(node.isHealthy());
+        } finally {
+            pool.close();
+            client.close();
+        }
+    }
+
+    @Test
+    public void testOwnership() {
+        final AsyncHttpClient http = new AsyncHttpClient();
+        final AsyncHttpClient other = new AsyncHttpClient();
+        final RiakNodePool pool = new RiakNodePool("http://node1:8098");
+        try {
+            /* Shared among clients of the same HTTP client, never closed by them */
+            new AsyncRiakClient(http, pool).close();
+            new AsyncRiakClient(http, pool).close();
+            try {
+                new AsyncRiakClient(other, pool);
+                fail("Pool shared with a different HTTP client");
+            } catch (IllegalStateException exception) {
+                /* Health checks would go through a client we don't know about */
+            }
+
+            /* Once closed, anyone can start it again */
+            pool.close();
+            new AsyncRiakClient(other, pool).close();
+        } finally {
+            pool.close();
+            other.close();
+            http.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.async;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.SiblingResolver;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class SiblingResolverTest extends AbstractTest {
+
+    private final BlockingQueue<ResponseEvent<TestObject>> events = new LinkedBlockingQueue<>();
+    private final ResponseListener<TestObject> listener = new ResponseListener<TestObject>() {
+
+        @Override
+        public void responseHandled(ResponseEvent<TestObject> event) {
+            events.add(event);
+        }
+
+        @Override
+        public void responseFailed(ResponseEvent<TestObject> event) {
+            events.add(event);
+        }
+    };
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Bucket bucket;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator().setAllowMultiple(true);
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+        bucket = client.getBucket("siblings");
+
+        /* Blind writes, each one creating a new sibling */
+        for (String value: new String[] { "foo", "bar" })
+            bucket.store(new TestObject(value), "conflict").setVectorClockMode(VectorClockMode.NONE).setReturnBody(false).execute().get();
+        events.clear();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        http.close();
+        emulator.close();
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testResolution()
+    throws Exception {
+        client.setSiblingResolver(TestObject.class, new Merger(), false);
+
+        final Response<TestObject> response = bucket.fetch("conflict", TestObject.class).execute().get();
+        assertEquals(response.getStatus(), 300);
+        assertEquals(response.getContent().value, "barfoo");
+
+        /* Nothing was written back, the siblings are still there */
+        assertEquals(bucket.fetch("conflict", TestObject.class).execute().get().getStatus(), 300);
+    }
+
+    @Test(timeOut = 30000)
+    public void testWriteBack()
+    throws Exception {
+        client.setSiblingResolver(TestObject.class, new Merger(), listener);
+
+        final Response<TestObject> response = bucket.fetch("conflict", TestObject.class).execute().get();
+        assertEquals(response.getStatus(), 300);
+        assertEquals(response.getContent().value, "barfoo");
+
+        /* The write back went through, replacing all siblings */
+        final ResponseEvent<TestObject> event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event, "Write back never completed");
+        assertNull(event.getThrowable());
+
+        final Response<TestObject> fetched = bucket.fetch("conflict", TestObject.class).execute().get();
+        assertEquals(fetched.getStatus(), 200);
+        assertEquals(fetched.getContent().value, "barfoo");
+    }
+
+    @Test(timeOut = 30000)
+    public void testWriteBackFailure()
+    throws Exception {
+        client.setSiblingResolver(TestObject.class, new Merger() {
+
+            @Override
+            public TestObject resolve(Key key, List<Response<TestObject>> siblings) {
+                /* Reads fine, but can not be written back */
+                return new UnwritableObject(super.resolve(key, siblings).value);
+            }
+        }, listener);
+
+        assertEquals(bucket.fetch("conflict", TestObject.class).execute().get().getContent().value, "barfoo");
+
+        final ResponseEvent<TestObject> event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event, "Write back failure never reported");
+        assertNotNull(event.getThrowable());
+
+        /* The siblings are untouched */
+        assertEquals(bucket.fetch("conflict", TestObject.class).execute().get().getStatus(), 300);
+    }
+
+    /* ====================================================================== */
+
+    private static class Merger implements SiblingResolver<TestObject> {
+
+        @Override
+        public TestObject resolve(Key key, List<Response<TestObject>> siblings) {
+            /* Sorted, as siblings come in no particular order */
+            final Set<String> values = new TreeSet<>();
+            for (Response<TestObject> sibling: siblings) values.add(sibling.getContent().value);
+            final StringBuilder builder = new StringBuilder();
+            for (String value: values) builder.append(value);
+            return new TestObject(builder.toString());
+        }
+    }
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+
+    public static class UnwritableObject extends TestObject {
+
+        public UnwritableObject(String value) {
+            super(value);
+        }
+
+        public String getBroken() {
+            throw new IllegalStateException("Can not be serialized");
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.async.RiakNodePool;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.request.VectorClockMode;
+
+import com.ning.http.client.AsyncHttpClient;
+
+/**
+ * Throughput of {@link AsyncRiakClient} fetches, stores, deletes and key
+ * listings against an in-process {@link RiakEmulator}.
+ *
+ * <p>Run {@link #main(String[])} to measure with 1, 8 and 32 threads and
+ * the GC profiler (for allocation rates), any other JMH command line
+ * option is honored as well.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ClientBenchmark {
+
+    private static final int LISTED_KEYS = 1000;
+    private static final int STORED_KEYS = 1000;
+
+    @Param({ "128", "4096", "65536" })
+    public int bodySize;
+
+    @Param({ "0" })
+    public int latencyMillis;
+
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private RiakNodePool nodes;
+    private AsyncRiakClient client;
+    private Bucket bucket;
+    private Bucket listed;
+    private Payload payload;
+
+    @Setup(Level.Trial)
+    public void setup()
+    throws Exception {
+        emulator = new RiakEmulator().setLatency(latencyMillis, TimeUnit.MILLISECONDS);
+        http = new AsyncHttpClient();
+
+        /*
+         * Coalescing would turn concurrent fetches of one key into one, and
+         * the concurrency limiter would turn many threads into rejections
+         */
+        nodes = new RiakNodePool(emulator.getUrl()).setConcurrencyLimiting(false);
+        client = new AsyncRiakClient(http, nodes).setCoalescing(false);
+        bucket = client.getBucket("benchmark");
+        listed = client.getBucket("listed");
+        payload = new Payload(bodySize);
+
+        bucket.store(payload, "fetched").execute().get();
+        for (int x = 0; x < LISTED_KEYS; x ++) listed.store(new Payload(16), "key" + x).execute().get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        nodes.close();
+        http.close();
+        emulator.close();
+    }
+
+    /* ====================================================================== */
+
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private final String prefix = "thread" + THREADS.incrementAndGet() + "-";
+        private int counter = 0;
+
+        private String next() {
+            /* Cycle over a bounded set of keys, we want updates too */
+            return prefix + (counter ++ % STORED_KEYS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Deletable {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private final String key = "deleted" + THREADS.incrementAndGet();
+
+        @Setup(Level.Invocation)
+        public void store(ClientBenchmark benchmark)
+        throws Exception {
+            /* Something to delete, outside of what's measured */
+            benchmark.bucket.store(benchmark.payload, key)
+                            .setVectorClockMode(VectorClockMode.NONE)
+                            .execute().get();
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Benchmark
+    public Response<Payload> fetch()
+    throws Exception {
+        return bucket.fetch("fetched", Payload.class).execute().get();
+    }
+
+    @Benchmark
+    public Response<Payload> store(Keys keys)
+    throws Exception {
+        return bucket.store(payload, keys.next())
+                     .setVectorClockMode(VectorClockMode.NONE)
+                     .execute().get();
+    }
+
+    @Benchmark
+    public Response<Boolean> delete(Deletable deletable)
+    throws Exception {
+        return bucket.delete(deletable.key).execute().get();
+    }
+
+    @Benchmark
+    public int list()
+    throws Exception {
+        int count = 0;
+        for (@SuppressWarnings("unused") Key key: listed.getKeys()) count ++;
+        if (count != LISTED_KEYS) throw new IllegalStateException("Listed " + count + " keys, expected " + LISTED_KEYS);
+        return count;
+    }
+
+    /* ====================================================================== */
+
+    public static class Payload {
+
+        private String data;
+
+        public Payload() {
+            /* For deserialization */
+        }
+
+        private Payload(int size) {
+            final char[] data = new char[size];
+            Arrays.fill(data, 'x');
+            this.data = new String(data);
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public void setData(String data) {
+            this.data = data;
+        }
+    }
+
+    /* ====================================================================== */
+
+    public static void main(String[] args)
+    throws Exception {
+        for (int threads: new int[] { 1, 8, 32 }) {
+            new Runner(new OptionsBuilder()
+                           .parent(new CommandLineOptions(args))
+                           .include(ClientBenchmark.class.getName())
+                           .addProfiler(GCProfiler.class)
+                           .threads(threads)
+                           .build()).run();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.benchmarks;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.usrz.libs.riak.FetchRequest;
+import org.usrz.libs.riak.Quorum;
+import org.usrz.libs.riak.async.AsyncFetchRequest;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.async.EncodingPlan;
+import org.usrz.libs.utils.beans.Mapper;
+
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+
+/**
+ * Cost of turning the properties set on a fetch request into headers and
+ * query parameters through its precompiled {@link EncodingPlan}, with no
+ * properties, with quorums, and with quorums and conditionals.
+ *
+ * <p>The {@link #builder()} baseline measures creating the request builder
+ * alone, subtract it from the others for the cost of the plan itself.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    private static final EncodingPlan PLAN = new EncodingPlan(AsyncFetchRequest.class);
+    private static final String LOCATION = "http://127.0.0.1:8098/buckets/benchmark/keys/key";
+
+    @Param({ "none", "quorums", "conditionals" })
+    public String properties;
+
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+    private Map<String, ?> mapped;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        http = new AsyncHttpClient();
+
+        /* A real request, so that properties are mapped as in the client */
+        client = new AsyncRiakClient(http, "http://127.0.0.1:8098/");
+        final FetchRequest<Object> request = client.fetch("benchmark", "key", Object.class);
+        if (!"none".equals(properties)) request.setReadQuorum(Quorum.QUORUM)
+                                               .setPrimaryReadQuorum(2)
+                                               .setBasicQuorum(true);
+        if ("conditionals".equals(properties)) request.setIfNoneMatch("\"6jdvtTyMfBOjuTv5KhEhxN\"")
+                                                      .setIfModifiedSince(new Date(1760781599000L));
+        mapped = ((Mapper) request).mappedProperties();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        http.close();
+    }
+
+    /* ====================================================================== */
+
+    @Benchmark
+    public BoundRequestBuilder builder() {
+        return http.prepareGet(LOCATION);
+    }
+
+    @Benchmark
+    public BoundRequestBuilder encode() {
+        return PLAN.encode(mapped, http.prepareGet(LOCATION));
+    }
+
+    @Benchmark
+    public boolean conditional() {
+        return PLAN.isConditional(mapped);
+    }
+
+    /* ====================================================================== */
+
+    public static void main(String[] args)
+    throws Exception {
+        new Runner(new OptionsBuilder()
+                       .parent(new CommandLineOptions(args))
+                       .include(EncodingBenchmark.class.getName())
+                       .addProfiler(GCProfiler.class)
+                       .build()).run();
+    }
+}
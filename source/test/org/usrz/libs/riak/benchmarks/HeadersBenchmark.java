@@ -0,0 +1,189 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.usrz.libs.riak.FakeClient;
+import org.usrz.libs.riak.Index;
+import org.usrz.libs.riak.IndexMap;
+import org.usrz.libs.riak.IndexMapBuilder;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.LinksMap;
+import org.usrz.libs.riak.LinksMapBuilder;
+import org.usrz.libs.riak.Metadata;
+import org.usrz.libs.riak.MetadataBuilder;
+import org.usrz.libs.riak.Quorum;
+import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.riak.utils.RiakUtils;
+
+/**
+ * Cost of the encoding and header parsing done on every request or
+ * response, with realistic sets of 0, 10 and 100 indexes, links and
+ * metadata entries.
+ *
+ * <p>Run {@link #main(String[])} to measure with the GC profiler, whose
+ * {@code gc.alloc.rate.norm} reports the bytes allocated per operation;
+ * any other JMH command line option is honored as well.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadersBenchmark {
+
+    private static final String UNRESERVED = "user_1234567890-abcdef";
+    private static final String RESERVED = "dev@usrz.com/f\u00FCbar?x=1&y=2 #3";
+    private static final String LOCATION = "http://127.0.0.1:8098/buckets/dev%40usrz/keys/f%C3%BCbar";
+
+    private final RiakClient client = new FakeClient();
+    private final String encoded = RiakUtils.encode(RESERVED);
+
+    /* ====================================================================== */
+
+    @State(Scope.Benchmark)
+    public static class Headers {
+
+        @Param({ "0", "10", "100" })
+        public int count;
+
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final List<String> names = new ArrayList<>();
+        private String links;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            /* What a Riak response normally carries */
+            headers.put("Content-Type", Collections.singletonList("application/json"));
+            headers.put("Content-Length", Collections.singletonList("1234"));
+            headers.put("Date", Collections.singletonList("Sun, 18 Oct 2026 10:00:00 GMT"));
+            headers.put("ETag", Collections.singletonList("\"6jdvtTyMfBOjuTv5KhEhxN\""));
+            headers.put("Last-Modified", Collections.singletonList("Sun, 18 Oct 2026 09:59:59 GMT"));
+            headers.put("Server", Collections.singletonList("MochiWeb/1.1 WebMachine/1.10.0 (never breaks eye contact)"));
+            headers.put("Vary", Collections.singletonList("Accept-Encoding"));
+            headers.put("X-Riak-Vclock", Collections.singletonList("a85hYGBgzGDKBVIcypz/fgaUHjmTwZTInMfKoG7LdoovCwA="));
+
+            /* Links are all in one header, like Riak does */
+            final StringBuilder links = new StringBuilder("</buckets/dev%40usrz>; rel=\"up\"");
+            for (int x = 0; x < count; x ++) {
+                headers.put("X-Riak-Index-field" + x + (x % 2 == 0 ? "_bin" : "_int"),
+                            Collections.singletonList(x % 2 == 0 ? "value%20" + x + ", other%40" + x : Integer.toString(x * 1000)));
+                headers.put("X-Riak-Meta-field" + x, Collections.singletonList("meta%20value%20" + x));
+                links.append(", </buckets/dev%40usrz/keys/linked").append(x).append(">; riaktag=\"tag").append(x % 5).append('"');
+            }
+            this.links = links.toString();
+            headers.put("Link", Collections.singletonList(this.links));
+
+            for (String name: headers.keySet()) if (name.startsWith("X-Riak-Index-")) names.add(name);
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Benchmark
+    public String encodeUnreserved() {
+        return RiakUtils.encode(UNRESERVED);
+    }
+
+    @Benchmark
+    public String encodeReserved() {
+        return RiakUtils.encode(RESERVED);
+    }
+
+    @Benchmark
+    public String decode() {
+        return RiakUtils.decode(encoded);
+    }
+
+    @Benchmark
+    public Key parseKey() {
+        return new Key(client, LOCATION);
+    }
+
+    @Benchmark
+    public Index parseIndex() {
+        return new Index("X-Riak-Index-email_bin");
+    }
+
+    @Benchmark
+    public String quorumKeyword() {
+        return Quorum.getParameter("quorum");
+    }
+
+    @Benchmark
+    public String quorumNumber() {
+        return Quorum.getParameter(3);
+    }
+
+    /* ====================================================================== */
+
+    @Benchmark
+    public int parseIndexNames(Headers headers) {
+        /* Index(String) on each index header, as in a response */
+        int hash = 0;
+        for (String name: headers.names) hash += new Index(name).hashCode();
+        return hash;
+    }
+
+    @Benchmark
+    public IndexMap parseIndexes(Headers headers) {
+        return new IndexMapBuilder().parseHeaders(headers.headers).build();
+    }
+
+    @Benchmark
+    public LinksMap parseLinks(Headers headers) {
+        return new LinksMapBuilder(client).parseHeader(headers.links).build();
+    }
+
+    @Benchmark
+    public Metadata parseMetadata(Headers headers) {
+        return new MetadataBuilder().parseHeaders(headers.headers).build();
+    }
+
+    /* ====================================================================== */
+
+    public static void main(String[] args)
+    throws Exception {
+        new Runner(new OptionsBuilder()
+                       .parent(new CommandLineOptions(args))
+                       .include(HeadersBenchmark.class.getName())
+                       .addProfiler(GCProfiler.class)
+                       .build()).run();
+    }
+}
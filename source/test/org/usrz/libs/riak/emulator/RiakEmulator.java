@@ -0,0 +1,964 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.emulator;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.riak.pbc.ProtobufReader;
+import org.usrz.libs.riak.pbc.ProtobufWriter;
+import org.usrz.libs.riak.utils.RiakUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A lightweight, in-memory stand-in for Riak's HTTP and protocol buffers
+ * interfaces, sharing the same storage.
+ *
+ * <p>The emulator understands enough of the protocol to exercise clients
+ * end-to-end without a real cluster: objects (with vector clocks, vtags,
+ * links, secondary indexes, user metadata and siblings when
+ * {@linkplain #setAllowMultiple(boolean) allowed}), streamed bucket, key and
+ * secondary index listings (with pagination), conditional requests and
+ * gzip content encoding. Every request can be delayed by a configurable
+ * {@linkplain #setLatency(long, long, TimeUnit) latency}.</p>
+ *
+ * <p>Over protocol buffers only fetches, stores (conditional ones too),
+ * deletes and bucket and key listings are available, and links are not
+ * kept. Quorums, durability and map/reduce are <em>not</em> emulated.</p>
+ */
+public class RiakEmulator implements Closeable {
+
+    private static final Log log = new Log();
+
+    private static final int CHUNK_SIZE = 100;
+    private static final int GZIP_THRESHOLD = 1024;
+
+    /* Protocol buffers message codes */
+    private static final int ERROR_RESP = 0;
+    private static final int PING_REQ = 1;
+    private static final int PING_RESP = 2;
+    private static final int GET_REQ = 9;
+    private static final int GET_RESP = 10;
+    private static final int PUT_REQ = 11;
+    private static final int PUT_RESP = 12;
+    private static final int DEL_REQ = 13;
+    private static final int DEL_RESP = 14;
+    private static final int LIST_BUCKETS_REQ = 15;
+    private static final int LIST_BUCKETS_RESP = 16;
+    private static final int LIST_KEYS_REQ = 17;
+    private static final int LIST_KEYS_RESP = 18;
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Stored>> buckets = new ConcurrentHashMap<>();
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong requests = new AtomicLong();
+    private final ExecutorService executor;
+    private final ServerSocket pbcServer;
+    private final HttpServer server;
+    private final String url;
+
+    private volatile boolean allowMultiple = false;
+    private volatile long latency = 0;
+    private volatile long jitter = 0;
+
+    public RiakEmulator()
+    throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    public RiakEmulator(InetSocketAddress address)
+    throws IOException {
+        if (address == null) throw new NullPointerException("Null address");
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "RiakEmulator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        server = HttpServer.create(address, 128);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange)
+            throws IOException {
+                RiakEmulator.this.handle(exchange);
+            }
+        });
+        server.start();
+
+        final InetSocketAddress bound = server.getAddress();
+        url = "http://" + bound.getAddress().getHostAddress() + ":" + bound.getPort();
+
+        /* Protocol buffers, on the same address but any port */
+        pbcServer = new ServerSocket(0, 128, bound.getAddress());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+
+        log.debug("Riak emulator listening on %s and %s", url, getPbcAddress());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        try {
+            pbcServer.close();
+            for (Socket socket: sockets) socket.close();
+        } catch (IOException exception) {
+            log.debug("Exception closing protocol buffers sockets: %s", exception);
+        }
+        executor.shutdownNow();
+    }
+
+    /* ====================================================================== */
+
+    public String getUrl() {
+        return url;
+    }
+
+    public InetSocketAddress getPbcAddress() {
+        return new InetSocketAddress(pbcServer.getInetAddress(), pbcServer.getLocalPort());
+    }
+
+    public RiakEmulator setAllowMultiple(boolean allowMultiple) {
+        this.allowMultiple = allowMultiple;
+        return this;
+    }
+
+    public RiakEmulator setLatency(long latency, TimeUnit unit) {
+        return setLatency(latency, 0, unit);
+    }
+
+    public RiakEmulator setLatency(long latency, long jitter, TimeUnit unit) {
+        if (unit == null) throw new NullPointerException("Null time unit");
+        if (latency < 0) throw new IllegalArgumentException("Negative latency");
+        if (jitter < 0) throw new IllegalArgumentException("Negative jitter");
+        this.latency = unit.toNanos(latency);
+        this.jitter = unit.toNanos(jitter);
+        return this;
+    }
+
+    public int size(String bucket) {
+        final Map<String, Stored> keys = buckets.get(bucket);
+        return keys == null ? 0 : keys.size();
+    }
+
+    public void clear() {
+        buckets.clear();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /* ====================================================================== */
+
+    private void handle(HttpExchange exchange)
+    throws IOException {
+        try {
+            requests.incrementAndGet();
+            delay();
+
+            final String method = exchange.getRequestMethod();
+            final String[] path = path(exchange.getRequestURI().getRawPath());
+            final Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+
+            if ((path.length == 1) && "ping".equals(path[0])) {
+                send(exchange, 200, "text/plain", "OK".getBytes(UTF_8));
+
+            } else if ((path.length == 0) || (!"buckets".equals(path[0]))) {
+                send(exchange, 404, "text/plain", "Not found".getBytes(UTF_8));
+
+            } else if ((path.length == 1) && "GET".equals(method)) {
+                listBuckets(exchange, query);
+
+            } else if ((path.length == 3) && "props".equals(path[2]) && "GET".equals(method)) {
+                final Map<String, Object> props = new HashMap<>();
+                props.put("name", path[1]);
+                props.put("allow_mult", allowMultiple);
+                sendJson(exchange, Collections.singletonMap("props", props));
+
+            } else if ((path.length == 3) && "keys".equals(path[2]) && "GET".equals(method)) {
+                listKeys(exchange, path[1], query);
+
+            } else if ((path.length == 3) && "keys".equals(path[2]) && "POST".equals(method)) {
+                store(exchange, path[1], null, query);
+
+            } else if ((path.length == 4) && "keys".equals(path[2])) {
+                switch (method) {
+                    case "GET":
+                    case "HEAD":   fetch(exchange, path[1], path[3], query); break;
+                    case "PUT":
+                    case "POST":   store(exchange, path[1], path[3], query); break;
+                    case "DELETE": delete(exchange, path[1], path[3]); break;
+                    default:       send(exchange, 405, "text/plain", "Method not allowed".getBytes(UTF_8));
+                }
+
+            } else if (((path.length == 5) || (path.length == 6)) && "index".equals(path[2]) && "GET".equals(method)) {
+                query(exchange, path[1], path[3], path[4], path.length == 6 ? path[5] : null, query);
+
+            } else {
+                send(exchange, 400, "text/plain", "Unsupported request".getBytes(UTF_8));
+            }
+
+        } catch (InterruptedIOException exception) {
+            /* We're being closed, just go away */
+        } catch (Throwable throwable) {
+            log.error(throwable, "Exception handling %s %s", exchange.getRequestMethod(), exchange.getRequestURI());
+            try {
+                send(exchange, 500, "text/plain", String.valueOf(throwable.getMessage()).getBytes(UTF_8));
+            } catch (Throwable ignored) {
+                /* Headers might have been sent already */
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay()
+    throws InterruptedIOException {
+        final long jitter = this.jitter;
+        final long nanos = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        if (nanos > 0) try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted injecting latency");
+        }
+    }
+
+    /* ====================================================================== */
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = pbcServer.accept();
+                sockets.add(socket);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException exception) {
+            /* We're being closed, just go away */
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                final int length = input.readInt();
+                final int code = input.read();
+                final byte[] message = new byte[length - 1];
+                input.readFully(message);
+
+                requests.incrementAndGet();
+                delay();
+                try {
+                    for (ByteBuffer frame: respond(code, new ProtobufReader(message))) output.write(frame.array(), 0, frame.limit());
+                } catch (InterruptedIOException exception) {
+                    throw exception;
+                } catch (Throwable throwable) {
+                    log.error(throwable, "Exception handling protocol buffers message %d", code);
+                    final ByteBuffer frame = error(String.valueOf(throwable.getMessage()));
+                    output.write(frame.array(), 0, frame.limit());
+                }
+                output.flush();
+            }
+        } catch (IOException exception) {
+            /* Client went away, or we're being closed */
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException exception) {
+                /* Ignore */
+            }
+        }
+    }
+
+    private List<ByteBuffer> respond(int code, ProtobufReader reader)
+    throws IOException {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        final List<ProtobufReader> contents = new ArrayList<>();
+        String bucket = null, key = null, vectorClock = null;
+        boolean returnBody = false, ifNotModified = false, ifNoneMatch = false, stream = false;
+
+        /* Same field numbers for bucket and key everywhere, the rest depends */
+        for (int field = reader.next(); field != 0; field = reader.next()) {
+            if (code == LIST_BUCKETS_REQ) {
+                if (field == 2) stream = reader.readBoolean();
+                else reader.skip();
+            } else if (field == 1) {
+                bucket = reader.readString();
+            } else if (field == 2) {
+                key = reader.readString();
+            } else if (code == PUT_REQ) switch (field) {
+                case 3:  vectorClock = Base64.getEncoder().encodeToString(reader.readBytes()); break;
+                case 4:  contents.add(reader.readMessage()); break;
+                case 7:  returnBody = reader.readBoolean(); break;
+                case 9:  ifNotModified = reader.readBoolean(); break;
+                case 10: ifNoneMatch = reader.readBoolean(); break;
+                default: reader.skip();
+            } else {
+                reader.skip();
+            }
+        }
+
+        switch (code) {
+            case PING_REQ:
+                frames.add(new ProtobufWriter().toFrame(PING_RESP));
+                break;
+
+            case GET_REQ: {
+                final Map<String, Stored> keys = buckets.get(bucket);
+                final Stored stored = keys == null ? null : keys.get(key);
+                final ProtobufWriter response = new ProtobufWriter();
+                if (stored != null) object(response, stored);
+                frames.add(response.toFrame(GET_RESP));
+                break;
+            }
+
+            case PUT_REQ: {
+                if (contents.size() != 1) {
+                    frames.add(error("Missing content"));
+                    break;
+                }
+
+                final boolean created = key == null;
+                if (created) key = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+                /* Without a vector clock "if_not_modified" never matches */
+                final Stored stored = put(bucket, key, sibling(contents.get(0)), vectorClock,
+                                          ifNoneMatch, null, ifNotModified ? String.valueOf(vectorClock) : null);
+
+                /* Riak's own error messages for failed conditions */
+                if (stored == null) {
+                    frames.add(error(ifNoneMatch ? "match_found" : "modified"));
+                    break;
+                }
+
+                final ProtobufWriter response = new ProtobufWriter();
+                if (returnBody) object(response, stored);
+                else response.writeBytes(2, stored.vectorClockBytes());
+                if (created) response.writeString(3, key);
+                frames.add(response.toFrame(PUT_RESP));
+                break;
+            }
+
+            case DEL_REQ: {
+                final Map<String, Stored> keys = buckets.get(bucket);
+                if (keys != null) keys.remove(key);
+                frames.add(new ProtobufWriter().toFrame(DEL_RESP));
+                break;
+            }
+
+            case LIST_BUCKETS_REQ: {
+                final List<String> names = new ArrayList<>();
+                for (Entry<String, ConcurrentSkipListMap<String, Stored>> entry: buckets.entrySet())
+                    if (!entry.getValue().isEmpty()) names.add(entry.getKey());
+                Collections.sort(names);
+                frames.addAll(stream(LIST_BUCKETS_RESP, names, stream));
+                break;
+            }
+
+            case LIST_KEYS_REQ: {
+                final Map<String, Stored> keys = buckets.get(bucket);
+                final List<String> names = keys == null ? Collections.<String>emptyList() : new ArrayList<>(keys.keySet());
+                frames.addAll(stream(LIST_KEYS_RESP, names, true));
+                break;
+            }
+
+            default:
+                frames.add(error("Unsupported message code " + code));
+        }
+        return frames;
+    }
+
+    /* RpbContent to sibling, keeping metadata and indexes as HTTP would */
+    private static Sibling sibling(ProtobufReader reader)
+    throws IOException {
+        final Map<String, List<String>> headers = new TreeMap<>();
+        String contentType = null;
+        byte[] value = new byte[0];
+
+        for (int field = reader.next(); field != 0; field = reader.next()) switch (field) {
+            case 1:  value = reader.readBytes(); break;
+            case 2:  contentType = reader.readString(); break;
+            case 9:
+            case 10:
+                String name = null, string = null;
+                final ProtobufReader pair = reader.readMessage();
+                for (int inner = pair.next(); inner != 0; inner = pair.next()) {
+                    if (inner == 1) name = pair.readString();
+                    else if (inner == 2) string = pair.readString();
+                    else pair.skip();
+                }
+                if ((name == null) || (string == null)) break;
+
+                final String header = (field == 9 ? "x-riak-meta-" : "x-riak-index-") + name.toLowerCase();
+                if (!headers.containsKey(header)) headers.put(header, new ArrayList<String>());
+                headers.get(header).add(field == 9 ? string : RiakUtils.encode(string));
+                break;
+            default: reader.skip();
+        }
+
+        final Sibling sibling = new Sibling(contentType, value);
+        sibling.headers.putAll(headers);
+        return sibling;
+    }
+
+    /* Siblings and vector clock, as in RpbGetResp and RpbPutResp */
+    private static void object(ProtobufWriter response, Stored stored) {
+        for (Sibling sibling: stored.siblings) {
+            final ProtobufWriter content = new ProtobufWriter(sibling.body.length + 64)
+                                                 .writeBytes(1, sibling.body)
+                                                 .writeString(2, sibling.contentType)
+                                                 .writeString(5, sibling.vtag)
+                                                 .writeVarint(7, sibling.lastModified / 1000);
+
+            for (Entry<String, List<String>> header: sibling.headers.entrySet()) {
+                final String name = header.getKey();
+                if (name.startsWith("x-riak-meta-")) {
+                    for (String value: header.getValue())
+                        content.writeMessage(9, new ProtobufWriter().writeString(1, name.substring(12)).writeString(2, value));
+                } else if (name.startsWith("x-riak-index-")) {
+                    for (String value: header.getValue()) for (String term: value.split(","))
+                        content.writeMessage(10, new ProtobufWriter().writeString(1, name.substring(13)).writeString(2, RiakUtils.decode(term.trim())));
+                }
+            }
+            response.writeMessage(1, content);
+        }
+        response.writeBytes(2, stored.vectorClockBytes());
+    }
+
+    /* Like Riak, a number of entries per message and a final "done" */
+    private static List<ByteBuffer> stream(int code, List<String> values, boolean done) {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        for (int start = 0; start < values.size(); start += CHUNK_SIZE) {
+            final ProtobufWriter message = new ProtobufWriter();
+            for (String value: values.subList(start, Math.min(values.size(), start + CHUNK_SIZE))) message.writeString(1, value);
+            frames.add(message.toFrame(code));
+        }
+        if (done) frames.add(new ProtobufWriter().writeBoolean(2, true).toFrame(code));
+        else if (frames.isEmpty()) frames.add(new ProtobufWriter().toFrame(code));
+        return frames;
+    }
+
+    private static ByteBuffer error(String message) {
+        return new ProtobufWriter().writeString(1, message).writeUnsigned(2, 1).toFrame(ERROR_RESP);
+    }
+
+    /* ====================================================================== */
+
+    private void listBuckets(HttpExchange exchange, Map<String, String> query)
+    throws IOException {
+        final List<String> names = new ArrayList<>();
+        for (Entry<String, ConcurrentSkipListMap<String, Stored>> entry: buckets.entrySet())
+            if (!entry.getValue().isEmpty()) names.add(entry.getKey());
+        Collections.sort(names);
+
+        if ("stream".equals(query.get("buckets"))) stream(exchange, "buckets", names, null);
+        else if ("true".equals(query.get("buckets"))) sendJson(exchange, Collections.singletonMap("buckets", names));
+        else send(exchange, 400, "text/plain", "Missing buckets=true|stream".getBytes(UTF_8));
+    }
+
+    private void listKeys(HttpExchange exchange, String bucket, Map<String, String> query)
+    throws IOException {
+        final Map<String, Stored> keys = buckets.get(bucket);
+        final List<String> names = keys == null ? Collections.<String>emptyList() : new ArrayList<>(keys.keySet());
+
+        if ("stream".equals(query.get("keys"))) stream(exchange, "keys", names, null);
+        else if ("true".equals(query.get("keys"))) sendJson(exchange, Collections.singletonMap("keys", names));
+        else send(exchange, 400, "text/plain", "Missing keys=true|stream".getBytes(UTF_8));
+    }
+
+    private void query(HttpExchange exchange, String bucket, String index, String start, String end, Map<String, String> query)
+    throws IOException {
+        final boolean integer = index.endsWith("_int");
+        final boolean returnTerms = "true".equals(query.get("return_terms"));
+        final int maxResults = query.containsKey("max_results") ? Integer.parseInt(query.get("max_results")) : 0;
+        final String continuation = query.get("continuation");
+
+        /* Collect (and sort) all matches, "$bucket" matches everything */
+        final NavigableMap<Match, String> matches = new TreeMap<>();
+        final Map<String, Stored> keys = buckets.get(bucket);
+        if (keys != null) for (Entry<String, Stored> entry: keys.entrySet()) {
+            final String key = entry.getKey();
+            if ("$bucket".equals(index)) {
+                matches.put(new Match(start, key, false), key);
+                continue;
+            }
+            for (String term: terms(index, key, entry.getValue())) {
+                if (end == null ? compare(term, start, integer) != 0 :
+                    (compare(term, start, integer) < 0) || (compare(term, end, integer) > 0)) continue;
+                matches.put(new Match(term, key, integer), key);
+            }
+        }
+
+        /* Skip what was already returned, and cut the page */
+        NavigableMap<Match, String> page = matches;
+        if (continuation != null) {
+            final String[] last = new String(Base64.getUrlDecoder().decode(continuation), UTF_8).split("\0", 2);
+            page = page.tailMap(new Match(last[0], last[1], integer), false);
+        }
+        String next = null;
+        if ((maxResults > 0) && (page.size() > maxResults)) {
+            Match last = null;
+            final TreeMap<Match, String> cut = new TreeMap<>();
+            for (Entry<Match, String> entry: page.entrySet()) {
+                if (cut.size() == maxResults) break;
+                cut.put(last = entry.getKey(), entry.getValue());
+            }
+            next = Base64.getUrlEncoder().withoutPadding().encodeToString((last.term + "\0" + last.key).getBytes(UTF_8));
+            page = cut;
+        }
+
+        final List<Object> results = new ArrayList<>(page.size());
+        for (Match match: page.keySet())
+            results.add(returnTerms ? Collections.singletonMap(match.term, match.key) : match.key);
+
+        if ("true".equals(query.get("stream"))) {
+            stream(exchange, returnTerms ? "results" : "keys", results, next);
+        } else {
+            final Map<String, Object> json = new HashMap<>();
+            json.put(returnTerms ? "results" : "keys", results);
+            if (next != null) json.put("continuation", next);
+            sendJson(exchange, json);
+        }
+    }
+
+    private List<String> terms(String index, String key, Stored stored) {
+        if ("$key".equals(index)) return Collections.singletonList(key);
+
+        final List<String> terms = new ArrayList<>();
+        for (Sibling sibling: stored.siblings) {
+            final List<String> values = sibling.headers.get("x-riak-index-" + index.toLowerCase());
+            if (values != null) for (String value: values) {
+                for (String term: value.split(",")) terms.add(RiakUtils.decode(term.trim()));
+            }
+        }
+        return terms;
+    }
+
+    private static int compare(String term, String bound, boolean integer) {
+        return integer ? Long.compare(Long.parseLong(term), Long.parseLong(bound)) : term.compareTo(bound);
+    }
+
+    /* ====================================================================== */
+
+    private void fetch(HttpExchange exchange, String bucket, String key, Map<String, String> query)
+    throws IOException {
+        final Map<String, Stored> keys = buckets.get(bucket);
+        final Stored stored = keys == null ? null : keys.get(key);
+        if (stored == null) {
+            send(exchange, 404, "text/plain", "not found\n".getBytes(UTF_8));
+            return;
+        }
+
+        /* A specific sibling was requested */
+        final String vtag = query.get("vtag");
+        if (vtag != null) {
+            for (Sibling sibling: stored.siblings) if (sibling.vtag.equals(vtag)) {
+                sendObject(exchange, 200, stored, sibling);
+                return;
+            }
+            send(exchange, 404, "text/plain", "not found\n".getBytes(UTF_8));
+            return;
+        }
+
+        if (stored.siblings.size() > 1) {
+            sendSiblings(exchange, stored);
+            return;
+        }
+
+        /* Conditional requests */
+        final Sibling sibling = stored.siblings.get(0);
+        final Headers headers = exchange.getRequestHeaders();
+        final String noneMatch = headers.getFirst("If-None-Match");
+        final Date modifiedSince = parseDate(headers.getFirst("If-Modified-Since"));
+        if ((noneMatch != null) ? unquote(noneMatch).equals(sibling.vtag) :
+            (modifiedSince != null) && (sibling.lastModified <= modifiedSince.getTime())) {
+            exchange.getResponseHeaders().set("X-Riak-Vclock", stored.vectorClock());
+            exchange.getResponseHeaders().set("ETag", "\"" + sibling.vtag + "\"");
+            send(exchange, 304, null, null);
+            return;
+        }
+
+        sendObject(exchange, 200, stored, sibling);
+    }
+
+    private void store(HttpExchange exchange, final String bucket, String key, Map<String, String> query)
+    throws IOException {
+        final Headers headers = exchange.getRequestHeaders();
+        final boolean created = key == null;
+        if (created) key = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+        /* Read the body (inflating it if needed) and keep Riak's headers */
+        final Sibling sibling = new Sibling(headers.getFirst("Content-Type"), body(exchange));
+        for (Entry<String, List<String>> header: headers.entrySet()) {
+            final String name = header.getKey().toLowerCase();
+            if (name.startsWith("x-riak-index-") || name.startsWith("x-riak-meta-") || name.equals("link"))
+                sibling.headers.put(name, new ArrayList<>(header.getValue()));
+        }
+
+        /* Conditional stores, then create, replace or add a sibling */
+        final String ifMatch = headers.getFirst("If-Match");
+        final Stored stored = put(bucket, key, sibling, headers.getFirst("X-Riak-Vclock"),
+                                  "*".equals(headers.getFirst("If-None-Match")),
+                                  ifMatch == null ? null : unquote(ifMatch), null);
+        if (stored == null) {
+            send(exchange, 412, "text/plain", "precondition failed\n".getBytes(UTF_8));
+            return;
+        }
+
+        final String location = "/buckets/" + RiakUtils.encode(bucket) + "/keys/" + RiakUtils.encode(key);
+        if (created) exchange.getResponseHeaders().set("Location", location);
+
+        if (!"true".equals(query.get("returnbody"))) {
+            exchange.getResponseHeaders().set("X-Riak-Vclock", stored.vectorClock());
+            send(exchange, created ? 201 : 204, null, null);
+        } else if (stored.siblings.size() > 1) {
+            sendSiblings(exchange, stored);
+        } else {
+            sendObject(exchange, created ? 201 : 200, stored, sibling);
+        }
+    }
+
+    /* Create, replace or add a sibling, null when a condition fails */
+    private Stored put(String bucket, String key, Sibling sibling, String vectorClock, boolean ifNoneMatch, String ifMatch, String ifNotModified) {
+        final ConcurrentSkipListMap<String, Stored> keys = bucket(bucket);
+        synchronized (keys) {
+            final Stored previous = keys.get(key);
+            if ((previous != null) && ifNoneMatch) return null;
+            if ((ifMatch != null) && ((previous == null) || (previous.siblings.size() != 1) ||
+                                      (!ifMatch.equals(previous.siblings.get(0).vtag)))) return null;
+            if ((ifNotModified != null) && ((previous == null) || (!ifNotModified.equals(previous.vectorClock())))) return null;
+
+            final Stored stored;
+            if (previous == null) {
+                stored = new Stored(ThreadLocalRandom.current().nextLong(), 1, Collections.singletonList(sibling));
+            } else if (allowMultiple && (!previous.vectorClock().equals(vectorClock))) {
+                final List<Sibling> siblings = new ArrayList<>(previous.siblings);
+                siblings.add(sibling);
+                stored = new Stored(previous.generation, previous.version + 1, siblings);
+            } else {
+                stored = new Stored(previous.generation, previous.version + 1, Collections.singletonList(sibling));
+            }
+            keys.put(key, stored);
+            return stored;
+        }
+    }
+
+    private void delete(HttpExchange exchange, String bucket, String key)
+    throws IOException {
+        final Map<String, Stored> keys = buckets.get(bucket);
+        final boolean deleted = (keys != null) && (keys.remove(key) != null);
+        send(exchange, deleted ? 204 : 404, null, null);
+    }
+
+    private ConcurrentSkipListMap<String, Stored> bucket(String name) {
+        final ConcurrentSkipListMap<String, Stored> bucket = buckets.get(name);
+        if (bucket != null) return bucket;
+        final ConcurrentSkipListMap<String, Stored> created = new ConcurrentSkipListMap<>();
+        final ConcurrentSkipListMap<String, Stored> existing = buckets.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    /* ====================================================================== */
+
+    private void sendObject(HttpExchange exchange, int status, Stored stored, Sibling sibling)
+    throws IOException {
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set("X-Riak-Vclock", stored.vectorClock());
+        headers.set("ETag", "\"" + sibling.vtag + "\"");
+        headers.set("Last-Modified", formatDate(sibling.lastModified));
+        for (Entry<String, List<String>> header: sibling.headers.entrySet()) {
+            headers.put(headerName(header.getKey()), header.getValue());
+        }
+        send(exchange, status, sibling.contentType, sibling.body);
+    }
+
+    private void sendSiblings(HttpExchange exchange, Stored stored)
+    throws IOException {
+        exchange.getResponseHeaders().set("X-Riak-Vclock", stored.vectorClock());
+
+        /* Without multipart, just the list of vtags */
+        final String accept = exchange.getRequestHeaders().getFirst("Accept");
+        if ((accept == null) || (!accept.contains("multipart/mixed"))) {
+            final StringBuilder builder = new StringBuilder("Siblings:\n");
+            for (Sibling sibling: stored.siblings) builder.append(sibling.vtag).append('\n');
+            send(exchange, 300, "text/plain", builder.toString().getBytes(UTF_8));
+            return;
+        }
+
+        final String boundary = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (Sibling sibling: stored.siblings) {
+            final StringBuilder builder = new StringBuilder()
+                .append("\r\n--").append(boundary).append("\r\n")
+                .append("Content-Type: ").append(sibling.contentType).append("\r\n")
+                .append("Etag: ").append(sibling.vtag).append("\r\n")
+                .append("Last-Modified: ").append(formatDate(sibling.lastModified)).append("\r\n");
+            for (Entry<String, List<String>> header: sibling.headers.entrySet()) {
+                final String name = headerName(header.getKey());
+                for (String value: header.getValue()) builder.append(name).append(": ").append(value).append("\r\n");
+            }
+            body.write(builder.append("\r\n").toString().getBytes(ISO_8859_1));
+            body.write(sibling.body);
+        }
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(ISO_8859_1));
+        send(exchange, 300, "multipart/mixed; boundary=" + boundary, body.toByteArray());
+    }
+
+    private void sendJson(HttpExchange exchange, Object json)
+    throws IOException {
+        send(exchange, 200, "application/json", mapper.writeValueAsBytes(json));
+    }
+
+    private void stream(HttpExchange exchange, String field, List<?> values, String continuation)
+    throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+
+        /* Like Riak, one JSON object per chunk */
+        final OutputStream output = exchange.getResponseBody();
+        for (int start = 0; start < values.size(); start += CHUNK_SIZE) {
+            final int end = Math.min(values.size(), start + CHUNK_SIZE);
+            output.write(mapper.writeValueAsBytes(Collections.singletonMap(field, values.subList(start, end))));
+            output.flush();
+        }
+        if (continuation != null) output.write(mapper.writeValueAsBytes(Collections.singletonMap("continuation", continuation)));
+        output.close();
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+    throws IOException {
+        final Headers headers = exchange.getResponseHeaders();
+        if (contentType != null) headers.set("Content-Type", contentType);
+
+        /* No body for HEAD, 204 and 304, and gzip what's big enough */
+        if ("HEAD".equals(exchange.getRequestMethod()) || (status == 204) || (status == 304)) body = null;
+        final String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if ((body != null) && (body.length >= GZIP_THRESHOLD) && (accept != null) && accept.contains("gzip")) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (final GZIPOutputStream output = new GZIPOutputStream(bytes)) {
+                output.write(body);
+            }
+            headers.set("Content-Encoding", "gzip");
+            body = bytes.toByteArray();
+        }
+
+        if ((body == null) || (body.length == 0)) {
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            exchange.sendResponseHeaders(status, body.length);
+            try (final OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static byte[] body(HttpExchange exchange)
+    throws IOException {
+        final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        final InputStream stream = exchange.getRequestBody();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (final InputStream input = (encoding != null) && "gzip".equalsIgnoreCase(encoding.trim()) ?
+                                           new GZIPInputStream(stream) : stream) {
+            final byte[] buffer = new byte[8192];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static String[] path(String path) {
+        final List<String> segments = new ArrayList<>();
+        for (String segment: path.split("/")) if (segment.length() > 0) segments.add(RiakUtils.decode(segment));
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static Map<String, String> query(String query) {
+        if (query == null) return Collections.emptyMap();
+        final Map<String, String> parameters = new HashMap<>();
+        for (String parameter: query.split("&")) {
+            final int equals = parameter.indexOf('=');
+            if (equals < 0) parameters.put(RiakUtils.decode(parameter), "");
+            else parameters.put(RiakUtils.decode(parameter.substring(0, equals)), RiakUtils.decode(parameter.substring(equals + 1)));
+        }
+        return parameters;
+    }
+
+    private static String headerName(String name) {
+        return name.startsWith("x-riak-index-") ? "X-Riak-Index-" + name.substring(13) :
+               name.startsWith("x-riak-meta-") ? "X-Riak-Meta-" + name.substring(12) :
+               "Link";
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        return (value.length() > 1) && value.startsWith("\"") && value.endsWith("\"") ?
+                   value.substring(1, value.length() - 1) : value;
+    }
+
+    private static SimpleDateFormat dateFormat() {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static String formatDate(long time) {
+        return dateFormat().format(new Date(time));
+    }
+
+    private static Date parseDate(String date) {
+        if (date == null) return null;
+        try {
+            return dateFormat().parse(date);
+        } catch (ParseException exception) {
+            return null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class Stored {
+
+        private final long generation;
+        private final long version;
+        private final List<Sibling> siblings;
+
+        private Stored(long generation, long version, List<Sibling> siblings) {
+            this.generation = generation;
+            this.version = version;
+            this.siblings = siblings;
+        }
+
+        private String vectorClock() {
+            /* Opaque to clients, but unique to each version of each object */
+            return Base64.getEncoder().encodeToString(vectorClockBytes());
+        }
+
+        private byte[] vectorClockBytes() {
+            return (Long.toHexString(generation) + ":" + version).getBytes(UTF_8);
+        }
+    }
+
+    private static final class Sibling {
+
+        private static final Random RANDOM = new Random();
+
+        private final Map<String, List<String>> headers = new TreeMap<>();
+        private final String vtag = Long.toString(RANDOM.nextLong() & Long.MAX_VALUE, 36);
+        private final long lastModified = System.currentTimeMillis() / 1000 * 1000;
+        private final String contentType;
+        private final byte[] body;
+
+        private Sibling(String contentType, byte[] body) {
+            this.contentType = contentType == null ? "application/octet-stream" : contentType;
+            this.body = body;
+        }
+    }
+
+    private static final class Match implements Comparable<Match> {
+
+        private final String term;
+        private final String key;
+        private final boolean integer;
+
+        private Match(String term, String key, boolean integer) {
+            this.term = term;
+            this.key = key;
+            this.integer = integer;
+        }
+
+        @Override
+        public int compareTo(Match match) {
+            final int compare = compare(term, match.term, integer);
+            return compare != 0 ? compare : key.compareTo(match.key);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return (object instanceof Match) && (compareTo((Match) object) == 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return term.hashCode() * 31 + key.hashCode();
+        }
+    }
+}
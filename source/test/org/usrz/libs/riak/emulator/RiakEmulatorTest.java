@@ -0,0 +1,303 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.emulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.IndexTerm;
+import org.usrz.libs.riak.IndexType;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.LargeObjects;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.SiblingsException;
+import org.usrz.libs.riak.StoreRequest;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.async.AsyncRiakClientTest.TestObject;
+import org.usrz.libs.riak.pbc.PbcRiakClient;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.riak.response.ChannelContentHandler;
+import org.usrz.libs.riak.response.PathContentHandler;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class RiakEmulatorTest extends AbstractTest {
+
+    private AsyncHttpClient http;
+    private RiakEmulator emulator;
+    private AsyncRiakClient client;
+
+    @BeforeClass
+    public void start()
+    throws Exception {
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl());
+    }
+
+    @AfterClass
+    public void stop() {
+        http.close();
+        emulator.close();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testStoreFetchDelete()
+    throws Exception {
+        final Bucket bucket = client.getBucket("objects");
+        final TestObject object = new TestObject();
+        object.setValue("foobar1");
+
+        final Response<TestObject> created = bucket.store(object).setReturnBody(true).execute().get();
+        assertEquals(created.getStatus(), 201);
+        assertEquals(created.getContent(), object);
+        assertNotNull(created.getKey());
+        assertNotNull(created.getVectorClock());
+
+        object.setValue("foobar2");
+        final Response<TestObject> updated = bucket.store(object, created.getKey().getName()).setReturnBody(true).execute().get();
+        assertEquals(updated.getStatus(), 200);
+        assertEquals(updated.getContent(), object);
+        assertFalse(updated.getVectorClock().equals(created.getVectorClock()));
+
+        final Response<TestObject> fetched = bucket.fetch(created.getKey().getName(), TestObject.class).execute().get();
+        assertEquals(fetched.getStatus(), 200);
+        assertEquals(fetched.getContent(), object);
+
+        final Response<TestObject> missing = bucket.fetch(created.getKey().getName() + "_foobar", TestObject.class).execute().get();
+        assertEquals(missing.getStatus(), 404);
+        assertNull(missing.getContent());
+
+        assertEquals(bucket.delete(created.getKey().getName()).execute().get().getStatus(), 204);
+        assertEquals(bucket.delete(created.getKey().getName()).execute().get().getStatus(), 404);
+    }
+
+    @Test
+    public void testIndexesAndListings()
+    throws Exception {
+        final Bucket bucket = client.getBucket("indexed");
+        for (int x = 0; x < 250; x ++) {
+            final TestObject object = new TestObject();
+            object.setValue("value" + x);
+            final StoreRequest<TestObject> request = bucket.store(object, "key" + x);
+            request.getIndexMap().add("number", IndexType.INTEGER, Integer.toString(x));
+            request.getIndexMap().add("parity", IndexType.BINARY, x % 2 == 0 ? "even" : "odd");
+            assertEquals(request.setReturnBody(false).execute().get().getStatus(), 204);
+        }
+
+        final Set<String> names = new HashSet<>();
+        for (Key key: bucket.getKeys()) names.add(key.getName());
+        assertEquals(names.size(), 250);
+
+        final Set<String> even = new HashSet<>();
+        for (Key key: bucket.query("parity", "even").setMaxResults(30).getKeys()) even.add(key.getName());
+        assertEquals(even.size(), 125);
+        assertTrue(even.contains("key248"));
+
+        int count = 0;
+        for (IndexTerm term: bucket.query("number", 10, 19).getTerms()) {
+            assertEquals(term.getKey().getName(), "key" + term.getTerm());
+            count ++;
+        }
+        assertEquals(count, 10);
+    }
+
+    @Test
+    public void testSiblings()
+    throws Exception {
+        emulator.setAllowMultiple(true);
+        try {
+            final Bucket bucket = client.getBucket("siblings");
+            for (String value: new String[] { "first", "second" }) {
+                final TestObject object = new TestObject();
+                object.setValue(value);
+                bucket.store(object, "conflict").setVectorClockMode(VectorClockMode.NONE).setReturnBody(false).execute().get();
+            }
+
+            try {
+                bucket.fetch("conflict", TestObject.class).execute().get();
+                fail("Siblings not reported");
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof SiblingsException, "Wrong cause " + exception.getCause());
+                assertEquals(((SiblingsException) exception.getCause()).getSiblings().size(), 2);
+            }
+        } finally {
+            emulator.setAllowMultiple(false);
+        }
+    }
+
+    @Test
+    public void testRawContent()
+    throws Exception {
+        final Bucket bucket = client.getBucket("raw");
+        final byte[] data = new byte[100000];
+        new Random().nextBytes(data);
+
+        final Path directory = Files.createTempDirectory("raw");
+        try {
+            final Path file = Files.write(directory.resolve("stored.bin"), data);
+
+            /* Raw content is never sent back, even when asked for */
+            final Response<Path> stored = bucket.store(file, "file").setReturnBody(true).execute().get();
+            assertEquals(stored.getStatus(), 204);
+            assertNull(stored.getContent());
+
+            final Path fetched = directory.resolve("fetched.bin");
+            assertEquals(bucket.fetch("file", new PathContentHandler(fetched)).execute().get().getContent(), fetched);
+            assertEquals(Files.readAllBytes(fetched), data);
+
+            /* Other channels are sent chunked */
+            final Response<ReadableByteChannel> created = bucket.store(Channels.newChannel(new ByteArrayInputStream(data))).execute().get();
+            assertEquals(created.getStatus(), 201);
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            bucket.fetch(created.getKey().getName(), new ChannelContentHandler(Channels.newChannel(output))).execute().get();
+            assertEquals(output.toByteArray(), data);
+        } finally {
+            for (String name: new String[] { "stored.bin", "fetched.bin" }) Files.deleteIfExists(directory.resolve(name));
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testPbc()
+    throws Exception {
+        final PbcRiakClient pbc = new PbcRiakClient(emulator.getPbcAddress());
+        try {
+            final Bucket bucket = pbc.getBucket("pbc");
+            final TestObject object = new TestObject();
+            object.setValue("foobar1");
+
+            /* Store and update over protocol buffers */
+            final Response<TestObject> created = bucket.store(object).execute().get();
+            assertEquals(created.getStatus(), 201);
+            assertEquals(created.getContent(), object);
+            final String name = created.getKey().getName();
+
+            object.setValue("foobar2");
+            final StoreRequest<TestObject> request = bucket.store(object, name);
+            request.getIndexMap().add("number", IndexType.INTEGER, "42");
+            request.getMetadata().add("color", "blue");
+            assertEquals(request.setReturnBody(false).execute().get().getStatus(), 204);
+
+            /* The same object, indexes and metadata over both protocols */
+            for (Bucket reader: new Bucket[] { bucket, client.getBucket("pbc") }) {
+                final Response<TestObject> fetched = reader.fetch(name, TestObject.class).execute().get();
+                assertEquals(fetched.getStatus(), 200);
+                assertEquals(fetched.getContent(), object);
+                assertEquals(fetched.getIndexMap().get("number", IndexType.INTEGER), Collections.singleton("42"));
+                assertEquals(fetched.getMetadata().get("color"), Collections.singleton("blue"));
+            }
+            assertEquals(bucket.fetch(name + "_foobar", TestObject.class).execute().get().getStatus(), 404);
+
+            /* Conditional stores */
+            try {
+                bucket.store(object, name).setIfNoneMatch("*").execute().get();
+                fail("Conditional store succeeded");
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause().getMessage().contains("match_found"), exception.getCause().getMessage());
+            }
+
+            /* Raw content, straight from a file */
+            final byte[] data = new byte[100000];
+            new Random().nextBytes(data);
+            final Path file = Files.write(Files.createTempFile("pbc", ".bin"), data);
+            try {
+                final Response<Path> stored = bucket.store(file, "raw").setReturnBody(true).execute().get();
+                assertEquals(stored.getStatus(), 204);
+                assertNull(stored.getContent());
+            } finally {
+                Files.delete(file);
+            }
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            client.getBucket("pbc").fetch("raw", new ChannelContentHandler(Channels.newChannel(output))).execute().get();
+            assertEquals(output.toByteArray(), data);
+
+            /* Listings */
+            final Set<String> names = new HashSet<>();
+            for (Key key: bucket.getKeys()) names.add(key.getName());
+            assertEquals(names, new HashSet<>(Arrays.asList(name, "raw")));
+
+            boolean found = false;
+            for (Bucket listed: pbc.getBuckets()) found |= "pbc".equals(listed.getName());
+            assertTrue(found, "Bucket not listed");
+
+            /* Large objects rely on conditional stores */
+            final LargeObjects objects = new LargeObjects(pbc).setChunkSize(1000);
+            final Key key = new Key(pbc, "pbc-large", "object");
+            objects.store(key, new ByteArrayInputStream(data, 0, 5500), null);
+            objects.store(key, new ByteArrayInputStream(data, 0, 3500), null);
+            final ByteArrayOutputStream large = new ByteArrayOutputStream();
+            try (final InputStream input = objects.open(key)) {
+                for (int read = input.read(); read >= 0; read = input.read()) large.write(read);
+            }
+            assertEquals(large.toByteArray(), Arrays.copyOf(data, 3500));
+            assertTrue(objects.delete(key));
+            assertEquals(emulator.size("pbc-large"), 0);
+
+            assertEquals(bucket.delete(name).execute().get().getStatus(), 204);
+            assertEquals(client.getBucket("pbc").fetch(name, TestObject.class).execute().get().getStatus(), 404);
+        } finally {
+            pbc.close();
+        }
+    }
+
+    @Test
+    public void testLargeObjects()
+    throws Exception {
+        final LargeObjects objects = new LargeObjects(client).setChunkSize(1000).setConcurrency(3).setGracePeriod(0, TimeUnit.SECONDS);
+        final Key key = new Key(client, "large", "object");
+
+        final byte[] data = new byte[10500];
+        new Random().nextBytes(data);
+        assertEquals(objects.store(key, new ByteArrayInputStream(data), null).getChunks().size(), 11);
+        assertEquals(emulator.size("large"), 12);
+
+        /* Overwriting collects the old chunks */
+        objects.store(key, new ByteArrayInputStream(data, 0, 4000), null);
+        assertEquals(emulator.size("large"), 5);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final InputStream input = objects.open(key)) {
+            final byte[] buffer = new byte[777];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) output.write(buffer, 0, read);
+        }
+        assertEquals(output.toByteArray(), Arrays.copyOf(data, 4000));
+
+        assertTrue(objects.delete(key));
+        assertEquals(emulator.size("large"), 0);
+        assertNull(objects.open(key));
+    }
+}
@@ -0,0 +1,180 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.metrics;
+
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.IndexType;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.StoreRequest;
+import org.usrz.libs.riak.async.AsyncRiakClient;
+import org.usrz.libs.riak.emulator.RiakEmulator;
+import org.usrz.libs.riak.request.VectorClockMode;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.ning.http.client.AsyncHttpClient;
+
+public class ClientMetricsTest extends AbstractTest {
+
+    private ClientMetrics metrics;
+    private RiakEmulator emulator;
+    private AsyncHttpClient http;
+    private AsyncRiakClient client;
+
+    @BeforeMethod
+    public void start()
+    throws Exception {
+        metrics = new ClientMetrics();
+        emulator = new RiakEmulator();
+        http = new AsyncHttpClient();
+        client = new AsyncRiakClient(http, emulator.getUrl()).setMetrics(metrics);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void stop() {
+        client.close();
+        http.close();
+        emulator.close();
+    }
+
+    private OperationMetrics.Snapshot snapshot(Operation operation)
+    throws InterruptedException {
+        /* Futures are done a moment before their samples are closed */
+        for (int x = 0; x < 100; x ++) {
+            final OperationMetrics.Snapshot snapshot = metrics.getSnapshot(operation);
+            if (snapshot.getInFlight() == 0) return snapshot;
+            Thread.sleep(10);
+        }
+        return metrics.getSnapshot(operation);
+    }
+
+    /* ====================================================================== */
+
+    @Test(timeOut = 30000)
+    public void testOperations()
+    throws Exception {
+        final Bucket bucket = client.getBucket("metrics");
+
+        for (int x = 0; x < 3; x ++) {
+            final StoreRequest<TestObject> request = bucket.store(new TestObject("value" + x), "key" + x)
+                                                           .setVectorClockMode(VectorClockMode.NONE)
+                                                           .setReturnBody(false);
+            request.getIndexMap().add("number", IndexType.INTEGER, Integer.toString(x));
+            request.execute().get();
+        }
+        final OperationMetrics.Snapshot store = snapshot(Operation.STORE);
+        assertEquals(store.getStarted(), 3L);
+        assertEquals(store.getCompleted(), 3L);
+        assertEquals((long) store.getStatuses().get(204), 3L);
+        assertTrue(store.getBytesOut() > 0, "No bytes sent");
+        assertEquals(store.getTimeToHeaders().getCount(), 3L);
+
+        bucket.fetch("key0", TestObject.class).execute().get();
+        bucket.fetch("missing", TestObject.class).execute().get();
+        final OperationMetrics.Snapshot fetch = snapshot(Operation.FETCH);
+        assertEquals(fetch.getStarted(), 2L);
+        assertEquals(fetch.getCompleted(), 2L);
+        assertEquals((long) fetch.getStatuses().get(200), 1L);
+        assertEquals((long) fetch.getStatuses().get(404), 1L);
+        assertTrue(fetch.getBytesIn() > 0, "No bytes received");
+        assertEquals(fetch.getTimeToObject().getCount(), 2L);
+
+        int keys = 0;
+        for (Key key: bucket.getKeys()) if (key != null) keys ++;
+        assertEquals(keys, 3);
+        assertEquals(snapshot(Operation.LIST).getStarted(), 1L);
+
+        int terms = 0;
+        for (Key key: bucket.query("number", 0, 10).getKeys()) if (key != null) terms ++;
+        assertEquals(terms, 3);
+        assertEquals(snapshot(Operation.QUERY).getStarted(), 1L);
+
+        bucket.delete("key0").execute().get();
+        final OperationMetrics.Snapshot delete = snapshot(Operation.DELETE);
+        assertEquals(delete.getStarted(), 1L);
+        assertEquals((long) delete.getStatuses().get(204), 1L);
+
+        /* Nothing else was counted anywhere */
+        assertEquals(snapshot(Operation.FETCH).getStarted(), 2L);
+        assertEquals(snapshot(Operation.STORE).getStarted(), 3L);
+        for (OperationMetrics.Snapshot snapshot: metrics.getSnapshot().values()) {
+            assertEquals(snapshot.getInFlight(), 0L, snapshot.toString());
+            assertEquals(snapshot.getFailed(), 0L, snapshot.toString());
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testFailures()
+    throws Exception {
+        /* Nobody listens on this port once we've closed it */
+        final ServerSocket socket = new ServerSocket(0);
+        final String url = "http://127.0.0.1:" + socket.getLocalPort();
+        socket.close();
+
+        final AsyncRiakClient closed = new AsyncRiakClient(http, url).setMetrics(metrics);
+        try {
+            closed.getBucket("metrics").fetch("key", TestObject.class).execute().get();
+            fail("Fetch from a closed port succeeded");
+        } catch (ExecutionException exception) {
+            /* Expected */
+        } finally {
+            closed.close();
+        }
+
+        final OperationMetrics.Snapshot fetch = snapshot(Operation.FETCH);
+        assertEquals(fetch.getStarted(), 1L);
+        assertEquals(fetch.getFailed(), 1L);
+        assertEquals(fetch.getCompleted(), 0L);
+        assertEquals(fetch.getInFlight(), 0L);
+    }
+
+    @Test(timeOut = 30000)
+    public void testCancel()
+    throws Exception {
+        emulator.setLatency(1, TimeUnit.SECONDS);
+        final ResponseFuture<TestObject> future = client.getBucket("metrics").fetch("key", TestObject.class).execute();
+        assertTrue(future.cancel(true));
+
+        /* Not a failure, and not in flight anymore */
+        final OperationMetrics.Snapshot fetch = snapshot(Operation.FETCH);
+        assertEquals(fetch.getStarted(), 1L);
+        assertEquals(fetch.getCancelled(), 1L);
+        assertEquals(fetch.getFailed(), 0L);
+        assertEquals(fetch.getInFlight(), 0L);
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
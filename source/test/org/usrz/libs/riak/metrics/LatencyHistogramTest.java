@@ -0,0 +1,76 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.metrics;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class LatencyHistogramTest extends AbstractTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 1000000; value ++) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.upperBound(index), "Value " + value + " above bucket " + index);
+            if (index > 0) assertTrue(value > LatencyHistogram.upperBound(index - 1), "Value " + value + " below bucket " + index);
+        }
+        assertEquals(LatencyHistogram.index(Long.MAX_VALUE), LatencyHistogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int x = 1; x <= 1000; x ++) histogram.record(x * 1000L); // 1..1000 us
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(snapshot.getCount(), 1000L);
+        assertEquals(snapshot.getMax(), 1000L);
+        assertEquals(snapshot.getMean(), 500L);
+
+        /* Within the 12.5% resolution of the buckets */
+        assertTrue(Math.abs(snapshot.getPercentile(50) - 500) <= 63, "p50=" + snapshot.getPercentile(50));
+        assertTrue(Math.abs(snapshot.getPercentile(99) - 990) <= 124, "p99=" + snapshot.getPercentile(99));
+        assertEquals(snapshot.getPercentile(100), 1000L);
+    }
+
+    @Test
+    public void testOperationMetrics() {
+        final ClientMetrics metrics = new ClientMetrics();
+
+        final MetricsSample ok = metrics.begin(Operation.FETCH);
+        final MetricsSample ko = metrics.begin(Operation.FETCH);
+        assertEquals(metrics.getSnapshot(Operation.FETCH).getInFlight(), 2L);
+
+        ok.headers(200);
+        ok.received(100);
+        ok.completed();
+        ok.completed(); // only counted once
+        ko.headers(404);
+        ko.failed();
+
+        final OperationMetrics.Snapshot snapshot = metrics.getSnapshot().get(Operation.FETCH);
+        assertEquals(snapshot.getStarted(), 2L);
+        assertEquals(snapshot.getCompleted(), 1L);
+        assertEquals(snapshot.getFailed(), 1L);
+        assertEquals(snapshot.getInFlight(), 0L);
+        assertEquals(snapshot.getBytesIn(), 100L);
+        assertEquals(snapshot.getStatuses().get(200), Long.valueOf(1));
+        assertEquals(snapshot.getStatuses().get(404), Long.valueOf(1));
+        assertEquals(snapshot.getTimeToHeaders().getCount(), 2L);
+        assertEquals(snapshot.getTimeToObject().getCount(), 1L);
+        assertEquals(metrics.getSnapshot(Operation.STORE).getStarted(), 0L);
+    }
+}
@@ -0,0 +1,516 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.pbc;
+
+import static org.usrz.libs.riak.MapReduce.javascript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.MapReduce;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseFuture;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.SiblingResolver;
+import org.usrz.libs.riak.SiblingsException;
+import org.usrz.libs.riak.response.ChannelContentHandler;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+public class PbcRiakClientTest extends AbstractTest {
+
+    private final Map<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private final AtomicInteger generated = new AtomicInteger();
+    private ServerSocket server;
+    private PbcRiakClient client;
+
+    @BeforeClass
+    public void start()
+    throws IOException {
+        server = new ServerSocket(0);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException exception) {
+                    /* Server closed */
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+
+        client = new PbcRiakClient(Executors.newCachedThreadPool(), 1, new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+    }
+
+    @AfterClass
+    public void stop()
+    throws IOException {
+        client.close();
+        server.close();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testStoreFetchDelete()
+    throws Exception {
+        final Bucket bucket = client.getBucket("test");
+        final TestObject object = new TestObject("foobar1");
+
+        final Response<TestObject> store1 = bucket.store(object).execute().get();
+        assertEquals(store1.getStatus(), 201);
+        assertEquals(store1.getContent(), object);
+        assertNotSame(store1.getContent(), object);
+        assertNotNull(store1.getVectorClock());
+        final Key key = store1.getKey();
+
+        object.value = "foobar2";
+        final Response<TestObject> store2 = bucket.store(object, key.getName()).execute().get();
+        assertEquals(store2.getStatus(), 200);
+        assertEquals(store2.getContent(), object);
+        assertEquals(store2.getKey(), key);
+
+        final Response<TestObject> fetch1 = bucket.fetch(key.getName(), TestObject.class).execute().get();
+        assertEquals(fetch1.getStatus(), 200);
+        assertEquals(fetch1.getContent(), object);
+        assertEquals(fetch1.getContentType(), "application/json");
+        assertEquals(fetch1.getKey(), key);
+
+        final Response<TestObject> fetch2 = bucket.fetch(key.getName() + "_foobar", TestObject.class).execute().get();
+        assertEquals(fetch2.getStatus(), 404);
+        assertFalse(fetch2.isSuccessful());
+        assertNull(fetch2.getContent());
+
+        final Response<Boolean> delete = bucket.delete(key.getName()).execute().get();
+        assertEquals(delete.getStatus(), 204);
+        assertTrue(delete.getContent());
+        assertEquals(bucket.fetch(key.getName(), TestObject.class).execute().get().getStatus(), 404);
+    }
+
+    @Test
+    public void testRaw()
+    throws Exception {
+        final byte[] data = new byte[100000];
+        new Random().nextBytes(data);
+        final Path file = Files.write(Files.createTempFile("raw", ".bin"), data);
+        try {
+            final Bucket bucket = client.getBucket("raw");
+
+            /* Sent as it is, never sent back */
+            final Response<Path> store = bucket.store(file, "file").setReturnBody(true).execute().get();
+            assertEquals(store.getStatus(), 204);
+            assertNull(store.getContent());
+            assertEquals(objects.get("raw/file"), data);
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final Response<Long> fetch = bucket.fetch("file", new ChannelContentHandler(Channels.newChannel(output))).execute().get();
+            assertEquals(fetch.getContent(), Long.valueOf(data.length));
+            assertEquals(output.toByteArray(), data);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testPipelining()
+    throws Exception {
+        final Bucket bucket = client.getBucket("pipelined");
+        for (int x = 0; x < 100; x ++) bucket.store(new TestObject("value" + x), "key" + x).execute().get();
+
+        /* All of these go down the same connection without waiting */
+        final List<ResponseFuture<TestObject>> futures = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) futures.add(bucket.fetch("key" + x, TestObject.class).execute());
+        for (int x = 0; x < 100; x ++) assertEquals(futures.get(x).get().getContent().value, "value" + x);
+
+        int keys = 0;
+        for (Key key: bucket.getKeys()) {
+            assertTrue(key.getName().startsWith("key"), key.getName());
+            keys ++;
+        }
+        assertEquals(keys, 100);
+    }
+
+    @Test
+    public void testLargeFrames()
+    throws Exception {
+        final Bucket bucket = client.getBucket("large");
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < 200000) builder.append("0123456789");
+
+        /* Well over our 64 KiB buffer, and pipelined one after the other */
+        for (int x = 0; x < 5; x ++) bucket.store(new TestObject(x + builder.toString()), "key" + x).execute().get();
+        final List<ResponseFuture<TestObject>> futures = new ArrayList<>();
+        for (int x = 0; x < 5; x ++) futures.add(bucket.fetch("key" + x, TestObject.class).execute());
+        for (int x = 0; x < 5; x ++) assertEquals(futures.get(x).get().getContent().value, x + builder.toString());
+
+        /* Frames over the maximum close the connection, the next one works */
+        final PbcRiakClient limited = new PbcRiakClient(Executors.newCachedThreadPool(), 1, new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+        try {
+            limited.setMaxFrameSize(65536);
+            try {
+                limited.getBucket("large").fetch("key0", TestObject.class).execute().get();
+                fail("Frame over the maximum size accepted");
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof IOException, "Wrong cause " + exception.getCause());
+            }
+            limited.getBucket("large").store(new TestObject("small"), "small").execute().get();
+            assertEquals(limited.getBucket("large").fetch("small", TestObject.class).execute().get().getContent().value, "small");
+        } finally {
+            limited.close();
+        }
+    }
+
+    @Test
+    public void testErrorMidStream()
+    throws Exception {
+        final Bucket bucket = client.getBucket("midstream");
+        bucket.store(new TestObject("foo"), "foo").execute().get();
+
+        /* Riak's error ends the listing, the connection stays in sync */
+        try {
+            for (Key key: client.getBucket("broken").getKeys()) assertNotNull(key);
+            fail("Listing did not fail");
+        } catch (Exception exception) {
+            assertTrue(cause(exception) instanceof PbcException, "Wrong cause " + cause(exception));
+        }
+        assertEquals(bucket.fetch("foo", TestObject.class).execute().get().getContent().value, "foo");
+
+        /* Our own failure parsing a frame drops the rest of the stream */
+        try {
+            for (Integer number: client.mapReduce(new MapReduce(client).setInputs(bucket).map(javascript("Riak.mapValues")), Integer.class))
+                assertNotNull(number);
+            fail("Map reduce did not fail");
+        } catch (Exception exception) {
+            assertTrue(cause(exception) instanceof JsonProcessingException, "Wrong cause " + cause(exception));
+        }
+        for (int x = 0; x < 10; x ++) assertEquals(bucket.fetch("foo", TestObject.class).execute().get().getContent().value, "foo");
+    }
+
+    @Test
+    public void testCompressed()
+    throws Exception {
+        /* Stored plain here, returned gzipped by our server */
+        client.getBucket("compressed").store(new TestObject("foobar"), "gzip").execute().get();
+        assertEquals(client.getBucket("compressed").fetch("gzip", TestObject.class).execute().get().getContent().value, "foobar");
+    }
+
+    @Test
+    public void testSiblings()
+    throws Exception {
+        final Bucket bucket = client.getBucket("siblings");
+        try {
+            bucket.fetch("conflict", TestObject.class).execute().get();
+            fail("Siblings not reported");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof SiblingsException, "Wrong cause " + exception.getCause());
+            assertEquals(((SiblingsException) exception.getCause()).getSiblings().size(), 2);
+        }
+
+        final BlockingQueue<ResponseEvent<TestObject>> events = new LinkedBlockingQueue<>();
+        client.setSiblingResolver(TestObject.class, new SiblingResolver<TestObject>() {
+
+            @Override
+            public TestObject resolve(Key key, List<Response<TestObject>> siblings) {
+                final StringBuilder builder = new StringBuilder();
+                for (Response<TestObject> sibling: siblings) builder.append(sibling.getContent().value);
+                return new TestObject(builder.toString());
+            }
+        }, new ResponseListener<TestObject>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<TestObject> event) {
+                events.add(event);
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<TestObject> event) {
+                events.add(event);
+            }
+        });
+
+        try {
+            final Response<TestObject> response = bucket.fetch("conflict", TestObject.class).execute().get();
+            assertEquals(response.getStatus(), 300);
+            assertEquals(response.getContent().value, "foobar");
+
+            /* Written back with the vector clock of the siblings */
+            final ResponseEvent<TestObject> event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(event, "Write back never completed");
+            assertNull(event.getThrowable());
+            assertEquals(new String(objects.get("siblings/conflict"), "UTF8"), "{\"value\":\"foobar\"}");
+        } finally {
+            client.setSiblingResolver(TestObject.class, null);
+        }
+    }
+
+    @Test(expectedExceptions=PbcException.class)
+    public void testErrorResponse()
+    throws Throwable {
+        try {
+            client.getBuckets().iterator().hasNext();
+        } catch (Exception exception) {
+            /* Whatever wraps it, the root cause is Riak's error */
+            Throwable cause = exception;
+            while ((cause.getCause() != null) && (!(cause instanceof PbcException))) cause = cause.getCause();
+            throw cause;
+        }
+    }
+
+    @Test(timeOut = 30000)
+    public void testBackoff()
+    throws Exception {
+        /* A node hanging up on every connection */
+        final AtomicInteger accepted = new AtomicInteger();
+        final ServerSocket broken = new ServerSocket(0);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        broken.accept().close();
+                        accepted.incrementAndGet();
+                    }
+                } catch (IOException exception) {
+                    /* Server closed */
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+
+        final PbcRiakClient client = new PbcRiakClient(Executors.newCachedThreadPool(), 1, new InetSocketAddress("127.0.0.1", broken.getLocalPort()));
+        try {
+            final Bucket bucket = client.getBucket("test");
+            try {
+                bucket.fetch("key", TestObject.class).execute().get();
+                fail("Fetch succeeded");
+            } catch (ExecutionException exception) {
+                /* The connection was closed on us */
+            }
+            assertEquals(accepted.get(), 1);
+
+            /* Right after, we don't even try to connect */
+            for (int x = 0; x < 10; x ++) try {
+                bucket.fetch("key", TestObject.class).execute().get();
+                fail("Fetch succeeded");
+            } catch (IOException exception) {
+                assertTrue(exception.getMessage().contains("backing off"), exception.getMessage());
+            }
+            assertEquals(accepted.get(), 1);
+
+            /* Once the backoff expires, we try again */
+            Thread.sleep(200);
+            try {
+                bucket.fetch("key", TestObject.class).execute().get();
+                fail("Fetch succeeded");
+            } catch (ExecutionException exception) {
+                /* The connection was closed on us, again */
+            }
+            assertEquals(accepted.get(), 2);
+        } finally {
+            client.close();
+            broken.close();
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static Throwable cause(Throwable throwable) {
+        while ((throwable.getCause() != null) && (throwable.getCause() != throwable)) throwable = throwable.getCause();
+        return throwable;
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final DataInputStream input = new DataInputStream(socket.getInputStream());
+            final DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                final byte[] message = new byte[input.readInt() - 1];
+                final int code = input.read();
+                input.readFully(message);
+                for (ByteBuffer frame: respond(code, new ProtobufReader(message))) output.write(frame.array());
+                output.flush();
+            }
+        } catch (IOException exception) {
+            /* Client went away */
+        }
+    }
+
+    private List<ByteBuffer> respond(int code, ProtobufReader reader)
+    throws IOException {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        String bucket = null, key = null;
+        byte[] value = null;
+        boolean returnBody = false;
+
+        for (int field = reader.next(); field != 0; field = reader.next()) {
+            if (code == PbcRiakClient.LIST_BUCKETS_REQ) reader.skip();
+            else if (field == 1) bucket = reader.readString();
+            else if (field == 2) key = reader.readString();
+            else if ((field == 4) && (code == PbcRiakClient.PUT_REQ)) value = content(reader.readMessage());
+            else if ((field == 7) && (code == PbcRiakClient.PUT_REQ)) returnBody = reader.readBoolean();
+            else reader.skip();
+        }
+
+        final ProtobufWriter response = new ProtobufWriter();
+        switch (code) {
+            case PbcRiakClient.GET_REQ:
+                if ("siblings".equals(bucket)) {
+                    /* Two siblings and a tombstone */
+                    response.writeMessage(1, content("{\"value\":\"foo\"}".getBytes("UTF8")).writeString(5, "vfoo"))
+                            .writeMessage(1, content("{\"value\":\"bar\"}".getBytes("UTF8")).writeString(5, "vbar"))
+                            .writeMessage(1, content(new byte[0]).writeString(5, "vdel").writeBoolean(11, true))
+                            .writeBytes(2, new byte[] { 1, 2, 3 });
+                    frames.add(response.toFrame(PbcRiakClient.GET_RESP));
+                    break;
+                }
+
+                value = objects.get(bucket + "/" + key);
+                if ((value != null) && "compressed".equals(bucket)) response.writeMessage(1, content(gzip(value)).writeString(4, "gzip"));
+                else if (value != null) response.writeMessage(1, content(value));
+                if (value != null) response.writeBytes(2, new byte[] { 1, 2, 3 });
+                frames.add(response.toFrame(PbcRiakClient.GET_RESP));
+                break;
+
+            case PbcRiakClient.PUT_REQ:
+                final boolean created = key == null;
+                if (created) key = "generated" + generated.incrementAndGet();
+                objects.put(bucket + "/" + key, value);
+                if (returnBody) response.writeMessage(1, content(value));
+                response.writeBytes(2, new byte[] { 1, 2, 3 });
+                if (created) response.writeString(3, key);
+                frames.add(response.toFrame(PbcRiakClient.PUT_RESP));
+                break;
+
+            case PbcRiakClient.DEL_REQ:
+                objects.remove(bucket + "/" + key);
+                frames.add(response.toFrame(PbcRiakClient.DEL_RESP));
+                break;
+
+            case PbcRiakClient.LIST_KEYS_REQ:
+                if ("broken".equals(bucket)) {
+                    /* A couple of keys, then Riak gives up */
+                    frames.add(new ProtobufWriter().writeString(1, "first").toFrame(PbcRiakClient.LIST_KEYS_RESP));
+                    frames.add(new ProtobufWriter().writeString(1, "second").toFrame(PbcRiakClient.LIST_KEYS_RESP));
+                    frames.add(response.writeString(1, "Listing timed out").writeUnsigned(2, 1).toFrame(PbcRiakClient.ERROR_RESP));
+                    break;
+                }
+
+                /* Stream one key per message, then a "done" message */
+                for (String name: objects.keySet()) if (name.startsWith(bucket + "/"))
+                    frames.add(new ProtobufWriter().writeString(1, name.substring(bucket.length() + 1)).toFrame(PbcRiakClient.LIST_KEYS_RESP));
+                frames.add(new ProtobufWriter().writeBoolean(2, true).toFrame(PbcRiakClient.LIST_KEYS_RESP));
+                break;
+
+            case PbcRiakClient.MAPRED_REQ:
+                /* Something our client can't parse, then more to come */
+                frames.add(new ProtobufWriter().writeUnsigned(1, 0).writeBytes(2, "[\"foo\"]".getBytes("UTF8")).toFrame(PbcRiakClient.MAPRED_RESP));
+                frames.add(new ProtobufWriter().writeUnsigned(1, 0).writeBytes(2, "[1,2]".getBytes("UTF8")).toFrame(PbcRiakClient.MAPRED_RESP));
+                frames.add(new ProtobufWriter().writeBoolean(3, true).toFrame(PbcRiakClient.MAPRED_RESP));
+                break;
+
+            default:
+                frames.add(response.writeString(1, "Unknown message code " + code).writeUnsigned(2, 1).toFrame(PbcRiakClient.ERROR_RESP));
+        }
+        return frames;
+    }
+
+    private static byte[] content(ProtobufReader reader)
+    throws IOException {
+        byte[] value = null;
+        for (int field = reader.next(); field != 0; field = reader.next()) {
+            if (field == 1) value = reader.readBytes();
+            else reader.skip();
+        }
+        return value;
+    }
+
+    private static byte[] gzip(byte[] value)
+    throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream output = new GZIPOutputStream(bytes)) {
+            output.write(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ProtobufWriter content(byte[] value) {
+        return new ProtobufWriter().writeBytes(1, value).writeString(2, "application/json");
+    }
+
+    /* ====================================================================== */
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return (object instanceof TestObject) && value.equals(((TestObject) object).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+public class JsonTokenFeederTest extends AbstractTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private List<Map<?, ?>> feed(String json, int size, boolean direct)
+    throws IOException {
+        final List<Map<?, ?>> values = new ArrayList<>();
+        final JsonTokenFeeder feeder = new JsonTokenFeeder(mapper.getFactory()) {
+            @Override
+            protected boolean value(TokenBuffer tokens)
+            throws IOException {
+                values.add(mapper.readValue(tokens.asParser(mapper), Map.class));
+                return true;
+            }
+        };
+
+        final byte[] bytes = json.getBytes("UTF8");
+        for (int x = 0; x < bytes.length; x += size) {
+            final int length = Math.min(size, bytes.length - x);
+            if (direct) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+                buffer.put(bytes, x, length).flip();
+                feeder.feed(buffer);
+            } else {
+                feeder.feed(ByteBuffer.wrap(bytes, x, length));
+            }
+        }
+        feeder.end();
+        return values;
+    }
+
+    @Test
+    public void testChunks()
+    throws IOException {
+        final String json = "{\"keys\":[\"a\",\"b\"]}{\"keys\":[]} {\"keys\":[\"c\\u00FC\"],\"nested\":{\"x\":[1,2,{}]}}";
+
+        for (int size: new int[] { 1, 2, 3, 7, 1024 }) {
+            for (boolean direct: new boolean[] { true, false }) {
+                final List<Map<?, ?>> values = feed(json, size, direct);
+                assertEquals(values.size(), 3, "Chunk size " + size);
+                assertEquals(values.get(0).get("keys").toString(), "[a, b]");
+                assertEquals(values.get(1).get("keys").toString(), "[]");
+                assertEquals(values.get(2).get("keys").toString(), "[c\u00FC]");
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty()
+    throws IOException {
+        assertTrue(feed("", 10, false).isEmpty());
+        assertTrue(feed("  \n ", 1, false).isEmpty());
+    }
+
+    @Test(expectedExceptions=IOException.class)
+    public void testTruncated()
+    throws IOException {
+        feed("{\"keys\":[\"a\",", 3, false);
+    }
+}
@@ -0,0 +1,115 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class MultipartFeederTest extends AbstractTest {
+
+    private static final String MULTIPART = "\r\n--FooBar\r\n"
+                                          + "Content-Type: application/json\r\n"
+                                          + "Link: </buckets/a/keys/b>; riaktag=\"x\"\r\n"
+                                          + "Link: </buckets/a/keys/c>; riaktag=\"y\"\r\n"
+                                          + "\r\n"
+                                          + "{\"keys\":[\"a\"]}\r\n"
+                                          + "--FooBar\r\n"
+                                          + "Content-Type: text/plain\r\n"
+                                          + "\r\n"
+                                          + "--FooBa--FooBar-\r\n"
+                                          + "--FooBar--\r\n"
+                                          + "epilogue";
+
+    private final List<Map<String, String>> headers = new ArrayList<>();
+    private final List<String> bodies = new ArrayList<>();
+
+    private void feed(String content, int size)
+    throws IOException {
+        headers.clear();
+        bodies.clear();
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final MultipartFeeder feeder = new MultipartFeeder("FooBar") {
+
+            @Override
+            protected void part(Map<String, String> map) {
+                headers.add(map);
+                body.reset();
+            }
+
+            @Override
+            protected void body(ByteBuffer buffer) {
+                while (buffer.hasRemaining()) body.write(buffer.get());
+            }
+
+            @Override
+            protected void partComplete() {
+                bodies.add(new String(body.toByteArray()));
+            }
+        };
+
+        final byte[] bytes = content.getBytes("UTF8");
+        for (int x = 0; x < bytes.length; x += size) {
+            feeder.feed(ByteBuffer.wrap(bytes, x, Math.min(size, bytes.length - x)));
+        }
+        feeder.end();
+    }
+
+    @Test
+    public void testParts()
+    throws IOException {
+        for (int size: new int[] { 1, 2, 3, 5, 8, 13, 4096 }) {
+            feed(MULTIPART, size);
+            assertEquals(bodies.size(), 2, "Chunk size " + size);
+            assertEquals(bodies.get(0), "{\"keys\":[\"a\"]}");
+            assertEquals(bodies.get(1), "--FooBa--FooBar-");
+            assertEquals(headers.get(0).get("content-type"), "application/json");
+            assertEquals(headers.get(0).get("Link"), "</buckets/a/keys/b>; riaktag=\"x\", </buckets/a/keys/c>; riaktag=\"y\"");
+            assertEquals(headers.get(1).get("Content-Type"), "text/plain");
+        }
+    }
+
+    @Test
+    public void testNoPreamble()
+    throws IOException {
+        feed("--FooBar\r\n\r\nhello\r\n--FooBar--", 4);
+        assertEquals(bodies.size(), 1);
+        assertEquals(bodies.get(0), "hello");
+        assertTrue(headers.get(0).isEmpty());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated()
+    throws IOException {
+        feed("\r\n--FooBar\r\n\r\n{\"keys\":[", 7);
+    }
+
+    @Test
+    public void testBoundary() {
+        assertEquals(MultipartFeeder.getBoundary("multipart/mixed; boundary=FooBar"), "FooBar");
+        assertEquals(MultipartFeeder.getBoundary("multipart/mixed;boundary=\"Foo Bar\""), "Foo Bar");
+        assertNull(MultipartFeeder.getBoundary("application/json"));
+        assertNull(MultipartFeeder.getBoundary("multipart/mixed"));
+        assertNull(MultipartFeeder.getBoundary(null));
+    }
+}
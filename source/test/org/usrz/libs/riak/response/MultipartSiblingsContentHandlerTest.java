@@ -0,0 +1,208 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.AbstractPartialResponse;
+import org.usrz.libs.riak.FakeClient;
+import org.usrz.libs.riak.Key;
+import org.usrz.libs.riak.Response;
+import org.usrz.libs.riak.ResponseEvent;
+import org.usrz.libs.riak.ResponseListener;
+import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.riak.Sibling;
+import org.usrz.libs.riak.SiblingResolver;
+import org.usrz.libs.riak.SiblingsException;
+import org.usrz.libs.riak.serializers.MapperSerializer;
+import org.usrz.libs.riak.serializers.SerializerRegistry;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MultipartSiblingsContentHandlerTest extends AbstractTest {
+
+    private static final String MULTIPART = "\r\n--FooBar\r\n"
+                                          + "Content-Type: application/json\r\n"
+                                          + "Etag: first\r\n"
+                                          + "Last-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+                                          + "X-Riak-Meta-Owner: alice\r\n"
+                                          + "\r\n"
+                                          + "{\"value\":\"foo\"}\r\n"
+                                          + "--FooBar\r\n"
+                                          + "Content-Type: application/json\r\n"
+                                          + "Etag: second\r\n"
+                                          + "Last-Modified: not a date\r\n"
+                                          + "\r\n"
+                                          + "{\"value\":\"bar\"}\r\n"
+                                          + "--FooBar\r\n"
+                                          + "Content-Type: application/json\r\n"
+                                          + "Etag: deleted\r\n"
+                                          + "X-Riak-Deleted: true\r\n"
+                                          + "\r\n"
+                                          + "\r\n"
+                                          + "--FooBar--\r\n";
+
+    private final RiakClient client = new FakeClient();
+    private final Key key = new Key(client, "siblings", "conflict");
+    private final SerializerRegistry registry = new SerializerRegistry(new MapperSerializer(SerializerRegistry.JSON, new ObjectMapper()));
+
+    private final List<Response<TestObject>> siblings = new ArrayList<>();
+    private final SiblingResolver<TestObject> merging = new SiblingResolver<TestObject>() {
+
+        @Override
+        public TestObject resolve(Key key, List<Response<TestObject>> responses) {
+            siblings.addAll(responses);
+            final StringBuilder builder = new StringBuilder();
+            for (Response<TestObject> response: responses) builder.append(response.getContent().value);
+            return new TestObject(builder.toString());
+        }
+    };
+
+    private TestObject read(MultipartSiblingsContentHandler<TestObject> handler)
+    throws Exception {
+        siblings.clear();
+        return handler.read(new TestPartialResponse(), new ByteArrayInputStream(MULTIPART.getBytes("ISO-8859-1")));
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testParsing()
+    throws Exception {
+        final TestObject resolved = read(new MultipartSiblingsContentHandler<>(registry, TestObject.class, merging, false));
+        assertEquals(resolved.value, "foobar");
+
+        /* Tombstones are never handed to the resolver */
+        assertEquals(siblings.size(), 2);
+
+        final Response<TestObject> first = siblings.get(0);
+        assertEquals(first.getContent().value, "foo");
+        assertEquals(first.getETag(), "first");
+        assertEquals(first.getContentType(), "application/json");
+        assertEquals(first.getLastModified(), new Date(784111777000L));
+        assertTrue(first.getMetadata().containsValue("owner", "alice"));
+        assertEquals(first.getVectorClock(), "vclock");
+        assertEquals(first.getKey(), key);
+
+        final Response<TestObject> second = siblings.get(1);
+        assertEquals(second.getContent().value, "bar");
+        assertEquals(second.getETag(), "second");
+        assertNull(second.getLastModified());
+    }
+
+    @Test
+    public void testUnresolved()
+    throws Exception {
+        try {
+            read(new MultipartSiblingsContentHandler<>(registry, TestObject.class, new SiblingResolver<TestObject>() {
+
+                @Override
+                public TestObject resolve(Key key, List<Response<TestObject>> siblings) {
+                    return null;
+                }
+            }, false));
+            fail("Siblings not reported");
+        } catch (SiblingsException exception) {
+            final Set<String> vtags = new HashSet<>();
+            for (Sibling sibling: exception.getSiblings()) vtags.add(sibling.getVtag());
+            assertEquals(vtags, new HashSet<>(Arrays.asList("first", "second")));
+        }
+    }
+
+    @Test
+    public void testWriteBackFailure()
+    throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ResponseListener<TestObject> listener = new ResponseListener<TestObject>() {
+
+            @Override
+            public void responseHandled(ResponseEvent<TestObject> event) {
+                fail("Write back succeeded on a client that can not store");
+            }
+
+            @Override
+            public void responseFailed(ResponseEvent<TestObject> event) {
+                failure.set(event.getThrowable());
+            }
+        };
+
+        /* Our fake client can not store: the reader still gets its value */
+        assertEquals(read(new MultipartSiblingsContentHandler<>(registry, TestObject.class, merging, true, listener)).value, "foobar");
+        assertTrue(failure.get() instanceof UnsupportedOperationException, "Wrong failure " + failure.get());
+    }
+
+    /* ====================================================================== */
+
+    private class TestPartialResponse extends AbstractPartialResponse<TestObject> {
+
+        private TestPartialResponse() {
+            super(client, Collections.<String, List<String>>emptyMap(), 300);
+        }
+
+        @Override
+        public String getLocation() {
+            return key.getLocation();
+        }
+
+        @Override
+        public String getVectorClock() {
+            return "vclock";
+        }
+
+        @Override
+        public Date getLastModified() {
+            return null;
+        }
+
+        @Override
+        public String getETag() {
+            return null;
+        }
+
+        @Override
+        public String getContentType() {
+            return "multipart/mixed; boundary=FooBar";
+        }
+
+        @Override
+        public Key getKey() {
+            return key;
+        }
+    }
+
+    public static class TestObject {
+
+        public String value;
+
+        public TestObject() {
+            /* Nothing to do */
+        }
+
+        public TestObject(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SpillingContentHandlerTest extends AbstractTest {
+
+    private final byte[] data = new byte[100000];
+
+    public SpillingContentHandlerTest() {
+        new Random().nextBytes(data);
+    }
+
+    private static void write(QueuedContentHandler<?> handler, byte[] data)
+    throws Exception {
+        final OutputStream output = handler.getOutputStream(null);
+        for (int x = 0; x < data.length; x += 4096) output.write(data, x, Math.min(4096, data.length - x));
+        output.close();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testHeap()
+    throws Exception {
+        final SpillingContentHandler handler = new SpillingContentHandler(data.length);
+        write(handler, data);
+        final ByteBuffer buffer = handler.read(null, null);
+        assertFalse(buffer instanceof MappedByteBuffer);
+        assertEquals(bytes(buffer), data);
+    }
+
+    @Test
+    public void testSpill()
+    throws Exception {
+        final Path directory = Files.createTempDirectory("spill");
+        try {
+            final SpillingContentHandler handler = new SpillingContentHandler(10000, directory);
+            write(handler, data);
+            final ByteBuffer buffer = handler.read(null, null);
+            assertTrue(buffer instanceof MappedByteBuffer);
+            assertEquals(bytes(buffer), data);
+        } finally {
+            Files.delete(directory); // The spilled file is gone already
+        }
+    }
+
+    @Test
+    public void testEmpty()
+    throws Exception {
+        final SpillingContentHandler handler = new SpillingContentHandler(0);
+        write(handler, new byte[0]);
+        assertEquals(handler.read(null, null).remaining(), 0);
+    }
+
+    @Test
+    public void testChannel()
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ChannelContentHandler handler = new ChannelContentHandler(Channels.newChannel(output));
+        write(handler, data);
+        assertEquals(handler.read(null, null), Long.valueOf(data.length));
+        assertEquals(output.toByteArray(), data);
+    }
+
+    @Test
+    public void testBackpressure()
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ChannelContentHandler handler = new ChannelContentHandler(Channels.newChannel(output));
+        final AtomicInteger resumed = new AtomicInteger();
+        handler.setWritableListener(new Runnable() {
+            @Override
+            public void run() {
+                resumed.incrementAndGet();
+            }
+        }).getOutputStream(null);
+
+        /* Never waits, but tells the producer to pause at one megabyte */
+        final byte[] chunk = new byte[65536];
+        int offered = 0;
+        while (handler.offer(ByteBuffer.wrap(chunk))) offered ++;
+        assertEquals(offered, 15);
+
+        /* Once told, the producer is not told again */
+        assertTrue(handler.offer(ByteBuffer.wrap(chunk)));
+        assertEquals(resumed.get(), 0);
+
+        /* Consuming resumes the producer, once */
+        handler.close();
+        assertEquals(handler.read(null, null), Long.valueOf(17 * 65536));
+        assertEquals(output.size(), 17 * 65536);
+        assertEquals(resumed.get(), 1);
+    }
+}
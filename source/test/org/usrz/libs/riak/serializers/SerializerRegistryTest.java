@@ -0,0 +1,145 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.serializers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.riak.Bucket;
+import org.usrz.libs.riak.FakeClient;
+import org.usrz.libs.riak.RiakClient;
+import org.usrz.libs.testing.AbstractTest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+public class SerializerRegistryTest extends AbstractTest {
+
+    private final RiakClient client = new FakeClient();
+
+    private static Object roundTrip(Serializer serializer, Object value, Class<?> type)
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        serializer.write(output, value);
+        return serializer.read(new ByteArrayInputStream(output.toByteArray()), type);
+    }
+
+    @Test
+    public void testContentTypes()
+    throws Exception {
+        final SerializerRegistry registry = new SerializerRegistry(new ObjectMapper());
+
+        assertEquals(registry.getSerializer("application/json").getContentType(), SerializerRegistry.JSON);
+        assertEquals(registry.getSerializer("Application/X-Jackson-Smile; charset=binary").getContentType(), SerializerRegistry.SMILE);
+        assertEquals(registry.getSerializer(" application/cbor ").getContentType(), SerializerRegistry.CBOR);
+        assertEquals(registry.getSerializer("application/octet-stream").getContentType(), SerializerRegistry.BYTES);
+
+        /* Unknown or missing content types decode with the default */
+        assertSame(registry.getSerializer("text/plain"), registry.getDefaultSerializer());
+        assertSame(registry.getSerializer((String) null), registry.getDefaultSerializer());
+
+        final Map<String, String> value = Collections.singletonMap("hello", "world");
+        for (String contentType: new String[] { SerializerRegistry.JSON, SerializerRegistry.SMILE, SerializerRegistry.CBOR }) {
+            assertEquals(roundTrip(registry.getSerializer(contentType), value, Map.class), value, contentType);
+        }
+
+        final byte[] bytes = new byte[] { 0, 1, 2, 3 };
+        assertEquals((byte[]) roundTrip(registry.getSerializer(SerializerRegistry.BYTES), bytes, byte[].class), bytes);
+    }
+
+    @Test
+    public void testModules()
+    throws Exception {
+        final SimpleModule module = new SimpleModule("points");
+        module.addSerializer(Point.class, new JsonSerializer<Point>() {
+            @Override
+            public void serialize(Point value, JsonGenerator generator, SerializerProvider provider)
+            throws IOException {
+                generator.writeString(value.x + "," + value.y);
+            }
+        });
+        module.addDeserializer(Point.class, new JsonDeserializer<Point>() {
+            @Override
+            public Point deserialize(JsonParser parser, DeserializationContext context)
+            throws IOException {
+                final String[] values = parser.getValueAsString().split(",");
+                return new Point(Integer.parseInt(values[0]), Integer.parseInt(values[1]));
+            }
+        });
+
+        /* Modules registered on the JSON mapper apply to all formats */
+        final SerializerRegistry registry = new SerializerRegistry(new ObjectMapper().registerModule(module));
+        for (String contentType: new String[] { SerializerRegistry.JSON, SerializerRegistry.SMILE, SerializerRegistry.CBOR }) {
+            final Serializer serializer = registry.getSerializer(contentType);
+            assertEquals(roundTrip(serializer, new Point(1, 2), String.class), "1,2", contentType);
+
+            final Point point = (Point) roundTrip(serializer, new Point(3, 4), Point.class);
+            assertEquals(point.x, 3, contentType);
+            assertEquals(point.y, 4, contentType);
+        }
+    }
+
+    @Test
+    public void testWriteSelection() {
+        final SerializerRegistry registry = new SerializerRegistry(new ObjectMapper());
+        final Bucket smile = client.getBucket("smile");
+        final Bucket plain = client.getBucket("plain");
+
+        registry.setContentType(smile, SerializerRegistry.SMILE);
+        assertEquals(registry.getSerializer(smile, null).getContentType(), SerializerRegistry.SMILE);
+        assertEquals(registry.getSerializer(plain, null).getContentType(), SerializerRegistry.JSON);
+
+        /* Requests override buckets */
+        assertEquals(registry.getSerializer(smile, SerializerRegistry.CBOR).getContentType(), SerializerRegistry.CBOR);
+
+        /* And the default can change */
+        registry.setDefaultContentType(SerializerRegistry.CBOR);
+        assertEquals(registry.getSerializer(plain, null).getContentType(), SerializerRegistry.CBOR);
+
+        registry.setContentType(smile, null);
+        assertEquals(registry.getSerializer(smile, null).getContentType(), SerializerRegistry.CBOR);
+
+        try {
+            registry.getSerializer(plain, "text/plain");
+            fail("No exception");
+        } catch (IllegalArgumentException exception) {
+            /* Ok */
+        }
+    }
+
+    /* ====================================================================== */
+
+    public static class Point {
+
+        private final int x;
+        private final int y;
+
+        public Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
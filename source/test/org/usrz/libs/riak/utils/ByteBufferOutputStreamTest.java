@@ -0,0 +1,72 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class ByteBufferOutputStreamTest extends AbstractTest {
+
+    @Test
+    public void testWriteAndDrain()
+    throws Exception {
+        final ByteBufferPool pool = new ByteBufferPool(100, 10);
+        final byte[] data = new byte[1234];
+        new Random().nextBytes(data);
+
+        for (int size: new int[] { 1, 7, 99, 100, 101, 4096 }) {
+            final ByteBufferOutputStream output = new ByteBufferOutputStream(pool);
+            output.write(data[0]);
+            output.write(data, 1, 500);
+            output.write(data, 501, data.length - 501);
+            output.close();
+            assertEquals(output.size(), data.length);
+
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final ByteBuffer target = ByteBuffer.allocate(size);
+            while (!output.isDrained()) {
+                target.clear();
+                final int drained = output.drainTo(target);
+                assertEquals(drained, target.position());
+                result.write(target.array(), 0, drained);
+            }
+
+            assertEquals(result.toByteArray(), data, "Drain size " + size);
+        }
+
+        /* All buffers went back to the pool */
+        assertEquals(pool.getPooledCount(), 10);
+    }
+
+    @Test
+    public void testRelease()
+    throws Exception {
+        final ByteBufferPool pool = new ByteBufferPool(10, 100);
+        final ByteBufferOutputStream output = new ByteBufferOutputStream(pool);
+        output.write(new byte[95]);
+        output.release();
+        assertEquals(pool.getPooledCount(), 10);
+
+        /* Pooled buffers get reused */
+        final ByteBufferOutputStream reused = new ByteBufferOutputStream(pool);
+        reused.write(new byte[25]);
+        assertEquals(pool.getPooledCount(), 7);
+    }
+}
@@ -0,0 +1,126 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.riak.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class GzipDecoderTest extends AbstractTest {
+
+    private static byte[] compress(byte[] data)
+    throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GZIPOutputStream output = new GZIPOutputStream(bytes);
+        output.write(data);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decode(GzipDecoder decoder, byte[] compressed, int chunk, boolean direct)
+    throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int offset = 0; offset < compressed.length; offset += chunk) {
+            final int length = Math.min(chunk, compressed.length - offset);
+            final ByteBuffer input = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+            input.put(compressed, offset, length).flip();
+            final ByteBuffer output = decoder.decode(input);
+            assertFalse(input.hasRemaining());
+            bytes.write(output.array(), output.arrayOffset() + output.position(), output.remaining());
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testDecode()
+    throws Exception {
+        final byte[] data = new byte[100000];
+        final Random random = new Random();
+        for (int x = 0; x < data.length; x ++) data[x] = (byte) ('a' + random.nextInt(4));
+        final byte[] compressed = compress(data);
+
+        for (int chunk: new int[] { 1, 7, 10, 11, 1000, compressed.length }) {
+            for (boolean direct: new boolean[] { false, true }) {
+                final GzipDecoder decoder = new GzipDecoder();
+                assertEquals(decode(decoder, compressed, chunk, direct), data, "Chunk " + chunk);
+                decoder.finish();
+                decoder.close();
+            }
+        }
+    }
+
+    @Test
+    public void testConcatenatedMembers()
+    throws Exception {
+        final byte[] first = compress("Hello, ".getBytes("UTF8"));
+        final byte[] second = compress("world!".getBytes("UTF8"));
+        final byte[] compressed = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, compressed, first.length, second.length);
+
+        final GzipDecoder decoder = new GzipDecoder();
+        assertEquals(new String(decode(decoder, compressed, 3, false), "UTF8"), "Hello, world!");
+        decoder.finish();
+        decoder.close();
+    }
+
+    @Test
+    public void testInvalid()
+    throws Exception {
+        final byte[] compressed = compress("Hello, world!".getBytes("UTF8"));
+
+        /* Truncated stream */
+        final GzipDecoder truncated = new GzipDecoder();
+        decode(truncated, Arrays.copyOf(compressed, compressed.length - 4), 5, false);
+        try {
+            truncated.finish();
+            fail("No exception");
+        } catch (EOFException exception) {
+            /* Ok */
+        } finally {
+            truncated.close();
+        }
+
+        /* Corrupted checksum */
+        compressed[compressed.length - 8] ^= 0xFF;
+        final GzipDecoder corrupted = new GzipDecoder();
+        try {
+            decode(corrupted, compressed, 5, false);
+            fail("No exception");
+        } catch (ZipException exception) {
+            /* Ok */
+        } finally {
+            corrupted.close();
+        }
+
+        /* Not GZIP at all */
+        final GzipDecoder plain = new GzipDecoder();
+        try {
+            decode(plain, "Hello, world!".getBytes("UTF8"), 20, false);
+            fail("No exception");
+        } catch (ZipException exception) {
+            /* Ok */
+        } finally {
+            plain.close();
+        }
+    }
+}
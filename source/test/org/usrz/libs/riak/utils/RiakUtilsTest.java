@@ -15,6 +15,9 @@
  * ========================================================================== */
 package org.usrz.libs.riak.utils;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 import org.testng.annotations.Test;
 import org.usrz.libs.riak.utils.RiakUtils;
 import org.usrz.libs.testing.AbstractTest;
@@ -38,4 +41,17 @@ public class RiakUtilsTest extends AbstractTest {
                      "This \ufffd( is \ufffd(\ufffd invalid \ufffd( in \ufffd(\ufffd\ufffd UTF8");
     }
 
+    @Test
+    public void testEncodingUnreserved() {
+        final String original = "plain_Key-01.json*";
+        assertSame(RiakUtils.encode(original), original);
+    }
+
+    @Test
+    public void testEncodingList() {
+        assertEquals(RiakUtils.encode(Collections.<String>emptyList()), "");
+        assertEquals(RiakUtils.encode(Arrays.asList("foo")), "foo");
+        assertEquals(RiakUtils.encode(Arrays.asList("foo", "b r", "baz")), "foo, b+r, baz");
+    }
+
 }